@@ -0,0 +1,20 @@
+package com.svwh.mailservice.algrothim;
+
+import com.svwh.mailservice.mail.MailSender;
+
+import java.util.List;
+
+/**
+ * @description 邮箱账号选取策略
+ *  限流执行器按照策略给出的顺序依次尝试获取账号的发送权限，直到有账号可用为止
+ * @Author cxk
+ */
+public interface AccountSelectStrategy {
+
+    /**
+     * 给出本次尝试获取发送权限的账号顺序
+     * @param snapshot 当前的账号快照
+     * @return 候选账号（越靠前越优先）
+     */
+    List<MailSender> candidates(AccountSnapshot snapshot);
+}
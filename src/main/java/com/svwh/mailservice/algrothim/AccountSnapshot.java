@@ -0,0 +1,98 @@
+package com.svwh.mailservice.algrothim;
+
+import com.svwh.mailservice.mail.MailSender;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @description 邮箱账号快照（不可变）
+ *  账号集合、账号对应的限流器以及账号当前的运行等级保存在同一个快照中，
+ *  读取方拿到快照后看到的始终是一致的数据，配置刷新和等级调整都通过生成新快照并整体替换完成（写时复制）。
+ * @Author cxk
+ */
+public final class AccountSnapshot {
+
+    /**
+     * 空快照（限流执行器未启动时使用）
+     */
+    public static final AccountSnapshot EMPTY = new AccountSnapshot(Collections.emptyList(),
+            Collections.emptyMap(), Collections.emptyMap());
+
+    /**
+     * 邮箱账号集
+     */
+    private final List<MailSender> mailSenders;
+
+    /**
+     * 账号对应的限流器
+     */
+    private final Map<MailSender, RateLimit> rateLimitMap;
+
+    /**
+     * 账号当前的运行等级（运行时会被升降级，与配置的senderRank不一定相同）
+     */
+    private final Map<MailSender, Integer> rankMap;
+
+    private AccountSnapshot(List<MailSender> mailSenders,
+                            Map<MailSender, RateLimit> rateLimitMap,
+                            Map<MailSender, Integer> rankMap) {
+        this.mailSenders = mailSenders;
+        this.rateLimitMap = rateLimitMap;
+        this.rankMap = rankMap;
+    }
+
+    /**
+     * 创建快照，入参会被拷贝，后续修改入参不会影响快照
+     */
+    public static AccountSnapshot of(List<MailSender> mailSenders,
+                                     Map<MailSender, RateLimit> rateLimitMap,
+                                     Map<MailSender, Integer> rankMap) {
+        return new AccountSnapshot(Collections.unmodifiableList(new ArrayList<>(mailSenders)),
+                Collections.unmodifiableMap(new HashMap<>(rateLimitMap)),
+                Collections.unmodifiableMap(new HashMap<>(rankMap)));
+    }
+
+    public List<MailSender> getMailSenders() {
+        return mailSenders;
+    }
+
+    public int size() {
+        return mailSenders.size();
+    }
+
+    public boolean contains(MailSender mailSender) {
+        return rankMap.containsKey(mailSender);
+    }
+
+    public RateLimit rateLimit(MailSender mailSender) {
+        return rateLimitMap.get(mailSender);
+    }
+
+    /**
+     * @return 账号当前的运行等级，账号不在快照中时返回null
+     */
+    public Integer rank(MailSender mailSender) {
+        return rankMap.get(mailSender);
+    }
+
+    /**
+     * 调整某个账号的等级并生成新的快照，其余账号的状态保持不变
+     *
+     * @param mailSender 邮箱账号
+     * @param rank 新的等级
+     * @param rateLimit 新等级对应的限流器
+     * @return 新的快照
+     */
+    public AccountSnapshot withRank(MailSender mailSender, int rank, RateLimit rateLimit) {
+        Map<MailSender, RateLimit> rateLimits = new HashMap<>(rateLimitMap);
+        Map<MailSender, Integer> ranks = new HashMap<>(rankMap);
+        rateLimits.put(mailSender, rateLimit);
+        ranks.put(mailSender, rank);
+        return new AccountSnapshot(mailSenders, Collections.unmodifiableMap(rateLimits),
+                Collections.unmodifiableMap(ranks));
+    }
+}
@@ -0,0 +1,134 @@
+package com.svwh.mailservice.algrothim;
+
+import com.svwh.mailservice.mail.MailSender;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @description 账号运行状态文件
+ *  保存每个账号的运行等级、封禁状态以及限流器的时间窗口，重启后恢复，避免所有账号回到配置等级和空窗口。
+ *  文件先写入临时文件再原子替换，任何时刻读到的都是完整的某一次保存结果。
+ * @Author cxk
+ */
+public class AccountStateStore {
+
+    /**
+     * 文件头："MRS" + 版本号
+     */
+    private static final int MAGIC = 0x4D525301;
+
+    private final Path file;
+
+    public AccountStateStore(Path file) {
+        this.file = file;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * 保存快照中所有账号的状态
+     */
+    public void save(AccountSnapshot snapshot) throws IOException {
+        if (file.getParent() != null){
+            Files.createDirectories(file.getParent());
+        }
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(snapshot.size());
+            for (MailSender mailSender : snapshot.getMailSenders()) {
+                RateLimit rateLimit = snapshot.rateLimit(mailSender);
+                byte[] username = mailSender.getUsername().getBytes(StandardCharsets.UTF_8);
+                out.writeInt(username.length);
+                out.write(username);
+                out.writeInt(mailSender.getSenderRank());
+                out.writeInt(snapshot.rank(mailSender));
+                out.writeBoolean(mailSender.isLimited());
+                out.writeLong(mailSender.getStartLimitTime());
+                out.writeBoolean(mailSender.isPaused());
+                out.writeLong(rateLimit == null ? -1 : rateLimit.windowStartMillis());
+                out.writeInt(rateLimit == null ? -1 : rateLimit.windowUsed());
+                out.writeDouble(rateLimit == null ? -1 : rateLimit.learnedLimit());
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * 读取账号状态
+     * @return 用户名 -> 账号状态，文件不存在时为空
+     */
+    public Map<String, AccountState> load() throws IOException {
+        if (!Files.isRegularFile(file)){
+            return Collections.emptyMap();
+        }
+        Map<String, AccountState> states = new HashMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC){
+                throw new IOException("not an account state file: " + file);
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                byte[] username = new byte[in.readInt()];
+                in.readFully(username);
+                AccountState state = new AccountState(in.readInt(), in.readInt(), in.readBoolean(), in.readLong(),
+                        in.readBoolean(), in.readLong(), in.readInt(), in.readDouble());
+                states.put(new String(username, StandardCharsets.UTF_8), state);
+            }
+        }
+        return states;
+    }
+
+    /**
+     * 单个账号保存的状态
+     */
+    public static final class AccountState {
+
+        /**
+         * 保存时配置的等级，用于判断配置是否发生了变化
+         */
+        final int configuredRank;
+
+        final int rank;
+
+        final boolean limited;
+
+        final long startLimitTime;
+
+        final boolean paused;
+
+        final long windowStart;
+
+        final int windowUsed;
+
+        /**
+         * 学习到的额度，未开启额度自学习时为-1
+         */
+        final double learnedLimit;
+
+        AccountState(int configuredRank, int rank, boolean limited, long startLimitTime, boolean paused,
+                     long windowStart, int windowUsed, double learnedLimit) {
+            this.configuredRank = configuredRank;
+            this.rank = rank;
+            this.limited = limited;
+            this.startLimitTime = startLimitTime;
+            this.paused = paused;
+            this.windowStart = windowStart;
+            this.windowUsed = windowUsed;
+            this.learnedLimit = learnedLimit;
+        }
+    }
+}
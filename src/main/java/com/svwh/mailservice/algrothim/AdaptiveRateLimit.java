@@ -0,0 +1,171 @@
+package com.svwh.mailservice.algrothim;
+
+import com.svwh.mailservice.mail.MailSender;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @description 自学习额度的限流器（加性增、乘性减）
+ *  账号的真实额度未知：一个时间窗口内额度被用满并且没有被服务商限流时，下一个窗口的额度增加一步（试探）；
+ *  收到服务商的限流应答时额度按系数缩小（每个窗口最多缩小一次），额度最终在服务商真实限制附近收敛。
+ * @Author cxk
+ */
+public class AdaptiveRateLimit implements RateLimit {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AdaptiveRateLimit.class);
+
+    /**
+     * 时间窗口（毫秒）
+     */
+    private final long windowMillis;
+
+    /**
+     * 初始额度（由账号的等级给出）
+     */
+    private final double initialLimit;
+
+    /**
+     * 每次试探增加的比例（至少加1）
+     */
+    private final double increase;
+
+    /**
+     * 被限流时的缩小系数
+     */
+    private final double backoff;
+
+    private final double maxLimit;
+
+    /**
+     * 当前学习到的额度
+     */
+    private volatile double limit;
+
+    private final AtomicInteger accessCount = new AtomicInteger(0);
+
+    private final AtomicLong startTime = new AtomicLong(System.currentTimeMillis());
+
+    /**
+     * 当前窗口内是否已经被限流过
+     */
+    private final AtomicBoolean throttled = new AtomicBoolean(false);
+
+    public AdaptiveRateLimit(long windowMillis, double initialLimit, double increase, double backoff, double maxLimit) {
+        this.windowMillis = windowMillis;
+        this.initialLimit = initialLimit;
+        this.increase = increase;
+        this.backoff = backoff;
+        this.maxLimit = Math.max(initialLimit, maxLimit);
+        this.limit = initialLimit;
+    }
+
+    @Override
+    public boolean tryAccess(MailSender mailSender) {
+        while (true) {
+            long now = System.currentTimeMillis();
+            long start = startTime.get();
+            if (now >= start + windowMillis){
+                // 进入新的时间窗口，先根据上一个窗口的使用情况调整额度
+                if (startTime.compareAndSet(start, now)){
+                    adapt(accessCount.get());
+                    accessCount.set(1);
+                    return true;
+                }
+                continue;
+            }
+            int count = accessCount.get();
+            if (count >= (int) limit){
+                return false;
+            }
+            if (accessCount.compareAndSet(count, count + 1)){
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 上一个窗口额度用满并且没有被限流时试探增加额度
+     */
+    private void adapt(int used) {
+        if (!throttled.getAndSet(false) && used >= (int) limit && limit < maxLimit){
+            limit = Math.min(maxLimit, limit + Math.max(1, limit * increase));
+            LOGGER.debug("账号额度试探增加为：{}", (int) limit);
+        }
+    }
+
+    /**
+     * 收到服务商的限流应答，额度按系数缩小（同一个窗口内只缩小一次，避免并发失败的邮件把额度压到最低）
+     */
+    @Override
+    public boolean onThrottle() {
+        if (throttled.compareAndSet(false, true)){
+            limit = Math.max(1, limit * backoff);
+            LOGGER.info("账号被服务商限流，额度缩小为：{}", (int) limit);
+        }
+        return true;
+    }
+
+    @Override
+    public double learnedLimit() {
+        return limit;
+    }
+
+    @Override
+    public void restoreLearnedLimit(double learnedLimit) {
+        if (learnedLimit >= 1){
+            this.limit = Math.min(maxLimit, learnedLimit);
+        }
+    }
+
+    @Override
+    public double remainingQuota() {
+        if (windowRemainingMillis() == 0){
+            return 1.0;
+        }
+        int remain = (int) limit - accessCount.get();
+        return remain <= 0 ? 0 : (double) remain / (int) limit;
+    }
+
+    @Override
+    public int windowUsed() {
+        return windowRemainingMillis() == 0 ? 0 : Math.min(accessCount.get(), (int) limit);
+    }
+
+    @Override
+    public int windowLimit() {
+        return (int) limit;
+    }
+
+    @Override
+    public long windowRemainingMillis() {
+        return Math.max(0, startTime.get() + windowMillis - System.currentTimeMillis());
+    }
+
+    @Override
+    public long windowMillis() {
+        return windowMillis;
+    }
+
+    @Override
+    public long windowStartMillis() {
+        return startTime.get();
+    }
+
+    @Override
+    public void restoreWindow(long windowStart, int used) {
+        long now = System.currentTimeMillis();
+        if (windowStart <= now && now < windowStart + windowMillis){
+            startTime.set(windowStart);
+            accessCount.set(Math.max(0, used));
+        }
+    }
+
+    @Override
+    public RateLimit copy() {
+        return new AdaptiveRateLimit(windowMillis, initialLimit, increase, backoff, maxLimit);
+    }
+}
@@ -18,12 +18,10 @@ public class CountRateLimit implements RateLimit{
 
     private static final Logger LOGGER = LoggerFactory.getLogger(CountRateLimit.class);
 
-    private static final AtomicInteger ZERO = new AtomicInteger(0);
-
     /**
-     * 访问次数默认值
+     * 当前时间窗口内的访问次数
      */
-    private AtomicInteger accessCount = ZERO;
+    private final AtomicInteger accessCount = new AtomicInteger(0);
 
     /**
      * 访问时间单元
@@ -91,14 +89,62 @@ public class CountRateLimit implements RateLimit{
      * @return 重置是否成功
      */
     private boolean resetTimeWindow(long now){
-        if (startTime.compareAndSet(startTime.get(), now)){
-            accessCount = ZERO;
-            accessCount.incrementAndGet();
+        long start = startTime.get();
+        if (now >= accessTimeUnit.toMillis(timeLimit) + start && startTime.compareAndSet(start, now)){
+            accessCount.set(1);
             return true;
         }
         return false;
     }
 
+    @Override
+    public double remainingQuota() {
+        // 时间窗口已过期，下次访问时会重置窗口
+        if (System.currentTimeMillis() >= accessTimeUnit.toMillis(timeLimit) + startTime.get()){
+            return 1.0;
+        }
+        int remain = accessCountLimit - accessCount.get();
+        return remain <= 0 ? 0 : (double) remain / accessCountLimit;
+    }
+
+    @Override
+    public int windowUsed() {
+        return windowRemainingMillis() == 0 ? 0 : Math.min(accessCount.get(), accessCountLimit);
+    }
+
+    @Override
+    public int windowLimit() {
+        return accessCountLimit;
+    }
+
+    @Override
+    public long windowRemainingMillis() {
+        return Math.max(0, accessTimeUnit.toMillis(timeLimit) + startTime.get() - System.currentTimeMillis());
+    }
+
+    @Override
+    public long windowMillis() {
+        return accessTimeUnit.toMillis(timeLimit);
+    }
+
+    @Override
+    public long windowStartMillis() {
+        return startTime.get();
+    }
+
+    @Override
+    public void restoreWindow(long windowStart, int used) {
+        if (windowStart <= System.currentTimeMillis() && System.currentTimeMillis() < accessTimeUnit.toMillis(timeLimit) + windowStart){
+            startTime.set(windowStart);
+            accessCount.set(Math.max(0, Math.min(used, accessCountLimit)));
+        }
+    }
+
+    @Override
+    public RateLimit copy() {
+        return new CountRateLimit(accessTimeUnit, timeLimit, accessCountLimit);
+    }
+
     private void rateLimitOccur(MailSender mailSender){
         LOGGER.warn("账号：{}发送频率达到限制！",mailSender.getFromSender());
     }
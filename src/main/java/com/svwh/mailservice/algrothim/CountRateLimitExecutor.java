@@ -3,13 +3,27 @@ package com.svwh.mailservice.algrothim;
 import com.svwh.mailservice.conf.MailProperties;
 import com.svwh.mailservice.conf.RateLimitRankConf;
 import com.svwh.mailservice.mail.MailSender;
+import com.svwh.mailservice.threadpool.MailThreadPoolFactory;
+import com.svwh.mailservice.transport.SmtpReplyCodes;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
 
 /**
  * @description 将具体的限流执行器抽离，一方面有利于邮件服务的使用，另一方面有利于限流策略的随时改进！
@@ -20,11 +34,44 @@ public class CountRateLimitExecutor implements RateLimitExecutor{
 
     private static final Logger LOGGER = LoggerFactory.getLogger(CountRateLimitExecutor.class);
 
+    /**
+     * 账号被限制发送后的封禁时长
+     */
+    protected static final long LIMIT_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    /**
+     * 等级对应的限流器不是计数限流时，额度自学习的初始额度
+     */
+    private static final int DEFAULT_DISCOVERY_LIMIT = 10;
+
+
+    /**
+     * 账号等级恢复策略
+     */
+    private final RankRecoveryPolicy recoveryPolicy;
+
+    private final long recoveryCheckPeriod;
 
     /**
-     * 定时升级邮箱账号等级线程
+     * 是否开启额度自学习
      */
-    private Thread upGradeThread;
+    private final boolean quotaDiscovery;
+
+    private final double discoveryIncrease;
+
+    private final double discoveryBackoff;
+
+    private final double discoveryMaxFactor;
+
+    /**
+     * 视为服务商限流的SMTP应答码
+     */
+    private final Set<Integer> throttleCodes;
+
+    /**
+     * 用户名 -> 账号等级恢复的进度
+     */
+    private final ConcurrentHashMap<String, RecoveryState> recoveryStates = new ConcurrentHashMap<>();
 
     /**
      * 限流策略列表
@@ -32,32 +79,136 @@ public class CountRateLimitExecutor implements RateLimitExecutor{
     protected   RateLimitRankConf rateLimitRankLists;
 
     /**
-     * 邮箱账号集
+     * 配置的邮箱账号集
      */
-    protected List<MailSender> mailSenders;
+    protected List<MailSender> mailInfos;
 
     /**
-     * 限流配置策略
+     * 账号快照（账号集、限流策略、运行等级），所有的读取都无锁进行，修改时整体替换
      */
-    protected   ConcurrentHashMap<MailSender, RateLimit> mailSenderRateLimitMap;
+    protected final AtomicReference<AccountSnapshot> accountSnapshot;
+
+    /**
+     * 账号选取策略
+     */
+    protected final AccountSelectStrategy selectStrategy;
+
+    /**
+     * 账号运行状态文件（可选）
+     */
+    private final AccountStateStore stateStore;
+
+    private final long stateSaveInterval;
+
+    /**
+     * 限流执行器的定时任务线程
+     */
+    protected ScheduledExecutorService scheduler;
 
 
     public CountRateLimitExecutor(MailProperties mailProperties,
                                   RateLimitRankConf rateLimitRankLists) {
-        new ConcurrentHashMap<>();
-        this.mailSenders = mailProperties.getMailInfos();
+        this(mailProperties, rateLimitRankLists, new RandomAccountSelectStrategy());
+    }
+
+    public CountRateLimitExecutor(MailProperties mailProperties,
+                                  RateLimitRankConf rateLimitRankLists,
+                                  AccountSelectStrategy selectStrategy) {
+        this.mailInfos = mailProperties.getMailInfos();
         this.rateLimitRankLists = rateLimitRankLists;
-        this.mailSenderRateLimitMap = new ConcurrentHashMap<>();
+        this.selectStrategy = selectStrategy;
+        this.accountSnapshot = new AtomicReference<>(AccountSnapshot.EMPTY);
+        this.stateStore = mailProperties.isEnablePersistState()
+                ? new AccountStateStore(Paths.get(mailProperties.getStateFile())) : null;
+        this.stateSaveInterval = mailProperties.getStateSaveInterval();
+        this.recoveryPolicy = new RankRecoveryPolicy(mailProperties.getRecoveryInterval(), mailProperties.getRecoveryDecay(),
+                mailProperties.getRecoveryMinInterval(), mailProperties.getRecoveryCleanSends());
+        this.recoveryCheckPeriod = mailProperties.getRecoveryCheckPeriod();
+        this.quotaDiscovery = mailProperties.isEnableQuotaDiscovery();
+        this.discoveryIncrease = mailProperties.getDiscoveryIncrease();
+        this.discoveryBackoff = mailProperties.getDiscoveryBackoff();
+        this.discoveryMaxFactor = mailProperties.getDiscoveryMaxFactor();
+        this.throttleCodes = new HashSet<>(mailProperties.getThrottleCodes());
     }
 
     public void close(){
-        upGradeThread.interrupt();
+        if (scheduler != null){
+            scheduler.shutdownNow();
+        }
+        saveState();
     }
 
     @Override
     public void start() {
         initRateLimitInfo();
-        adjustMailSenderGrade();
+        restoreState();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new MailThreadPoolFactory());
+        if (stateStore != null){
+            scheduler.scheduleWithFixedDelay(this::saveState, stateSaveInterval, stateSaveInterval, TimeUnit.MILLISECONDS);
+        }
+        scheduler.scheduleWithFixedDelay(this::recoverRanks, recoveryCheckPeriod, recoveryCheckPeriod, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 从状态文件中恢复账号的运行状态
+     */
+    private void restoreState() {
+        if (stateStore == null){
+            return;
+        }
+        try {
+            Map<String, AccountStateStore.AccountState> states = stateStore.load();
+            // 启动阶段还没有并发的修改，直接替换快照
+            accountSnapshot.set(applyState(accountSnapshot.get(), states));
+            LOGGER.info("已从状态文件中恢复 {} 个邮箱账号的运行状态", states.size());
+        } catch (IOException e) {
+            LOGGER.error("读取邮箱账号状态文件失败：{}", stateStore.getFile(), e);
+        }
+    }
+
+    /**
+     * 保存账号的运行状态
+     */
+    protected void saveState() {
+        if (stateStore == null){
+            return;
+        }
+        try {
+            stateStore.save(accountSnapshot.get());
+        } catch (IOException e) {
+            LOGGER.warn("保存邮箱账号状态文件失败：{}", stateStore.getFile(), e);
+        }
+    }
+
+    /**
+     * 把保存的状态应用到快照上，与配置刷新相同：只有配置等级未变的账号才沿用保存的状态，
+     * 配置等级变化或者新增的账号使用配置的等级，配置中已删除的账号忽略
+     *
+     * @param snapshot 根据配置生成的快照
+     * @param states 保存的状态
+     * @return 新的快照
+     */
+    protected AccountSnapshot applyState(AccountSnapshot snapshot, Map<String, AccountStateStore.AccountState> states) {
+        int rankSize = rateLimitRankLists.limitListSize();
+        AccountSnapshot result = snapshot;
+        long now = System.currentTimeMillis();
+        for (MailSender mailSender : snapshot.getMailSenders()) {
+            AccountStateStore.AccountState state = states.get(mailSender.getUsername());
+            if (state == null || state.configuredRank != mailSender.getSenderRank()
+                    || state.rank < 1 || state.rank > rankSize){
+                continue;
+            }
+            RateLimit rateLimit = rankRateLimit(state.rank);
+            rateLimit.restoreLearnedLimit(state.learnedLimit);
+            rateLimit.restoreWindow(state.windowStart, state.windowUsed);
+            result = result.withRank(mailSender, state.rank, rateLimit);
+            // 封禁已经到期的账号不再恢复封禁状态
+            boolean limited = state.limited && now <= state.startLimitTime + LIMIT_MILLIS;
+            mailSender.setStartLimitTime(limited ? state.startLimitTime : 0L);
+            mailSender.setLimited(limited);
+            mailSender.setPaused(state.paused);
+        }
+        return result;
     }
 
     /**
@@ -65,30 +216,62 @@ public class CountRateLimitExecutor implements RateLimitExecutor{
      * @return n返回可用的邮件发送账号
      */
     public MailSender availableAccount(){
-        // 随机从一个下标开始。
-        int size = mailSenders.size();
-        int index = ThreadLocalRandom.current().nextInt(size);
-        int pointNum = 0;
-        while (pointNum != size){
-            MailSender mailSender = mailSenders.get(index);
-            // 如果邮箱账号被锁定则尝试解封
+        // 整个选取过程使用同一个快照，配置刷新不会让本次选取看到不完整的账号集
+        AccountSnapshot snapshot = accountSnapshot.get();
+        // 按照选取策略给出的顺序依次尝试
+        return tryAccounts(snapshot, selectStrategy.candidates(snapshot));
+    }
+
+    @Override
+    public MailSender availableAccount(Predicate<MailSender> preferred) {
+        if (preferred == null){
+            return availableAccount();
+        }
+        AccountSnapshot snapshot = accountSnapshot.get();
+        // 在选取策略给出的顺序上把满足条件的账号提前
+        List<MailSender> candidates = selectStrategy.candidates(snapshot);
+        List<MailSender> ordered = new ArrayList<>(candidates.size());
+        for (MailSender mailSender : candidates) {
+            if (preferred.test(mailSender)){
+                ordered.add(mailSender);
+            }
+        }
+        for (MailSender mailSender : candidates) {
+            if (!preferred.test(mailSender)){
+                ordered.add(mailSender);
+            }
+        }
+        return tryAccounts(snapshot, ordered);
+    }
+
+    @Override
+    public boolean tryAccess(MailSender mailSender) {
+        return tryAccounts(accountSnapshot.get(), Collections.singletonList(mailSender)) != null;
+    }
+
+    /**
+     * 依次尝试获取候选账号的发送权限
+     */
+    private MailSender tryAccounts(AccountSnapshot snapshot, List<MailSender> candidates) {
+        for (MailSender mailSender : candidates) {
+            // 被手动暂停的账号不参与发送
+            if (mailSender.isPaused()){
+                continue;
+            }
+            // 如果邮箱账号被锁定则尝试解封，解封失败则跳过该账号
             if (mailSender.isLimited()) {
                 tryRemoveLimit(mailSender);
-                continue;
+                if (mailSender.isLimited()){
+                    continue;
+                }
             }
-            RateLimit rateLimit = mailSenderRateLimitMap.get(mailSender);
+            RateLimit rateLimit = snapshot.rateLimit(mailSender);
             // 尝试获取执行权限（在限制频率范围内）
             if (rateLimit.tryAccess(mailSender)) {
                 return mailSender;
             }else{
                 adjustmentMailSender(mailSender,false);
             }
-            if (++index >= size){
-                index = 0;
-            }
-            if (++pointNum >= size){
-                break;
-            }
         }
         return null;
     }
@@ -99,6 +282,12 @@ public class CountRateLimitExecutor implements RateLimitExecutor{
     }
 
 
+    @Override
+    public void markUnavailable(MailSender mailSender) {
+        mailSender.setStartLimitTime(System.currentTimeMillis());
+        mailSender.setLimited(true);
+    }
+
     /**
      * 尝试解封邮箱账号 （每个账号默认封10分钟）
      *
@@ -106,7 +295,7 @@ public class CountRateLimitExecutor implements RateLimitExecutor{
      */
     public void tryRemoveLimit(MailSender mailSender) {
         long now = System.currentTimeMillis();
-        if (now > mailSender.getStartLimitTime() + TimeUnit.MINUTES.toMillis(10)) {
+        if (now > mailSender.getStartLimitTime() + LIMIT_MILLIS) {
             mailSender.setLimited(false);
         }
     }
@@ -124,34 +313,156 @@ public class CountRateLimitExecutor implements RateLimitExecutor{
             mailSender.setLimited(true);
             if (isDowngrade){
                 mailSender.setStartLimitTime(System.currentTimeMillis());
-                // 账号等级降级
-                Integer senderRank = mailSender.getSenderRank();
-                if (senderRank < rateLimitRankLists.limitListSize()) {
-                    mailSender.setSenderRank(senderRank + 1);
-                    RateLimit newRateLimit = rateLimitRankLists.rankRateLimit(mailSender.getSenderRank() - 1);
-                    mailSenderRateLimitMap.put(mailSender, newRateLimit);
-                }
+                // 账号等级降级，等级恢复从头开始
+                changeRank(mailSender, 1);
+                recoveryState(mailSender).demoted(System.currentTimeMillis());
+            }
+        }
+    }
+
+    /**
+     * 调整账号的运行等级并替换快照，等级超出范围时不做调整
+     *
+     * @param mailSender 发送邮件账号
+     * @param delta 等级变化量（正数为降级，负数为升级）
+     * @return 调整后的等级，未调整时返回null
+     */
+    protected Integer changeRank(MailSender mailSender, int delta) {
+        int rankSize = rateLimitRankLists.limitListSize();
+        AccountSnapshot current;
+        AccountSnapshot next;
+        int newRank;
+        do {
+            current = accountSnapshot.get();
+            Integer rank = current.rank(mailSender);
+            if (rank == null){
+                return null;
+            }
+            newRank = rank + delta;
+            if (newRank < 1 || newRank > rankSize){
+                return null;
+            }
+            next = current.withRank(mailSender, newRank, rankChangeRateLimit(current, mailSender, newRank));
+        } while (!accountSnapshot.compareAndSet(current, next));
+        return newRank;
+    }
+
+    /**
+     * 等级变化后账号使用的限流器：额度自学习时等级不再决定额度，沿用已经学习到的限流器
+     */
+    private RateLimit rankChangeRateLimit(AccountSnapshot current, MailSender mailSender, int rank) {
+        RateLimit learned = current.rateLimit(mailSender);
+        return quotaDiscovery && learned != null ? learned : rankRateLimit(rank);
+    }
+
+    @Override
+    public boolean forceRank(MailSender mailSender, int rank) {
+        if (rank < 1 || rank > rateLimitRankLists.limitListSize()){
+            return false;
+        }
+        AccountSnapshot current;
+        do {
+            current = accountSnapshot.get();
+            if (!current.contains(mailSender)){
+                return false;
             }
+        } while (!accountSnapshot.compareAndSet(current,
+                current.withRank(mailSender, rank, rankChangeRateLimit(current, mailSender, rank))));
+        recoveryState(mailSender).demoted(System.currentTimeMillis());
+        LOGGER.info("邮箱账号: {} 的等级被强制设置为: {}", mailSender.getUsername(), rank);
+        return true;
+    }
+
+    @Override
+    public long limitRemainingMillis(MailSender mailSender) {
+        if (!mailSender.isLimited()){
+            return 0;
+        }
+        return Math.max(0, mailSender.getStartLimitTime() + LIMIT_MILLIS - System.currentTimeMillis());
+    }
+
+    /**
+     * 获取账号当前的运行等级
+     *
+     * @param mailSender 发送邮件账号
+     * @return 运行等级，账号不存在时返回null
+     */
+    public Integer currentRank(MailSender mailSender) {
+        return accountSnapshot.get().rank(mailSender);
+    }
+
+    /**
+     * 获取当前的账号快照
+     */
+    @Override
+    public AccountSnapshot snapshot() {
+        return accountSnapshot.get();
+    }
+
+    /**
+     * 根据等级（从1开始）创建一个账号独享的限流器
+     */
+    protected RateLimit rankRateLimit(int rank) {
+        RateLimit rankLimit = rateLimitRankLists.rankRateLimit(rank - 1);
+        if (!quotaDiscovery){
+            return rankLimit.copy();
         }
+        // 额度自学习：等级对应的额度只作为学习的初始值
+        long windowMillis = rankLimit.windowMillis() > 0 ? rankLimit.windowMillis() : TimeUnit.MINUTES.toMillis(1);
+        double initialLimit = rankLimit.windowLimit() > 0 ? rankLimit.windowLimit() : DEFAULT_DISCOVERY_LIMIT;
+        return new AdaptiveRateLimit(windowMillis, initialLimit, discoveryIncrease, discoveryBackoff,
+                initialLimit * discoveryMaxFactor);
     }
 
     /**
      * 邮件账号限流对应的初始化操作 分配不同的限流策略和等级
      */
     protected void initRateLimitInfo() {
+        accountSnapshot.set(buildSnapshot(mailInfos, AccountSnapshot.EMPTY));
+    }
+
+    /**
+     * 根据配置的账号集生成新的快照
+     * 配置中已存在的账号（用户名相同且配置等级未变）会沿用旧快照中的运行等级、限流器以及封禁状态，
+     * 因为这些状态已经经过了多次发送的调整，直接重置有可能打破之前的平衡状态。
+     *
+     * @param mailInfos 配置的账号集
+     * @param previous 旧的快照
+     * @return 新的快照
+     */
+    protected AccountSnapshot buildSnapshot(List<MailSender> mailInfos, AccountSnapshot previous) {
         // 如果没有配置限流等级，自动进行默认配置
         if (this.rateLimitRankLists == null){
             throw new RuntimeException("自定义的邮箱限流等级不允许为NULL！");
         }
         int rateLimitsSize = rateLimitRankLists.limitListSize();
+        Map<String, MailSender> previousSenders = new HashMap<>();
+        for (MailSender mailSender : previous.getMailSenders()) {
+            previousSenders.put(mailSender.getUsername(), mailSender);
+        }
+        Map<MailSender, RateLimit> rateLimitMap = new HashMap<>();
+        Map<MailSender, Integer> rankMap = new HashMap<>();
         // 根据发送邮箱信息配置不同的限流等级
-        for (MailSender mailSender : mailSenders){
+        for (MailSender mailSender : mailInfos){
             int rateLimitRank = mailSender.getSenderRank();
             if (rateLimitRank <= 0 || rateLimitRank > rateLimitsSize){
                 throw new RuntimeException("初始限流等级不能 < 0 或者 > 总的限流等级数");
             }
-            mailSenderRateLimitMap.put(mailSender,rateLimitRankLists.rankRateLimit(rateLimitRank));
+            MailSender old = previousSenders.get(mailSender.getUsername());
+            if (old != null && old.getSenderRank().equals(mailSender.getSenderRank())){
+                if (old != mailSender){
+                    mailSender.setStartLimitTime(old.getStartLimitTime());
+                    mailSender.setLimited(old.isLimited());
+                    mailSender.setPaused(old.isPaused());
+                }
+                rateLimitMap.put(mailSender, previous.rateLimit(old));
+                rankMap.put(mailSender, previous.rank(old));
+            }else {
+                rateLimitMap.put(mailSender, rankRateLimit(rateLimitRank));
+                rankMap.put(mailSender, rateLimitRank);
+            }
         }
+        return AccountSnapshot.of(mailInfos, rateLimitMap, rankMap);
     }
 
     /**
@@ -162,9 +473,10 @@ public class CountRateLimitExecutor implements RateLimitExecutor{
     public boolean isAllLimited() {
         // 为了防止并发问题，直接循环判断邮箱账号列表而不直接用原子类来记录
         // 邮箱账号列表一般不会太多因此不会造成性能损伤
+        List<MailSender> mailSenders = accountSnapshot.get().getMailSenders();
         int limitedCount = 0;
         for (MailSender mailSender : mailSenders){
-            if (mailSender.isLimited()){
+            if (mailSender.isLimited() || mailSender.isPaused()){
                 limitedCount++;
             }
         }
@@ -172,36 +484,79 @@ public class CountRateLimitExecutor implements RateLimitExecutor{
     }
 
     /**
-     * 定时任务
-     * 每隔一天对邮箱账号发邮件等级进行升级(每次升级一个等级）
-     */
-    private void adjustMailSenderGrade() {
-        this.upGradeThread = new Thread(() -> {
-            try {
-                // 调整时间为凌晨1点唤醒
-                long now = System.currentTimeMillis();
-                long sleep = 90000000 - now % 86400000;
-                TimeUnit.MILLISECONDS.sleep(sleep);
-                while (true) {
-                    for (MailSender mailSender : mailSenders) {
-                        Integer senderRank = mailSender.getSenderRank();
-                        if (senderRank > 1) {
-                            mailSender.setSenderRank(senderRank - 1);
-                            LOGGER.info("邮箱账号: {} 升级成功,当前邮箱账号等级为: {}", mailSender.getFromSender(), mailSender.getSenderRank());
-                            RateLimit rateLimit = rateLimitRankLists.rankRateLimit(mailSender.getSenderRank() - 1);
-                            mailSenderRateLimitMap.put(mailSender, rateLimit);
-                        }
-                    }
-                    if (upGradeThread.isInterrupted()) {
-                        break;
-                    }
-                    TimeUnit.DAYS.sleep(1);
-                }
-            } catch (InterruptedException e) {
-                LOGGER.warn("睡眠线程已终止！");
+     * 账号原因的失败（包括限流应答）都会中断连续成功的计数；
+     * 额度自学习时，服务商的限流应答只缩小账号学习到的额度，不再封禁和降级账号
+     */
+    @Override
+    public boolean onSendFailure(MailSender mailSender, Throwable cause) {
+        recoveryState(mailSender).streak.set(0);
+        if (!quotaDiscovery || !throttleCodes.contains(SmtpReplyCodes.replyCode(cause))){
+            return false;
+        }
+        RateLimit rateLimit = accountSnapshot.get().rateLimit(mailSender);
+        return rateLimit != null && rateLimit.onThrottle();
+    }
+
+    @Override
+    public void onSendSuccess(MailSender mailSender) {
+        recoveryState(mailSender).streak.incrementAndGet();
+    }
+
+    /**
+     * 定时任务：账号连续成功发送足够多的邮件并且距离上次等级变化经过足够的时间后升一级，直到恢复到配置的等级
+     */
+    protected void recoverRanks() {
+        long now = System.currentTimeMillis();
+        AccountSnapshot snapshot = accountSnapshot.get();
+        for (MailSender mailSender : snapshot.getMailSenders()) {
+            Integer rank = snapshot.rank(mailSender);
+            if (rank == null || rank <= mailSender.getSenderRank() || mailSender.isLimited() || mailSender.isPaused()){
+                continue;
+            }
+            RecoveryState state = recoveryState(mailSender);
+            if (!recoveryPolicy.canRecover(state.streak.get(), now - state.lastChange, state.step)){
+                continue;
+            }
+            Integer senderRank = changeRank(mailSender, -1);
+            if (senderRank != null) {
+                state.recovered(now);
+                LOGGER.info("邮箱账号: {} 升级成功,当前邮箱账号等级为: {}", mailSender.getFromSender(), senderRank);
             }
-        });
-        upGradeThread.start();
+        }
+    }
+
+    private RecoveryState recoveryState(MailSender mailSender) {
+        return recoveryStates.computeIfAbsent(mailSender.getUsername(), key -> new RecoveryState());
+    }
+
+    /**
+     * 账号等级恢复的进度
+     */
+    private static final class RecoveryState {
+
+        /**
+         * 上次等级变化后的连续成功发送数
+         */
+        final AtomicInteger streak = new AtomicInteger();
+
+        volatile long lastChange = System.currentTimeMillis();
+
+        /**
+         * 本轮恢复已升的级数
+         */
+        volatile int step;
+
+        void demoted(long now) {
+            streak.set(0);
+            lastChange = now;
+            step = 0;
+        }
+
+        void recovered(long now) {
+            streak.set(0);
+            lastChange = now;
+            step++;
+        }
     }
 
 }
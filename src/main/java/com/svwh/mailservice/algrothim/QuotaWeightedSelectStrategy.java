@@ -0,0 +1,100 @@
+package com.svwh.mailservice.algrothim;
+
+import com.svwh.mailservice.mail.MailSender;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * @description 按剩余额度加权的选取策略（power of d choices）
+ *  每次随机抽取d个候选账号（尽量来自不同的邮件服务器），优先使用当前时间窗口内剩余额度占比最高的账号，
+ *  这样高等级账号（额度大）会承担更多的发送量，而低等级账号不会被过早耗尽。
+ *  抽样之外的账号按随机轮询顺序排在后面作为兜底。
+ * @Author cxk
+ */
+public class QuotaWeightedSelectStrategy implements AccountSelectStrategy {
+
+    /**
+     * 抽样时为避开同一服务器而重新抽取的最大次数
+     */
+    private static final int HOST_RETRY_TIMES = 2;
+
+    /**
+     * 每次抽样的候选账号个数
+     */
+    private final int sampleSize;
+
+    public QuotaWeightedSelectStrategy(int sampleSize) {
+        if (sampleSize < 2){
+            throw new IllegalArgumentException("抽样的候选账号个数不能小于2");
+        }
+        this.sampleSize = sampleSize;
+    }
+
+    @Override
+    public List<MailSender> candidates(AccountSnapshot snapshot) {
+        List<MailSender> mailSenders = snapshot.getMailSenders();
+        int size = mailSenders.size();
+        if (size == 0){
+            return Collections.emptyList();
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        // 随机排列的下标，前sampleSize个作为抽样结果（部分洗牌）
+        int[] indexes = new int[size];
+        for (int i = 0; i < size; i++) {
+            indexes[i] = i;
+        }
+        int sampled = Math.min(sampleSize, size);
+        Set<String> hosts = new HashSet<>();
+        for (int i = 0; i < sampled; i++) {
+            int pick = i + random.nextInt(size - i);
+            // 尽量让候选账号分布在不同的邮件服务器上
+            for (int retry = 0; retry < HOST_RETRY_TIMES
+                    && hosts.contains(mailSenders.get(indexes[pick]).getHostName()); retry++) {
+                pick = i + random.nextInt(size - i);
+            }
+            int tmp = indexes[i];
+            indexes[i] = indexes[pick];
+            indexes[pick] = tmp;
+            hosts.add(mailSenders.get(indexes[i]).getHostName());
+        }
+        List<MailSender> candidates = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            candidates.add(mailSenders.get(indexes[i]));
+        }
+        // 抽样部分按剩余额度从高到低排列
+        List<MailSender> sampledSenders = candidates.subList(0, sampled);
+        double[] scores = new double[sampled];
+        for (int i = 0; i < sampled; i++) {
+            scores[i] = score(snapshot, sampledSenders.get(i));
+        }
+        for (int i = 1; i < sampled; i++) {
+            MailSender mailSender = sampledSenders.get(i);
+            double score = scores[i];
+            int j = i - 1;
+            while (j >= 0 && scores[j] < score) {
+                sampledSenders.set(j + 1, sampledSenders.get(j));
+                scores[j + 1] = scores[j];
+                j--;
+            }
+            sampledSenders.set(j + 1, mailSender);
+            scores[j + 1] = score;
+        }
+        return candidates;
+    }
+
+    /**
+     * 账号的剩余额度得分，被限制或暂停的账号排在最后
+     */
+    private double score(AccountSnapshot snapshot, MailSender mailSender) {
+        if (mailSender.isLimited() || mailSender.isPaused()){
+            return -1;
+        }
+        RateLimit rateLimit = snapshot.rateLimit(mailSender);
+        return rateLimit == null ? -1 : rateLimit.remainingQuota();
+    }
+}
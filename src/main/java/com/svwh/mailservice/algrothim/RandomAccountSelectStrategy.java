@@ -0,0 +1,30 @@
+package com.svwh.mailservice.algrothim;
+
+import com.svwh.mailservice.mail.MailSender;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * @description 随机选取策略：随机从一个下标开始依次轮询所有账号
+ * @Author cxk
+ */
+public class RandomAccountSelectStrategy implements AccountSelectStrategy {
+
+    @Override
+    public List<MailSender> candidates(AccountSnapshot snapshot) {
+        List<MailSender> mailSenders = snapshot.getMailSenders();
+        int size = mailSenders.size();
+        if (size == 0){
+            return Collections.emptyList();
+        }
+        int index = ThreadLocalRandom.current().nextInt(size);
+        List<MailSender> candidates = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            candidates.add(mailSenders.get((index + i) % size));
+        }
+        return candidates;
+    }
+}
@@ -0,0 +1,64 @@
+package com.svwh.mailservice.algrothim;
+
+/**
+ * @description 账号等级恢复策略
+ *  账号被降级后，需要连续成功发送一定数量的邮件并且距离上次等级变化经过足够的时间才能升一级。
+ *  每一级的等待时间按衰减曲线缩短：interval * decay^step（step为本轮恢复已升的级数），但不低于minInterval，
+ *  刚被降级时最谨慎，恢复得越顺利升得越快；期间再次被降级则从头开始。
+ * @Author cxk
+ */
+public class RankRecoveryPolicy {
+
+    /**
+     * 第一次升级前的等待时间（毫秒）
+     */
+    private final long interval;
+
+    /**
+     * 每升一级等待时间的衰减系数（0 - 1]
+     */
+    private final double decay;
+
+    /**
+     * 最短等待时间（毫秒）
+     */
+    private final long minInterval;
+
+    /**
+     * 每次升级需要的连续成功发送数
+     */
+    private final int cleanSends;
+
+    public RankRecoveryPolicy(long interval, double decay, long minInterval, int cleanSends) {
+        if (decay <= 0 || decay > 1){
+            throw new IllegalArgumentException("the recovery decay must be in (0, 1]");
+        }
+        this.interval = interval;
+        this.decay = decay;
+        this.minInterval = minInterval;
+        this.cleanSends = cleanSends;
+    }
+
+    /**
+     * @param step 本轮恢复已升的级数
+     * @return 升下一级之前需要等待的时间
+     */
+    public long waitMillis(int step) {
+        return Math.max(minInterval, (long) (interval * Math.pow(decay, step)));
+    }
+
+    public int getCleanSends() {
+        return cleanSends;
+    }
+
+    /**
+     * 判断账号是否可以升一级
+     *
+     * @param streak 连续成功发送数
+     * @param sinceLastChange 距离上次等级变化的时间
+     * @param step 本轮恢复已升的级数
+     */
+    public boolean canRecover(int streak, long sinceLastChange, int step) {
+        return streak >= cleanSends && sinceLastChange >= waitMillis(step);
+    }
+}
@@ -16,4 +16,86 @@ public interface RateLimit {
      */
     boolean tryAccess(MailSender mailSender);
 
+    /**
+     * 为单个邮箱账号创建一份独立的限流器（限流状态不在账号之间共享）
+     * 默认返回自身，有状态的限流算法需要重写该方法
+     * @return 新的限流器
+     */
+    default RateLimit copy() {
+        return this;
+    }
+
+    /**
+     * 当前时间窗口内剩余的可发送额度占比（0 - 1），用于在多个账号之间挑选余量最多的账号
+     * 默认认为额度充足
+     * @return 剩余额度占比
+     */
+    default double remainingQuota() {
+        return 1.0;
+    }
+
+    /**
+     * 当前时间窗口内已使用的次数，不支持时返回-1
+     */
+    default int windowUsed() {
+        return -1;
+    }
+
+    /**
+     * 时间窗口内允许的次数，不支持时返回-1
+     */
+    default int windowLimit() {
+        return -1;
+    }
+
+    /**
+     * 当前时间窗口剩余的时间（毫秒），不支持时返回-1
+     */
+    default long windowRemainingMillis() {
+        return -1;
+    }
+
+    /**
+     * 时间窗口的长度（毫秒），不支持时返回-1
+     */
+    default long windowMillis() {
+        return -1;
+    }
+
+    /**
+     * 收到服务商的限流应答
+     * @return 限流器是否据此调整了自身（自学习额度的限流器），未处理时返回false
+     */
+    default boolean onThrottle() {
+        return false;
+    }
+
+    /**
+     * 学习到的额度，不支持时返回-1
+     */
+    default double learnedLimit() {
+        return -1;
+    }
+
+    /**
+     * 恢复学习到的额度（重启后沿用）
+     */
+    default void restoreLearnedLimit(double learnedLimit) {
+    }
+
+    /**
+     * 当前时间窗口的开始时间，不支持时返回-1
+     */
+    default long windowStartMillis() {
+        return -1;
+    }
+
+    /**
+     * 恢复时间窗口（重启后沿用之前的窗口），窗口已过期时忽略
+     * @param windowStart 窗口开始时间
+     * @param used 窗口内已使用的次数
+     */
+    default void restoreWindow(long windowStart, int used) {
+    }
+
 }
@@ -2,6 +2,8 @@ package com.svwh.mailservice.algrothim;
 
 import com.svwh.mailservice.mail.MailSender;
 
+import java.util.function.Predicate;
+
 /**
  *@Description: 限流策略执行器
  *  用于邮件服务的具体执行，包括邮件资源处理、邮件资源预警
@@ -31,14 +33,98 @@ public interface RateLimitExecutor {
      */
     MailSender availableAccount();
 
+    /**
+     * 获取可用的邮件发送账号，优先使用满足条件的账号，都不可用时再从所有账号中获取
+     * @param preferred 优先使用的账号条件
+     * @return 可用的邮箱账号资源
+     */
+    default MailSender availableAccount(Predicate<MailSender> preferred) {
+        return availableAccount();
+    }
+
+    /**
+     * 尝试获取指定账号的发送权限（按账号分道发送时使用），账号被暂停、被限制或者超出额度时返回false
+     * @param mailSender 邮箱账号
+     * @return 是否获取到发送权限
+     */
+    default boolean tryAccess(MailSender mailSender) {
+        RateLimit rateLimit = snapshot().rateLimit(mailSender);
+        if (rateLimit == null || mailSender.isPaused()){
+            return false;
+        }
+        if (mailSender.isLimited()){
+            tryRemoveLimit(mailSender);
+        }
+        return !mailSender.isLimited() && rateLimit.tryAccess(mailSender);
+    }
+
     /**
      * 调整某个邮箱账号的使用性（即限制发送）。
      */
     void adjustmentMailSender(MailSender mailSender);
 
+    /**
+     * 将账号标记为不可用（不调整等级），用于启动预热时检查失败的账号，封禁到期后会重新尝试
+     */
+    default void markUnavailable(MailSender mailSender) {
+        adjustmentMailSender(mailSender);
+    }
+
+    /**
+     * 账号成功发送了一封邮件，用于账号等级的恢复
+     */
+    default void onSendSuccess(MailSender mailSender) {
+    }
+
+    /**
+     * 账号原因导致发送失败时的反馈（例如服务商的限流应答）
+     * @return 失败是否已被处理，已处理时调用方不再对账号进行降级
+     */
+    default boolean onSendFailure(MailSender mailSender, Throwable cause) {
+        return false;
+    }
+
     /**
      * 尝试解封某个邮箱账号
      *
      */
     void tryRemoveLimit(MailSender mailSender);
+
+    /**
+     * 当前的账号快照（账号集、限流器、运行等级），用于运行状态的查看
+     */
+    default AccountSnapshot snapshot() {
+        return AccountSnapshot.EMPTY;
+    }
+
+    /**
+     * 账号被限制发送时距离解封剩余的时间（毫秒），未被限制时返回0
+     */
+    default long limitRemainingMillis(MailSender mailSender) {
+        return 0;
+    }
+
+    /**
+     * 手动暂停账号，暂停期间账号不参与发送
+     */
+    default void pause(MailSender mailSender) {
+        mailSender.setPaused(true);
+    }
+
+    /**
+     * 恢复被暂停的账号
+     */
+    default void resume(MailSender mailSender) {
+        mailSender.setPaused(false);
+    }
+
+    /**
+     * 强制设置账号的运行等级
+     * @param mailSender 邮箱账号
+     * @param rank 运行等级（从1开始）
+     * @return 是否设置成功（账号不存在或等级越界时失败）
+     */
+    default boolean forceRank(MailSender mailSender, int rank) {
+        return false;
+    }
 }
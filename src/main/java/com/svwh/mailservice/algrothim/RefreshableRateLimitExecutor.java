@@ -11,10 +11,7 @@ import org.springframework.context.ApplicationContext;
 import org.springframework.context.ApplicationContextAware;
 import org.springframework.context.event.EventListener;
 
-import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * @description  限流器在服务时,实现配置的自动刷新.
@@ -24,9 +21,6 @@ public class RefreshableRateLimitExecutor extends CountRateLimitExecutor impleme
 
     private static final Logger logger = LoggerFactory.getLogger(RefreshableRateLimitExecutor.class);
 
-    // 采用读写锁提高性能
-    private final ReadWriteLock readWriteLock = new ReentrantReadWriteLock();
-
     private ApplicationContext applicationContext;
 
 
@@ -35,12 +29,9 @@ public class RefreshableRateLimitExecutor extends CountRateLimitExecutor impleme
         super(mailProperties, rateLimitRankLists);
     }
 
-    @Override
-    public MailSender availableAccount() {
-        readWriteLock.readLock().lock();
-        MailSender mailSender =  super.availableAccount();
-        readWriteLock.readLock().unlock();
-        return mailSender;
+    public RefreshableRateLimitExecutor(MailProperties mailProperties, RateLimitRankConf rateLimitRankLists,
+                                        AccountSelectStrategy selectStrategy) {
+        super(mailProperties, rateLimitRankLists, selectStrategy);
     }
 
 
@@ -54,9 +45,7 @@ public class RefreshableRateLimitExecutor extends CountRateLimitExecutor impleme
     public void refresh(EnvironmentChangeEvent event){
         for (String key : event.getKeys()) {
             if (key.contains("mail-service")){
-                readWriteLock.writeLock().lock();
                 updateProperty();
-                readWriteLock.writeLock().unlock();
                 break;
             }
         }
@@ -64,42 +53,17 @@ public class RefreshableRateLimitExecutor extends CountRateLimitExecutor impleme
 
     /**
      * 动态更新邮件账号的数据
-     * 思路：找到已有的账号并保存等级，然后将新德吉账号集合直接对老的账号集合进行替换
-     *      然后将限流映射重置后恢复之前账号的限流等级
+     * 思路：根据新的账号配置生成一个新的快照，已有账号（用户名相同且配置等级未变）沿用之前的运行等级和限流器，
+     *      然后将新快照整体替换旧快照，发送线程始终只会看到完整的旧快照或者完整的新快照。
      * 之所以这样处理的方式是因为限流等级已经经过了多次发送的调整，改了后有可能打破之前的平衡状态。
      */
     private void updateProperty(){
         MailProperties mailProperties = applicationContext.getBean(MailProperties.class);
         List<MailSender> mailInfos = mailProperties.getMailInfos();
-        // 将之前的邮件发送账号等级事先保存起来。
-        List<MailSender> mailSenders = new ArrayList<>();
-        List<RateLimit> cRateLimits = new ArrayList<>();
-        for (MailSender mailInfo : mailInfos) {
-            for (MailSender mailSender : this.mailSenders) {
-                if (mailInfo.getUsername().equals(mailSender.getUsername())){
-                    if (mailInfo.getSenderRank().equals(mailSender.getSenderRank())){
-                        mailSenders.add(mailSender);
-                        cRateLimits.add(mailSenderRateLimitMap.get(mailSender));
-                    }
-                    break;
-                }
-            }
-        }
-        this.mailSenders.clear();
-        this.mailSenders.addAll(mailInfos);
-        reloadRateLimitMap(mailSenders,cRateLimits);
-        logger.debug("邮件账号信息自动更新成功！");
-    }
-
-    /**
-     * 重新加载限流策略映射
-     */
-    private void reloadRateLimitMap(List<MailSender> mailSenders, List<RateLimit> cRateLimits){
-        mailSenderRateLimitMap.clear();
-        initRateLimitInfo();
-        for (int i = 0; i < mailSenders.size(); i++) {
-            mailSenderRateLimitMap.put(mailSenders.get(i),cRateLimits.get(i));
-        }
+        // 新配置校验失败（等级越界）时会直接抛出异常，旧快照保持不变
+        AccountSnapshot snapshot = accountSnapshot.updateAndGet(previous -> buildSnapshot(mailInfos, previous));
+        this.mailInfos = mailInfos;
+        logger.debug("邮件账号信息自动更新成功！当前账号数：{}", snapshot.size());
     }
 
     @Override
@@ -0,0 +1,401 @@
+package com.svwh.mailservice.attachment;
+
+import com.svwh.mailservice.conf.MailAttachmentProperties;
+import com.svwh.mailservice.mail.Attachment;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.activation.DataSource;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeUtility;
+import javax.mail.util.SharedByteArrayInputStream;
+import javax.mail.util.SharedFileInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * @description 按内容寻址的附件存储
+ *  以附件内容的SHA-256作为键，相同内容的附件只做一次base64编码，
+ *  编码结果较小时保存在内存中，较大时落盘，之后每次发送直接引用编码结果。
+ *  每个编码结果带有引用计数，正在发送的附件不会被淘汰；超出容量时按照最近最少使用的顺序淘汰。
+ * @Author cxk
+ */
+public class AttachmentStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AttachmentStore.class);
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * 文件附件摘要缓存的最大个数
+     */
+    private static final int FILE_HASH_CACHE_SIZE = 4096;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Path storeDir;
+
+    private final long maxDiskBytes;
+
+    private final long maxMemoryBytes;
+
+    private final int memoryThreshold;
+
+    /**
+     * 已编码的附件，按访问顺序排列（LRU），受this锁保护
+     */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long diskBytes;
+
+    private long memoryBytes;
+
+    /**
+     * 数据源到内容摘要的缓存，同一个附件对象重复发送时不再重新计算摘要
+     */
+    private final Map<DataSource, String> sourceHashCache = new WeakHashMap<>();
+
+    /**
+     * 文件（路径 + 大小 + 修改时间）到内容摘要的缓存
+     */
+    private final ConcurrentHashMap<String, String> fileHashCache = new ConcurrentHashMap<>();
+
+    public AttachmentStore(MailAttachmentProperties properties) throws IOException {
+        this.storeDir = Paths.get(properties.getStoreDir());
+        this.maxDiskBytes = properties.getMaxDiskBytes();
+        this.maxMemoryBytes = properties.getMaxMemoryBytes();
+        this.memoryThreshold = properties.getMemoryThreshold();
+        Files.createDirectories(storeDir);
+    }
+
+    /**
+     * 获取附件的编码结果，附件第一次出现时进行编码，并发获取同一个附件时只有一个线程进行编码
+     *
+     * @param attachment 附件
+     * @return 编码结果的使用凭证，使用完毕后必须关闭
+     */
+    public StoredAttachment acquire(Attachment attachment) throws IOException {
+        String key = contentKey(attachment.getDataSource());
+        Entry entry;
+        boolean owner = false;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry == null || entry.failed){
+                entry = new Entry(key);
+                entries.put(key, entry);
+                owner = true;
+            }
+            entry.refCount++;
+        }
+        if (owner){
+            try {
+                entry.encode(attachment.getDataSource());
+            } catch (IOException | RuntimeException e) {
+                synchronized (this) {
+                    entry.failed = true;
+                    entry.refCount--;
+                    entries.remove(key, entry);
+                }
+                entry.ready.countDown();
+                throw e;
+            }
+            synchronized (this) {
+                if (entry.file != null){
+                    diskBytes += entry.size;
+                }else {
+                    memoryBytes += entry.size;
+                }
+                evict();
+            }
+            entry.ready.countDown();
+        }else {
+            entry.awaitReady();
+        }
+        return new StoredAttachment(this, entry);
+    }
+
+    /**
+     * 释放编码结果的引用
+     */
+    synchronized void release(Entry entry) {
+        entry.refCount--;
+        evict();
+    }
+
+    /**
+     * 淘汰最久未使用且没有被引用的编码结果，直到占用的空间不超过限制
+     */
+    private void evict() {
+        if (diskBytes <= maxDiskBytes && memoryBytes <= maxMemoryBytes){
+            return;
+        }
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext() && (diskBytes > maxDiskBytes || memoryBytes > maxMemoryBytes)) {
+            Entry entry = iterator.next();
+            if (entry.refCount > 0 || entry.ready.getCount() > 0){
+                continue;
+            }
+            boolean onDisk = entry.file != null;
+            if (onDisk && diskBytes <= maxDiskBytes || !onDisk && memoryBytes <= maxMemoryBytes){
+                continue;
+            }
+            iterator.remove();
+            if (onDisk){
+                diskBytes -= entry.size;
+                try {
+                    Files.deleteIfExists(entry.file);
+                } catch (IOException e) {
+                    LOGGER.warn("删除附件缓存文件失败：{}", entry.file);
+                }
+            }else {
+                memoryBytes -= entry.size;
+            }
+        }
+    }
+
+    /**
+     * 清空所有的编码结果
+     */
+    public synchronized void clear() {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.refCount > 0){
+                continue;
+            }
+            iterator.remove();
+            if (entry.file != null){
+                diskBytes -= entry.size;
+                try {
+                    Files.deleteIfExists(entry.file);
+                } catch (IOException ignored) {
+                    // 临时文件，删除失败不影响服务
+                }
+            }else {
+                memoryBytes -= entry.size;
+            }
+        }
+    }
+
+    /**
+     * 计算附件内容的摘要
+     */
+    private String contentKey(DataSource dataSource) throws IOException {
+        synchronized (sourceHashCache) {
+            String key = sourceHashCache.get(dataSource);
+            if (key != null){
+                return key;
+            }
+        }
+        String fileKey = null;
+        if (dataSource instanceof MappedFileDataSource){
+            Path path = ((MappedFileDataSource) dataSource).getPath().toAbsolutePath();
+            fileKey = path + ":" + Files.size(path) + ":" + Files.getLastModifiedTime(path).toMillis();
+            String key = fileHashCache.get(fileKey);
+            if (key != null){
+                return key;
+            }
+        }
+        String key = digest(dataSource);
+        synchronized (sourceHashCache) {
+            sourceHashCache.put(dataSource, key);
+        }
+        if (fileKey != null){
+            if (fileHashCache.size() >= FILE_HASH_CACHE_SIZE){
+                fileHashCache.clear();
+            }
+            fileHashCache.put(fileKey, key);
+        }
+        return key;
+    }
+
+    private static String digest(DataSource dataSource) throws IOException {
+        MessageDigest messageDigest;
+        try {
+            messageDigest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        try (InputStream in = dataSource.getInputStream()) {
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                messageDigest.update(buffer, 0, n);
+            }
+        }
+        byte[] hash = messageDigest.digest();
+        char[] chars = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            chars[i * 2] = HEX[(hash[i] >> 4) & 0xF];
+            chars[i * 2 + 1] = HEX[hash[i] & 0xF];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * 一个附件的编码结果
+     */
+    final class Entry {
+
+        final String key;
+
+        final CountDownLatch ready = new CountDownLatch(1);
+
+        /**
+         * 以下字段在ready之前由编码线程写入，之后只读
+         */
+        volatile boolean failed;
+
+        byte[] memory;
+
+        Path file;
+
+        long size;
+
+        /**
+         * 受AttachmentStore锁保护
+         */
+        int refCount;
+
+        Entry(String key) {
+            this.key = key;
+        }
+
+        /**
+         * 编码附件，编码结果较小时保存在内存中，否则写入磁盘
+         */
+        void encode(DataSource dataSource) throws IOException {
+            SpillOutputStream spill = new SpillOutputStream(memoryThreshold,
+                    () -> Files.createTempFile(storeDir, key, ".tmp"));
+            try (InputStream in = dataSource.getInputStream();
+                 OutputStream encoder = MimeUtility.encode(spill, "base64")) {
+                byte[] buffer = new byte[READ_BUFFER_SIZE];
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    encoder.write(buffer, 0, n);
+                }
+            } catch (MessagingException | IOException | RuntimeException e) {
+                spill.discard();
+                throw e instanceof IOException ? (IOException) e : new IOException(e);
+            }
+            size = spill.size;
+            if (spill.spilledFile == null){
+                memory = spill.head.toByteArray();
+            }else {
+                file = Files.move(spill.spilledFile, storeDir.resolve(key + ".b64"),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+
+        void awaitReady() throws IOException {
+            try {
+                ready.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("等待附件编码时线程被中断", e);
+            }
+            if (failed){
+                throw new IOException("附件编码失败：" + key);
+            }
+        }
+
+        InputStream openEncoded() throws IOException {
+            if (memory != null){
+                return new SharedByteArrayInputStream(memory);
+            }
+            return new SharedFileInputStream(file.toFile());
+        }
+    }
+
+    /**
+     * 先写入内存，超过阈值后把已写入的内容和后续内容全部写入临时文件
+     */
+    private static final class SpillOutputStream extends OutputStream {
+
+        private final ByteArrayOutputStream head = new ByteArrayOutputStream();
+
+        private final int threshold;
+
+        private final TempFileFactory tempFileFactory;
+
+        private Path spilledFile;
+
+        private OutputStream fileOut;
+
+        private long size;
+
+        SpillOutputStream(int threshold, TempFileFactory tempFileFactory) {
+            this.threshold = threshold;
+            this.tempFileFactory = tempFileFactory;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (fileOut == null && head.size() + len > threshold){
+                spilledFile = tempFileFactory.create();
+                fileOut = new BufferedOutputStream(Files.newOutputStream(spilledFile), READ_BUFFER_SIZE);
+                head.writeTo(fileOut);
+                head.reset();
+            }
+            if (fileOut != null){
+                fileOut.write(b, off, len);
+            }else {
+                head.write(b, off, len);
+            }
+            size += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (fileOut != null){
+                fileOut.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (fileOut != null){
+                fileOut.close();
+            }
+        }
+
+        /**
+         * 编码失败时删除临时文件
+         */
+        void discard() {
+            try {
+                close();
+                if (spilledFile != null){
+                    Files.deleteIfExists(spilledFile);
+                }
+            } catch (IOException ignored) {
+                // 临时文件，删除失败不影响服务
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface TempFileFactory {
+        Path create() throws IOException;
+    }
+}
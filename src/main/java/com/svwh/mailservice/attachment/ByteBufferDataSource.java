@@ -0,0 +1,50 @@
+package com.svwh.mailservice.attachment;
+
+import javax.activation.DataSource;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * @description 基于ByteBuffer的附件数据源
+ *  每次读取都基于缓冲区的只读视图，同一个附件可以被多封邮件、多个线程同时读取
+ * @Author cxk
+ */
+public class ByteBufferDataSource implements DataSource {
+
+    private final String name;
+
+    private final String contentType;
+
+    private final ByteBuffer buffer;
+
+    public ByteBufferDataSource(String name, String contentType, ByteBuffer buffer) {
+        this.name = name;
+        this.contentType = contentType;
+        this.buffer = buffer.asReadOnlyBuffer();
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return new ByteBufferInputStream(buffer.duplicate());
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        throw new UnsupportedOperationException("附件数据源不允许写入");
+    }
+
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    public long size() {
+        return buffer.remaining();
+    }
+}
@@ -0,0 +1,56 @@
+package com.svwh.mailservice.attachment;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * @description 基于ByteBuffer的输入流，直接从缓冲区（堆外内存或内存映射文件）中读取，不做额外的拷贝
+ * @Author cxk
+ */
+public class ByteBufferInputStream extends InputStream {
+
+    private final ByteBuffer buffer;
+
+    /**
+     * @param buffer 数据缓冲区，调用方需要传入独立的视图（duplicate），读取会移动缓冲区的position
+     */
+    public ByteBufferInputStream(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+        if (!buffer.hasRemaining()){
+            return -1;
+        }
+        return buffer.get() & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (len == 0){
+            return 0;
+        }
+        if (!buffer.hasRemaining()){
+            return -1;
+        }
+        int n = Math.min(len, buffer.remaining());
+        buffer.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public long skip(long n) {
+        if (n <= 0){
+            return 0;
+        }
+        int skip = (int) Math.min(n, buffer.remaining());
+        buffer.position(buffer.position() + skip);
+        return skip;
+    }
+
+    @Override
+    public int available() {
+        return buffer.remaining();
+    }
+}
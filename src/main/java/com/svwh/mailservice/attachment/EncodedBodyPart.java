@@ -0,0 +1,30 @@
+package com.svwh.mailservice.attachment;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeUtility;
+import javax.mail.internet.SharedInputStream;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * @description 内容已经过base64编码的附件邮件体
+ *  邮件体的内容直接引用共享输入流（内存或磁盘），写入SMTP连接时原样输出，不会再次编码，也不会拷贝到堆中。
+ * @Author cxk
+ */
+class EncodedBodyPart extends MimeBodyPart {
+
+    EncodedBodyPart(InputStream encodedContent, String name, String contentType, String charset)
+            throws MessagingException, UnsupportedEncodingException {
+        super();
+        if (!(encodedContent instanceof SharedInputStream)){
+            throw new IllegalArgumentException("the encoded content must be a SharedInputStream");
+        }
+        this.contentStream = encodedContent;
+        String fileName = MimeUtility.encodeText(name, charset, null);
+        setHeader("Content-Type", contentType + "; name=\"" + fileName + "\"");
+        setHeader("Content-Transfer-Encoding", "base64");
+        setDisposition(ATTACHMENT);
+        setFileName(fileName);
+    }
+}
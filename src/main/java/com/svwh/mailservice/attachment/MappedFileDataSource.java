@@ -0,0 +1,80 @@
+package com.svwh.mailservice.attachment;
+
+import javax.activation.DataSource;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * @description 基于文件的附件数据源
+ *  邮件在队列中等待时只持有文件路径，发送时才读取文件内容并以流的方式编码写入SMTP连接，
+ *  大文件使用内存映射读取，文件内容不会进入堆内存。
+ * @Author cxk
+ */
+public class MappedFileDataSource implements DataSource {
+
+    /**
+     * 默认使用内存映射读取的文件大小阈值：1MB
+     */
+    public static final long DEFAULT_MAPPED_THRESHOLD = 1024 * 1024;
+
+    private final Path path;
+
+    private final String name;
+
+    private final String contentType;
+
+    /**
+     * 文件大小达到该值时使用内存映射读取
+     */
+    private final long mappedThreshold;
+
+    public MappedFileDataSource(Path path, String name, String contentType) {
+        this(path, name, contentType, DEFAULT_MAPPED_THRESHOLD);
+    }
+
+    public MappedFileDataSource(Path path, String name, String contentType, long mappedThreshold) {
+        this.path = path;
+        this.name = name;
+        this.contentType = contentType;
+        this.mappedThreshold = mappedThreshold;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        long size = Files.size(path);
+        if (size < mappedThreshold || size > Integer.MAX_VALUE){
+            return new BufferedInputStream(Files.newInputStream(path));
+        }
+        // 映射建立后即可关闭文件通道，映射区域在缓冲区被回收前一直有效
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            return new ByteBufferInputStream(buffer);
+        }
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        throw new UnsupportedOperationException("附件数据源不允许写入");
+    }
+
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+}
@@ -0,0 +1,67 @@
+package com.svwh.mailservice.attachment;
+
+import com.svwh.mailservice.mail.Attachment;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeBodyPart;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @description 附件存储中一个已编码附件的使用凭证
+ *  持有凭证期间附件不会被淘汰，发送结束后必须关闭凭证以释放引用计数和打开的文件。
+ * @Author cxk
+ */
+public class StoredAttachment implements Closeable {
+
+    private final AttachmentStore store;
+
+    private final AttachmentStore.Entry entry;
+
+    private final List<InputStream> openedStreams = new ArrayList<>(1);
+
+    private boolean closed;
+
+    StoredAttachment(AttachmentStore store, AttachmentStore.Entry entry) {
+        this.store = store;
+        this.entry = entry;
+    }
+
+    /**
+     * 创建引用已编码内容的邮件体
+     * @param attachment 附件（提供附件名称和类型）
+     * @param charset 附件名称的编码
+     * @return 邮件体
+     */
+    public MimeBodyPart newBodyPart(Attachment attachment, String charset) throws IOException, MessagingException {
+        InputStream encoded = entry.openEncoded();
+        openedStreams.add(encoded);
+        return new EncodedBodyPart(encoded, attachment.getName(), attachment.getContentType(), charset);
+    }
+
+    /**
+     * @return 附件内容的摘要
+     */
+    public String getKey() {
+        return entry.key;
+    }
+
+    @Override
+    public void close() {
+        if (closed){
+            return;
+        }
+        closed = true;
+        for (InputStream stream : openedStreams) {
+            try {
+                stream.close();
+            } catch (IOException ignored) {
+                // 关闭失败不影响发送结果
+            }
+        }
+        store.release(entry);
+    }
+}
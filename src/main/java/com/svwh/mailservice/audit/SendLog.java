@@ -0,0 +1,230 @@
+package com.svwh.mailservice.audit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @description 发送日志：记录每一次投递尝试的只追加二进制日志
+ *  日志按段存储，每段是一个预先分配并内存映射的文件，记录为定长的 {@link SendLogFormat#RECORD_SIZE} 字节。
+ *  写入时只需原子地占用一个记录位置并把字段写入映射内存，不经过锁、格式化和系统调用；
+ *  当前段写满或超过滚动间隔后切换到新段，超过保留段数的旧段被删除。
+ *  账号只以哈希值写入记录，账号名与哈希值的对应关系在账号第一次出现时写入 {@link SendLogFormat#ACCOUNT_FILE}，
+ *  由 {@link SendLogReader} 查询时还原。
+ * @Author cxk
+ */
+public class SendLog implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SendLog.class);
+
+    public static final byte STATUS_SENT = SendLogFormat.STATUS_SENT;
+
+    public static final byte STATUS_FAILED = SendLogFormat.STATUS_FAILED;
+
+    private final Path dir;
+
+    private final int recordsPerSegment;
+
+    private final long rollInterval;
+
+    private final int maxSegments;
+
+    private volatile Segment current;
+
+    private final Set<Long> knownAccounts = ConcurrentHashMap.newKeySet();
+
+    private final Object rollLock = new Object();
+
+    private volatile boolean closed;
+
+    /**
+     * @param dir 日志目录
+     * @param segmentBytes 每段的大小（字节）
+     * @param rollInterval 滚动间隔（毫秒），小于等于0时只按大小滚动
+     * @param maxSegments 保留的段数，小于等于0时不删除旧段
+     */
+    public SendLog(Path dir, long segmentBytes, long rollInterval, int maxSegments) throws IOException {
+        long records = (Math.min(segmentBytes, Integer.MAX_VALUE) - SendLogFormat.HEADER_SIZE) / SendLogFormat.RECORD_SIZE;
+        if (records <= 0){
+            throw new IllegalArgumentException("the segment size is too small: " + segmentBytes);
+        }
+        this.dir = dir;
+        this.recordsPerSegment = (int) records;
+        this.rollInterval = rollInterval;
+        this.maxSegments = maxSegments;
+        Files.createDirectories(dir);
+        this.current = openSegment(System.currentTimeMillis());
+        deleteOldSegments();
+    }
+
+    /**
+     * 记录一次投递尝试
+     *
+     * @param mailId 邮件编号（同一封邮件的重发编号相同）
+     * @param recipients 收件人
+     * @param account 发件账号
+     * @param startMillis 开始投递的时间戳
+     * @param durationMicros 投递耗时（微秒）
+     * @param status {@link #STATUS_SENT} 或 {@link #STATUS_FAILED}
+     * @param replyCode SMTP应答码，没有时为-1
+     * @param attempts 之前已尝试的次数
+     */
+    public void record(long mailId, List<String> recipients, String account, long startMillis, long durationMicros,
+                       byte status, int replyCode, int attempts) {
+        if (closed){
+            return;
+        }
+        long accountHash = SendLogFormat.hash(account);
+        if (!knownAccounts.contains(accountHash)){
+            registerAccount(accountHash, account);
+        }
+        Segment segment = current;
+        long index;
+        while ((index = segment.next.getAndIncrement()) >= recordsPerSegment
+                || (rollInterval > 0 && startMillis >= segment.rollAt)) {
+            segment = roll(segment, startMillis);
+            if (segment == null){
+                return;
+            }
+        }
+        ByteBuffer buffer = segment.buffer;
+        int offset = SendLogFormat.HEADER_SIZE + (int) index * SendLogFormat.RECORD_SIZE;
+        buffer.putLong(offset, startMillis);
+        buffer.putLong(offset + 8, mailId);
+        buffer.putLong(offset + 16, accountHash);
+        buffer.putLong(offset + 24, SendLogFormat.recipientsHash(recipients));
+        buffer.putInt(offset + 32, (int) Math.min(durationMicros, Integer.MAX_VALUE));
+        buffer.putShort(offset + 36, (short) replyCode);
+        buffer.put(offset + 38, status);
+        buffer.put(offset + 39, (byte) Math.min(attempts, Byte.MAX_VALUE));
+        buffer.putInt(offset + 40, recipients == null ? 0 : recipients.size());
+        buffer.putInt(offset + 44, SendLogFormat.RECORD_MARK);
+    }
+
+    /**
+     * 切换到新段，多个线程同时发现需要切换时只有一个线程创建新段
+     */
+    private Segment roll(Segment full, long now) {
+        synchronized (rollLock) {
+            if (closed){
+                return null;
+            }
+            if (current == full){
+                try {
+                    current = openSegment(now);
+                } catch (IOException e) {
+                    LOGGER.error("发送日志切换新段失败，之后的记录将被丢弃", e);
+                    closed = true;
+                    return null;
+                }
+                full.buffer.force();
+                deleteOldSegments();
+            }
+            return current;
+        }
+    }
+
+    private Segment openSegment(long now) throws IOException {
+        Path file = dir.resolve(String.format("%s%d-%d%s", SendLogFormat.SEGMENT_PREFIX, now,
+                System.nanoTime() & 0xFFFF, SendLogFormat.SEGMENT_SUFFIX));
+        long size = SendLogFormat.HEADER_SIZE + (long) recordsPerSegment * SendLogFormat.RECORD_SIZE;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.order(SendLogFormat.BYTE_ORDER);
+            buffer.putInt(0, SendLogFormat.MAGIC);
+            buffer.putInt(4, SendLogFormat.RECORD_SIZE);
+            buffer.putLong(8, now);
+            return new Segment(buffer, rollInterval > 0 ? now + rollInterval : Long.MAX_VALUE);
+        }
+    }
+
+    private void deleteOldSegments() {
+        if (maxSegments <= 0){
+            return;
+        }
+        List<Path> segments;
+        try {
+            segments = SendLogFormat.segments(dir);
+        } catch (IOException e) {
+            LOGGER.warn("读取发送日志目录失败：{}", dir, e);
+            return;
+        }
+        for (int i = 0; i < segments.size() - maxSegments; i++) {
+            try {
+                Files.deleteIfExists(segments.get(i));
+            } catch (IOException e) {
+                LOGGER.warn("删除过期的发送日志失败：{}", segments.get(i), e);
+            }
+        }
+    }
+
+    /**
+     * 账号第一次出现时记录账号名与哈希值的对应关系（每个账号只发生一次）
+     */
+    private synchronized void registerAccount(long accountHash, String account) {
+        if (knownAccounts.contains(accountHash)){
+            return;
+        }
+        try (BufferedWriter writer = Files.newBufferedWriter(dir.resolve(SendLogFormat.ACCOUNT_FILE),
+                StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            writer.write(Long.toHexString(accountHash) + "\t" + account);
+            writer.newLine();
+        } catch (IOException e) {
+            // 对应关系写入失败不影响发送，查询时该账号只显示哈希值
+            LOGGER.warn("写入发送日志的账号索引失败：{}", account, e);
+        }
+        knownAccounts.add(accountHash);
+    }
+
+    public Path getDir() {
+        return dir;
+    }
+
+    @Override
+    public void close() {
+        synchronized (rollLock) {
+            if (closed){
+                return;
+            }
+            closed = true;
+            current.buffer.force();
+        }
+    }
+
+    /**
+     * 一个日志段
+     */
+    private static final class Segment {
+
+        final MappedByteBuffer buffer;
+
+        /**
+         * 下一个记录位置
+         */
+        final AtomicLong next = new AtomicLong();
+
+        /**
+         * 需要滚动的时间
+         */
+        final long rollAt;
+
+        Segment(MappedByteBuffer buffer, long rollAt) {
+            this.buffer = buffer;
+            this.rollAt = rollAt;
+        }
+    }
+}
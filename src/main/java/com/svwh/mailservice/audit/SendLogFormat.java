@@ -0,0 +1,104 @@
+package com.svwh.mailservice.audit;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @description 发送日志的文件格式，写入方和查询工具共用（查询工具不依赖日志框架）
+ *  段文件头：0 文件头(int) | 4 记录大小(int) | 8 段的创建时间(long)
+ *  记录：0 开始投递的时间戳(long) | 8 邮件编号(long) | 16 账号哈希(long) | 24 收件人哈希(long) |
+ *  32 投递耗时微秒(int) | 36 SMTP应答码(short) | 38 状态(byte) | 39 已尝试次数(byte) |
+ *  40 收件人数(int) | 44 记录完成标记(int，最后写入)
+ *  所有字段使用小端字节序，与常见平台的本地字节序一致，写入时不需要字节交换
+ * @Author cxk
+ */
+final class SendLogFormat {
+
+    private SendLogFormat() {
+    }
+
+    static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    /**
+     * 段文件头："MSL" + 版本号
+     */
+    static final int MAGIC = 0x4D534C01;
+
+    static final int HEADER_SIZE = 16;
+
+    static final int RECORD_SIZE = 48;
+
+    /**
+     * 记录完成标记，读取时没有该标记的记录视为未写完
+     */
+    static final int RECORD_MARK = 0x5E4D4C52;
+
+    static final String SEGMENT_PREFIX = "send-";
+
+    static final String SEGMENT_SUFFIX = ".log";
+
+    static final String ACCOUNT_FILE = "accounts.idx";
+
+    static final byte STATUS_SENT = 1;
+
+    static final byte STATUS_FAILED = 2;
+
+    /**
+     * 段文件按创建时间排序
+     */
+    static List<Path> segments(Path dir) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        if (!Files.isDirectory(dir)){
+            return segments;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                segments.add(path);
+            }
+        }
+        segments.sort((a, b) -> Long.compare(segmentTime(a), segmentTime(b)));
+        return segments;
+    }
+
+    private static long segmentTime(Path segment) {
+        String name = segment.getFileName().toString();
+        try {
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.indexOf('-', SEGMENT_PREFIX.length())));
+        } catch (RuntimeException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * FNV-1a 64位哈希
+     */
+    static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        if (value == null){
+            return hash;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= Character.toLowerCase(value.charAt(i));
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * 收件人哈希，与收件人顺序和大小写无关
+     */
+    static long recipientsHash(List<String> recipients) {
+        long hash = 0;
+        if (recipients != null){
+            for (int i = 0; i < recipients.size(); i++) {
+                hash += hash(recipients.get(i));
+            }
+        }
+        return hash;
+    }
+}
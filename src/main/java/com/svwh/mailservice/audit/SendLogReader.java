@@ -0,0 +1,226 @@
+package com.svwh.mailservice.audit;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * @description 发送日志的离线查询工具，可以按账号、时间范围、状态和应答码过滤
+ *  用法：java -cp mail-service.jar com.svwh.mailservice.audit.SendLogReader --dir 日志目录
+ *       [--account 账号] [--from 开始时间] [--to 结束时间] [--status SENT|FAILED] [--code 应答码] [--count]
+ *  时间可以是毫秒时间戳或者 2024-01-01T10:00:00 格式的本地时间
+ * @Author cxk
+ */
+public class SendLogReader {
+
+    private final Path dir;
+
+    /**
+     * 账号哈希与账号名的对应关系
+     */
+    private final Map<Long, String> accounts = new HashMap<>();
+
+    public SendLogReader(Path dir) throws IOException {
+        this.dir = dir;
+        Path accountFile = dir.resolve(SendLogFormat.ACCOUNT_FILE);
+        if (Files.exists(accountFile)){
+            for (String line : Files.readAllLines(accountFile, StandardCharsets.UTF_8)) {
+                int tab = line.indexOf('\t');
+                if (tab > 0){
+                    accounts.put(Long.parseUnsignedLong(line.substring(0, tab), 16), line.substring(tab + 1));
+                }
+            }
+        }
+    }
+
+    /**
+     * 按时间顺序遍历满足条件的记录
+     * @param filter 过滤条件
+     * @param consumer 记录处理
+     * @return 满足条件的记录数
+     */
+    public long read(Filter filter, Consumer<SendLogRecord> consumer) throws IOException {
+        long count = 0;
+        for (Path segment : SendLogFormat.segments(dir)) {
+            count += readSegment(segment, filter, consumer);
+        }
+        return count;
+    }
+
+    private long readSegment(Path segment, Filter filter, Consumer<SendLogRecord> consumer) throws IOException {
+        long count = 0;
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            if (channel.size() < SendLogFormat.HEADER_SIZE){
+                return 0;
+            }
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+                    .order(SendLogFormat.BYTE_ORDER);
+            if (buffer.getInt(0) != SendLogFormat.MAGIC || buffer.getInt(4) != SendLogFormat.RECORD_SIZE){
+                return 0;
+            }
+            for (int offset = SendLogFormat.HEADER_SIZE; offset + SendLogFormat.RECORD_SIZE <= buffer.limit();
+                 offset += SendLogFormat.RECORD_SIZE) {
+                if (buffer.getInt(offset + 44) != SendLogFormat.RECORD_MARK){
+                    // 多线程写入时个别记录可能还没写完，跳过它继续读取后面已经完成的记录
+                    if (buffer.getLong(offset) == 0 && emptyAfter(buffer, offset)){
+                        break;
+                    }
+                    continue;
+                }
+                long accountHash = buffer.getLong(offset + 16);
+                SendLogRecord record = new SendLogRecord(buffer.getLong(offset), buffer.getLong(offset + 8),
+                        accounts.getOrDefault(accountHash, Long.toHexString(accountHash)), accountHash,
+                        buffer.getLong(offset + 24), buffer.getInt(offset + 32), buffer.getShort(offset + 36),
+                        buffer.get(offset + 38), buffer.get(offset + 39), buffer.getInt(offset + 40));
+                if (filter.test(record)){
+                    consumer.accept(record);
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 之后的若干条记录都为空时认为段已结束
+     */
+    private static boolean emptyAfter(ByteBuffer buffer, int offset) {
+        for (int i = 1; i <= 16 && offset + (i + 1) * SendLogFormat.RECORD_SIZE <= buffer.limit(); i++) {
+            if (buffer.getInt(offset + i * SendLogFormat.RECORD_SIZE + 44) == SendLogFormat.RECORD_MARK){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 查询条件，未设置的条件不参与过滤
+     */
+    public static class Filter {
+
+        private Long accountHash;
+
+        private long from = Long.MIN_VALUE;
+
+        private long to = Long.MAX_VALUE;
+
+        private byte status;
+
+        private int replyCode = Integer.MIN_VALUE;
+
+        public Filter account(String account) {
+            this.accountHash = SendLogFormat.hash(account);
+            return this;
+        }
+
+        public Filter between(long from, long to) {
+            this.from = from;
+            this.to = to;
+            return this;
+        }
+
+        public Filter status(byte status) {
+            this.status = status;
+            return this;
+        }
+
+        public Filter replyCode(int replyCode) {
+            this.replyCode = replyCode;
+            return this;
+        }
+
+        boolean test(SendLogRecord record) {
+            return (accountHash == null || accountHash == record.getAccountHash())
+                    && record.getStartMillis() >= from && record.getStartMillis() < to
+                    && (status == 0 || status == record.getStatus())
+                    && (replyCode == Integer.MIN_VALUE || replyCode == record.getReplyCode());
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        String dir = null;
+        boolean countOnly = false;
+        Filter filter = new Filter();
+        long from = Long.MIN_VALUE;
+        long to = Long.MAX_VALUE;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if ("--count".equals(arg)){
+                countOnly = true;
+                continue;
+            }
+            if (i + 1 >= args.length){
+                usage();
+                return;
+            }
+            String value = args[++i];
+            switch (arg) {
+                case "--dir":
+                    dir = value;
+                    break;
+                case "--account":
+                    filter.account(value);
+                    break;
+                case "--from":
+                    from = parseTime(value);
+                    break;
+                case "--to":
+                    to = parseTime(value);
+                    break;
+                case "--status":
+                    filter.status("SENT".equalsIgnoreCase(value) ? SendLogFormat.STATUS_SENT : SendLogFormat.STATUS_FAILED);
+                    break;
+                case "--code":
+                    filter.replyCode(Integer.parseInt(value));
+                    break;
+                default:
+                    usage();
+                    return;
+            }
+        }
+        if (dir == null){
+            usage();
+            return;
+        }
+        filter.between(from, to);
+        PrintStream out = System.out;
+        boolean print = !countOnly;
+        if (print){
+            out.println("time\tmailId\taccount\trecipientsHash\trecipients\tstatus\tcode\tattempts\tmicros");
+        }
+        long count = new SendLogReader(Paths.get(dir)).read(filter, record -> {
+            if (print){
+                out.println(record);
+            }
+        });
+        out.println("total: " + count);
+    }
+
+    private static long parseTime(String value) {
+        if (value.chars().allMatch(Character::isDigit)){
+            return Long.parseLong(value);
+        }
+        return LocalDateTime.parse(value).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private static void usage() {
+        System.err.println("usage: SendLogReader --dir <dir> [--account <username>] [--from <time>] [--to <time>]"
+                + " [--status SENT|FAILED] [--code <reply code>] [--count]");
+    }
+
+    static String formatTime(long millis) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault()).toString();
+    }
+}
@@ -0,0 +1,90 @@
+package com.svwh.mailservice.audit;
+
+/**
+ * @description 发送日志中的一条记录
+ * @Author cxk
+ */
+public final class SendLogRecord {
+
+    private final long startMillis;
+
+    private final long mailId;
+
+    private final String account;
+
+    private final long accountHash;
+
+    private final long recipientsHash;
+
+    private final int durationMicros;
+
+    private final int replyCode;
+
+    private final byte status;
+
+    private final int attempts;
+
+    private final int recipientCount;
+
+    SendLogRecord(long startMillis, long mailId, String account, long accountHash, long recipientsHash,
+                  int durationMicros, int replyCode, byte status, int attempts, int recipientCount) {
+        this.startMillis = startMillis;
+        this.mailId = mailId;
+        this.account = account;
+        this.accountHash = accountHash;
+        this.recipientsHash = recipientsHash;
+        this.durationMicros = durationMicros;
+        this.replyCode = replyCode;
+        this.status = status;
+        this.attempts = attempts;
+        this.recipientCount = recipientCount;
+    }
+
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    public long getMailId() {
+        return mailId;
+    }
+
+    public String getAccount() {
+        return account;
+    }
+
+    public long getAccountHash() {
+        return accountHash;
+    }
+
+    public long getRecipientsHash() {
+        return recipientsHash;
+    }
+
+    public int getDurationMicros() {
+        return durationMicros;
+    }
+
+    public int getReplyCode() {
+        return replyCode;
+    }
+
+    public byte getStatus() {
+        return status;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public int getRecipientCount() {
+        return recipientCount;
+    }
+
+    @Override
+    public String toString() {
+        return SendLogReader.formatTime(startMillis) + "\t" + mailId + "\t" + account + "\t"
+                + Long.toHexString(recipientsHash) + "\t" + recipientCount + "\t"
+                + (status == SendLogFormat.STATUS_SENT ? "SENT" : "FAILED") + "\t" + replyCode + "\t" + attempts + "\t"
+                + durationMicros;
+    }
+}
@@ -0,0 +1,76 @@
+package com.svwh.mailservice.conf;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * @description 附件存储的配置
+ * @Author cxk
+ */
+@ConfigurationProperties(prefix = "mail-service.attachment")
+public class MailAttachmentProperties {
+
+    /**
+     * 是否开启附件存储（相同内容的附件只编码一次，默认关闭）
+     */
+    private boolean enableStore = false;
+
+    /**
+     * 编码后附件的落盘目录（默认为系统临时目录下的mail-service-attachments）
+     */
+    private String storeDir = System.getProperty("java.io.tmpdir") + "/mail-service-attachments";
+
+    /**
+     * 编码后附件在磁盘上占用的最大字节数，超出后淘汰最久未使用的附件
+     */
+    private long maxDiskBytes = 1024L * 1024 * 1024;
+
+    /**
+     * 编码后附件在内存中占用的最大字节数
+     */
+    private long maxMemoryBytes = 64L * 1024 * 1024;
+
+    /**
+     * 编码后小于该值的附件保存在内存中，否则落盘
+     */
+    private int memoryThreshold = 64 * 1024;
+
+    public boolean isEnableStore() {
+        return enableStore;
+    }
+
+    public void setEnableStore(boolean enableStore) {
+        this.enableStore = enableStore;
+    }
+
+    public String getStoreDir() {
+        return storeDir;
+    }
+
+    public void setStoreDir(String storeDir) {
+        this.storeDir = storeDir;
+    }
+
+    public long getMaxDiskBytes() {
+        return maxDiskBytes;
+    }
+
+    public void setMaxDiskBytes(long maxDiskBytes) {
+        this.maxDiskBytes = maxDiskBytes;
+    }
+
+    public long getMaxMemoryBytes() {
+        return maxMemoryBytes;
+    }
+
+    public void setMaxMemoryBytes(long maxMemoryBytes) {
+        this.maxMemoryBytes = maxMemoryBytes;
+    }
+
+    public int getMemoryThreshold() {
+        return memoryThreshold;
+    }
+
+    public void setMemoryThreshold(int memoryThreshold) {
+        this.memoryThreshold = memoryThreshold;
+    }
+}
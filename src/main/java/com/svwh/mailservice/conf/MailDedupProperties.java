@@ -0,0 +1,63 @@
+package com.svwh.mailservice.conf;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * @description 幂等键去重的配置
+ * @Author cxk
+ */
+@ConfigurationProperties(prefix = "mail-service.dedup")
+public class MailDedupProperties {
+
+    /**
+     * 是否开启幂等键去重
+     */
+    private boolean enable = false;
+
+    /**
+     * 幂等键的有效期（毫秒），有效期内同一个键的邮件只发送一次
+     */
+    private long ttl = 600000;
+
+    /**
+     * 有效期划分的时间桶数，过期的键按桶整体删除
+     */
+    private int buckets = 10;
+
+    /**
+     * 最多保存的幂等键个数
+     */
+    private int maxSize = 100000;
+
+    public boolean isEnable() {
+        return enable;
+    }
+
+    public void setEnable(boolean enable) {
+        this.enable = enable;
+    }
+
+    public long getTtl() {
+        return ttl;
+    }
+
+    public void setTtl(long ttl) {
+        this.ttl = ttl;
+    }
+
+    public int getBuckets() {
+        return buckets;
+    }
+
+    public void setBuckets(int buckets) {
+        this.buckets = buckets;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+}
@@ -0,0 +1,76 @@
+package com.svwh.mailservice.conf;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * @description 通知邮件合并的配置
+ * @Author cxk
+ */
+@ConfigurationProperties(prefix = "mail-service.digest")
+public class MailDigestProperties {
+
+    /**
+     * 是否开启通知邮件合并
+     */
+    private boolean enable = false;
+
+    /**
+     * 同一组中最后一封邮件之后等待新邮件的时间（毫秒）
+     */
+    private long window = 5000;
+
+    /**
+     * 邮件最长的暂存时间（毫秒）
+     */
+    private long maxHold = 60000;
+
+    /**
+     * 每组最多合并的邮件数
+     */
+    private int maxMails = 50;
+
+    /**
+     * 最多暂存的邮件数，超出后的邮件直接发送
+     */
+    private int maxPending = 100000;
+
+    public boolean isEnable() {
+        return enable;
+    }
+
+    public void setEnable(boolean enable) {
+        this.enable = enable;
+    }
+
+    public long getWindow() {
+        return window;
+    }
+
+    public void setWindow(long window) {
+        this.window = window;
+    }
+
+    public long getMaxHold() {
+        return maxHold;
+    }
+
+    public void setMaxHold(long maxHold) {
+        this.maxHold = maxHold;
+    }
+
+    public int getMaxMails() {
+        return maxMails;
+    }
+
+    public void setMaxMails(int maxMails) {
+        this.maxMails = maxMails;
+    }
+
+    public int getMaxPending() {
+        return maxPending;
+    }
+
+    public void setMaxPending(int maxPending) {
+        this.maxPending = maxPending;
+    }
+}
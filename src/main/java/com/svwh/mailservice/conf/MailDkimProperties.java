@@ -0,0 +1,178 @@
+package com.svwh.mailservice.conf;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @description DKIM签名的配置
+ * @Author cxk
+ */
+@ConfigurationProperties(prefix = "mail-service.dkim")
+public class MailDkimProperties {
+
+    /**
+     * 是否开启DKIM签名（默认关闭）
+     */
+    private boolean enable = false;
+
+    /**
+     * 默认的签名域名（d=），为空时使用发件地址的域名
+     */
+    private String domain;
+
+    /**
+     * 默认的选择器（s=）
+     */
+    private String selector = "mail";
+
+    /**
+     * 默认的私钥文件（PKCS#8格式的PEM），为空时只有单独配置的发件人才签名
+     */
+    private String privateKey;
+
+    /**
+     * 单独配置的发件人，优先于默认配置
+     */
+    private List<Sender> senders = new ArrayList<>();
+
+    /**
+     * 参与签名的邮件头（From总是参与签名），邮件中不存在的头被忽略
+     */
+    private List<String> headers = new ArrayList<>(Arrays.asList("from", "to", "cc", "reply-to", "subject", "date",
+            "mime-version", "content-type", "content-transfer-encoding"));
+
+    /**
+     * 最多缓存的正文摘要个数，超出后清空
+     */
+    private int bodyCacheSize = 1024;
+
+    /**
+     * 正文（邮件内容的字符数）超过该值的邮件不缓存正文摘要
+     */
+    private int maxCachedBody = 256 * 1024;
+
+    public boolean isEnable() {
+        return enable;
+    }
+
+    public void setEnable(boolean enable) {
+        this.enable = enable;
+    }
+
+    public String getDomain() {
+        return domain;
+    }
+
+    public void setDomain(String domain) {
+        this.domain = domain;
+    }
+
+    public String getSelector() {
+        return selector;
+    }
+
+    public void setSelector(String selector) {
+        this.selector = selector;
+    }
+
+    public String getPrivateKey() {
+        return privateKey;
+    }
+
+    public void setPrivateKey(String privateKey) {
+        this.privateKey = privateKey;
+    }
+
+    public List<Sender> getSenders() {
+        return senders;
+    }
+
+    public void setSenders(List<Sender> senders) {
+        this.senders = senders;
+    }
+
+    public List<String> getHeaders() {
+        return headers;
+    }
+
+    public void setHeaders(List<String> headers) {
+        this.headers = headers;
+    }
+
+    public int getBodyCacheSize() {
+        return bodyCacheSize;
+    }
+
+    public void setBodyCacheSize(int bodyCacheSize) {
+        this.bodyCacheSize = bodyCacheSize;
+    }
+
+    public int getMaxCachedBody() {
+        return maxCachedBody;
+    }
+
+    public void setMaxCachedBody(int maxCachedBody) {
+        this.maxCachedBody = maxCachedBody;
+    }
+
+    /**
+     * 单个发件人的签名配置
+     */
+    public static class Sender {
+
+        /**
+         * 发件地址，也可以只写域名（匹配该域名下的所有发件地址）
+         */
+        private String fromSender;
+
+        /**
+         * 签名域名，为空时使用默认配置或发件地址的域名
+         */
+        private String domain;
+
+        /**
+         * 选择器，为空时使用默认配置
+         */
+        private String selector;
+
+        /**
+         * 私钥文件，为空时使用默认配置
+         */
+        private String privateKey;
+
+        public String getFromSender() {
+            return fromSender;
+        }
+
+        public void setFromSender(String fromSender) {
+            this.fromSender = fromSender;
+        }
+
+        public String getDomain() {
+            return domain;
+        }
+
+        public void setDomain(String domain) {
+            this.domain = domain;
+        }
+
+        public String getSelector() {
+            return selector;
+        }
+
+        public void setSelector(String selector) {
+            this.selector = selector;
+        }
+
+        public String getPrivateKey() {
+            return privateKey;
+        }
+
+        public void setPrivateKey(String privateKey) {
+            this.privateKey = privateKey;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.svwh.mailservice.conf;
+
+import com.svwh.mailservice.enums.EventOverflowEnum;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * @description 邮件服务事件的配置
+ * @Author cxk
+ */
+@ConfigurationProperties(prefix = "mail-service.event")
+public class MailEventProperties {
+
+    /**
+     * 是否异步通知监听器，开启后监听器在单独的分发线程中按批执行
+     */
+    private boolean enableAsync = false;
+
+    /**
+     * 事件缓冲区大小（向上取整为2的幂）
+     */
+    private int bufferSize = 8192;
+
+    /**
+     * 每批最多通知的事件数
+     */
+    private int batchSize = 256;
+
+    /**
+     * 事件缓冲区已满时的处理策略
+     */
+    private EventOverflowEnum overflow = EventOverflowEnum.DROP;
+
+    public boolean isEnableAsync() {
+        return enableAsync;
+    }
+
+    public void setEnableAsync(boolean enableAsync) {
+        this.enableAsync = enableAsync;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public EventOverflowEnum getOverflow() {
+        return overflow;
+    }
+
+    public void setOverflow(EventOverflowEnum overflow) {
+        this.overflow = overflow;
+    }
+}
@@ -0,0 +1,63 @@
+package com.svwh.mailservice.conf;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * @description 按账号分道发送的配置
+ * @Author cxk
+ */
+@ConfigurationProperties(prefix = "mail-service.lane")
+public class MailLaneProperties {
+
+    /**
+     * 是否开启按账号分道发送（默认关闭）
+     */
+    private boolean enable = false;
+
+    /**
+     * 每个账号的队列最多容纳的邮件数
+     */
+    private int capacity = 100;
+
+    /**
+     * 同时派发给线程池的邮件数，小于等于0时使用线程池的最大线程数
+     */
+    private int dispatchLimit = 0;
+
+    /**
+     * 账号不可用且无法得知恢复时间时（例如被暂停）重新检查的间隔（毫秒）
+     */
+    private long retryInterval = 100;
+
+    public boolean isEnable() {
+        return enable;
+    }
+
+    public void setEnable(boolean enable) {
+        this.enable = enable;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public void setCapacity(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public int getDispatchLimit() {
+        return dispatchLimit;
+    }
+
+    public void setDispatchLimit(int dispatchLimit) {
+        this.dispatchLimit = dispatchLimit;
+    }
+
+    public long getRetryInterval() {
+        return retryInterval;
+    }
+
+    public void setRetryInterval(long retryInterval) {
+        this.retryInterval = retryInterval;
+    }
+}
@@ -0,0 +1,65 @@
+package com.svwh.mailservice.conf;
+
+import com.svwh.mailservice.enums.OverloadPolicyEnum;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * @description 服务过载时的处理配置
+ * @Author cxk
+ */
+@ConfigurationProperties(prefix = "mail-service.overload")
+public class MailOverloadProperties {
+
+    /**
+     * 过载时的处理策略（默认拒绝并通知监听器）
+     */
+    private OverloadPolicyEnum policy = OverloadPolicyEnum.SHED;
+
+    /**
+     * CALLER_RUNS 策略下调用方最长的等待时间（毫秒）：接收环节等待调用方发送名额和发送结果，执行环节等待线程池队列空出位置；
+     * 等待发送结果的超时只对非阻塞的传输层有效，默认的 JavaMail 传输层会让调用方等到SMTP会话结束
+     */
+    private long callerTimeout = 1000;
+
+    /**
+     * SPILL 和 CALLER_RUNS 策略的磁盘日志目录
+     */
+    private String spillDir = System.getProperty("java.io.tmpdir") + "/mail-service/spill";
+
+    /**
+     * 每批从磁盘日志重新投递的邮件数
+     */
+    private int spillBatchSize = 100;
+
+    public OverloadPolicyEnum getPolicy() {
+        return policy;
+    }
+
+    public void setPolicy(OverloadPolicyEnum policy) {
+        this.policy = policy;
+    }
+
+    public long getCallerTimeout() {
+        return callerTimeout;
+    }
+
+    public void setCallerTimeout(long callerTimeout) {
+        this.callerTimeout = callerTimeout;
+    }
+
+    public String getSpillDir() {
+        return spillDir;
+    }
+
+    public void setSpillDir(String spillDir) {
+        this.spillDir = spillDir;
+    }
+
+    public int getSpillBatchSize() {
+        return spillBatchSize;
+    }
+
+    public void setSpillBatchSize(int spillBatchSize) {
+        this.spillBatchSize = spillBatchSize;
+    }
+}
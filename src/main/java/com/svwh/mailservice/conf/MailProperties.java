@@ -1,10 +1,13 @@
 package com.svwh.mailservice.conf;
 
 
+import com.svwh.mailservice.enums.AccountSelectStrategyEnum;
 import com.svwh.mailservice.mail.MailSender;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.cloud.context.config.annotation.RefreshScope;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -26,6 +29,201 @@ public class MailProperties {
 
     private boolean enableRefresh = true;
 
+    /**
+     * 邮箱账号选取策略（默认随机轮询）
+     */
+    private AccountSelectStrategyEnum selectStrategy = AccountSelectStrategyEnum.RANDOM;
+
+    /**
+     * 按剩余额度加权选取时每次抽样的候选账号个数
+     */
+    private int selectSampleSize = 2;
+
+    /**
+     * 是否持久化账号的运行状态（等级、封禁、限流窗口），重启后恢复
+     */
+    private boolean enablePersistState = false;
+
+    /**
+     * 账号运行状态文件路径
+     */
+    private String stateFile = System.getProperty("java.io.tmpdir") + "/mail-service/account-state.dat";
+
+    /**
+     * 账号运行状态的保存间隔（毫秒）
+     */
+    private long stateSaveInterval = 30000;
+
+    /**
+     * 账号被降级后第一次升级前的等待时间（毫秒）
+     */
+    private long recoveryInterval = 600000;
+
+    /**
+     * 每升一级等待时间的衰减系数（0 - 1]
+     */
+    private double recoveryDecay = 0.5;
+
+    /**
+     * 升级的最短等待时间（毫秒）
+     */
+    private long recoveryMinInterval = 60000;
+
+    /**
+     * 每次升级需要的连续成功发送数
+     */
+    private int recoveryCleanSends = 20;
+
+    /**
+     * 检查账号能否升级的周期（毫秒）
+     */
+    private long recoveryCheckPeriod = 10000;
+
+    /**
+     * 是否开启额度自学习：账号的额度不再由等级决定，而是根据服务商的限流反馈自动学习
+     */
+    private boolean enableQuotaDiscovery = false;
+
+    /**
+     * 额度用满且未被限流时，每个时间窗口试探增加的比例
+     */
+    private double discoveryIncrease = 0.1;
+
+    /**
+     * 被服务商限流时额度的缩小系数
+     */
+    private double discoveryBackoff = 0.5;
+
+    /**
+     * 学习到的额度最多为等级额度的倍数
+     */
+    private double discoveryMaxFactor = 4.0;
+
+    /**
+     * 视为服务商限流的SMTP应答码
+     */
+    private List<Integer> throttleCodes = new ArrayList<>(Arrays.asList(421, 450, 451, 452));
+
+    public boolean isEnableQuotaDiscovery() {
+        return enableQuotaDiscovery;
+    }
+
+    public void setEnableQuotaDiscovery(boolean enableQuotaDiscovery) {
+        this.enableQuotaDiscovery = enableQuotaDiscovery;
+    }
+
+    public double getDiscoveryIncrease() {
+        return discoveryIncrease;
+    }
+
+    public void setDiscoveryIncrease(double discoveryIncrease) {
+        this.discoveryIncrease = discoveryIncrease;
+    }
+
+    public double getDiscoveryBackoff() {
+        return discoveryBackoff;
+    }
+
+    public void setDiscoveryBackoff(double discoveryBackoff) {
+        this.discoveryBackoff = discoveryBackoff;
+    }
+
+    public double getDiscoveryMaxFactor() {
+        return discoveryMaxFactor;
+    }
+
+    public void setDiscoveryMaxFactor(double discoveryMaxFactor) {
+        this.discoveryMaxFactor = discoveryMaxFactor;
+    }
+
+    public List<Integer> getThrottleCodes() {
+        return throttleCodes;
+    }
+
+    public void setThrottleCodes(List<Integer> throttleCodes) {
+        this.throttleCodes = throttleCodes;
+    }
+
+    public long getRecoveryInterval() {
+        return recoveryInterval;
+    }
+
+    public void setRecoveryInterval(long recoveryInterval) {
+        this.recoveryInterval = recoveryInterval;
+    }
+
+    public double getRecoveryDecay() {
+        return recoveryDecay;
+    }
+
+    public void setRecoveryDecay(double recoveryDecay) {
+        this.recoveryDecay = recoveryDecay;
+    }
+
+    public long getRecoveryMinInterval() {
+        return recoveryMinInterval;
+    }
+
+    public void setRecoveryMinInterval(long recoveryMinInterval) {
+        this.recoveryMinInterval = recoveryMinInterval;
+    }
+
+    public int getRecoveryCleanSends() {
+        return recoveryCleanSends;
+    }
+
+    public void setRecoveryCleanSends(int recoveryCleanSends) {
+        this.recoveryCleanSends = recoveryCleanSends;
+    }
+
+    public long getRecoveryCheckPeriod() {
+        return recoveryCheckPeriod;
+    }
+
+    public void setRecoveryCheckPeriod(long recoveryCheckPeriod) {
+        this.recoveryCheckPeriod = recoveryCheckPeriod;
+    }
+
+    public boolean isEnablePersistState() {
+        return enablePersistState;
+    }
+
+    public void setEnablePersistState(boolean enablePersistState) {
+        this.enablePersistState = enablePersistState;
+    }
+
+    public String getStateFile() {
+        return stateFile;
+    }
+
+    public void setStateFile(String stateFile) {
+        this.stateFile = stateFile;
+    }
+
+    public long getStateSaveInterval() {
+        return stateSaveInterval;
+    }
+
+    public void setStateSaveInterval(long stateSaveInterval) {
+        this.stateSaveInterval = stateSaveInterval;
+    }
+
+    public AccountSelectStrategyEnum getSelectStrategy() {
+        return selectStrategy;
+    }
+
+    public void setSelectStrategy(AccountSelectStrategyEnum selectStrategy) {
+        this.selectStrategy = selectStrategy;
+    }
+
+    public int getSelectSampleSize() {
+        return selectSampleSize;
+    }
+
+    public void setSelectSampleSize(int selectSampleSize) {
+        this.selectSampleSize = selectSampleSize;
+    }
+
     public boolean isEnableRefresh() {
         return enableRefresh;
     }
@@ -0,0 +1,50 @@
+package com.svwh.mailservice.conf;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * @description 收件人解析与校验的配置
+ * @Author cxk
+ */
+@ConfigurationProperties(prefix = "mail-service.recipient")
+public class MailRecipientProperties {
+
+    /**
+     * 是否在接收邮件时解析并校验收件人
+     */
+    private boolean enableValidation = true;
+
+    /**
+     * 地址解析结果的最大缓存个数
+     */
+    private int cacheSize = 10000;
+
+    /**
+     * 域名校验结果的最大缓存个数
+     */
+    private int domainCacheSize = 1000;
+
+    public boolean isEnableValidation() {
+        return enableValidation;
+    }
+
+    public void setEnableValidation(boolean enableValidation) {
+        this.enableValidation = enableValidation;
+    }
+
+    public int getCacheSize() {
+        return cacheSize;
+    }
+
+    public void setCacheSize(int cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    public int getDomainCacheSize() {
+        return domainCacheSize;
+    }
+
+    public void setDomainCacheSize(int domainCacheSize) {
+        this.domainCacheSize = domainCacheSize;
+    }
+}
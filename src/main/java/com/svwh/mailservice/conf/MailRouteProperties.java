@@ -0,0 +1,66 @@
+package com.svwh.mailservice.conf;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @description 按收件人域名路由发件账号的配置
+ * @Author cxk
+ */
+@ConfigurationProperties(prefix = "mail-service.route")
+public class MailRouteProperties {
+
+    /**
+     * 是否开启按收件人域名路由（默认关闭）
+     */
+    private boolean enable = false;
+
+    /**
+     * 多个收件人属于不同邮件服务商时是否拆分成多封邮件分别路由
+     */
+    private boolean splitRecipients = true;
+
+    /**
+     * 域名与邮件服务商的映射（会覆盖内置的映射），例如 foxmail.com: qq
+     */
+    private Map<String, String> providers = new HashMap<>();
+
+    /**
+     * 域名解析结果的最大缓存个数
+     */
+    private int cacheSize = 10000;
+
+    public boolean isEnable() {
+        return enable;
+    }
+
+    public void setEnable(boolean enable) {
+        this.enable = enable;
+    }
+
+    public boolean isSplitRecipients() {
+        return splitRecipients;
+    }
+
+    public void setSplitRecipients(boolean splitRecipients) {
+        this.splitRecipients = splitRecipients;
+    }
+
+    public Map<String, String> getProviders() {
+        return providers;
+    }
+
+    public void setProviders(Map<String, String> providers) {
+        this.providers = providers;
+    }
+
+    public int getCacheSize() {
+        return cacheSize;
+    }
+
+    public void setCacheSize(int cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+}
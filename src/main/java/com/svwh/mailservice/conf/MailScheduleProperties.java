@@ -0,0 +1,63 @@
+package com.svwh.mailservice.conf;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * @description 定时发送的配置
+ * @Author cxk
+ */
+@ConfigurationProperties(prefix = "mail-service.schedule")
+public class MailScheduleProperties {
+
+    /**
+     * 是否开启定时发送
+     */
+    private boolean enable = false;
+
+    /**
+     * 定时邮件的保存目录
+     */
+    private String dir = System.getProperty("java.io.tmpdir") + "/mail-service/schedule";
+
+    /**
+     * 每个桶覆盖的时间（毫秒），桶的开始时间到达后才加载到内存
+     */
+    private long bucketMillis = 60000;
+
+    /**
+     * 每批交给邮件服务的到期邮件数
+     */
+    private int batchSize = 100;
+
+    public boolean isEnable() {
+        return enable;
+    }
+
+    public void setEnable(boolean enable) {
+        this.enable = enable;
+    }
+
+    public String getDir() {
+        return dir;
+    }
+
+    public void setDir(String dir) {
+        this.dir = dir;
+    }
+
+    public long getBucketMillis() {
+        return bucketMillis;
+    }
+
+    public void setBucketMillis(long bucketMillis) {
+        this.bucketMillis = bucketMillis;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+}
@@ -0,0 +1,76 @@
+package com.svwh.mailservice.conf;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * @description 发送日志的配置
+ * @Author cxk
+ */
+@ConfigurationProperties(prefix = "mail-service.send-log")
+public class MailSendLogProperties {
+
+    /**
+     * 是否记录发送日志
+     */
+    private boolean enable = false;
+
+    /**
+     * 日志目录
+     */
+    private String dir = System.getProperty("java.io.tmpdir") + "/mail-service/send-log";
+
+    /**
+     * 每个日志段的大小（字节）
+     */
+    private long segmentSize = 64 * 1024 * 1024;
+
+    /**
+     * 日志段的滚动间隔（毫秒），小于等于0时只按大小滚动
+     */
+    private long rollInterval = 3600000;
+
+    /**
+     * 保留的日志段数，小于等于0时不删除
+     */
+    private int maxSegments = 48;
+
+    public boolean isEnable() {
+        return enable;
+    }
+
+    public void setEnable(boolean enable) {
+        this.enable = enable;
+    }
+
+    public String getDir() {
+        return dir;
+    }
+
+    public void setDir(String dir) {
+        this.dir = dir;
+    }
+
+    public long getSegmentSize() {
+        return segmentSize;
+    }
+
+    public void setSegmentSize(long segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    public long getRollInterval() {
+        return rollInterval;
+    }
+
+    public void setRollInterval(long rollInterval) {
+        this.rollInterval = rollInterval;
+    }
+
+    public int getMaxSegments() {
+        return maxSegments;
+    }
+
+    public void setMaxSegments(int maxSegments) {
+        this.maxSegments = maxSegments;
+    }
+}
@@ -1,27 +1,68 @@
 package com.svwh.mailservice.conf;
 
+import com.svwh.mailservice.algrothim.AccountSelectStrategy;
 import com.svwh.mailservice.algrothim.CountRateLimit;
 import com.svwh.mailservice.algrothim.CountRateLimitExecutor;
+import com.svwh.mailservice.algrothim.QuotaWeightedSelectStrategy;
+import com.svwh.mailservice.algrothim.RandomAccountSelectStrategy;
 import com.svwh.mailservice.algrothim.RateLimitExecutor;
 import com.svwh.mailservice.algrothim.RefreshableRateLimitExecutor;
+import com.svwh.mailservice.attachment.AttachmentStore;
+import com.svwh.mailservice.audit.SendLog;
+import com.svwh.mailservice.core.AccountLanes;
 import com.svwh.mailservice.core.DefaultMailListener;
+import com.svwh.mailservice.core.DelayedMailStore;
+import com.svwh.mailservice.core.MailDedupCache;
+import com.svwh.mailservice.core.MailQueueSnapshot;
 import com.svwh.mailservice.core.StandAloneMailService;
+import com.svwh.mailservice.dkim.MailDkimSigner;
+import com.svwh.mailservice.core.TenantScheduler;
+import com.svwh.mailservice.digest.DefaultMailDigestMerger;
+import com.svwh.mailservice.digest.MailDigestMerger;
+import com.svwh.mailservice.digest.MailDigester;
 import com.svwh.mailservice.core.MailService;
+import com.svwh.mailservice.enums.AccountSelectStrategyEnum;
 import com.svwh.mailservice.enums.CountRateLimitEnum;
+import com.svwh.mailservice.enums.MailTransportEnum;
+import com.svwh.mailservice.enums.OverloadPolicyEnum;
+import com.svwh.mailservice.listener.MailEventBus;
 import com.svwh.mailservice.listener.MailServiceListener;
 import com.svwh.mailservice.mail.MailSender;
+import com.svwh.mailservice.mail.RecipientValidator;
+import com.svwh.mailservice.monitor.MailServiceEndpoint;
+import com.svwh.mailservice.monitor.MailServiceHealthIndicator;
+import com.svwh.mailservice.overload.CallerRunsOverloadPolicy;
+import com.svwh.mailservice.overload.DropOldestOverloadPolicy;
+import com.svwh.mailservice.overload.MailOverloadPolicy;
+import com.svwh.mailservice.overload.ShedOverloadPolicy;
+import com.svwh.mailservice.overload.SpillOverloadPolicy;
+import com.svwh.mailservice.route.MailRouter;
+import com.svwh.mailservice.suppression.SuppressionList;
 import com.svwh.mailservice.threadpool.DefaultThreadPoolExecutor;
+import com.svwh.mailservice.threadpool.MailPoolSizer;
 import com.svwh.mailservice.threadpool.MailThreadPoolFactory;
 import com.svwh.mailservice.threadpool.MailTooManyRejectStrategy;
+import com.svwh.mailservice.transport.JavaMailTransport;
+import com.svwh.mailservice.transport.MailTransport;
+import com.svwh.mailservice.transport.NioSmtpTransport;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.actuate.autoconfigure.endpoint.condition.ConditionalOnAvailableEndpoint;
+import org.springframework.boot.actuate.autoconfigure.health.ConditionalOnEnabledHealthIndicator;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnBean;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.concurrent.*;
 
 /**
@@ -29,7 +70,12 @@ import java.util.concurrent.*;
  * @Author cxk
  */
 @Configuration
-@EnableConfigurationProperties(value = {MailProperties.class, MailServiceProperties.class})
+@EnableConfigurationProperties(value = {MailProperties.class, MailServiceProperties.class, MailRouteProperties.class,
+        MailAttachmentProperties.class, MailTransportProperties.class, MailShutdownProperties.class,
+        MailEventProperties.class, MailSendLogProperties.class, MailSuppressionProperties.class,
+        MailRecipientProperties.class, MailDedupProperties.class, MailTenantProperties.class,
+        MailScheduleProperties.class, MailDigestProperties.class, MailLaneProperties.class,
+        MailOverloadProperties.class, MailDkimProperties.class})
 public class MailSenderAutoConfiguration {
 
     private final Logger LOGGER = LoggerFactory.getLogger(MailSenderAutoConfiguration.class);
@@ -37,6 +83,11 @@ public class MailSenderAutoConfiguration {
     private static final ThreadFactory DEFAULT_THREAD_FACTORY = new MailThreadPoolFactory();
     private static final RejectedExecutionHandler DEFAULT_REJECT_HANDLER = new MailTooManyRejectStrategy();
 
+    /**
+     * 过载日志每个桶覆盖的时间（毫秒）
+     */
+    private static final long SPILL_BUCKET_MILLIS = 1000;
+
 
 
     /**
@@ -54,22 +105,36 @@ public class MailSenderAutoConfiguration {
     }
 
 
+    /**
+     * 默认的邮箱账号选取策略
+     */
+    @Bean
+    @ConditionalOnMissingBean
+    public AccountSelectStrategy accountSelectStrategy(MailProperties mailProperties){
+        if (mailProperties.getSelectStrategy() == AccountSelectStrategyEnum.QUOTA_WEIGHTED){
+            LOGGER.debug("按剩余额度加权的账号选取策略已生效！");
+            return new QuotaWeightedSelectStrategy(mailProperties.getSelectSampleSize());
+        }
+        return new RandomAccountSelectStrategy();
+    }
+
     /**
      * 配置默认的限流执行器
      */
     @Bean
     @ConditionalOnMissingBean
-    @ConditionalOnBean(value = {RateLimitRankConf.class})
+    @ConditionalOnBean(value = {RateLimitRankConf.class, AccountSelectStrategy.class})
     @ConditionalOnClass(value = {MailProperties.class})
     public RateLimitExecutor rateLimitExecutor(MailProperties mailProperties,
-                                               RateLimitRankConf rateLimitRankConf){
+                                               RateLimitRankConf rateLimitRankConf,
+                                               AccountSelectStrategy accountSelectStrategy){
         // 配置默认的限流器
         RateLimitExecutor rateLimitExecutor;
         if (mailProperties.isEnableRefresh()){
-            rateLimitExecutor = new RefreshableRateLimitExecutor(mailProperties,rateLimitRankConf);
+            rateLimitExecutor = new RefreshableRateLimitExecutor(mailProperties,rateLimitRankConf,accountSelectStrategy);
             LOGGER.debug("动态刷新限流器已生效！");
         }else{
-            rateLimitExecutor = new CountRateLimitExecutor(mailProperties,rateLimitRankConf);
+            rateLimitExecutor = new CountRateLimitExecutor(mailProperties,rateLimitRankConf,accountSelectStrategy);
         }
         LOGGER.debug("默认的限流器已生效！");
         return  rateLimitExecutor;
@@ -100,6 +165,215 @@ public class MailSenderAutoConfiguration {
         return new DefaultMailListener();
     }
 
+    /**
+     * 异步事件总线，监听器在分发线程中按批执行（需要开启 mail-service.event.enable-async）
+     */
+    @Bean
+    @ConditionalOnMissingBean
+    @ConditionalOnProperty(prefix = "mail-service.event", name = "enable-async", havingValue = "true")
+    public MailEventBus mailEventBus(MailServiceListener mailServiceListener, MailEventProperties mailEventProperties){
+        LOGGER.debug("异步事件总线已生效！");
+        return new MailEventBus(mailServiceListener, mailEventProperties.getBufferSize(),
+                mailEventProperties.getBatchSize(), mailEventProperties.getOverflow());
+    }
+
+    /**
+     * 按收件人域名路由发件账号（需要开启 mail-service.route.enable）
+     */
+    @Bean
+    @ConditionalOnMissingBean
+    @ConditionalOnProperty(prefix = "mail-service.route", name = "enable", havingValue = "true")
+    public MailRouter mailRouter(MailProperties mailProperties, MailRouteProperties mailRouteProperties){
+        LOGGER.debug("按收件人域名路由发件账号已生效！");
+        return new MailRouter(mailProperties, mailRouteProperties);
+    }
+
+    /**
+     * 附件存储，相同内容的附件只编码一次（需要开启 mail-service.attachment.enable-store）
+     */
+    @Bean
+    @ConditionalOnMissingBean
+    @ConditionalOnProperty(prefix = "mail-service.attachment", name = "enable-store", havingValue = "true")
+    public AttachmentStore attachmentStore(MailAttachmentProperties mailAttachmentProperties) throws IOException {
+        LOGGER.debug("附件存储已生效！");
+        return new AttachmentStore(mailAttachmentProperties);
+    }
+
+    /**
+     * DKIM签名（需要开启 mail-service.dkim.enable）
+     */
+    @Bean
+    @ConditionalOnMissingBean
+    @ConditionalOnProperty(prefix = "mail-service.dkim", name = "enable", havingValue = "true")
+    public MailDkimSigner mailDkimSigner(MailDkimProperties mailDkimProperties) throws IOException, GeneralSecurityException {
+        LOGGER.debug("DKIM签名已生效！");
+        return new MailDkimSigner(mailDkimProperties);
+    }
+
+    /**
+     * 发送日志，记录每一次投递尝试（需要开启 mail-service.send-log.enable）
+     */
+    @Bean
+    @ConditionalOnMissingBean
+    @ConditionalOnProperty(prefix = "mail-service.send-log", name = "enable", havingValue = "true")
+    public SendLog sendLog(MailSendLogProperties mailSendLogProperties) throws IOException {
+        LOGGER.debug("发送日志已生效！");
+        return new SendLog(Paths.get(mailSendLogProperties.getDir()), mailSendLogProperties.getSegmentSize(),
+                mailSendLogProperties.getRollInterval(), mailSendLogProperties.getMaxSegments());
+    }
+
+    /**
+     * 收件人解析与校验，接收邮件时就去掉非法的收件人（默认开启，mail-service.recipient.enable-validation=false 时关闭）
+     */
+    @Bean
+    @ConditionalOnMissingBean
+    @ConditionalOnProperty(prefix = "mail-service.recipient", name = "enable-validation", havingValue = "true",
+            matchIfMissing = true)
+    public RecipientValidator recipientValidator(MailRecipientProperties mailRecipientProperties){
+        return new RecipientValidator(mailRecipientProperties.getCacheSize(), mailRecipientProperties.getDomainCacheSize());
+    }
+
+    /**
+     * 收件人抑制列表，启动时加载抑制列表文件和导入文件（需要开启 mail-service.suppression.enable）
+     */
+    @Bean
+    @ConditionalOnMissingBean
+    @ConditionalOnProperty(prefix = "mail-service.suppression", name = "enable", havingValue = "true")
+    public SuppressionList suppressionList(MailSuppressionProperties mailSuppressionProperties) throws IOException {
+        SuppressionList suppressionList = new SuppressionList(Paths.get(mailSuppressionProperties.getFile()),
+                mailSuppressionProperties.getExpectedSize(), mailSuppressionProperties.isAddOnBounce()
+                ? new HashSet<>(mailSuppressionProperties.getBounceCodes()) : Collections.emptySet());
+        suppressionList.load();
+        for (String importFile : mailSuppressionProperties.getImportFiles()) {
+            suppressionList.addAll(Paths.get(importFile));
+        }
+        LOGGER.debug("收件人抑制列表已生效！");
+        return suppressionList;
+    }
+
+    /**
+     * 幂等键去重缓存（需要开启 mail-service.dedup.enable）
+     */
+    @Bean
+    @ConditionalOnMissingBean
+    @ConditionalOnProperty(prefix = "mail-service.dedup", name = "enable", havingValue = "true")
+    public MailDedupCache mailDedupCache(MailDedupProperties mailDedupProperties){
+        LOGGER.debug("幂等键去重已生效！");
+        return new MailDedupCache(mailDedupProperties.getTtl(), mailDedupProperties.getBuckets(),
+                mailDedupProperties.getMaxSize());
+    }
+
+    /**
+     * 发送线程池的自动调整（需要开启 mail-service.pool.auto-size）
+     */
+    @Bean
+    @ConditionalOnMissingBean
+    @ConditionalOnBean(value = {RateLimitExecutor.class, DefaultThreadPoolExecutor.class})
+    @ConditionalOnProperty(prefix = "mail-service.pool", name = "auto-size", havingValue = "true")
+    public MailPoolSizer mailPoolSizer(MailServiceProperties mailServiceProperties,
+                                       RateLimitExecutor rateLimitExecutor,
+                                       DefaultThreadPoolExecutor defaultThreadPoolExecutor){
+        LOGGER.debug("发送线程池自动调整已生效！");
+        return new MailPoolSizer(defaultThreadPoolExecutor.getThreadPoolExecutor(), rateLimitExecutor,
+                mailServiceProperties.getMinPoolSize() > 0 ? mailServiceProperties.getMinPoolSize()
+                        : mailServiceProperties.getCorePoolSize(), mailServiceProperties.getMaxPoolSize(),
+                mailServiceProperties.getAutoSizeInterval());
+    }
+
+    /**
+     * 按账号分道发送，每个账号一个队列并按账号的限流器放行（需要开启 mail-service.lane.enable）
+     */
+    @Bean
+    @ConditionalOnMissingBean
+    @ConditionalOnBean(RateLimitExecutor.class)
+    @ConditionalOnProperty(prefix = "mail-service.lane", name = "enable", havingValue = "true")
+    public AccountLanes accountLanes(MailLaneProperties mailLaneProperties,
+                                     MailServiceProperties mailServiceProperties,
+                                     RateLimitExecutor rateLimitExecutor){
+        LOGGER.debug("按账号分道发送已生效！");
+        return new AccountLanes(rateLimitExecutor, mailLaneProperties.getCapacity(),
+                mailLaneProperties.getDispatchLimit() > 0 ? mailLaneProperties.getDispatchLimit()
+                        : mailServiceProperties.getMaxPoolSize(), mailLaneProperties.getRetryInterval());
+    }
+
+    /**
+     * 多租户调度，按租户限制额度并在租户之间公平派发邮件（需要开启 mail-service.tenant.enable）
+     */
+    @Bean
+    @ConditionalOnMissingBean
+    @ConditionalOnProperty(prefix = "mail-service.tenant", name = "enable", havingValue = "true")
+    public TenantScheduler tenantScheduler(MailTenantProperties mailTenantProperties,
+                                           MailServiceProperties mailServiceProperties){
+        LOGGER.debug("多租户隔离已生效！");
+        return new TenantScheduler(mailTenantProperties, mailTenantProperties.getDispatchLimit() > 0
+                ? mailTenantProperties.getDispatchLimit() : mailServiceProperties.getMaxPoolSize());
+    }
+
+    /**
+     * 定时邮件的磁盘索引，启动时加载目录中未投递的定时邮件（需要开启 mail-service.schedule.enable）
+     */
+    @Bean
+    @ConditionalOnMissingBean
+    @ConditionalOnProperty(prefix = "mail-service.schedule", name = "enable", havingValue = "true")
+    public DelayedMailStore delayedMailStore(MailScheduleProperties mailScheduleProperties) throws IOException {
+        LOGGER.debug("定时发送已生效！");
+        return new DelayedMailStore(Paths.get(mailScheduleProperties.getDir()), mailScheduleProperties.getBucketMillis(),
+                mailScheduleProperties.getBatchSize());
+    }
+
+    /**
+     * 默认的邮件合并方式，可以注册自己的 {@link MailDigestMerger} 替换
+     */
+    @Bean
+    @ConditionalOnMissingBean
+    @ConditionalOnProperty(prefix = "mail-service.digest", name = "enable", havingValue = "true")
+    public MailDigestMerger mailDigestMerger(){
+        return new DefaultMailDigestMerger();
+    }
+
+    /**
+     * 通知邮件合并，同一收件人、同一类别的邮件暂存后合并发送（需要开启 mail-service.digest.enable）
+     */
+    @Bean
+    @ConditionalOnMissingBean
+    @ConditionalOnProperty(prefix = "mail-service.digest", name = "enable", havingValue = "true")
+    public MailDigester mailDigester(MailDigestProperties mailDigestProperties, MailDigestMerger mailDigestMerger){
+        LOGGER.debug("通知邮件合并已生效！");
+        return new MailDigester(mailDigestProperties.getWindow(), mailDigestProperties.getMaxHold(),
+                mailDigestProperties.getMaxMails(), mailDigestProperties.getMaxPending(), mailDigestMerger);
+    }
+
+    /**
+     * 服务过载时的处理策略，按 mail-service.overload.policy 选择内置策略，可以注册自己的 {@link MailOverloadPolicy} 替换
+     */
+    @Bean
+    @ConditionalOnMissingBean
+    public MailOverloadPolicy mailOverloadPolicy(MailOverloadProperties mailOverloadProperties){
+        switch (mailOverloadProperties.getPolicy()) {
+            case SPILL:
+                return new SpillOverloadPolicy();
+            case DROP_OLDEST:
+                return new DropOldestOverloadPolicy();
+            case CALLER_RUNS:
+                return new CallerRunsOverloadPolicy(mailOverloadProperties.getCallerTimeout());
+            default:
+                return new ShedOverloadPolicy();
+        }
+    }
+
+    /**
+     * 邮件传输层，默认使用javax.mail阻塞投递，mail-service.transport.type=nio 时使用非阻塞SMTP客户端
+     */
+    @Bean
+    @ConditionalOnMissingBean
+    public MailTransport mailTransport(MailTransportProperties mailTransportProperties){
+        if (mailTransportProperties.getType() == MailTransportEnum.NIO){
+            LOGGER.debug("非阻塞SMTP传输层已生效！");
+            return new NioSmtpTransport(mailTransportProperties);
+        }
+        return new JavaMailTransport();
+    }
+
     /**
      * 返回一个默认的邮件发送器
      */
@@ -110,19 +384,97 @@ public class MailSenderAutoConfiguration {
     @ConditionalOnMissingBean
     public MailService mailService(MailProperties mailProperties,
                                    MailServiceProperties mailServiceProperties,
+                                   MailShutdownProperties mailShutdownProperties,
+                                   MailTransportProperties mailTransportProperties,
+                                   MailOverloadProperties mailOverloadProperties,
                                    RateLimitExecutor rateLimitExecutor,
                                    DefaultThreadPoolExecutor defaultThreadPoolExecutor,
-                                   MailServiceListener mailServiceListener){
+                                   MailServiceListener mailServiceListener,
+                                   ObjectProvider<MailRouter> mailRouter,
+                                   ObjectProvider<AttachmentStore> attachmentStore,
+                                   ObjectProvider<MailDkimSigner> mailDkimSigner,
+                                   ObjectProvider<MailTransport> mailTransport,
+                                   ObjectProvider<MailEventBus> mailEventBus,
+                                   ObjectProvider<SendLog> sendLog,
+                                   ObjectProvider<SuppressionList> suppressionList,
+                                   ObjectProvider<RecipientValidator> recipientValidator,
+                                   ObjectProvider<MailDedupCache> mailDedupCache,
+                                   ObjectProvider<TenantScheduler> tenantScheduler,
+                                   ObjectProvider<DelayedMailStore> delayedMailStore,
+                                   ObjectProvider<MailDigester> mailDigester,
+                                   ObjectProvider<MailPoolSizer> mailPoolSizer,
+                                   ObjectProvider<AccountLanes> accountLanes,
+                                   ObjectProvider<MailOverloadPolicy> mailOverloadPolicy) throws IOException {
         // 默认为BaseMailService
         for (MailSender mailInfo : mailProperties.getMailInfos()) {
             if (mailInfo.getStartLimitTime() != 0L){
                 LOGGER.error("The mail service start failed ! the startLimitTime shouldn't  be set");
             }
         }
-        MailService mailService = new StandAloneMailService(mailProperties, mailServiceProperties,rateLimitExecutor,
+        StandAloneMailService mailService = new StandAloneMailService(mailProperties, mailServiceProperties,rateLimitExecutor,
                 defaultThreadPoolExecutor.getThreadPoolExecutor());
         mailService.setMailListener(mailServiceListener);
+        mailService.setMailEventBus(mailEventBus.getIfAvailable());
+        mailService.setSendLog(sendLog.getIfAvailable());
+        mailService.setSuppressionList(suppressionList.getIfAvailable());
+        mailService.setRecipientValidator(recipientValidator.getIfAvailable());
+        mailService.setDedupCache(mailDedupCache.getIfAvailable());
+        mailService.setTenantScheduler(tenantScheduler.getIfAvailable());
+        mailService.setDelayedMailStore(delayedMailStore.getIfAvailable());
+        mailService.setMailDigester(mailDigester.getIfAvailable());
+        mailService.setPoolSizer(mailPoolSizer.getIfAvailable());
+        mailService.setAccountLanes(accountLanes.getIfAvailable());
+        mailService.setMailRouter(mailRouter.getIfAvailable());
+        mailService.setAttachmentStore(attachmentStore.getIfAvailable());
+        mailService.setDkimSigner(mailDkimSigner.getIfAvailable());
+        mailTransport.ifAvailable(mailService::setMailTransport);
+        mailOverloadPolicy.ifAvailable(mailService::setOverloadPolicy);
+        // CALLER_RUNS 策略下内部线程不能直接发送，也需要磁盘日志
+        if (mailOverloadProperties.getPolicy() == OverloadPolicyEnum.SPILL
+                || mailOverloadProperties.getPolicy() == OverloadPolicyEnum.CALLER_RUNS){
+            mailService.setSpillJournal(new DelayedMailStore(Paths.get(mailOverloadProperties.getSpillDir()),
+                    SPILL_BUCKET_MILLIS, mailOverloadProperties.getSpillBatchSize()));
+        }
+        mailService.setDrainTimeout(mailShutdownProperties.getDrainTimeout());
+        if (mailTransportProperties.isEnableWarmUp()){
+            mailService.setWarmUp(mailTransportProperties.getWarmUpSessions(), mailTransportProperties.getWarmUpTimeout());
+        }
+        if (mailShutdownProperties.isEnablePersist()){
+            mailService.setQueueSnapshot(new MailQueueSnapshot(Paths.get(mailShutdownProperties.getPersistFile())));
+        }
         return mailService;
     }
 
+    /**
+     * 邮件服务的生命周期：启动时恢复未发送的邮件，关闭时排空并保存快照
+     */
+    @Bean
+    @ConditionalOnMissingBean
+    public MailServiceLifecycle mailServiceLifecycle(MailService mailService){
+        return new MailServiceLifecycle(mailService);
+    }
+
+    /**
+     * Actuator端点和健康检查（引入了Actuator时生效）
+     */
+    @Configuration
+    @ConditionalOnClass(name = "org.springframework.boot.actuate.endpoint.annotation.Endpoint")
+    static class MailServiceActuatorConfiguration {
+
+        @Bean
+        @ConditionalOnMissingBean
+        @ConditionalOnAvailableEndpoint
+        public MailServiceEndpoint mailServiceEndpoint(MailService mailService, RateLimitExecutor rateLimitExecutor){
+            return new MailServiceEndpoint(mailService, rateLimitExecutor);
+        }
+
+        @Bean
+        @ConditionalOnMissingBean(name = "mailServiceHealthIndicator")
+        @ConditionalOnEnabledHealthIndicator("mailService")
+        public MailServiceHealthIndicator mailServiceHealthIndicator(MailService mailService,
+                                                                     RateLimitExecutor rateLimitExecutor){
+            return new MailServiceHealthIndicator(mailService, rateLimitExecutor);
+        }
+    }
+
 }
@@ -0,0 +1,51 @@
+package com.svwh.mailservice.conf;
+
+import com.svwh.mailservice.core.MailService;
+import org.springframework.context.SmartLifecycle;
+
+/**
+ * @description 把邮件服务的启动和关闭挂到Spring容器的生命周期上
+ *  容器启动完成后恢复上次未发送的邮件，容器关闭时先于单例销毁执行排空和快照保存。
+ *  阶段值低于Web服务器，关闭时Web服务器先停止接收请求，再关闭邮件服务。
+ * @Author cxk
+ */
+public class MailServiceLifecycle implements SmartLifecycle {
+
+    /**
+     * 生命周期阶段
+     */
+    public static final int PHASE = Integer.MAX_VALUE - 2048;
+
+    private final MailService mailService;
+
+    private volatile boolean running;
+
+    public MailServiceLifecycle(MailService mailService) {
+        this.mailService = mailService;
+    }
+
+    @Override
+    public void start() {
+        mailService.start();
+        running = true;
+    }
+
+    @Override
+    public void stop() {
+        try {
+            mailService.closeService();
+        } finally {
+            running = false;
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public int getPhase() {
+        return PHASE;
+    }
+}
@@ -35,8 +35,31 @@ public class MailServiceProperties {
      */
     private long sleepTime = 30000;
 
+    /**
+     * 最多同时接收的邮件数（包括等待重发的严格到达邮件）
+     */
     private int maxTaskNum = 5000;
 
+    /**
+     * 接收的邮件最多占用的内存（字节，默认为64MB），按正文和内存附件的大小估算
+     */
+    private long maxTaskBytes = 64L * 1024 * 1024;
+
+    /**
+     * 是否按积压邮件数、发送耗时和账号剩余额度自动调整线程数（在 minPoolSize 和 maxPoolSize 之间）
+     */
+    private boolean autoSize = false;
+
+    /**
+     * 自动调整时的最少线程数，小于等于0时使用核心线程数
+     */
+    private int minPoolSize = 0;
+
+    /**
+     * 自动调整的周期（毫秒）
+     */
+    private long autoSizeInterval = 1000;
+
 
     public int getCorePoolSize() {
         return corePoolSize;
@@ -85,4 +108,36 @@ public class MailServiceProperties {
     public void setMaxTaskNum(int maxTaskNum) {
         this.maxTaskNum = maxTaskNum;
     }
+
+    public long getMaxTaskBytes() {
+        return maxTaskBytes;
+    }
+
+    public void setMaxTaskBytes(long maxTaskBytes) {
+        this.maxTaskBytes = maxTaskBytes;
+    }
+
+    public boolean isAutoSize() {
+        return autoSize;
+    }
+
+    public void setAutoSize(boolean autoSize) {
+        this.autoSize = autoSize;
+    }
+
+    public int getMinPoolSize() {
+        return minPoolSize;
+    }
+
+    public void setMinPoolSize(int minPoolSize) {
+        this.minPoolSize = minPoolSize;
+    }
+
+    public long getAutoSizeInterval() {
+        return autoSizeInterval;
+    }
+
+    public void setAutoSizeInterval(long autoSizeInterval) {
+        this.autoSizeInterval = autoSizeInterval;
+    }
 }
@@ -0,0 +1,50 @@
+package com.svwh.mailservice.conf;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * @description 邮件服务关闭与重启恢复的配置
+ * @Author cxk
+ */
+@ConfigurationProperties(prefix = "mail-service.shutdown")
+public class MailShutdownProperties {
+
+    /**
+     * 关闭时等待已接收邮件发送完成的最长时间（毫秒）
+     */
+    private long drainTimeout = 10000;
+
+    /**
+     * 是否在关闭时把未发送的邮件保存到快照，并在下次启动时恢复（默认开启，否则严格到达的邮件在关闭时会被丢弃）
+     */
+    private boolean enablePersist = true;
+
+    /**
+     * 快照文件路径
+     */
+    private String persistFile = System.getProperty("java.io.tmpdir") + "/mail-service/mail-queue.snapshot";
+
+    public long getDrainTimeout() {
+        return drainTimeout;
+    }
+
+    public void setDrainTimeout(long drainTimeout) {
+        this.drainTimeout = drainTimeout;
+    }
+
+    public boolean isEnablePersist() {
+        return enablePersist;
+    }
+
+    public void setEnablePersist(boolean enablePersist) {
+        this.enablePersist = enablePersist;
+    }
+
+    public String getPersistFile() {
+        return persistFile;
+    }
+
+    public void setPersistFile(String persistFile) {
+        this.persistFile = persistFile;
+    }
+}
@@ -0,0 +1,93 @@
+package com.svwh.mailservice.conf;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @description 收件人抑制列表的配置
+ * @Author cxk
+ */
+@ConfigurationProperties(prefix = "mail-service.suppression")
+public class MailSuppressionProperties {
+
+    /**
+     * 是否开启收件人抑制列表
+     */
+    private boolean enable = false;
+
+    /**
+     * 抑制列表文件，每行一个地址，启动时加载，退信时追加
+     */
+    private String file = System.getProperty("java.io.tmpdir") + "/mail-service/suppression.txt";
+
+    /**
+     * 启动时额外导入的地址文件（只读）
+     */
+    private List<String> importFiles = new ArrayList<>();
+
+    /**
+     * 预计的地址数
+     */
+    private int expectedSize = 1000000;
+
+    /**
+     * 是否把被服务器永久拒绝的收件人自动加入抑制列表
+     */
+    private boolean addOnBounce = true;
+
+    /**
+     * 视为收件人永久不可达的SMTP应答码
+     */
+    private List<Integer> bounceCodes = new ArrayList<>(Arrays.asList(550, 551, 553));
+
+    public boolean isEnable() {
+        return enable;
+    }
+
+    public void setEnable(boolean enable) {
+        this.enable = enable;
+    }
+
+    public String getFile() {
+        return file;
+    }
+
+    public void setFile(String file) {
+        this.file = file;
+    }
+
+    public List<String> getImportFiles() {
+        return importFiles;
+    }
+
+    public void setImportFiles(List<String> importFiles) {
+        this.importFiles = importFiles;
+    }
+
+    public int getExpectedSize() {
+        return expectedSize;
+    }
+
+    public void setExpectedSize(int expectedSize) {
+        this.expectedSize = expectedSize;
+    }
+
+    public boolean isAddOnBounce() {
+        return addOnBounce;
+    }
+
+    public void setAddOnBounce(boolean addOnBounce) {
+        this.addOnBounce = addOnBounce;
+    }
+
+    public List<Integer> getBounceCodes() {
+        return bounceCodes;
+    }
+
+    public void setBounceCodes(List<Integer> bounceCodes) {
+        this.bounceCodes = bounceCodes;
+    }
+}
@@ -0,0 +1,137 @@
+package com.svwh.mailservice.conf;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @description 多租户隔离的配置
+ * @Author cxk
+ */
+@ConfigurationProperties(prefix = "mail-service.tenant")
+public class MailTenantProperties {
+
+    /**
+     * 是否开启多租户隔离（默认关闭）
+     */
+    private boolean enable = false;
+
+    /**
+     * 每一轮调度中权重为1的租户可以发送的收件人数
+     */
+    private int quantum = 10;
+
+    /**
+     * 同时派发给线程池的邮件数，小于等于0时使用线程池的最大线程数
+     */
+    private int dispatchLimit = 0;
+
+    /**
+     * 默认租户的额度，未单独配置的租户和没有设置租户的邮件都归入默认租户，共用这一份额度
+     */
+    private Quota defaultQuota = new Quota();
+
+    /**
+     * 租户与额度的映射
+     */
+    private Map<String, Quota> tenants = new HashMap<>();
+
+    public boolean isEnable() {
+        return enable;
+    }
+
+    public void setEnable(boolean enable) {
+        this.enable = enable;
+    }
+
+    public int getQuantum() {
+        return quantum;
+    }
+
+    public void setQuantum(int quantum) {
+        this.quantum = quantum;
+    }
+
+    public int getDispatchLimit() {
+        return dispatchLimit;
+    }
+
+    public void setDispatchLimit(int dispatchLimit) {
+        this.dispatchLimit = dispatchLimit;
+    }
+
+    public Quota getDefaultQuota() {
+        return defaultQuota;
+    }
+
+    public void setDefaultQuota(Quota defaultQuota) {
+        this.defaultQuota = defaultQuota;
+    }
+
+    public Map<String, Quota> getTenants() {
+        return tenants;
+    }
+
+    public void setTenants(Map<String, Quota> tenants) {
+        this.tenants = tenants;
+    }
+
+    /**
+     * 单个租户的额度
+     */
+    public static class Quota {
+
+        /**
+         * 调度权重，每一轮可以发送 weight * quantum 个收件人
+         */
+        private int weight = 1;
+
+        /**
+         * 最多同时接收的邮件数（包括等待重发的严格到达邮件），小于等于0时只受全局名额限制
+         */
+        private int maxAccepted = 0;
+
+        /**
+         * 每个时间窗口内最多发送的邮件数，小于等于0时不限制
+         */
+        private int rate = 0;
+
+        /**
+         * 时间窗口（毫秒）
+         */
+        private long window = 60000;
+
+        public int getWeight() {
+            return weight;
+        }
+
+        public void setWeight(int weight) {
+            this.weight = weight;
+        }
+
+        public int getMaxAccepted() {
+            return maxAccepted;
+        }
+
+        public void setMaxAccepted(int maxAccepted) {
+            this.maxAccepted = maxAccepted;
+        }
+
+        public int getRate() {
+            return rate;
+        }
+
+        public void setRate(int rate) {
+            this.rate = rate;
+        }
+
+        public long getWindow() {
+            return window;
+        }
+
+        public void setWindow(long window) {
+            this.window = window;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.svwh.mailservice.conf;
+
+import com.svwh.mailservice.enums.MailTransportEnum;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * @description 邮件传输层的配置
+ * @Author cxk
+ */
+@ConfigurationProperties(prefix = "mail-service.transport")
+public class MailTransportProperties {
+
+    /**
+     * 传输层类型（默认为javax.mail阻塞投递）
+     */
+    private MailTransportEnum type = MailTransportEnum.JAVA_MAIL;
+
+    /**
+     * NIO事件循环线程数
+     */
+    private int eventLoopThreads = 2;
+
+    /**
+     * 投递结果回调线程数
+     */
+    private int callbackThreads = 2;
+
+    /**
+     * 每个发件账号的最大连接数
+     */
+    private int maxSessionsPerAccount = 8;
+
+    /**
+     * 每个发件账号保留的最大空闲连接数
+     */
+    private int maxIdleSessionsPerAccount = 4;
+
+    /**
+     * 空闲连接的最大存活时间（毫秒）
+     */
+    private long idleTimeout = 30000;
+
+    /**
+     * 是否在启动时预热账号（检查所有账号并预先建立连接）
+     */
+    private boolean enableWarmUp = false;
+
+    /**
+     * 预热时每个账号预先建立的连接数（javax.mail传输层不复用连接，只做检查）
+     */
+    private int warmUpSessions = 1;
+
+    /**
+     * 预热的最长时间（毫秒）
+     */
+    private long warmUpTimeout = 10000;
+
+    public boolean isEnableWarmUp() {
+        return enableWarmUp;
+    }
+
+    public void setEnableWarmUp(boolean enableWarmUp) {
+        this.enableWarmUp = enableWarmUp;
+    }
+
+    public int getWarmUpSessions() {
+        return warmUpSessions;
+    }
+
+    public void setWarmUpSessions(int warmUpSessions) {
+        this.warmUpSessions = warmUpSessions;
+    }
+
+    public long getWarmUpTimeout() {
+        return warmUpTimeout;
+    }
+
+    public void setWarmUpTimeout(long warmUpTimeout) {
+        this.warmUpTimeout = warmUpTimeout;
+    }
+
+    public MailTransportEnum getType() {
+        return type;
+    }
+
+    public void setType(MailTransportEnum type) {
+        this.type = type;
+    }
+
+    public int getEventLoopThreads() {
+        return eventLoopThreads;
+    }
+
+    public void setEventLoopThreads(int eventLoopThreads) {
+        this.eventLoopThreads = eventLoopThreads;
+    }
+
+    public int getCallbackThreads() {
+        return callbackThreads;
+    }
+
+    public void setCallbackThreads(int callbackThreads) {
+        this.callbackThreads = callbackThreads;
+    }
+
+    public int getMaxSessionsPerAccount() {
+        return maxSessionsPerAccount;
+    }
+
+    public void setMaxSessionsPerAccount(int maxSessionsPerAccount) {
+        this.maxSessionsPerAccount = maxSessionsPerAccount;
+    }
+
+    public int getMaxIdleSessionsPerAccount() {
+        return maxIdleSessionsPerAccount;
+    }
+
+    public void setMaxIdleSessionsPerAccount(int maxIdleSessionsPerAccount) {
+        this.maxIdleSessionsPerAccount = maxIdleSessionsPerAccount;
+    }
+
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+}
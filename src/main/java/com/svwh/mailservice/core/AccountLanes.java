@@ -0,0 +1,510 @@
+package com.svwh.mailservice.core;
+
+import com.svwh.mailservice.algrothim.AccountSnapshot;
+import com.svwh.mailservice.algrothim.RateLimit;
+import com.svwh.mailservice.algrothim.RateLimitExecutor;
+import com.svwh.mailservice.mail.MailSender;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * @description 按账号分道发送
+ *  邮件不再由工作线程取出后再寻找账号，而是由一个派发线程先分配到某个账号的队列（每个账号一个有界队列），
+ *  再按该账号自己的限流器放行：拿到发送权限的邮件连同账号一起交给线程池，拿不到时该账号的队列暂停到窗口重置或者封禁到期，
+ *  期间不会再反复尝试，所有账号都不可用时工作线程也不会空转和重新排队。
+ *  分配时优先选择路由匹配、当前可以发送并且按额度折算后排队最短的账号，没有可以发送的账号时邮件留在待分配队列中；
+ *  已分配到暂停账号队列中的邮件会被转给空闲且仍有额度的账号，同样优先转给路由匹配的账号。
+ * @Author cxk
+ */
+public class AccountLanes {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AccountLanes.class);
+
+    private final RateLimitExecutor rateLimitExecutor;
+
+    private final int capacity;
+
+    private final int dispatchLimit;
+
+    private final long retryInterval;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition changed = lock.newCondition();
+
+    /**
+     * 尚未分配账号的邮件
+     */
+    private final ArrayDeque<Pending> inbox = new ArrayDeque<>();
+
+    /**
+     * 账号名与账号的队列，配置刷新后账号对象会变化，因此按账号名索引
+     */
+    private final Map<String, Lane> lanes = new LinkedHashMap<>();
+
+    /**
+     * 已派发但工作线程尚未处理完的邮件数
+     */
+    private int dispatching;
+
+    private Dispatcher handler;
+
+    private Thread dispatcher;
+
+    private volatile boolean closed;
+
+    /**
+     * @param rateLimitExecutor 限流执行器
+     * @param capacity 每个账号的队列容量
+     * @param dispatchLimit 同时派发给线程池的邮件数
+     * @param retryInterval 无法得知恢复时间的账号重新检查的间隔（毫秒）
+     */
+    public AccountLanes(RateLimitExecutor rateLimitExecutor, int capacity, int dispatchLimit, long retryInterval) {
+        this.rateLimitExecutor = rateLimitExecutor;
+        this.capacity = Math.max(1, capacity);
+        this.dispatchLimit = Math.max(1, dispatchLimit);
+        this.retryInterval = Math.max(1, retryInterval);
+    }
+
+    /**
+     * 启动派发线程（可重复调用）
+     * @param handler 接收已拿到发送权限的邮件和账号
+     */
+    synchronized void start(Dispatcher handler) {
+        if (dispatcher != null || closed){
+            return;
+        }
+        this.handler = handler;
+        this.dispatcher = new Thread(this::run, "mail-lane-dispatcher");
+        this.dispatcher.setDaemon(true);
+        this.dispatcher.start();
+    }
+
+    /**
+     * 邮件进入待分配队列
+     * @param preferred 优先使用的账号条件，可以为null
+     */
+    void offer(MailTask task, Predicate<MailSender> preferred) {
+        lock.lock();
+        try {
+            inbox.addLast(new Pending(task, preferred));
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 派发的邮件已被工作线程处理完，归还派发名额
+     */
+    void done() {
+        lock.lock();
+        try {
+            dispatching--;
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void run() {
+        List<Grant> grants = new ArrayList<>();
+        while (!closed) {
+            lock.lock();
+            try {
+                long now = System.currentTimeMillis();
+                refresh(rateLimitExecutor.snapshot());
+                boolean progress = assign(now) | steal(now);
+                long wakeAt = release(now, grants);
+                if (!progress && grants.isEmpty()){
+                    long waitMillis = wakeAt - System.currentTimeMillis();
+                    if (wakeAt == Long.MAX_VALUE){
+                        changed.await();
+                    }else if (waitMillis > 0){
+                        changed.await(waitMillis, TimeUnit.MILLISECONDS);
+                    }
+                }
+            } catch (InterruptedException e) {
+                break;
+            } finally {
+                lock.unlock();
+            }
+            // 在锁外交给线程池，工作线程归还名额时不必等待
+            for (Grant grant : grants) {
+                try {
+                    handler.dispatch(grant.task, grant.mailSender);
+                } catch (RuntimeException e) {
+                    LOGGER.error("派发邮件失败：{}", grant.task.mail.getToMail(), e);
+                    done();
+                }
+            }
+            grants.clear();
+        }
+    }
+
+    /**
+     * 按账号快照同步账号队列：新增的账号建立队列，已删除的账号保留队列直到其中的邮件被转走
+     */
+    private void refresh(AccountSnapshot snapshot) {
+        for (Lane lane : lanes.values()) {
+            lane.present = false;
+        }
+        for (MailSender mailSender : snapshot.getMailSenders()) {
+            Lane lane = lanes.get(mailSender.getUsername());
+            if (lane == null){
+                lane = new Lane();
+                lanes.put(mailSender.getUsername(), lane);
+            }
+            lane.mailSender = mailSender;
+            lane.rateLimit = snapshot.rateLimit(mailSender);
+            lane.present = true;
+        }
+        lanes.values().removeIf(lane -> !lane.present && lane.queue.isEmpty());
+    }
+
+    /**
+     * 为待分配的邮件选择账号
+     * @return 是否分配了邮件
+     */
+    private boolean assign(long now) {
+        boolean assigned = false;
+        while (!inbox.isEmpty()) {
+            Pending pending = inbox.peekFirst();
+            Lane best = null;
+            double bestScore = Double.MAX_VALUE;
+            for (Lane lane : lanes.values()) {
+                if (!lane.ready(now) || lane.queue.size() >= capacity){
+                    continue;
+                }
+                // 路由条件只是优先级：路由不匹配的账号排在所有匹配的账号之后，没有匹配的账号可以发送时才使用
+                double score = (lane.queue.size() + 1) / lane.weight();
+                if (pending.preferred != null && !pending.preferred.test(lane.mailSender)){
+                    score += capacity * 1e9;
+                }
+                if (score < bestScore){
+                    best = lane;
+                    bestScore = score;
+                }
+            }
+            if (best == null){
+                return assigned;
+            }
+            inbox.pollFirst();
+            best.queue.addLast(pending);
+            assigned = true;
+        }
+        return assigned;
+    }
+
+    /**
+     * 把暂停中的账号队列里的邮件转给空闲且可以发送的账号，每个空闲账号每次转一封；
+     * 和分配时一样路由条件只是优先级：优先转路由匹配该账号的邮件，没有时再转其他邮件
+     * @return 是否转移了邮件
+     */
+    private boolean steal(long now) {
+        boolean stolen = false;
+        for (Lane idle : lanes.values()) {
+            if (!idle.queue.isEmpty() || !idle.ready(now)){
+                continue;
+            }
+            Pending pending = takeFor(idle.mailSender, now, true);
+            if (pending == null){
+                pending = takeFor(idle.mailSender, now, false);
+            }
+            if (pending != null){
+                idle.queue.addLast(pending);
+                stolen = true;
+            }
+        }
+        return stolen;
+    }
+
+    /**
+     * 从暂停中的账号队列的队尾开始取出一封邮件
+     * @param matching 是否只取路由匹配指定账号的邮件
+     * @return 没有可以转移的邮件时返回null
+     */
+    private Pending takeFor(MailSender mailSender, long now, boolean matching) {
+        for (Lane blocked : lanes.values()) {
+            if (blocked.queue.isEmpty() || blocked.ready(now)){
+                continue;
+            }
+            Iterator<Pending> iterator = blocked.queue.descendingIterator();
+            while (iterator.hasNext()) {
+                Pending pending = iterator.next();
+                if (!matching || pending.preferred == null || pending.preferred.test(mailSender)){
+                    iterator.remove();
+                    return pending;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 轮流从各账号的队列中放行邮件，拿不到发送权限的账号暂停到预计恢复的时间
+     * @return 下一次需要检查的时间，没有需要定时检查的账号时返回Long.MAX_VALUE
+     */
+    private long release(long now, List<Grant> grants) {
+        boolean released = true;
+        while (released && dispatching < dispatchLimit) {
+            released = false;
+            for (Lane lane : lanes.values()) {
+                if (dispatching >= dispatchLimit){
+                    break;
+                }
+                if (lane.queue.isEmpty() || !lane.ready(now)){
+                    continue;
+                }
+                if (rateLimitExecutor.tryAccess(lane.mailSender)){
+                    grants.add(new Grant(lane.queue.pollFirst().task, lane.mailSender));
+                    dispatching++;
+                    released = true;
+                }else {
+                    lane.readyAt = now + pause(lane);
+                }
+            }
+        }
+        long wakeAt = Long.MAX_VALUE;
+        for (Lane lane : lanes.values()) {
+            if (lane.present && lane.readyAt > now && (!lane.queue.isEmpty() || !inbox.isEmpty())){
+                wakeAt = Math.min(wakeAt, lane.readyAt);
+            }
+        }
+        // 被暂停的账号恢复时没有通知，有等待的邮件时定期检查
+        if (wakeAt == Long.MAX_VALUE && (!inbox.isEmpty() || hasQueued())){
+            wakeAt = now + retryInterval;
+        }
+        return wakeAt;
+    }
+
+    /**
+     * @return 账号预计恢复发送所需的时间（毫秒）
+     */
+    private long pause(Lane lane) {
+        MailSender mailSender = lane.mailSender;
+        if (mailSender.isPaused()){
+            return retryInterval;
+        }
+        long limitRemaining = rateLimitExecutor.limitRemainingMillis(mailSender);
+        if (limitRemaining > 0){
+            return limitRemaining;
+        }
+        long windowRemaining = lane.rateLimit == null ? -1 : lane.rateLimit.windowRemainingMillis();
+        return windowRemaining > 0 ? windowRemaining : retryInterval;
+    }
+
+    private boolean hasQueued() {
+        for (Lane lane : lanes.values()) {
+            if (!lane.queue.isEmpty()){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 取出最早进入的一封非严格到达邮件（过载时丢弃）
+     * @return 没有非严格到达的邮件时返回null
+     */
+    MailTask evictOldest() {
+        lock.lock();
+        try {
+            Iterator<Pending> owner = null;
+            MailTask oldest = null;
+            for (Lane lane : lanes.values()) {
+                Iterator<Pending> iterator = lane.queue.iterator();
+                while (iterator.hasNext()) {
+                    MailTask task = iterator.next().task;
+                    if (!task.mail.getStrictArrive()){
+                        if (oldest == null || task.id < oldest.id){
+                            owner = iterator;
+                            oldest = task;
+                        }
+                        break;
+                    }
+                }
+            }
+            Iterator<Pending> inboxIterator = inbox.iterator();
+            while (inboxIterator.hasNext()) {
+                Pending pending = inboxIterator.next();
+                if (!pending.task.mail.getStrictArrive()){
+                    if (oldest == null || pending.task.id < oldest.id){
+                        inboxIterator.remove();
+                        return pending.task;
+                    }
+                    break;
+                }
+            }
+            if (owner != null){
+                owner.remove();
+            }
+            return oldest;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 取出所有等待派发的邮件（关闭服务时保存快照）
+     * @return 取出的邮件数
+     */
+    int drainTo(List<MailTask> remaining) {
+        lock.lock();
+        try {
+            int drained = 0;
+            for (Pending pending : inbox) {
+                remaining.add(pending.task);
+                drained++;
+            }
+            inbox.clear();
+            for (Lane lane : lanes.values()) {
+                for (Pending pending : lane.queue) {
+                    remaining.add(pending.task);
+                    drained++;
+                }
+                lane.queue.clear();
+            }
+            return drained;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return 等待派发的邮件数（包括尚未分配账号的）
+     */
+    public int queued() {
+        lock.lock();
+        try {
+            int queued = inbox.size();
+            for (Lane lane : lanes.values()) {
+                queued += lane.queue.size();
+            }
+            return queued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return 各账号队列中等待派发的邮件数
+     */
+    public Map<String, Integer> queuedByAccount() {
+        Map<String, Integer> result = new LinkedHashMap<>();
+        lock.lock();
+        try {
+            for (Map.Entry<String, Lane> entry : lanes.entrySet()) {
+                result.put(entry.getKey(), entry.getValue().queue.size());
+            }
+        } finally {
+            lock.unlock();
+        }
+        return result;
+    }
+
+    /**
+     * 停止派发线程，等待派发的邮件留在队列中
+     */
+    void close() {
+        Thread thread;
+        synchronized (this) {
+            closed = true;
+            thread = dispatcher;
+        }
+        if (thread != null){
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * 接收放行的邮件
+     */
+    interface Dispatcher {
+
+        /**
+         * @param task 邮件
+         * @param mailSender 已经拿到发送权限的账号
+         */
+        void dispatch(MailTask task, MailSender mailSender);
+    }
+
+    /**
+     * 账号的队列，在派发锁内访问
+     */
+    private static final class Lane {
+
+        /**
+         * 已分配给账号的邮件，保留路由条件，转给其他账号时检查
+         */
+        final ArrayDeque<Pending> queue = new ArrayDeque<>();
+
+        MailSender mailSender;
+
+        RateLimit rateLimit;
+
+        /**
+         * 账号是否仍在快照中
+         */
+        boolean present;
+
+        /**
+         * 账号预计恢复发送的时间
+         */
+        long readyAt;
+
+        boolean ready(long now) {
+            return present && readyAt <= now && !mailSender.isPaused();
+        }
+
+        /**
+         * 账号的发送速率（每毫秒），限流器不支持窗口统计时视为相同
+         */
+        double weight() {
+            if (rateLimit == null || rateLimit.windowLimit() <= 0 || rateLimit.windowMillis() <= 0){
+                return 1.0;
+            }
+            return (double) rateLimit.windowLimit() / rateLimit.windowMillis();
+        }
+    }
+
+    private static final class Pending {
+
+        final MailTask task;
+
+        final Predicate<MailSender> preferred;
+
+        Pending(MailTask task, Predicate<MailSender> preferred) {
+            this.task = task;
+            this.preferred = preferred;
+        }
+    }
+
+    private static final class Grant {
+
+        final MailTask task;
+
+        final MailSender mailSender;
+
+        Grant(MailTask task, MailSender mailSender) {
+            this.task = task;
+            this.mailSender = mailSender;
+        }
+    }
+}
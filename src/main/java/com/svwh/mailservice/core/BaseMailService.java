@@ -1,18 +1,54 @@
 package com.svwh.mailservice.core;
 
+import com.svwh.mailservice.attachment.AttachmentStore;
+import com.svwh.mailservice.attachment.MappedFileDataSource;
+import com.svwh.mailservice.attachment.StoredAttachment;
+import com.svwh.mailservice.dkim.MailDkimSigner;
+import com.svwh.mailservice.enums.MailEventTypeEnum;
+import com.svwh.mailservice.listener.MailEvent;
+import com.svwh.mailservice.listener.MailEventBus;
 import com.svwh.mailservice.listener.MailServiceListener;
+import com.svwh.mailservice.mail.Attachment;
 import com.svwh.mailservice.mail.HtmlMail;
 import com.svwh.mailservice.mail.Mail;
 import com.svwh.mailservice.mail.MailSender;
+import com.svwh.mailservice.mail.RecipientValidator;
 import com.svwh.mailservice.mail.TextMail;
+import com.svwh.mailservice.threadpool.MailThreadPoolFactory;
+import com.svwh.mailservice.transport.JavaMailTransport;
+import com.svwh.mailservice.transport.MailTransport;
 import org.apache.commons.mail.DefaultAuthenticator;
+import org.apache.commons.mail.Email;
 import org.apache.commons.mail.EmailException;
 import org.apache.commons.mail.HtmlEmail;
+import org.apache.commons.mail.MultiPartEmail;
 import org.apache.commons.mail.SimpleEmail;
 
 import org.slf4j.LoggerFactory;
 
+import javax.mail.MessagingException;
 import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
 import java.util.concurrent.locks.ReentrantLock;
 
 
@@ -36,28 +72,159 @@ public abstract class BaseMailService implements MailService{
 
     private final ReentrantLock lock = new ReentrantLock();
 
+    /**
+     * 预热账号的最大并行数
+     */
+    private static final int MAX_WARM_UP_THREADS = 8;
+
     /**
      * 邮件服务监听器
      */
     private MailServiceListener mailServiceListener;
 
+    /**
+     * 异步事件总线（可选），设置后监听器在分发线程中按批执行，不再占用发送线程
+     */
+    private MailEventBus mailEventBus;
+
+    /**
+     * 附件存储（可选），相同内容的附件只编码一次
+     */
+    private AttachmentStore attachmentStore;
+
+    /**
+     * 收件人解析与校验（可选），设置后收件人在接收邮件时就被解析，发送时直接使用解析结果
+     */
+    private RecipientValidator recipientValidator;
+
+    /**
+     * DKIM签名（可选），设置后邮件在交给传输层之前签名
+     */
+    private MailDkimSigner dkimSigner;
+
+    /**
+     * 邮件传输层（默认为javax.mail阻塞投递）
+     */
+    private MailTransport mailTransport = new JavaMailTransport();
+
     @Override
     public abstract boolean send(Mail mail);
 
 
+    /**
+     * 同步发送邮件，发送完成（成功或失败）后才返回
+     */
     protected void doSendMail(Mail mail,MailSender mailSender) throws AddressException,EmailException {
+        try {
+            doSendMailAsync(mail, mailSender).join();
+        } catch (CompletionException e) {
+            Throwable cause = unwrap(e);
+            if (cause instanceof EmailException){
+                throw (EmailException) cause;
+            }
+            if (cause instanceof RuntimeException){
+                throw (RuntimeException) cause;
+            }
+            throw new EmailException(cause);
+        }
+    }
+
+    /**
+     * 异步发送邮件：构建邮件后交给传输层投递
+     * 投递失败时以 {@link EmailException}（账号或服务器问题）或其他运行时异常结束
+     *
+     * @param mail 邮件
+     * @param mailSender 发件账号
+     * @return 发送结果
+     */
+    protected CompletableFuture<Void> doSendMailAsync(Mail mail, MailSender mailSender) {
+        return doSendMailAsync(mail, mailSender, 0);
+    }
+
+    /**
+     * 异步发送邮件
+     *
+     * @param mail 邮件
+     * @param mailSender 发件账号
+     * @param attempts 邮件已尝试发送的次数，记录在发送成功的事件中
+     * @return 发送结果
+     */
+    protected CompletableFuture<Void> doSendMailAsync(Mail mail, MailSender mailSender, int attempts) {
+        PreparedMail preparedMail;
+        try {
+            preparedMail = prepareMail(mail, mailSender);
+        } catch (EmailException | RuntimeException e) {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        if (preparedMail == null){
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        if (dkimSigner != null){
+            try {
+                dkimSigner.sign(preparedMail.message, mail, mailSender);
+            } catch (MessagingException | IOException | GeneralSecurityException | RuntimeException e) {
+                preparedMail.release();
+                // 签名失败与邮箱账号无关，不能当作账号不可用处理，重发也不会成功
+                result.completeExceptionally(new MailBuildException("failed to sign mail with dkim", e));
+                return result;
+            }
+        }
+        CompletableFuture<Void> sending;
+        try {
+            sending = mailTransport.send(mailSender, preparedMail.message);
+        } catch (RuntimeException e) {
+            preparedMail.release();
+            result.completeExceptionally(e);
+            return result;
+        }
+        sending.whenComplete((v, e) -> {
+            preparedMail.release();
+            if (e != null){
+                Throwable cause = unwrap(e);
+                // SMTP层面的错误统一转换为EmailException，由发送方按账号不可用处理
+                result.completeExceptionally(cause instanceof MessagingException || cause instanceof IOException
+                        ? new EmailException(cause) : cause);
+                return;
+            }
+            // 邮件发送成功看是否有监听器需要执行。
+            publishEvent(new MailEvent(MailEventTypeEnum.SENT, mail, mailSender, null, attempts));
+            result.complete(null);
+        });
+        return result;
+    }
+
+    protected static Throwable unwrap(Throwable e) {
+        while ((e instanceof CompletionException || e instanceof ExecutionException) && e.getCause() != null) {
+            e = e.getCause();
+        }
+        return e;
+    }
+
+    /**
+     * 构建待投递的邮件
+     * @return 构建好的邮件，不支持的邮件类型返回null
+     */
+    private PreparedMail prepareMail(Mail mail, MailSender mailSender) throws EmailException {
+        MultiPartEmail multiPartEmail;
         if (mail instanceof HtmlMail){
-            sendHtmlMail(mailSender,mail);
+            multiPartEmail = htmlEmail(mailSender, mail);
         } else if (mail instanceof TextMail) {
-            sendTextMail(mailSender,mail);
-        }
-        // 邮件发送成功看是否有监听器需要执行。
-        if (mailServiceListener != null ){
-            mailServiceListener.successListener(mail,mailSender);
+            if (!mail.hasAttachments()){
+                SimpleEmail email = textEmail(mailSender, mail);
+                email.buildMimeMessage();
+                return new PreparedMail(email.getMimeMessage(), Collections.emptyList());
+            }
+            multiPartEmail = multiPartEmail(mailSender, mail);
+        } else {
+            return null;
         }
+        return buildWithAttachments(multiPartEmail, mailSender, mail);
     }
 
-    private void sendHtmlMail(MailSender mailSender,Mail mail) throws EmailException {
+    private HtmlEmail htmlEmail(MailSender mailSender,Mail mail) throws EmailException {
             HtmlEmail email = new HtmlEmail();
             email.setHostName(mailSender.getHostName());
             email.setAuthenticator(new DefaultAuthenticator(mailSender.getUsername(), mailSender.getPassword()));
@@ -66,13 +233,11 @@ public abstract class BaseMailService implements MailService{
             email.setFrom(mailSender.getFromSender());
             email.setSubject(mail.getSubject());
             email.setHtmlMsg(mail.getContent());
-            for (String address : mail.getToMail()) {
-                email.addTo(address);
-            }
-            email.send();
+            addRecipients(email, mail);
+            return email;
     }
 
-    private void sendTextMail(MailSender mailSender,Mail mail) throws EmailException {
+    private SimpleEmail textEmail(MailSender mailSender,Mail mail) throws EmailException {
             SimpleEmail email = new SimpleEmail();
             email.setHostName(mailSender.getHostName());
             email.setAuthenticator(new DefaultAuthenticator(mailSender.getUsername(), mailSender.getPassword()));
@@ -80,10 +245,189 @@ public abstract class BaseMailService implements MailService{
             email.setFrom(mailSender.getUsername());
             email.setContent(mail.getContent(), "text/plain;charset=UTF-8");
             email.setSubject(mail.getSubject());
-            for (String address : mail.getToMail()) {
-                email.addTo(address);
+            addRecipients(email, mail);
+            return email;
+    }
+
+    /**
+     * 带附件的文本邮件
+     */
+    private MultiPartEmail multiPartEmail(MailSender mailSender,Mail mail) throws EmailException {
+            MultiPartEmail email = new MultiPartEmail();
+            email.setHostName(mailSender.getHostName());
+            email.setAuthenticator(new DefaultAuthenticator(mailSender.getUsername(), mailSender.getPassword()));
+            email.setSSLOnConnect(mailSender.getSslEnable());
+            email.setCharset(mailSender.getDefaultEncoding());
+            email.setFrom(mailSender.getUsername());
+            email.setSubject(mail.getSubject());
+            email.setMsg(mail.getContent());
+            addRecipients(email, mail);
+            return email;
+    }
+
+    /**
+     * 添加收件人：优先使用接收邮件时解析好的地址（拆分后的邮件从缓存中重新取得），没有时再逐个解析
+     */
+    private void addRecipients(Email email, Mail mail) throws EmailException {
+        InternetAddress[] addresses = mail.getRecipientAddresses();
+        if (addresses == null && recipientValidator != null && recipientValidator.validate(mail).isEmpty()){
+            addresses = mail.getRecipientAddresses();
+        }
+        if (addresses != null){
+            email.setTo(Arrays.asList(addresses));
+            return;
+        }
+        for (String address : mail.getToMail()) {
+            email.addTo(address);
+        }
+    }
+
+    /**
+     * 接收邮件时校验收件人，非法的收件人在占用名额和线程之前被去掉
+     * @param mail 邮件
+     * @return 收件人都合法的邮件（部分非法时为去掉非法收件人的副本），全部非法时返回null
+     */
+    protected Mail validateRecipients(Mail mail) {
+        if (recipientValidator == null){
+            return mail;
+        }
+        List<String> invalid = recipientValidator.validate(mail);
+        if (invalid.isEmpty()){
+            return mail;
+        }
+        Logger.warn("非法的目的邮箱地址：{}!", invalid);
+        List<String> valid = new ArrayList<>(mail.getToMail());
+        valid.removeAll(invalid);
+        if (valid.isEmpty()){
+            publishEvent(new MailEvent(MailEventTypeEnum.DROPPED, mail, null,
+                    new AddressException("Illegal address", String.valueOf(invalid)), 0));
+            return null;
+        }
+        Mail validMail = mail.copy(valid);
+        recipientValidator.validate(validMail);
+        return validMail;
+    }
+
+    /**
+     * 添加附件并构建邮件，附件内容在真正写入SMTP连接时才会从数据源中流式读取
+     * 开启附件存储时，相同内容的附件只编码一次，之后直接引用编码结果
+     */
+    private PreparedMail buildWithAttachments(MultiPartEmail email, MailSender mailSender, Mail mail) throws EmailException {
+        if (!mail.hasAttachments()){
+            email.buildMimeMessage();
+            return new PreparedMail(email.getMimeMessage(), Collections.emptyList());
+        }
+        if (attachmentStore == null){
+            for (Attachment attachment : mail.getAttachments()) {
+                // 文件附件在写入SMTP连接时才读取，先检查文件是否可读，避免读取失败被当作账号或服务器的问题
+                if (attachment.getDataSource() instanceof MappedFileDataSource
+                        && !Files.isReadable(((MappedFileDataSource) attachment.getDataSource()).getPath())){
+                    throw new MailBuildException("failed to read attachment: " + attachment.getName(),
+                            new NoSuchFileException(((MappedFileDataSource) attachment.getDataSource()).getPath().toString()));
+                }
+                email.attach(attachment.getDataSource(), attachment.getName(), null);
+            }
+            email.buildMimeMessage();
+            return new PreparedMail(email.getMimeMessage(), Collections.emptyList());
+        }
+        List<StoredAttachment> storedAttachments = new ArrayList<>(mail.getAttachments().size());
+        try {
+            email.setBoolHasAttachments(true);
+            email.buildMimeMessage();
+            MimeMultipart container = (MimeMultipart) email.getMimeMessage().getContent();
+            for (Attachment attachment : mail.getAttachments()) {
+                StoredAttachment storedAttachment = attachmentStore.acquire(attachment);
+                storedAttachments.add(storedAttachment);
+                container.addBodyPart(storedAttachment.newBodyPart(attachment, mailSender.getDefaultEncoding()));
+            }
+            return new PreparedMail(email.getMimeMessage(), storedAttachments);
+        } catch (IOException e) {
+            releaseAll(storedAttachments);
+            // 附件读取失败与邮箱账号无关，不能当作账号不可用处理，重发也不会成功
+            throw new MailBuildException("failed to read attachment", e);
+        } catch (MessagingException e) {
+            releaseAll(storedAttachments);
+            throw new EmailException(e);
+        }
+    }
+
+    private static void releaseAll(List<StoredAttachment> storedAttachments) {
+        for (StoredAttachment storedAttachment : storedAttachments) {
+            storedAttachment.close();
+        }
+    }
+
+    /**
+     * 并行预热发件账号：每个账号建立连接并完成认证，支持连接复用的传输层同时预先建立空闲连接
+     *
+     * @param mailSenders 发件账号
+     * @param sessions 每个账号预先建立的连接数
+     * @param timeout 整个预热过程的最长时间（毫秒）
+     * @return 预热失败（包括超时）的账号及原因
+     */
+    protected Map<MailSender, Throwable> warmUpAccounts(List<MailSender> mailSenders, int sessions, long timeout) {
+        Map<MailSender, Throwable> failures = new LinkedHashMap<>();
+        if (mailSenders.isEmpty()){
+            return failures;
+        }
+        // javax.mail的检查是阻塞的，使用临时线程池并行执行
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(mailSenders.size(), MAX_WARM_UP_THREADS),
+                new MailThreadPoolFactory());
+        try {
+            Map<MailSender, CompletableFuture<Void>> futures = new LinkedHashMap<>();
+            for (MailSender mailSender : mailSenders) {
+                futures.put(mailSender, CompletableFuture
+                        .supplyAsync(() -> mailTransport.warmUp(mailSender, sessions), executor)
+                        .thenCompose(Function.identity()));
             }
-            email.send();
+            long deadline = System.currentTimeMillis() + timeout;
+            for (Map.Entry<MailSender, CompletableFuture<Void>> entry : futures.entrySet()) {
+                try {
+                    entry.getValue().get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                } catch (ExecutionException e) {
+                    failures.put(entry.getKey(), unwrap(e));
+                } catch (TimeoutException e) {
+                    failures.put(entry.getKey(), e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+        return failures;
+    }
+
+    /**
+     * 设置邮件传输层
+     * @param mailTransport 传输层
+     */
+    public void setMailTransport(MailTransport mailTransport) {
+        this.mailTransport = mailTransport;
+    }
+
+    /**
+     * 设置收件人解析与校验
+     * @param recipientValidator 收件人校验器
+     */
+    public void setRecipientValidator(RecipientValidator recipientValidator) {
+        this.recipientValidator = recipientValidator;
+    }
+
+    /**
+     * 设置附件存储
+     * @param attachmentStore 附件存储
+     */
+    public void setAttachmentStore(AttachmentStore attachmentStore) {
+        this.attachmentStore = attachmentStore;
+    }
+
+    /**
+     * 设置DKIM签名
+     * @param dkimSigner DKIM签名
+     */
+    public void setDkimSigner(MailDkimSigner dkimSigner) {
+        this.dkimSigner = dkimSigner;
     }
 
     @Override
@@ -91,6 +435,42 @@ public abstract class BaseMailService implements MailService{
         this.mailServiceListener = mailServiceListener;
     }
 
+    /**
+     * 设置异步事件总线
+     * @param mailEventBus 事件总线
+     */
+    public void setMailEventBus(MailEventBus mailEventBus) {
+        this.mailEventBus = mailEventBus;
+    }
+
+    /**
+     * 通知监听器：配置了事件总线时异步分发，否则在当前线程直接通知
+     * @param event 事件
+     */
+    protected void publishEvent(MailEvent event) {
+        if (mailEventBus != null){
+            mailEventBus.publish(event);
+            return;
+        }
+        if (mailServiceListener != null){
+            try {
+                mailServiceListener.onEvent(event);
+            } catch (RuntimeException e) {
+                Logger.error("邮件服务监听器处理事件 {} 时发生了错误", event.getType(), e);
+            }
+        }
+    }
+
+    /**
+     * 关闭事件总线，通知完缓冲区中剩余的事件
+     * @param timeout 最长等待时间（毫秒）
+     */
+    protected void closeEventBus(long timeout) {
+        if (mailEventBus != null){
+            mailEventBus.close(timeout);
+        }
+    }
+
     /**
      * 邮箱服务预警，当服务不可用时所触发的动作（包括所有邮箱账号不可用）
      */
@@ -101,18 +481,40 @@ public abstract class BaseMailService implements MailService{
         if (currentTime - errorTriggerSleepTime < DEFAULT_WARN_DURATION){
             return;
         }
+        boolean trigger = false;
         lock.lock();
         try {
             if (currentTime - errorTriggerSleepTime >= DEFAULT_WARN_DURATION){
                 errorTriggerSleepTime = currentTime;
-                Logger.warn("邮箱服务资源即已经耗尽!");
-                if (mailServiceListener != null){
-                    mailServiceListener.errorListener();
-                }
+                trigger = true;
             }
         }finally {
             lock.unlock();
         }
+        // 监听器在锁外通知，慢监听器不会阻塞其他判断预警的线程
+        if (trigger){
+            Logger.warn("邮箱服务资源即已经耗尽!");
+            publishEvent(new MailEvent(MailEventTypeEnum.RESOURCE_EXHAUSTED, null, null, null, 0));
+        }
+
+    }
 
+    /**
+     * 构建好的邮件以及投递完成后需要释放的附件引用
+     */
+    private static final class PreparedMail {
+
+        private final MimeMessage message;
+
+        private final List<StoredAttachment> storedAttachments;
+
+        PreparedMail(MimeMessage message, List<StoredAttachment> storedAttachments) {
+            this.message = message;
+            this.storedAttachments = storedAttachments;
+        }
+
+        void release() {
+            releaseAll(storedAttachments);
+        }
     }
 }
@@ -0,0 +1,656 @@
+package com.svwh.mailservice.core;
+
+import com.svwh.mailservice.mail.Mail;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @description 定时邮件的磁盘索引
+ *  定时邮件按发送时间分桶追加写入磁盘，每个桶是一个只追加的文件，堆上只保留桶的开始时间。
+ *  桶的开始时间到达后加载线程才扫描该桶，只把每封邮件的发送时间和文件位置（一个long）放入内存中的优先队列，
+ *  邮件内容在到期时按位置读出，再按批交给邮件服务的正常发送流程；数百万封未到期的邮件既不占用堆内存也不占用调度线程。
+ *  已投递的记录位置追加到桶的 .done 文件，重启后跳过；桶投递完并且时间已过后删除。
+ *  每次追加后都会刷盘；读写时线程被中断会关闭文件（ClosedByInterruptException），此时重新打开文件，记录按未保存或未投递处理。
+ * @Author cxk
+ */
+public class DelayedMailStore implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DelayedMailStore.class);
+
+    /**
+     * 文件头："MSD" + 版本号
+     */
+    private static final int MAGIC = 0x4D534401;
+
+    private static final int HEADER_SIZE = 4;
+
+    /**
+     * 记录头：记录内容的长度（int）+ 发送时间（long）
+     */
+    private static final int RECORD_HEADER_SIZE = 12;
+
+    private static final String BUCKET_PREFIX = "delay-";
+
+    private static final String BUCKET_SUFFIX = ".dat";
+
+    private static final String DONE_SUFFIX = ".done";
+
+    /**
+     * 内存中的一条记录：低40位是文件位置，高位是桶内的相对发送时间
+     */
+    private static final int OFFSET_BITS = 40;
+
+    private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+
+    /**
+     * 桶的最大长度（毫秒，约2.3小时）
+     */
+    public static final long MAX_BUCKET_MILLIS = (1L << (Long.SIZE - OFFSET_BITS - 1)) - 1;
+
+    /**
+     * 同时保持打开的桶文件数
+     */
+    private static final int MAX_OPEN_WRITERS = 16;
+
+    /**
+     * 文件读写失败后重试的间隔（毫秒）
+     */
+    private static final long RETRY_INTERVAL = 1000;
+
+    private final Path dir;
+
+    private final long bucketMillis;
+
+    private final int batchSize;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition changed = lock.newCondition();
+
+    /**
+     * 等待加载的桶的开始时间
+     */
+    private final TreeSet<Long> pending = new TreeSet<>();
+
+    /**
+     * 最近写入的桶文件，按访问顺序淘汰
+     */
+    private final LinkedHashMap<Long, FileChannel> writers = new LinkedHashMap<>(MAX_OPEN_WRITERS, 0.75f, true);
+
+    /**
+     * 正在投递的桶
+     */
+    private Bucket current;
+
+    private Thread loader;
+
+    private volatile boolean closed;
+
+    /**
+     * @param dir 存放定时邮件的目录，启动时加载目录中已有的桶
+     * @param bucketMillis 桶的长度（毫秒）
+     * @param batchSize 每批交给邮件服务的邮件数
+     */
+    public DelayedMailStore(Path dir, long bucketMillis, int batchSize) throws IOException {
+        if (bucketMillis <= 0 || bucketMillis > MAX_BUCKET_MILLIS){
+            throw new IllegalArgumentException("the bucket length must be between 1 and " + MAX_BUCKET_MILLIS + ": " + bucketMillis);
+        }
+        this.dir = dir;
+        this.bucketMillis = bucketMillis;
+        this.batchSize = Math.max(1, batchSize);
+        Files.createDirectories(dir);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, BUCKET_PREFIX + "*" + BUCKET_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    pending.add(Long.parseLong(name.substring(BUCKET_PREFIX.length(), name.length() - BUCKET_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    LOGGER.warn("忽略无法识别的定时邮件文件：{}", file);
+                }
+            }
+        }
+        if (!pending.isEmpty()){
+            LOGGER.info("已加载 {} 个定时邮件桶：{}", pending.size(), dir);
+        }
+    }
+
+    /**
+     * 保存一封定时邮件
+     * @param mail 邮件
+     * @param at 发送时间（毫秒时间戳）
+     */
+    public void schedule(Mail mail, long at) throws IOException {
+        schedule(mail, at, mail.getIdempotencyKey(), false);
+    }
+
+    /**
+     * 保存一封邮件
+     * @param mail 邮件
+     * @param at 发送时间（毫秒时间戳）
+     * @param dedupKey 去重使用的键，拆分后的邮件是原来的键加上序号
+     * @param routed 邮件是否已经过路由拆分，投递时原样交给 {@link Handler}
+     */
+    void schedule(Mail mail, long at, String dedupKey, boolean routed) throws IOException {
+        ByteBuffer record = record(mail, at, dedupKey, routed);
+        long bucket = Math.floorDiv(at, bucketMillis) * bucketMillis;
+        lock.lock();
+        try {
+            if (closed){
+                throw new IOException("the delayed mail store is closed");
+            }
+            if (current != null && bucket <= current.start){
+                // 桶已经在投递中（或者发送时间已过），追加到当前桶并直接加入待投递队列
+                long offset = Long.MAX_VALUE;
+                try {
+                    offset = current.channel.size();
+                    append(current.channel, record, offset);
+                } catch (ClosedByInterruptException e) {
+                    current.channel = reopen(current.file, offset, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                    throw e;
+                }
+                current.add(at, offset);
+            }else {
+                FileChannel channel = writer(bucket);
+                long offset = Long.MAX_VALUE;
+                try {
+                    offset = channel.size();
+                    append(channel, record, offset);
+                } catch (ClosedByInterruptException e) {
+                    writers.remove(bucket);
+                    reopen(bucketFile(bucket), offset, StandardOpenOption.WRITE).close();
+                    throw e;
+                }
+                pending.add(bucket);
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 编码一条记录：记录头之后是邮件
+     */
+    private static ByteBuffer record(Mail mail, long at, String dedupKey, boolean routed) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);
+        out.writeLong(at);
+        MailQueueSnapshot.writeMail(out, mail, 0, dedupKey, routed);
+        out.flush();
+        ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+        record.putInt(0, record.remaining() - RECORD_HEADER_SIZE);
+        return record;
+    }
+
+    /**
+     * 启动加载线程（可重复调用）
+     * @param handler 把到期的邮件交给邮件服务
+     */
+    public void start(Handler handler) {
+        lock.lock();
+        try {
+            if (loader != null || closed){
+                return;
+            }
+            loader = new Thread(() -> load(handler), "mail-delay-loader");
+            loader.setDaemon(true);
+            loader.start();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void load(Handler handler) {
+        long[] batch = new long[batchSize];
+        while (!closed) {
+            try {
+                Bucket bucket;
+                int count;
+                lock.lockInterruptibly();
+                try {
+                    bucket = awaitDue();
+                    count = bucket.pollDue(batch, System.currentTimeMillis());
+                } finally {
+                    lock.unlock();
+                }
+                if (!deliver(bucket, batch, count, handler)){
+                    break;
+                }
+            } catch (InterruptedException e) {
+                break;
+            } catch (IOException e) {
+                LOGGER.error("定时邮件文件读写失败，稍后重试", e);
+                try {
+                    Thread.sleep(Math.min(bucketMillis, RETRY_INTERVAL));
+                } catch (InterruptedException interrupted) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * 等待到有到期的邮件，需要时加载下一个桶、删除已投递完的桶（持有锁时调用）
+     */
+    private Bucket awaitDue() throws InterruptedException, IOException {
+        while (true) {
+            if (closed){
+                throw new InterruptedException();
+            }
+            long now = System.currentTimeMillis();
+            if (current == null){
+                if (pending.isEmpty()){
+                    changed.await();
+                }else if (pending.first() > now){
+                    changed.await(pending.first() - now, TimeUnit.MILLISECONDS);
+                }else {
+                    long start = pending.pollFirst();
+                    try {
+                        current = open(start);
+                    } catch (IOException e) {
+                        LOGGER.error("加载定时邮件桶失败，该桶将在下次启动时重新加载：{}", bucketFile(start), e);
+                    }
+                }
+                continue;
+            }
+            long due = current.nextDue();
+            if (due <= now){
+                return current;
+            }
+            if (due == Long.MAX_VALUE && now >= current.start + bucketMillis){
+                // 桶已投递完并且不会再有新的邮件写入
+                current.delete();
+                current = null;
+                continue;
+            }
+            changed.await(Math.min(due, current.start + bucketMillis) - now, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 投递一批到期的邮件，已投递的记录位置写入 .done 文件，没有投递的放回队列
+     * @return 邮件服务是否仍在接收邮件
+     */
+    private boolean deliver(Bucket bucket, long[] batch, int count, Handler handler) throws InterruptedException, IOException {
+        ByteBuffer delivered = ByteBuffer.allocate(count * Long.BYTES);
+        int i = 0;
+        boolean accepting = true;
+        try {
+            for (; i < count; i++) {
+                long offset = batch[i] & OFFSET_MASK;
+                MailQueueSnapshot.RestoredMail mail;
+                try {
+                    mail = bucket.read(offset);
+                } catch (ClosedByInterruptException e) {
+                    // 读取时被中断（服务关闭）而不是记录损坏，记录放回队列
+                    bucket.channel = reopen(bucket.file, Long.MAX_VALUE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                    throw new InterruptedException();
+                } catch (IOException e) {
+                    LOGGER.error("定时邮件记录已损坏，跳过：{}@{}", bucket.file, offset, e);
+                    delivered.putLong(offset);
+                    continue;
+                }
+                if (!handler.deliver(mail.mail, mail.dedupKey, mail.routed)){
+                    accepting = false;
+                    break;
+                }
+                delivered.putLong(offset);
+            }
+        } finally {
+            delivered.flip();
+            // 关闭服务时加载线程被中断，写入 .done 文件前暂时清除中断标记，避免文件被关闭
+            boolean interrupted = Thread.interrupted();
+            try {
+                markDone(bucket, delivered);
+            } finally {
+                if (interrupted){
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (i < count){
+                lock.lock();
+                try {
+                    for (int j = i; j < count; j++) {
+                        bucket.entries.add(batch[j]);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+        return accepting;
+    }
+
+    /**
+     * 记录已投递邮件的位置；写入失败时这些邮件下次启动会重新投递（宁可重复也不丢失）
+     */
+    private void markDone(Bucket bucket, ByteBuffer delivered) throws IOException {
+        if (!delivered.hasRemaining()){
+            return;
+        }
+        long size = bucket.done.size();
+        try {
+            while (delivered.hasRemaining()) {
+                bucket.done.write(delivered);
+            }
+            bucket.done.force(false);
+        } catch (ClosedByInterruptException e) {
+            bucket.done = reopen(doneFile(bucket.start), size, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            throw e;
+        }
+    }
+
+    private FileChannel writer(long bucket) throws IOException {
+        FileChannel channel = writers.get(bucket);
+        if (channel != null){
+            return channel;
+        }
+        channel = FileChannel.open(bucketFile(bucket), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        writeHeader(channel);
+        writers.put(bucket, channel);
+        if (writers.size() > MAX_OPEN_WRITERS){
+            Iterator<FileChannel> eldest = writers.values().iterator();
+            eldest.next().close();
+            eldest.remove();
+        }
+        return channel;
+    }
+
+    /**
+     * 打开一个到期的桶：扫描记录，跳过已投递的，只把发送时间和位置放入内存
+     */
+    private Bucket open(long start) throws IOException {
+        FileChannel writer = writers.remove(start);
+        if (writer != null){
+            writer.close();
+        }
+        Path file = bucketFile(start);
+        Path doneFile = doneFile(start);
+        Set<Long> delivered = new HashSet<>();
+        if (Files.exists(doneFile)){
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(doneFile)))) {
+                for (long i = Files.size(doneFile) / Long.BYTES; i > 0; i--) {
+                    delivered.add(in.readLong());
+                }
+            }
+        }
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        writeHeader(channel);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(channel, header, 0);
+        if (header.getInt(0) != MAGIC){
+            channel.close();
+            throw new IOException("not a delayed mail bucket: " + file);
+        }
+        Bucket bucket = new Bucket(start, file, channel, FileChannel.open(doneFile,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND));
+        long size = channel.size();
+        long offset = HEADER_SIZE;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            in.skipBytes(HEADER_SIZE);
+            while (offset + RECORD_HEADER_SIZE <= size) {
+                int length = in.readInt();
+                long at = in.readLong();
+                if (length < 0 || offset + RECORD_HEADER_SIZE + length > size){
+                    break;
+                }
+                in.skipBytes(length);
+                if (!delivered.contains(offset)){
+                    bucket.add(at, offset);
+                }
+                offset += RECORD_HEADER_SIZE + length;
+            }
+        } catch (EOFException e) {
+            // 文件在扫描过程中被截断，按已扫描到的位置处理
+        }
+        if (offset < size){
+            // 宕机时写到一半的记录，截掉后新的记录才能被重新扫描到
+            LOGGER.warn("定时邮件桶 {} 的末尾有不完整的记录，已截断 {} 字节", file, size - offset);
+            channel.truncate(offset);
+        }
+        LOGGER.debug("已加载定时邮件桶 {}，待投递 {} 封", file, bucket.entries.size());
+        return bucket;
+    }
+
+    private static void writeHeader(FileChannel channel) throws IOException {
+        if (channel.size() == 0){
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).flip();
+            write(channel, header, 0);
+        }
+    }
+
+    /**
+     * 追加记录并刷盘
+     */
+    private static void append(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        write(channel, buffer, position);
+        channel.force(false);
+    }
+
+    /**
+     * 重新打开被中断关闭的文件，截掉写了一半的内容；打开期间暂时清除中断标记
+     * @param length 文件应有的长度，超出的部分被截掉
+     */
+    private static FileChannel reopen(Path file, long length, OpenOption... options) throws IOException {
+        boolean interrupted = Thread.interrupted();
+        try {
+            FileChannel channel = FileChannel.open(file, options);
+            if (channel.size() > length){
+                channel.truncate(length);
+            }
+            return channel;
+        } finally {
+            if (interrupted){
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        buffer.rewind();
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0){
+                throw new EOFException();
+            }
+            position += read;
+        }
+    }
+
+    private Path bucketFile(long start) {
+        return dir.resolve(BUCKET_PREFIX + start + BUCKET_SUFFIX);
+    }
+
+    private Path doneFile(long start) {
+        return dir.resolve(BUCKET_PREFIX + start + DONE_SUFFIX);
+    }
+
+    /**
+     * @return 等待加载的桶数（不含正在投递的桶）
+     */
+    public int pendingBuckets() {
+        lock.lock();
+        try {
+            return pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return 正在投递的桶中尚未投递的邮件数
+     */
+    public int loadedMails() {
+        lock.lock();
+        try {
+            return current == null ? 0 : current.entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Path getDir() {
+        return dir;
+    }
+
+    /**
+     * 停止加载线程并关闭文件，未投递的邮件留在磁盘上，下次启动时继续投递
+     */
+    @Override
+    public void close() {
+        Thread thread;
+        lock.lock();
+        try {
+            if (closed){
+                return;
+            }
+            closed = true;
+            thread = loader;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (thread != null){
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        lock.lock();
+        try {
+            for (FileChannel channel : writers.values()) {
+                closeQuietly(channel);
+            }
+            writers.clear();
+            if (current != null){
+                closeQuietly(current.channel);
+                closeQuietly(current.done);
+                current = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.warn("关闭定时邮件文件失败", e);
+        }
+    }
+
+    /**
+     * 把到期的邮件交给邮件服务
+     */
+    public interface Handler {
+
+        /**
+         * @param mail 到期的邮件
+         * @param dedupKey 去重使用的键，邮件没有幂等键时为null
+         * @param routed 邮件是否已经过路由拆分（不需要再拆分）
+         * @return 邮件是否已被处理，邮件服务不再接收邮件时返回false（邮件留在磁盘上）
+         * @throws InterruptedException 等待名额时被中断
+         */
+        boolean deliver(Mail mail, String dedupKey, boolean routed) throws InterruptedException;
+    }
+
+    /**
+     * 正在投递的桶，除文件读写外都在锁内访问
+     */
+    private final class Bucket {
+
+        final long start;
+
+        final Path file;
+
+        /**
+         * 被中断关闭后会重新打开
+         */
+        FileChannel channel;
+
+        FileChannel done;
+
+        /**
+         * 待投递的记录，按发送时间排序
+         */
+        final PriorityQueue<Long> entries = new PriorityQueue<>();
+
+        Bucket(long start, Path file, FileChannel channel, FileChannel done) {
+            this.start = start;
+            this.file = file;
+            this.channel = channel;
+            this.done = done;
+        }
+
+        void add(long at, long offset) {
+            long relative = Math.min(Math.max(0, at - start), MAX_BUCKET_MILLIS);
+            entries.add(relative << OFFSET_BITS | offset);
+        }
+
+        long nextDue() {
+            Long entry = entries.peek();
+            return entry == null ? Long.MAX_VALUE : start + (entry >>> OFFSET_BITS);
+        }
+
+        int pollDue(long[] batch, long now) {
+            int count = 0;
+            while (count < batch.length && nextDue() <= now) {
+                batch[count++] = entries.poll();
+            }
+            return count;
+        }
+
+        MailQueueSnapshot.RestoredMail read(long offset) throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            readFully(channel, header, offset);
+            ByteBuffer body = ByteBuffer.allocate(header.getInt(0));
+            readFully(channel, body, offset + RECORD_HEADER_SIZE);
+            return MailQueueSnapshot.readMail(new DataInputStream(new ByteArrayInputStream(body.array())));
+        }
+
+        void delete() throws IOException {
+            channel.close();
+            done.close();
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(doneFile(start));
+        }
+    }
+}
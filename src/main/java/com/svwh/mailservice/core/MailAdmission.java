@@ -0,0 +1,304 @@
+package com.svwh.mailservice.core;
+
+import com.svwh.mailservice.attachment.ByteBufferDataSource;
+import com.svwh.mailservice.mail.Attachment;
+import com.svwh.mailservice.mail.Mail;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @description 邮件准入控制
+ *  邮件在被接收的时刻就占用名额，直到最终发送成功或被放弃时才归还（等待重发的严格到达邮件始终占用名额），
+ *  名额同时按邮件数量和邮件占用的内存大小进行限制，服务过载时内存占用有上限，调用方的等待时间也是可预期的。
+ *  两个信号量都是公平的，大邮件不会被源源不断的小邮件饿死。
+ *  开启多租户隔离时先占用邮件所属租户的名额，单个租户最多只能占用自己的那一部分全局名额。
+ *  路由拆分后的邮件每一部分都是一个单独的发送任务，各占用一个邮件数名额（内存和租户名额按原邮件计算一次），
+ *  因此邮件数名额不超过线程池队列容量时，已接收的邮件不会被线程池拒绝。
+ * @Author cxk
+ */
+public class MailAdmission {
+
+    /**
+     * 内存名额的计量单位（字节）
+     */
+    private static final int UNIT_BYTES = 1024;
+
+    private final int maxTasks;
+
+    private final int maxUnits;
+
+    private final Semaphore taskPermits;
+
+    private final Semaphore unitPermits;
+
+    /**
+     * 名额用完后由调用方线程直接发送的邮件数名额，与接收名额分开计算
+     */
+    private final int maxCallerTasks;
+
+    private final Semaphore callerPermits;
+
+    /**
+     * @param maxTasks 最多同时接收的邮件数
+     * @param maxBytes 接收的邮件最多占用的内存（字节）
+     */
+    public MailAdmission(int maxTasks, long maxBytes) {
+        this(maxTasks, maxBytes, maxTasks);
+    }
+
+    /**
+     * @param maxTasks 最多同时接收的邮件数
+     * @param maxBytes 接收的邮件最多占用的内存（字节）
+     * @param maxCallerTasks 名额用完后最多同时由调用方线程直接发送的邮件数
+     */
+    public MailAdmission(int maxTasks, long maxBytes, int maxCallerTasks) {
+        if (maxTasks <= 0 || maxBytes <= 0){
+            throw new IllegalArgumentException("the maxTaskNum and maxTaskBytes must be positive");
+        }
+        this.maxTasks = maxTasks;
+        this.maxUnits = (int) Math.min(Integer.MAX_VALUE, Math.max(1, maxBytes / UNIT_BYTES));
+        this.taskPermits = new Semaphore(maxTasks, true);
+        this.unitPermits = new Semaphore(maxUnits, true);
+        this.maxCallerTasks = Math.max(1, maxCallerTasks);
+        this.callerPermits = new Semaphore(this.maxCallerTasks, true);
+    }
+
+    /**
+     * 在超时时间内尝试接收邮件
+     *
+     * @param mail 邮件
+     * @param timeout 最长等待时间，小于等于0时不等待
+     * @param unit 时间单位
+     * @return 接收成功返回占用的名额，超时返回null
+     */
+    public Permit tryAcquire(Mail mail, long timeout, TimeUnit unit) throws InterruptedException {
+        return tryAcquire(mail, null, timeout, unit);
+    }
+
+    /**
+     * 在超时时间内尝试接收邮件，先占用邮件所属租户的名额再占用全局名额
+     *
+     * @param mail 邮件
+     * @param quota 租户的名额，为null时只占用全局名额
+     * @param timeout 最长等待时间，小于等于0时不等待
+     * @param unit 时间单位
+     * @return 接收成功返回占用的名额，超时返回null
+     */
+    public Permit tryAcquire(Mail mail, Semaphore quota, long timeout, TimeUnit unit) throws InterruptedException {
+        return tryAcquire(mail, 1, quota, timeout, unit);
+    }
+
+    /**
+     * 在超时时间内尝试接收拆分成多个部分的邮件，每一部分占用一个邮件数名额
+     *
+     * @param mail 邮件
+     * @param parts 拆分后的部分数
+     * @param quota 租户的名额，为null时只占用全局名额
+     * @param timeout 最长等待时间，小于等于0时不等待
+     * @param unit 时间单位
+     * @return 接收成功返回占用的名额，超时返回null
+     */
+    public Permit tryAcquire(Mail mail, int parts, Semaphore quota, long timeout, TimeUnit unit) throws InterruptedException {
+        int units = units(mail);
+        int tasks = tasks(parts);
+        long deadline = System.nanoTime() + unit.toNanos(Math.max(0, timeout));
+        if (quota != null && !quota.tryAcquire(Math.max(0, timeout), unit)){
+            return null;
+        }
+        boolean acquired = false;
+        try {
+            if (taskPermits.tryAcquire(tasks, Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)){
+                try {
+                    acquired = unitPermits.tryAcquire(units, Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                } finally {
+                    if (!acquired){
+                        taskPermits.release(tasks);
+                    }
+                }
+            }
+        } finally {
+            if (!acquired && quota != null){
+                quota.release();
+            }
+        }
+        return acquired ? new Permit(taskPermits, units, quota, parts, tasks) : null;
+    }
+
+    /**
+     * 名额用完后由调用方线程直接发送邮件：在超时时间内占用租户名额和调用方发送名额（不占用内存名额，邮件由调用方持有）
+     *
+     * @param mail 邮件
+     * @param parts 拆分后的部分数
+     * @param quota 租户的名额，为null时只占用调用方发送名额
+     * @param timeout 最长等待时间，小于等于0时不等待
+     * @param unit 时间单位
+     * @return 占用的名额，超时返回null
+     */
+    public Permit tryAcquireCaller(Mail mail, int parts, Semaphore quota, long timeout, TimeUnit unit) throws InterruptedException {
+        int tasks = Math.min(maxCallerTasks, Math.max(1, parts));
+        long deadline = System.nanoTime() + unit.toNanos(Math.max(0, timeout));
+        if (quota != null && !quota.tryAcquire(Math.max(0, timeout), unit)){
+            return null;
+        }
+        boolean acquired = false;
+        try {
+            acquired = callerPermits.tryAcquire(tasks, Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } finally {
+            if (!acquired && quota != null){
+                quota.release();
+            }
+        }
+        return acquired ? new Permit(callerPermits, 0, quota, parts, tasks) : null;
+    }
+
+    /**
+     * 接收邮件，名额不足时一直等待
+     *
+     * @param mail 邮件
+     * @return 占用的名额
+     */
+    public Permit acquire(Mail mail) throws InterruptedException {
+        return acquire(mail, null);
+    }
+
+    /**
+     * 接收邮件，租户名额或全局名额不足时一直等待
+     *
+     * @param mail 邮件
+     * @param quota 租户的名额，为null时只占用全局名额
+     * @return 占用的名额
+     */
+    public Permit acquire(Mail mail, Semaphore quota) throws InterruptedException {
+        return acquire(mail, 1, quota);
+    }
+
+    /**
+     * 接收拆分成多个部分的邮件，每一部分占用一个邮件数名额，名额不足时一直等待
+     *
+     * @param mail 邮件
+     * @param parts 拆分后的部分数
+     * @param quota 租户的名额，为null时只占用全局名额
+     * @return 占用的名额
+     */
+    public Permit acquire(Mail mail, int parts, Semaphore quota) throws InterruptedException {
+        int units = units(mail);
+        int tasks = tasks(parts);
+        if (quota != null){
+            quota.acquire();
+        }
+        boolean acquired = false;
+        try {
+            taskPermits.acquire(tasks);
+            try {
+                unitPermits.acquire(units);
+                acquired = true;
+            } finally {
+                if (!acquired){
+                    taskPermits.release(tasks);
+                }
+            }
+        } finally {
+            if (!acquired && quota != null){
+                quota.release();
+            }
+        }
+        return new Permit(taskPermits, units, quota, parts, tasks);
+    }
+
+    /**
+     * 拆分后的部分占用的邮件数名额，最多占用全部名额，保证拆分成很多部分的邮件在空闲时依然能被接收
+     */
+    private int tasks(int parts) {
+        return Math.min(maxTasks, Math.max(1, parts));
+    }
+
+    /**
+     * @return 已接收但尚未完成的邮件数（拆分后的每一部分单独计算）
+     */
+    public int acceptedTasks() {
+        return maxTasks - taskPermits.availablePermits();
+    }
+
+    /**
+     * @return 邮件数名额是否已用完
+     */
+    public boolean isFull() {
+        return taskPermits.availablePermits() <= 0;
+    }
+
+    /**
+     * 估算邮件占用的内存：正文按UTF-16计算，附件只计算在内存中的数据（文件附件在发送时从磁盘流式读取）
+     * 单封邮件最多按全部内存名额计算，保证超大的邮件在空闲时依然能被接收
+     */
+    private int units(Mail mail) {
+        long bytes = 2L * (length(mail.getSubject()) + length(mail.getContent()));
+        if (mail.hasAttachments()){
+            for (Attachment attachment : mail.getAttachments()) {
+                if (attachment.getDataSource() instanceof ByteBufferDataSource){
+                    bytes += ((ByteBufferDataSource) attachment.getDataSource()).size();
+                }
+            }
+        }
+        return (int) Math.min(maxUnits, Math.max(1, (bytes + UNIT_BYTES - 1) / UNIT_BYTES));
+    }
+
+    private static int length(String value) {
+        return value == null ? 0 : value.length();
+    }
+
+    /**
+     * 邮件占用的名额：每个部分完成时归还一个邮件数名额，所有部分都完成时归还内存和租户名额
+     */
+    public final class Permit {
+
+        /**
+         * 邮件数名额所在的信号量（接收名额或者调用方发送名额）
+         */
+        private final Semaphore taskSemaphore;
+
+        private final int units;
+
+        /**
+         * 租户的名额，没有时为null
+         */
+        private final Semaphore quota;
+
+        /**
+         * 尚未完成的部分数
+         */
+        private final AtomicInteger parts;
+
+        /**
+         * 占用的邮件数名额，部分数超过全部名额时少于部分数，最后完成的这些部分才归还
+         */
+        private final int tasks;
+
+        private Permit(Semaphore taskSemaphore, int units, Semaphore quota, int parts, int tasks) {
+            this.taskSemaphore = taskSemaphore;
+            this.units = units;
+            this.quota = quota;
+            this.parts = new AtomicInteger(Math.max(1, parts));
+            this.tasks = tasks;
+        }
+
+        /**
+         * 归还名额（每个部分调用一次）
+         */
+        public void release() {
+            int remaining = parts.decrementAndGet();
+            if (remaining < tasks){
+                taskSemaphore.release();
+            }
+            if (remaining == 0){
+                if (units > 0){
+                    unitPermits.release(units);
+                }
+                if (quota != null){
+                    quota.release();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package com.svwh.mailservice.core;
+
+/**
+ * @description 邮件无法构建（例如DKIM签名失败、附件读取失败），与邮箱账号无关，重发也不会成功，邮件直接放弃
+ * @Author cxk
+ */
+public class MailBuildException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public MailBuildException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,212 @@
+package com.svwh.mailservice.core;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @description 邮件幂等键的去重缓存
+ *  键按加入的时间分桶，每个桶覆盖 ttl / buckets 的时间，整桶过期时一次性删除桶中的键，不需要逐个检查过期时间。
+ *  缓存有上限，超出时从最旧的桶开始淘汰：先淘汰已发送且从未遇到重复提交的键，
+ *  再淘汰其他已发送的键，最后才淘汰仍在发送中的键（重复提交越多的键越晚被淘汰）。
+ *  查询无锁，过期和淘汰由一个线程在加入键时顺带完成。
+ * @Author cxk
+ */
+public class MailDedupCache {
+
+    private static final int CLAIMED = 0;
+
+    private static final int DELIVERED = 1;
+
+    private final long bucketMillis;
+
+    private final int buckets;
+
+    private final int maxSize;
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * 桶编号与桶中的键
+     */
+    private final ConcurrentSkipListMap<Long, Queue<String>> bucketKeys = new ConcurrentSkipListMap<>();
+
+    private final ReentrantLock maintainLock = new ReentrantLock();
+
+    /**
+     * 已经完成过期检查的桶编号
+     */
+    private volatile long expiredBefore;
+
+    /**
+     * @param ttl 键的有效期（毫秒）
+     * @param buckets 有效期划分的桶数
+     * @param maxSize 最多保存的键数
+     */
+    public MailDedupCache(long ttl, int buckets, int maxSize) {
+        this.buckets = Math.max(1, buckets);
+        this.bucketMillis = Math.max(1, ttl / this.buckets);
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * 占用幂等键
+     * @param key 幂等键
+     * @return 键原来不存在（邮件可以发送）时返回true，重复提交时返回false
+     */
+    public boolean claim(String key) {
+        return put(key, CLAIMED);
+    }
+
+    /**
+     * 标记键对应的邮件已经发送（或者可能已经发送），之后的重复提交和重发都会被跳过
+     * @param key 幂等键
+     */
+    public void delivered(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null){
+            entry.state = DELIVERED;
+            return;
+        }
+        put(key, DELIVERED);
+    }
+
+    /**
+     * @param key 幂等键
+     * @return 键对应的邮件是否已经发送
+     */
+    public boolean isDelivered(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null || expired(entry)){
+            return false;
+        }
+        if (entry.state == DELIVERED){
+            entry.hits.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 释放幂等键（邮件被放弃或者没有被接收），之后可以用同一个键重新提交
+     * @param key 幂等键
+     */
+    public void release(String key) {
+        entries.remove(key);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private boolean put(String key, int state) {
+        long bucket = System.currentTimeMillis() / bucketMillis;
+        Entry entry = new Entry(bucket, state);
+        Entry previous = entries.putIfAbsent(key, entry);
+        if (previous != null){
+            if (!expired(previous)){
+                previous.hits.incrementAndGet();
+                if (state == DELIVERED){
+                    previous.state = DELIVERED;
+                }
+                return false;
+            }
+            // 已过期但还没有被清理的键直接替换
+            if (!entries.replace(key, previous, entry)){
+                return put(key, state);
+            }
+        }
+        bucketKeys.computeIfAbsent(bucket, id -> new ConcurrentLinkedQueue<>()).add(key);
+        maintain(bucket);
+        return true;
+    }
+
+    private boolean expired(Entry entry) {
+        return entry.bucket <= System.currentTimeMillis() / bucketMillis - buckets;
+    }
+
+    /**
+     * 删除过期的桶，超出上限时淘汰键；只由一个线程执行，其他线程直接返回
+     */
+    private void maintain(long currentBucket) {
+        long oldestAlive = currentBucket - buckets + 1;
+        if (oldestAlive <= expiredBefore && entries.size() <= maxSize){
+            return;
+        }
+        if (!maintainLock.tryLock()){
+            return;
+        }
+        try {
+            Map.Entry<Long, Queue<String>> oldest;
+            while ((oldest = bucketKeys.firstEntry()) != null && oldest.getKey() < oldestAlive) {
+                for (String key : oldest.getValue()) {
+                    Entry entry = entries.get(key);
+                    if (entry != null && entry.bucket == oldest.getKey()){
+                        entries.remove(key, entry);
+                    }
+                }
+                bucketKeys.remove(oldest.getKey());
+            }
+            expiredBefore = oldestAlive;
+            if (entries.size() > maxSize){
+                evict(true, true);
+                evict(true, false);
+                evict(false, false);
+            }
+        } finally {
+            maintainLock.unlock();
+        }
+    }
+
+    /**
+     * 从最旧的桶开始淘汰，直到不超过上限
+     * @param deliveredOnly 只淘汰已发送的键
+     * @param unrepeatedOnly 只淘汰没有遇到过重复提交的键
+     */
+    private void evict(boolean deliveredOnly, boolean unrepeatedOnly) {
+        for (Map.Entry<Long, Queue<String>> bucket : bucketKeys.entrySet()) {
+            Iterator<String> iterator = bucket.getValue().iterator();
+            while (iterator.hasNext()) {
+                if (entries.size() <= maxSize){
+                    return;
+                }
+                String key = iterator.next();
+                Entry entry = entries.get(key);
+                if (entry == null || entry.bucket != bucket.getKey()){
+                    iterator.remove();
+                    continue;
+                }
+                if ((deliveredOnly && entry.state != DELIVERED) || (unrepeatedOnly && entry.hits.get() > 0)){
+                    continue;
+                }
+                entries.remove(key, entry);
+                iterator.remove();
+            }
+        }
+    }
+
+    private static final class Entry {
+
+        /**
+         * 加入时所在的桶
+         */
+        final long bucket;
+
+        volatile int state;
+
+        /**
+         * 遇到重复提交（或重发前命中）的次数
+         */
+        final AtomicInteger hits = new AtomicInteger();
+
+        Entry(long bucket, int state) {
+            this.bucket = bucket;
+            this.state = state;
+        }
+    }
+}
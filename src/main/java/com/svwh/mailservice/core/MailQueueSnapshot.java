@@ -0,0 +1,252 @@
+package com.svwh.mailservice.core;
+
+import com.svwh.mailservice.attachment.MappedFileDataSource;
+import com.svwh.mailservice.mail.Attachment;
+import com.svwh.mailservice.mail.HtmlMail;
+import com.svwh.mailservice.mail.Mail;
+import com.svwh.mailservice.mail.TextMail;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * @description 未发送邮件的磁盘快照
+ *  服务关闭时把仍未发送的邮件（连同是否严格到达、已尝试次数）写入一个紧凑的二进制文件，下次启动时读回重新投递。
+ *  文件先写入临时文件再原子替换，写到一半宕机不会留下损坏的快照；文件附件只记录路径，内存附件内联保存。
+ * @Author cxk
+ */
+public class MailQueueSnapshot {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MailQueueSnapshot.class);
+
+    /**
+     * 文件头："MSQ" + 版本号
+     */
+    private static final int MAGIC = 0x4D535101;
+
+    private static final byte TYPE_MAIL = 0;
+
+    private static final byte TYPE_HTML = 1;
+
+    private static final byte TYPE_TEXT = 2;
+
+    private static final byte ATTACHMENT_FILE = 0;
+
+    private static final byte ATTACHMENT_INLINE = 1;
+
+    private final Path file;
+
+    public MailQueueSnapshot(Path file) {
+        this.file = file;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * 保存未发送的邮件，没有邮件时删除旧的快照
+     */
+    void save(List<MailTask> tasks) throws IOException {
+        if (tasks.isEmpty()){
+            Files.deleteIfExists(file);
+            return;
+        }
+        if (file.getParent() != null){
+            Files.createDirectories(file.getParent());
+        }
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(tasks.size());
+            for (MailTask task : tasks) {
+                // 快照中的邮件都已经过路由拆分，恢复时不再拆分
+                writeMail(out, task.mail, task.attempts, task.dedupKey, true);
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * 读取快照中的邮件，严格到达的邮件排在前面，同一优先级内保持原有顺序
+     */
+    List<RestoredMail> load() throws IOException {
+        if (!Files.isRegularFile(file)){
+            return Collections.emptyList();
+        }
+        List<RestoredMail> mails = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            int magic = in.readInt();
+            if (magic != MAGIC){
+                throw new IOException("not a mail queue snapshot: " + file);
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                mails.add(readMail(in));
+            }
+        }
+        mails.sort(Comparator.comparing((RestoredMail restored) -> !restored.mail.getStrictArrive()));
+        return mails;
+    }
+
+    /**
+     * 快照中的邮件都已重新投递后删除快照
+     */
+    void delete() {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            LOGGER.warn("删除邮件快照失败：{}", file, e);
+        }
+    }
+
+    /**
+     * 编码一封邮件（快照、定时邮件和过载日志共用）
+     * @param dedupKey 去重使用的键，拆分后的邮件是原来的键加上序号
+     * @param routed 邮件是否已经过路由拆分
+     */
+    static void writeMail(DataOutputStream out, Mail mail, int attempts, String dedupKey, boolean routed) throws IOException {
+        out.writeByte(mail instanceof HtmlMail ? TYPE_HTML : mail instanceof TextMail ? TYPE_TEXT : TYPE_MAIL);
+        out.writeBoolean(Boolean.TRUE.equals(mail.getStrictArrive()));
+        out.writeInt(attempts);
+        writeString(out, mail.getIdempotencyKey());
+        writeString(out, mail.getTenant());
+        writeString(out, mail.getDigestCategory());
+        out.writeBoolean(routed);
+        writeString(out, dedupKey);
+        writeString(out, mail.getSubject());
+        writeString(out, mail.getContent());
+        List<String> toMail = mail.getToMail() == null ? Collections.emptyList() : mail.getToMail();
+        out.writeInt(toMail.size());
+        for (String address : toMail) {
+            writeString(out, address);
+        }
+        List<Attachment> attachments = mail.hasAttachments() ? mail.getAttachments() : Collections.emptyList();
+        out.writeInt(attachments.size());
+        for (Attachment attachment : attachments) {
+            writeString(out, attachment.getName());
+            writeString(out, attachment.getContentType());
+            if (attachment.getDataSource() instanceof MappedFileDataSource){
+                out.writeByte(ATTACHMENT_FILE);
+                writeString(out, ((MappedFileDataSource) attachment.getDataSource()).getPath().toString());
+            }else {
+                out.writeByte(ATTACHMENT_INLINE);
+                writeBytes(out, attachment);
+            }
+        }
+    }
+
+    /**
+     * 解码一封邮件
+     */
+    static RestoredMail readMail(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        Mail mail = type == TYPE_HTML ? new HtmlMail() : type == TYPE_TEXT ? new TextMail() : new Mail();
+        mail.setStrictArrive(in.readBoolean());
+        int attempts = in.readInt();
+        mail.setIdempotencyKey(readString(in));
+        mail.setTenant(readString(in));
+        mail.setDigestCategory(readString(in));
+        boolean routed = in.readBoolean();
+        String dedupKey = readString(in);
+        mail.setSubject(readString(in));
+        mail.setContent(readString(in));
+        int toCount = in.readInt();
+        List<String> toMail = new ArrayList<>(toCount);
+        for (int i = 0; i < toCount; i++) {
+            toMail.add(readString(in));
+        }
+        mail.setToMail(toMail);
+        int attachmentCount = in.readInt();
+        for (int i = 0; i < attachmentCount; i++) {
+            String name = readString(in);
+            String contentType = readString(in);
+            if (in.readByte() == ATTACHMENT_FILE){
+                Path path = Paths.get(readString(in));
+                mail.addAttachment(new Attachment(name, contentType, new MappedFileDataSource(path, name, contentType)));
+            }else {
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                mail.addAttachment(Attachment.ofBuffer(name, ByteBuffer.wrap(data), contentType));
+            }
+        }
+        return new RestoredMail(mail, attempts, dedupKey, routed);
+    }
+
+    private static void writeBytes(DataOutputStream out, Attachment attachment) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try (InputStream in = attachment.getDataSource().getInputStream()) {
+            byte[] chunk = new byte[8192];
+            int read;
+            while ((read = in.read(chunk)) != -1) {
+                buffer.write(chunk, 0, read);
+            }
+        }
+        out.writeInt(buffer.size());
+        buffer.writeTo(out);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null){
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0){
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 从快照中恢复的邮件
+     */
+    static final class RestoredMail {
+
+        final Mail mail;
+
+        final int attempts;
+
+        /**
+         * 去重使用的键，邮件没有幂等键时为null
+         */
+        final String dedupKey;
+
+        /**
+         * 邮件是否已经过路由拆分，是则直接使用 dedupKey 投递，不再拆分
+         */
+        final boolean routed;
+
+        RestoredMail(Mail mail, int attempts, String dedupKey, boolean routed) {
+            this.mail = mail;
+            this.attempts = attempts;
+            this.dedupKey = dedupKey;
+            this.routed = routed;
+        }
+    }
+}
@@ -2,6 +2,10 @@ package com.svwh.mailservice.core;
 
 import com.svwh.mailservice.listener.MailServiceListener;
 import com.svwh.mailservice.mail.Mail;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
 /**
  * @description
  * @Author cxk
@@ -14,12 +18,38 @@ public interface MailService {
     void start();
 
     /**
-     * 发送邮件服务
+     * 发送邮件服务，名额不足时普通邮件不等待（交给过载策略，拒绝时返回false）；
+     * 严格到达的邮件不会被拒绝，会一直等待名额（可能长时间阻塞调用方，需要限定等待时间时使用 {@link #trySend}）
      * @param mail 邮件任务
      * @return 发送邮件是否成功
      */
     boolean send(Mail mail);
 
+    /**
+     * 发送邮件，名额不足时最多等待指定的时间
+     * @param mail 邮件任务
+     * @param timeout 最长等待时间
+     * @param unit 时间单位
+     * @return 邮件是否被接收
+     * @throws InterruptedException 等待时被中断
+     */
+    boolean trySend(Mail mail, long timeout, TimeUnit unit) throws InterruptedException;
+
+    /**
+     * 发送邮件，名额不足时一直等待直到邮件被接收
+     * @param mail 邮件任务
+     * @throws InterruptedException 等待时被中断
+     */
+    void sendBlocking(Mail mail) throws InterruptedException;
+
+    /**
+     * 定时发送邮件，邮件先保存到磁盘，到期后再进入正常的发送流程
+     * @param mail 邮件任务
+     * @param at 发送时间，已过去的时间立即发送
+     * @return 邮件是否被接收
+     */
+    boolean sendAt(Mail mail, Instant at);
+
     /**
      * 关闭整个发送邮件的任务
      */
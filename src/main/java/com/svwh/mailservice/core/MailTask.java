@@ -0,0 +1,55 @@
+package com.svwh.mailservice.core;
+
+import com.svwh.mailservice.mail.Mail;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @description 发送中的邮件任务：邮件以及它占用的准入名额
+ * @Author cxk
+ */
+final class MailTask {
+
+    /**
+     * 邮件编号的序列，以启动时间开头保证重启后的编号不与之前重复
+     */
+    private static final AtomicLong SEQUENCE = new AtomicLong(System.currentTimeMillis() << 20);
+
+    /**
+     * 邮件编号，重发时保持不变
+     */
+    final long id = SEQUENCE.incrementAndGet();
+
+    final Mail mail;
+
+    /**
+     * 占用的准入名额，不占用名额的邮件（由调用方线程直接发送的、关闭时只用于保存快照的）为null
+     */
+    final MailAdmission.Permit permit;
+
+    /**
+     * 去重使用的幂等键，邮件没有幂等键时为null；路由拆分后的邮件在原来的键后加上序号
+     */
+    final String dedupKey;
+
+    /**
+     * 已尝试发送的次数（不含当前这次）
+     */
+    volatile int attempts;
+
+    MailTask(Mail mail, MailAdmission.Permit permit, int attempts, String dedupKey) {
+        this.mail = mail;
+        this.permit = permit;
+        this.dedupKey = dedupKey;
+        this.attempts = attempts;
+    }
+
+    /**
+     * 邮件最终完成（成功或被放弃），归还名额
+     */
+    void complete() {
+        if (permit != null){
+            permit.release();
+        }
+    }
+}
@@ -1,11 +1,26 @@
 package com.svwh.mailservice.core;
 
 import com.svwh.mailservice.algrothim.RateLimitExecutor;
+import com.svwh.mailservice.audit.SendLog;
 import com.svwh.mailservice.conf.MailProperties;
 import com.svwh.mailservice.conf.MailServiceProperties;
+import com.svwh.mailservice.digest.MailDigester;
+import com.svwh.mailservice.enums.MailEventTypeEnum;
+import com.svwh.mailservice.enums.OverloadStageEnum;
+import com.svwh.mailservice.listener.MailEvent;
 import com.svwh.mailservice.mail.Mail;
 
 import com.svwh.mailservice.mail.MailSender;
+import com.svwh.mailservice.monitor.MailAccountStats;
+import com.svwh.mailservice.monitor.MailServiceMetrics;
+import com.svwh.mailservice.overload.MailOverload;
+import com.svwh.mailservice.overload.MailOverloadPolicy;
+import com.svwh.mailservice.overload.ShedOverloadPolicy;
+import com.svwh.mailservice.route.MailRouter;
+import com.svwh.mailservice.suppression.SuppressionList;
+import com.svwh.mailservice.threadpool.MailPoolSizer;
+import com.svwh.mailservice.transport.DeliveryUncertainException;
+import com.svwh.mailservice.transport.SmtpReplyCodes;
 import com.svwh.mailservice.util.ParamAssert;
 
 import org.apache.commons.mail.EmailException;
@@ -14,8 +29,20 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.mail.internet.AddressException;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  *
@@ -34,144 +61,1466 @@ public class StandAloneMailService extends BaseMailService {
     private static final Logger Logger = LoggerFactory.getLogger(StandAloneMailService.class);
 
     /**
-     * 默认的邮件队列大小
+     * 默认的关闭等待时间
      */
-    private static final int  MAIL_QUEUE_SIZE = 5000;
+    private static final long DEFAULT_DRAIN_TIMEOUT = 10000;
 
     /**
-     * 最大可发送邮件任务的数量（可被严格模式打破）
+     * 关闭时等待事件总线通知完剩余事件的最短时间
      */
-    private final AtomicInteger maxMailTaskNum;
+    private static final long MIN_EVENT_DRAIN_TIMEOUT = 1000;
+
+    /**
+     * 等待线程池队列空出位置时每次持有读锁的最长时间（纳秒）
+     */
+    private static final long ENQUEUE_SLICE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    /**
+     * 应用调用发送方法期间为true；执行环节过载时只有应用的调用线程可以直接发送，内部线程（派发、加载、合并线程）不能被发送阻塞
+     */
+    private static final ThreadLocal<Boolean> APPLICATION_CALL = new ThreadLocal<>();
+
+    /**
+     * 邮件准入控制，接收邮件时占用名额，邮件最终完成时归还
+     */
+    private final MailAdmission mailAdmission;
 
     /**
      * 邮件严格到达队列消费者线程
      */
     private Thread consumerMailThread;
 
-    /**
-     * 当所有邮箱账号不可用时消费者线程需要睡眠的时间
-     */
-    private final long threadSleepTime;
+    /**
+     * 当所有邮箱账号不可用时消费者线程需要睡眠的时间
+     */
+    private final long threadSleepTime;
+
+    /**
+     * 限流执行器
+     */
+    private RateLimitExecutor rateLimitExecutor;
+
+    /**
+     * 线程池
+     */
+    private final ExecutorService threadPoolExecutor;
+
+    /**
+     * 向线程池提交邮件时持有读锁，执行环节丢弃最早的邮件时持有写锁，保证腾出的位置不会在替换前被其他邮件占用
+     */
+    private final ReentrantReadWriteLock executorLock = new ReentrantReadWriteLock();
+
+    /**
+     * 存储必达消息的队列，队列中的邮件依然占用准入名额，因此队列长度受准入控制约束
+     */
+    private final BlockingQueue<MailTask> mailQueue = new LinkedBlockingQueue<>();
+
+    /**
+     * 按收件人域名路由发件账号（可选）
+     */
+    private MailRouter mailRouter;
+
+    /**
+     * 关闭服务时保存未发送邮件的快照（可选），下次启动时恢复
+     */
+    private MailQueueSnapshot queueSnapshot;
+
+    /**
+     * 关闭服务时等待邮件发送完成的最长时间（毫秒）
+     */
+    private long drainTimeout = DEFAULT_DRAIN_TIMEOUT;
+
+    private final AtomicBoolean started = new AtomicBoolean(false);
+
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    private volatile boolean restored;
+
+    /**
+     * 启动时预热账号的配置，warmUpSessions小于0时不预热
+     */
+    private int warmUpSessions = -1;
+
+    private long warmUpTimeout;
+
+    private volatile boolean warmedUp;
+
+    private final MailProperties mailProperties;
+
+    /**
+     * 已交给传输层但尚未得到结果的邮件数
+     */
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /**
+     * 收件人抑制列表（可选），被抑制的收件人在接收邮件前被过滤
+     */
+    private SuppressionList suppressionList;
+
+    /**
+     * 发送日志（可选），记录每一次投递尝试
+     */
+    private SendLog sendLog;
+
+    /**
+     * 幂等键去重缓存（可选），同一个幂等键的邮件在有效期内只发送一次
+     */
+    private MailDedupCache dedupCache;
+
+    /**
+     * 多租户调度（可选），开启后邮件按租户排队并由派发线程按赤字轮询交给线程池
+     */
+    private TenantScheduler tenantScheduler;
+
+    /**
+     * 多租户派发线程
+     */
+    private Thread tenantDispatchThread;
+
+    /**
+     * 定时邮件的磁盘索引（可选）
+     */
+    private DelayedMailStore delayedMailStore;
+
+    /**
+     * 通知邮件合并（可选），设置了合并类别的邮件暂存后合并发送
+     */
+    private MailDigester mailDigester;
+
+    /**
+     * 关闭服务时在关闭等待时间内没有拿到名额的合并邮件，和其他未发送的邮件一起保存到快照
+     */
+    private final Queue<Mail> unsentDigests = new ConcurrentLinkedQueue<>();
+
+    /**
+     * 关闭等待时间的截止时间，关闭服务时设置
+     */
+    private volatile long drainDeadline;
+
+    /**
+     * 服务过载时非严格到达邮件的处理策略，默认拒绝并通知监听器
+     */
+    private MailOverloadPolicy overloadPolicy = new ShedOverloadPolicy();
+
+    /**
+     * 过载时写入邮件的磁盘日志（可选），名额空出后重新投递
+     */
+    private DelayedMailStore spillJournal;
+
+    /**
+     * 按账号分道发送（可选），开启后邮件先分配到账号的队列，按账号的限流器放行后再交给线程池
+     */
+    private AccountLanes accountLanes;
+
+    /**
+     * 发送线程池的自动调整（可选）
+     */
+    private MailPoolSizer poolSizer;
+
+    /**
+     * 按账号汇总的运行统计
+     */
+    private final MailServiceMetrics metrics = new MailServiceMetrics();
+
+
+    public StandAloneMailService(MailProperties mailProperties,
+                                 MailServiceProperties mailServiceProperties,
+                                 RateLimitExecutor rateLimitExecutor,
+                                 ThreadPoolExecutor threadPoolExecutor){
+        this.mailProperties = mailProperties;
+        this.threadSleepTime = mailServiceProperties.getSleepTime();
+        this.rateLimitExecutor = rateLimitExecutor;
+        // 已接收的邮件都会进入线程池队列，名额不超过线程池队列容量，避免邮件被线程池拒绝而丢失
+        // 名额用完后由调用方线程直接发送的邮件数不超过线程池的最大线程数
+        this.mailAdmission = new MailAdmission(Math.min(mailServiceProperties.getMaxTaskNum(),
+                mailServiceProperties.getMaxWorkCount()), mailServiceProperties.getMaxTaskBytes(),
+                threadPoolExecutor.getMaximumPoolSize());
+        // 配置线程池
+        this.threadPoolExecutor = threadPoolExecutor;
+        // 开启邮件发送服务
+        start();
+    }
+
+
+    /**
+     * 启动服务（可重复调用），配置了账号预热时先预热账号，配置了邮件快照时恢复上次关闭时未发送的邮件
+     */
+    @Override
+    public void start() {
+        if (started.compareAndSet(false, true)){
+            // 自启动缓冲区消费者
+            consumer();
+            // 启动限流执行器
+            rateLimitExecutor.start();
+            Logger.info("邮件发送服务启动成功！...");
+        }
+        tenantDispatcher();
+        if (accountLanes != null){
+            accountLanes.start(this::dispatchLane);
+        }
+        if (delayedMailStore != null){
+            // 定时邮件保存时没有拆分，到期时按新邮件重新过滤收件人、去重和拆分
+            delayedMailStore.start((mail, dedupKey, routed) -> deliverScheduled(mail));
+        }
+        if (spillJournal != null){
+            spillJournal.start(this::replaySpilled);
+        }
+        if (mailDigester != null){
+            mailDigester.start(this::acceptDigest);
+        }
+        if (poolSizer != null){
+            poolSizer.start(this::backlog);
+        }
+        warmUp();
+        restore();
+    }
+
+    /**
+     * 并行检查所有账号并预先建立已认证的连接，检查失败的账号在流量到来之前就被标记为不可用
+     */
+    private void warmUp() {
+        if (warmUpSessions < 0 || warmedUp){
+            return;
+        }
+        warmedUp = true;
+        List<MailSender> mailSenders = mailProperties.getMailInfos();
+        long start = System.currentTimeMillis();
+        Map<MailSender, Throwable> failures = warmUpAccounts(mailSenders, warmUpSessions, warmUpTimeout);
+        for (Map.Entry<MailSender, Throwable> failure : failures.entrySet()) {
+            rateLimitExecutor.markUnavailable(failure.getKey());
+            Logger.warn("邮箱账号:{} 预热失败，已标记为不可用：{}", failure.getKey().getUsername(),
+                    failure.getValue().toString());
+        }
+        Logger.info("邮箱账号预热完成，可用账号 {}/{}，耗时 {}ms", mailSenders.size() - failures.size(),
+                mailSenders.size(), System.currentTimeMillis() - start);
+    }
+
+    /**
+     * 恢复快照中的邮件，保留邮件的严格到达标记和已尝试次数
+     * 快照中的邮件数不会超过关闭前的名额，因此这里一般不会等待
+     */
+    private void restore() {
+        if (queueSnapshot == null || restored){
+            return;
+        }
+        restored = true;
+        List<MailQueueSnapshot.RestoredMail> mails;
+        try {
+            mails = queueSnapshot.load();
+        } catch (IOException e) {
+            Logger.error("读取邮件快照失败：{}", queueSnapshot.getFile(), e);
+            return;
+        }
+        if (mails.isEmpty()){
+            return;
+        }
+        try {
+            for (MailQueueSnapshot.RestoredMail restoredMail : mails) {
+                // 恢复的邮件在关闭前已经被接收过，只需重新占用幂等键
+                if (dedupCache != null && restoredMail.mail.getIdempotencyKey() != null){
+                    dedupCache.claim(restoredMail.mail.getIdempotencyKey());
+                }
+                readmit(restoredMail.mail, restoredMail.dedupKey, restoredMail.routed, restoredMail.attempts);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Logger.warn("恢复邮件快照被中断，快照将在下次启动时重新恢复");
+            return;
+        }
+        queueSnapshot.delete();
+        Logger.info("已从快照中恢复 {} 封未发送的邮件", mails.size());
+    }
+
+    /**
+     * 发送邮件，名额不足时普通邮件直接返回false，严格到达的邮件等待名额
+     */
+    @Override
+    public boolean send(Mail mail) {
+        boolean nested = enterApplicationCall();
+        try {
+            return submit(mail);
+        } finally {
+            exitApplicationCall(nested);
+        }
+    }
+
+    private boolean submit(Mail mail) {
+        // 在外层调用可方便调用端捕捉异常
+        checkParameter(mail);
+        if (closed.get()){
+            return false;
+        }
+        mail = filterRecipients(mail);
+        if (mail == null){
+            return false;
+        }
+        if (!claimKey(mail)){
+            return true;
+        }
+        boolean accepted = false;
+        try {
+            accepted = accept(mail);
+            return accepted;
+        } finally {
+            if (!accepted){
+                releaseKey(mail);
+            }
+        }
+    }
+
+    /**
+     * 接收已通过校验的邮件
+     * @return 邮件是否被接收
+     */
+    private boolean accept(Mail mail) {
+        if (hold(mail)){
+            return true;
+        }
+        if (mail.getStrictArrive()) {
+            // 严格到达的邮件不能被丢弃，名额不足时等待其他邮件完成
+            try {
+                admitBlocking(mail, 0);
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        // 所有账号都不可用时普通邮件直接拒绝，这里不进行报警触发防止因报警阻塞而造成的业务线程阻塞
+        if (rateLimitExecutor.isAllLimited()) {
+            return false;
+        }
+        try {
+            return tryAdmit(mail, 0, TimeUnit.MILLISECONDS) || overloaded(mail);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    @Override
+    public boolean trySend(Mail mail, long timeout, TimeUnit unit) throws InterruptedException {
+        boolean nested = enterApplicationCall();
+        try {
+            return trySubmit(mail, timeout, unit);
+        } finally {
+            exitApplicationCall(nested);
+        }
+    }
+
+    private boolean trySubmit(Mail mail, long timeout, TimeUnit unit) throws InterruptedException {
+        checkParameter(mail);
+        if (closed.get()){
+            return false;
+        }
+        mail = filterRecipients(mail);
+        if (mail == null){
+            return false;
+        }
+        if (!claimKey(mail)){
+            return true;
+        }
+        boolean accepted = false;
+        try {
+            accepted = hold(mail) || tryAdmit(mail, timeout, unit) || overloaded(mail);
+            return accepted;
+        } finally {
+            if (!accepted){
+                releaseKey(mail);
+            }
+        }
+    }
+
+    @Override
+    public void sendBlocking(Mail mail) throws InterruptedException {
+        boolean nested = enterApplicationCall();
+        try {
+            submitBlocking(mail);
+        } finally {
+            exitApplicationCall(nested);
+        }
+    }
+
+    /**
+     * 标记当前线程是应用的调用线程
+     * @return 当前线程是否已经被标记（嵌套调用）
+     */
+    private static boolean enterApplicationCall() {
+        if (APPLICATION_CALL.get() != null){
+            return true;
+        }
+        APPLICATION_CALL.set(Boolean.TRUE);
+        return false;
+    }
+
+    private static void exitApplicationCall(boolean nested) {
+        if (!nested){
+            APPLICATION_CALL.remove();
+        }
+    }
+
+    /**
+     * 接收邮件，名额不足时一直等待（应用调用和到期的定时邮件共用）
+     */
+    private void submitBlocking(Mail mail) throws InterruptedException {
+        checkParameter(mail);
+        if (closed.get()){
+            throw new IllegalStateException("the mail service is closed");
+        }
+        mail = filterRecipients(mail);
+        if (mail == null || !claimKey(mail)){
+            return;
+        }
+        boolean accepted = false;
+        try {
+            if (!hold(mail)){
+                admitBlocking(mail, 0);
+            }
+            accepted = true;
+        } finally {
+            if (!accepted){
+                releaseKey(mail);
+            }
+        }
+    }
+
+    /**
+     * 占用邮件的幂等键
+     * @return 邮件没有幂等键或者幂等键没有被占用时返回true，重复提交时返回false
+     */
+    private boolean claimKey(Mail mail) {
+        String key = mail.getIdempotencyKey();
+        if (dedupCache == null || key == null || dedupCache.claim(key)){
+            return true;
+        }
+        Logger.debug("幂等键 {} 的邮件已经提交过，本次提交被忽略", key);
+        return false;
+    }
+
+    /**
+     * 邮件没有被接收时释放幂等键，之后可以重新提交
+     */
+    private void releaseKey(Mail mail) {
+        if (dedupCache != null && mail.getIdempotencyKey() != null){
+            dedupCache.release(mail.getIdempotencyKey());
+        }
+    }
+
+    /**
+     * 邮件被最终放弃时释放幂等键；拆分后的邮件只放弃了一部分收件人，原来的键保持占用，避免其他部分被重复发送
+     */
+    private void releaseKey(MailTask task) {
+        if (task.dedupKey != null && task.dedupKey.equals(task.mail.getIdempotencyKey())){
+            releaseKey(task.mail);
+        }
+    }
+
+    /**
+     * 重发前检查邮件是否已经发送（或者可能已经发送），是则直接完成
+     * @return 邮件是否被跳过
+     */
+    private boolean skipDelivered(MailTask task) {
+        if (dedupCache == null || task.dedupKey == null || !dedupCache.isDelivered(task.dedupKey)){
+            return false;
+        }
+        Logger.debug("幂等键 {} 的邮件已经发送，不再重发", task.dedupKey);
+        task.complete();
+        return true;
+    }
+
+    /**
+     * 设置了合并类别的邮件交给合并器暂存，不占用名额
+     * @return 邮件是否被暂存
+     */
+    private boolean hold(Mail mail) {
+        return mailDigester != null && mail.getDigestCategory() != null && mailDigester.offer(mail);
+    }
+
+    /**
+     * 合并后的邮件进入发送流程：原邮件都已被接收，因此名额不足时等待而不是丢弃；
+     * 服务关闭时最多等到关闭等待时间结束，仍没有名额（或者等待被中断）的邮件保存到快照
+     */
+    private void acceptDigest(Mail mail) {
+        List<Mail> routedMails = route(mail);
+        MailAdmission.Permit permit;
+        try {
+            permit = closed.get()
+                    ? mailAdmission.tryAcquire(mail, routedMails.size(), tenantQuota(mail),
+                            Math.max(0, drainDeadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)
+                    : mailAdmission.acquire(mail, routedMails.size(), tenantQuota(mail));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            permit = null;
+        }
+        if (permit == null){
+            unsentDigests.offer(mail);
+            return;
+        }
+        admit(mail, routedMails, permit, 0);
+    }
+
+    /**
+     * 定时发送邮件：收件人在保存前校验，被抑制的收件人和幂等键在到期时检查
+     */
+    @Override
+    public boolean sendAt(Mail mail, Instant at) {
+        checkParameter(mail);
+        ParamAssert.notNull(at, "the delivery time is null");
+        if (closed.get()){
+            return false;
+        }
+        if (at.toEpochMilli() <= System.currentTimeMillis()){
+            return send(mail);
+        }
+        if (delayedMailStore == null){
+            throw new IllegalStateException("the scheduled delivery is not enabled");
+        }
+        mail = validateRecipients(mail);
+        if (mail == null){
+            return false;
+        }
+        try {
+            delayedMailStore.schedule(mail, at.toEpochMilli());
+            return true;
+        } catch (IOException e) {
+            Logger.error("保存定时邮件失败：{}", mail.getToMail(), e);
+            return false;
+        }
+    }
+
+    /**
+     * 到期的定时邮件进入正常的发送流程，名额不足时加载线程等待
+     * @return 邮件是否已被处理，服务关闭时返回false（邮件留在磁盘上，下次启动时投递）
+     */
+    private boolean deliverScheduled(Mail mail) throws InterruptedException {
+        if (closed.get()){
+            return false;
+        }
+        try {
+            submitBlocking(mail);
+            return true;
+        } catch (IllegalStateException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 去掉非法的和被抑制的收件人
+     * @return 过滤后的邮件，没有剩余收件人时返回null
+     */
+    private Mail filterRecipients(Mail mail) {
+        mail = validateRecipients(mail);
+        if (mail == null || suppressionList == null){
+            return mail;
+        }
+        List<String> retained = suppressionList.retain(mail.getToMail());
+        if (retained == null){
+            return mail;
+        }
+        if (retained.isEmpty()){
+            Logger.debug("收件人都在抑制列表中，邮件不再发送：{}", mail.getToMail());
+            publishEvent(new MailEvent(MailEventTypeEnum.DROPPED, mail, null, null, 0));
+            return null;
+        }
+        return mail.copy(retained);
+    }
+
+    private boolean tryAdmit(Mail mail, long timeout, TimeUnit unit) throws InterruptedException {
+        List<Mail> routedMails = route(mail);
+        MailAdmission.Permit permit = mailAdmission.tryAcquire(mail, routedMails.size(), tenantQuota(mail), timeout, unit);
+        if (permit == null){
+            return false;
+        }
+        admit(mail, routedMails, permit, 0);
+        return true;
+    }
+
+    /**
+     * 接收邮件，名额不足时一直等待
+     */
+    private void admitBlocking(Mail mail, int attempts) throws InterruptedException {
+        List<Mail> routedMails = route(mail);
+        admit(mail, routedMails, mailAdmission.acquire(mail, routedMails.size(), tenantQuota(mail)), attempts);
+    }
+
+    /**
+     * 开启路由时多收件人邮件按收件人的服务商拆分，拆分后的每一部分单独投递
+     */
+    private List<Mail> route(Mail mail) {
+        return mailRouter == null ? Collections.singletonList(mail) : mailRouter.split(mail);
+    }
+
+    /**
+     * 投递已接收的邮件，拆分后的每一部分各占用名额中的一个邮件数名额
+     */
+    private void admit(Mail mail, List<Mail> routedMails, MailAdmission.Permit permit, int attempts) {
+        String key = mail.getIdempotencyKey();
+        for (int i = 0; i < routedMails.size(); i++) {
+            sendMail(new MailTask(routedMails.get(i), permit, attempts, routedKey(key, routedMails.size(), i)));
+        }
+    }
+
+    /**
+     * 拆分后的每一部分单独记录是否已经发送，在原来的键后加上序号
+     */
+    private static String routedKey(String key, int parts, int index) {
+        return key == null || parts == 1 ? key : key + "#" + index;
+    }
+
+    /**
+     * 由调用方线程发送没有拿到名额的邮件：邮件不进入任何队列，占用租户名额和调用方发送名额（同时由调用方发送的邮件数有上限），
+     * 调用方在超时时间内等待发送结果，因此被减速。
+     * 超时只对非阻塞的传输层有效，默认的 JavaMail 传输层在调用方线程中完成整个SMTP会话后才返回
+     * @return 邮件是否被接收，没有可用账号或者在超时时间内拿不到调用方发送名额时返回false
+     */
+    private boolean sendInCaller(Mail mail, long timeout, TimeUnit unit) throws InterruptedException {
+        if (rateLimitExecutor.isAllLimited()){
+            return false;
+        }
+        List<Mail> routedMails = route(mail);
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        MailAdmission.Permit permit = mailAdmission.tryAcquireCaller(mail, routedMails.size(), tenantQuota(mail), timeout, unit);
+        if (permit == null){
+            return false;
+        }
+        List<MailSender> senders = new ArrayList<>(routedMails.size());
+        boolean available = false;
+        for (Mail routedMail : routedMails) {
+            MailSender sender = mailRouter == null ? rateLimitExecutor.availableAccount()
+                    : rateLimitExecutor.availableAccount(mailRouter.preferred(routedMail));
+            senders.add(sender);
+            available |= sender != null;
+        }
+        if (!available){
+            // 没有任何部分交给传输层，归还名额，由调用方决定如何处理
+            for (int i = 0; i < routedMails.size(); i++) {
+                permit.release();
+            }
+            return false;
+        }
+        String key = mail.getIdempotencyKey();
+        List<CompletableFuture<?>> results = new ArrayList<>(routedMails.size());
+        for (int i = 0; i < routedMails.size(); i++) {
+            MailTask task = new MailTask(routedMails.get(i), permit, 0, routedKey(key, routedMails.size(), i));
+            if (senders.get(i) == null){
+                // 这一部分没有可用账号，和工作线程中一样处理
+                retrySendEmail(task);
+                continue;
+            }
+            results.add(new MailWorker(task, null).deliver(task.mail, senders.get(i)));
+        }
+        try {
+            CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0]))
+                    .get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (ExecutionException | TimeoutException e) {
+            // 发送失败已在发送流程中处理，超时后邮件继续在后台投递
+        }
+        return true;
+    }
+
+    private void sendMail(MailTask task) {
+        // 线程池已关闭（服务正在关闭），邮件留在队列中等待保存快照
+        if (threadPoolExecutor.isShutdown()){
+            mailQueue.offer(task);
+            return;
+        }
+        if (tenantScheduler != null){
+            tenantScheduler.offer(task);
+            return;
+        }
+        dispatch(task);
+    }
+
+    /**
+     * 交给线程池，开启按账号分道发送时先进入账号的队列
+     */
+    private void dispatch(MailTask task) {
+        if (accountLanes != null){
+            accountLanes.offer(task, mailRouter == null ? null : mailRouter.preferred(task.mail));
+            return;
+        }
+        execute(new MailWorker(task, null));
+    }
+
+    /**
+     * 账号的队列放行了邮件，交给线程池使用已拿到发送权限的账号发送
+     */
+    private void dispatchLane(MailTask task, MailSender mailSender) {
+        execute(new MailWorker(task, mailSender));
+    }
+
+    /**
+     * 交给线程池执行，线程池拒绝时：服务正在关闭则邮件留在队列中等待保存快照，
+     * 严格到达的邮件由调用方等待线程池队列空出位置，其他邮件交给过载策略
+     */
+    private void execute(MailWorker worker) {
+        boolean accepted;
+        executorLock.readLock().lock();
+        try {
+            threadPoolExecutor.execute(worker);
+            accepted = true;
+        } catch (RejectedExecutionException e) {
+            accepted = false;
+        } finally {
+            executorLock.readLock().unlock();
+        }
+        if (!accepted){
+            rejected(worker);
+        }
+    }
+
+    /**
+     * 等待线程池队列空出位置，每次只短暂持有读锁，执行环节丢弃最早的邮件时不会被长时间阻塞
+     * @param timeout 最长等待时间，小于0时一直等待
+     * @return 是否放入了队列
+     */
+    private boolean enqueue(MailWorker worker, long timeout, TimeUnit unit) throws InterruptedException {
+        boolean forever = timeout < 0;
+        long deadline = System.nanoTime() + (forever ? 0 : unit.toNanos(timeout));
+        while (true) {
+            long remaining = forever ? ENQUEUE_SLICE_NANOS : deadline - System.nanoTime();
+            executorLock.readLock().lockInterruptibly();
+            try {
+                if (executorQueue().offer(worker, Math.max(0, Math.min(ENQUEUE_SLICE_NANOS, remaining)), TimeUnit.NANOSECONDS)){
+                    return true;
+                }
+            } finally {
+                executorLock.readLock().unlock();
+            }
+            if (!forever && deadline - System.nanoTime() <= 0){
+                return false;
+            }
+        }
+    }
+
+    /**
+     * @return 当前线程是否是应用调用发送方法的线程
+     */
+    private static boolean inApplicationCall() {
+        return APPLICATION_CALL.get() != null;
+    }
+
+    private void rejected(MailWorker worker) {
+        MailTask task = worker.task;
+        if (threadPoolExecutor.isShutdown()){
+            worker.release();
+            mailQueue.offer(task);
+            return;
+        }
+        if (task.mail.getStrictArrive()){
+            // 线程池队列已满说明已有工作线程，放入队列的邮件一定会被执行
+            try {
+                enqueue(worker, -1, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                worker.release();
+                mailQueue.offer(task);
+            }
+            return;
+        }
+        if (!overloaded(new ExecutorOverload(worker))){
+            worker.release();
+            shed(task);
+        }
+    }
+
+    /**
+     * 接收环节过载：非严格到达的邮件交给过载策略，严格到达的邮件不会被拒绝（调用方等待名额或者从返回值得知）
+     * @return 邮件是否被接收
+     */
+    private boolean overloaded(Mail mail) {
+        if (mail.getStrictArrive()){
+            return false;
+        }
+        if (overloaded(new AdmissionOverload(mail))){
+            return true;
+        }
+        publishEvent(new MailEvent(MailEventTypeEnum.SHED, mail, null, null, 0));
+        return false;
+    }
+
+    private boolean overloaded(MailOverload overload) {
+        try {
+            return overloadPolicy.onOverload(overload);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (RuntimeException e) {
+            Logger.error("过载策略处理邮件失败：{}", overload.getMail().getToMail(), e);
+            return false;
+        }
+    }
+
+    /**
+     * 放弃已接收的非严格到达邮件并通知监听器
+     */
+    private void shed(MailTask task) {
+        publishEvent(new MailEvent(MailEventTypeEnum.SHED, task.mail, null, null, task.attempts));
+        releaseKey(task);
+        task.complete();
+    }
+
+    /**
+     * 丢弃最早排队的一封非严格到达邮件，依次查找线程池队列、各账号队列和各租户队列
+     * @return 是否丢弃了邮件
+     */
+    private boolean evict() {
+        BlockingQueue<Runnable> queue = executorQueue();
+        for (Runnable runnable : queue) {
+            if (runnable instanceof MailWorker && !((MailWorker) runnable).task.mail.getStrictArrive()
+                    && queue.remove(runnable)){
+                ((MailWorker) runnable).release();
+                shed(((MailWorker) runnable).task);
+                return true;
+            }
+        }
+        MailTask task = accountLanes == null ? null : accountLanes.evictOldest();
+        if (task != null && tenantScheduler != null){
+            // 账号队列中的邮件已经占用了租户的派发名额
+            tenantScheduler.done();
+        }
+        if (task == null && tenantScheduler != null){
+            task = tenantScheduler.evictOldest();
+        }
+        if (task == null){
+            return false;
+        }
+        shed(task);
+        return true;
+    }
+
+    /**
+     * 写入过载日志
+     * @param dedupKey 去重使用的键
+     * @param routed 邮件是否已经过路由拆分（执行环节的邮件），重新投递时不再拆分
+     */
+    private boolean spill(Mail mail, String dedupKey, boolean routed) {
+        if (spillJournal == null){
+            return false;
+        }
+        try {
+            spillJournal.schedule(mail, System.currentTimeMillis(), dedupKey, routed);
+            return true;
+        } catch (IOException e) {
+            Logger.error("写入过载日志失败：{}", mail.getToMail(), e);
+            return false;
+        }
+    }
+
+    /**
+     * 过载日志中的邮件重新投递，名额不足时加载线程等待；邮件在写入日志前已经被接收过，只需重新占用幂等键
+     * @return 邮件是否已被处理，服务关闭时返回false（邮件留在磁盘上，下次启动时投递）
+     */
+    private boolean replaySpilled(Mail mail, String dedupKey, boolean routed) throws InterruptedException {
+        if (closed.get()){
+            return false;
+        }
+        if (dedupCache != null && mail.getIdempotencyKey() != null){
+            dedupCache.claim(mail.getIdempotencyKey());
+        }
+        readmit(mail, dedupKey, routed, 0);
+        return true;
+    }
+
+    /**
+     * 重新接收从快照或过载日志中恢复的邮件，名额不足时一直等待；已经拆分过的邮件使用保存的去重键，不再拆分
+     */
+    private void readmit(Mail mail, String dedupKey, boolean routed, int attempts) throws InterruptedException {
+        if (!routed){
+            admitBlocking(mail, attempts);
+            return;
+        }
+        sendMail(new MailTask(mail, mailAdmission.acquire(mail, tenantQuota(mail)), attempts, dedupKey));
+    }
+
+    private BlockingQueue<Runnable> executorQueue() {
+        return ((ThreadPoolExecutor) threadPoolExecutor).getQueue();
+    }
+
+    /**
+     * 接收环节的过载：准入名额已用完
+     */
+    private final class AdmissionOverload implements MailOverload {
+
+        private final Mail mail;
+
+        AdmissionOverload(Mail mail) {
+            this.mail = mail;
+        }
+
+        @Override
+        public Mail getMail() {
+            return mail;
+        }
+
+        @Override
+        public OverloadStageEnum getStage() {
+            return OverloadStageEnum.ADMISSION;
+        }
+
+        @Override
+        public boolean spill() {
+            return StandAloneMailService.this.spill(mail, mail.getIdempotencyKey(), false);
+        }
+
+        @Override
+        public boolean evictOldest() {
+            try {
+                return evict() && tryAdmit(mail, 0, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        /**
+         * 调用方已经在接收时等待过名额（trySend 的超时时间），这里不再等待名额，直接由调用方线程发送
+         */
+        @Override
+        public boolean runInCaller(long timeout, TimeUnit unit) throws InterruptedException {
+            return sendInCaller(mail, timeout, unit);
+        }
+    }
+
+    /**
+     * 执行环节的过载：线程池队列已满
+     */
+    private final class ExecutorOverload implements MailOverload {
+
+        private final MailWorker worker;
+
+        ExecutorOverload(MailWorker worker) {
+            this.worker = worker;
+        }
+
+        @Override
+        public Mail getMail() {
+            return worker.task.mail;
+        }
+
+        @Override
+        public OverloadStageEnum getStage() {
+            return OverloadStageEnum.EXECUTOR;
+        }
+
+        @Override
+        public boolean spill() {
+            if (!StandAloneMailService.this.spill(worker.task.mail, worker.task.dedupKey, true)){
+                return false;
+            }
+            worker.release();
+            worker.task.complete();
+            return true;
+        }
+
+        /**
+         * 只丢弃线程池队列中的邮件（其他队列中的邮件不占用线程池的位置），持有写锁期间腾出的位置直接交给这封邮件，最多丢弃一封
+         */
+        @Override
+        public boolean evictOldest() {
+            BlockingQueue<Runnable> queue = executorQueue();
+            MailWorker evicted = null;
+            executorLock.writeLock().lock();
+            try {
+                for (Runnable runnable : queue) {
+                    if (runnable instanceof MailWorker && !((MailWorker) runnable).task.mail.getStrictArrive()
+                            && queue.remove(runnable)){
+                        if (queue.offer(worker)){
+                            evicted = (MailWorker) runnable;
+                        }else {
+                            queue.offer(runnable);
+                        }
+                        break;
+                    }
+                }
+            } finally {
+                executorLock.writeLock().unlock();
+            }
+            if (evicted == null){
+                return false;
+            }
+            evicted.release();
+            shed(evicted.task);
+            return true;
+        }
+
+        /**
+         * 在超时时间内等待线程池队列空出位置，仍然没有位置时直接在调用方线程中发送；
+         * 只有应用的调用线程可以这样做，内部线程（派发、加载、合并线程）不能被发送阻塞（其他邮件都在等它们），
+         * 不等待也不直接发送，改为写入磁盘日志
+         */
+        @Override
+        public boolean runInCaller(long timeout, TimeUnit unit) throws InterruptedException {
+            if (!inApplicationCall()){
+                return enqueue(worker, 0, unit) || spill();
+            }
+            if (enqueue(worker, timeout, unit)){
+                return true;
+            }
+            worker.run();
+            return true;
+        }
+    }
 
     /**
-     * 限流执行器
+     * @return 邮件所属租户的接收名额，未开启多租户隔离或者租户不限制时返回null
      */
-    private RateLimitExecutor rateLimitExecutor;
+    private Semaphore tenantQuota(Mail mail) {
+        return tenantScheduler == null ? null : tenantScheduler.quota(mail);
+    }
 
     /**
-     * 线程池
+     * 启动多租户派发线程（可重复调用），派发线程按赤字轮询从各租户的队列中取出邮件交给线程池
      */
-    private final ExecutorService threadPoolExecutor;
+    private void tenantDispatcher() {
+        if (tenantScheduler == null || tenantDispatchThread != null){
+            return;
+        }
+        this.tenantDispatchThread = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                MailTask task;
+                try {
+                    task = tenantScheduler.take();
+                } catch (InterruptedException e) {
+                    break;
+                }
+                dispatch(task);
+            }
+        }, "mail-tenant-dispatcher");
+        tenantDispatchThread.setDaemon(true);
+        tenantDispatchThread.start();
+    }
 
     /**
-     * 存储必达消息的队列，如果队列太大会造成服务OOM
+     * 发送邮件的工作任务，服务关闭时可以从线程池队列中取回尚未执行的邮件
      */
-    private final BlockingQueue<Mail> mailQueue = new LinkedBlockingQueue<>(MAIL_QUEUE_SIZE);
-
+    private final class MailWorker implements Runnable {
 
-    public StandAloneMailService(MailProperties mailProperties,
-                                 MailServiceProperties mailServiceProperties,
-                                 RateLimitExecutor rateLimitExecutor,
-                                 ThreadPoolExecutor threadPoolExecutor){
-        this.threadSleepTime = mailServiceProperties.getSleepTime();
-        this.rateLimitExecutor = rateLimitExecutor;
-        maxMailTaskNum = new AtomicInteger(mailServiceProperties.getMaxTaskNum());
-        // 配置线程池
-        this.threadPoolExecutor = threadPoolExecutor;
-        // 开启邮件发送服务
-        start();
-    }
+        private final MailTask task;
 
+        /**
+         * 按账号分道发送时已经拿到发送权限的账号，否则为null（由工作线程选取）
+         */
+        private final MailSender mailSender;
 
-    @Override
-    public void start() {
-        // 自启动缓冲区消费者
-        consumer();
-        // 启动限流执行器
-        rateLimitExecutor.start();
-        Logger.info("邮件发送服务启动成功！...");
-    }
+        MailWorker(MailTask task, MailSender mailSender) {
+            this.task = task;
+            this.mailSender = mailSender;
+        }
 
-    @Override
-    public boolean send(Mail mail) {
-        // 在外层调用可方便调用端捕捉异常
-        checkParameter(mail);
-        // 处理邮箱限流，如果有必须到的任务则必须发送到而不能被限流给抛弃,而是服务正常后继续进行发送
-        // 如果需要处理服务限流，则添加一个限流策略即可，达到阈值后直接进行限流
-        // 如果邮件任务达到了最大数量但邮件必须可达则依然要执行入队
-        if (isMaxTaskNum()) {
-            // 这里不进行报警触发防止因报警阻塞而造成的业务线程阻塞
-            if (mail.getStrictArrive()) {
-                sendMail(mail);
-                return true;
+        @Override
+        public void run() {
+            long startNanos = System.nanoTime();
+            try {
+                send();
+            } finally {
+                if (poolSizer != null){
+                    poolSizer.record(System.nanoTime() - startNanos);
+                }
+                release();
             }
-            return false;
         }
 
-        // 当前邮件任务数量没有到达阈值但所有账号都不可用
-        if (rateLimitExecutor.isAllLimited()) {
-            if (mail.getStrictArrive()) {
-                sendMail(mail);
-                return true;
+        /**
+         * 归还账号队列和租户的派发名额（邮件被执行完或者没有被执行）
+         */
+        void release() {
+            if (mailSender != null){
+                accountLanes.done();
+            }
+            if (tenantScheduler != null){
+                tenantScheduler.done();
             }
-            return false;
         }
-        sendMail(mail);
-        return true;
-    }
 
-
-    private void sendMail(Mail mail) {
-        threadPoolExecutor.execute(() -> {
-            maxMailTaskNum.decrementAndGet();
-            if (isMaxTaskNum()){
-                errorTrigger();
-                if (mail.getStrictArrive()){
-                    producer(mail);
-                }
+        /**
+         * @return 交给传输层后的发送结果，没有交给传输层（等待重发或者被放弃）时返回null
+         */
+        private CompletableFuture<?> send() {
+            Mail mail = task.mail;
+            if (mailSender != null){
+                return deliver(mail, mailSender);
             }
             // 所有的邮箱账号都不可用并且判断邮件是否严格到达
             // 如果所有账号都不可用那么当前线程只负责接收新的请求
             // 而旧的请求是由consumer的一个单独线程来负责的
             if (rateLimitExecutor.isAllLimited()) {
                 errorTrigger();
-                if (mail.getStrictArrive()) {
-                    producer(mail);
-                }
-                return;
+                retrySendEmail(task);
+                return null;
             }
-            MailSender availableMailSender = rateLimitExecutor.availableAccount();
+            MailSender availableMailSender = mailRouter == null ? rateLimitExecutor.availableAccount()
+                    : rateLimitExecutor.availableAccount(mailRouter.preferred(mail));
             // 没有可用的邮箱账号（虽然前面做了判断，但是防止线程安全问题再次判断）。
             if (availableMailSender == null){
-                retrySendEmail(mail);
-                return;
+                retrySendEmail(task);
+                return null;
+            }
+            return deliver(mail, availableMailSender);
+        }
+
+        /**
+         * 交给传输层投递，非阻塞传输层下工作线程不必等待SMTP交互完成
+         */
+        private CompletableFuture<?> deliver(Mail mail, MailSender availableMailSender) {
+            MailAccountStats stats = metrics.account(availableMailSender);
+            stats.onSend();
+            inFlight.incrementAndGet();
+            long startMillis = System.currentTimeMillis();
+            long startNanos = System.nanoTime();
+            return doSendMailAsync(mail, availableMailSender, task.attempts)
+                    .whenComplete((v, e) -> {
+                        try {
+                            Throwable cause = e == null ? null : unwrap(e);
+                            if (sendLog != null){
+                                sendLog.record(task.id, mail.getToMail(), availableMailSender.getUsername(), startMillis,
+                                        (System.nanoTime() - startNanos) / 1000,
+                                        cause == null ? SendLog.STATUS_SENT : SendLog.STATUS_FAILED,
+                                        cause == null ? 250 : SmtpReplyCodes.replyCode(cause), task.attempts);
+                            }
+                            stats.onComplete(cause);
+                            onSendComplete(task, availableMailSender, e);
+                        } finally {
+                            inFlight.decrementAndGet();
+                        }
+                    });
+        }
+    }
+
+
+    /**
+     * 邮件投递完成后的处理
+     *
+     * @param mail 邮件
+     * @param mailSender 发件账号
+     * @param e 投递失败的原因，成功时为null
+     */
+    private void onSendComplete(MailTask task, MailSender mailSender, Throwable e) {
+        if (e == null){
+            rateLimitExecutor.onSendSuccess(mailSender);
+            if (dedupCache != null && task.dedupKey != null){
+                dedupCache.delivered(task.dedupKey);
             }
-            try{
-                doSendMail(mail, availableMailSender);
-                maxMailTaskNum.incrementAndGet();
-            }catch (AddressException e){
-                // 当发送邮件的目的地址发生错误的时候不需要对服务进行降级
-                Logger.warn("非法的目的邮箱地址：{}!",mail.getToMail());
-            }catch (EmailException e){
-                maxMailTaskNum.incrementAndGet();
-                rateLimitExecutor.adjustmentMailSender(availableMailSender);
-                retrySendEmail(mail);
-                Logger.warn("邮箱账号:{} 不可用！", availableMailSender.getUsername());
-            }catch (Exception e){
-                Logger.error("=============发送邮件发生了错误！===========");
-                Logger.error(e.getMessage());
-                maxMailTaskNum.incrementAndGet();
-                retrySendEmail(mail);
+            task.complete();
+            return;
+        }
+        Throwable cause = unwrap(e);
+        publishEvent(new MailEvent(MailEventTypeEnum.FAILED, task.mail, mailSender, cause, task.attempts));
+        int bounced = suppressionList == null ? 0 : suppressionList.onBounce(cause);
+        if (dedupCache != null && task.dedupKey != null && DeliveryUncertainException.isUncertain(cause)){
+            // 服务器可能已经接收了邮件，带幂等键的邮件宁可少发也不重复发送
+            Logger.warn("幂等键 {} 的邮件投递结果不确定，不再重发：{}", task.dedupKey, cause.getMessage());
+            dedupCache.delivered(task.dedupKey);
+            task.complete();
+            return;
+        }
+        if (bounced > 0 || SmtpReplyCodes.isRecipientReject(cause)){
+            // 收件人被永久拒绝与账号无关，不对账号降级；去掉被拒绝的收件人，其余收件人照常重发
+            onRecipientReject(task, mailSender, cause);
+        }else if (cause instanceof MailBuildException){
+            // 邮件本身无法构建，严格到达的邮件也不再重发，也不对账号降级
+            Logger.error("邮件构建失败，放弃邮件：{}，收件人：{}", task.mail.getSubject(), task.mail.getToMail(), cause);
+            publishEvent(new MailEvent(MailEventTypeEnum.DROPPED, task.mail, mailSender, cause, task.attempts));
+            releaseKey(task);
+            task.complete();
+        }else if (cause instanceof AddressException){
+            // 当发送邮件的目的地址发生错误的时候不需要对服务进行降级
+            Logger.warn("非法的目的邮箱地址：{}!",task.mail.getToMail());
+            publishEvent(new MailEvent(MailEventTypeEnum.DROPPED, task.mail, mailSender, cause, task.attempts));
+            releaseKey(task);
+            task.complete();
+        }else if (cause instanceof EmailException){
+            // 限流器能够处理的失败（例如额度自学习时的限流应答）不再对账号降级
+            if (!rateLimitExecutor.onSendFailure(mailSender, cause)){
+                rateLimitExecutor.adjustmentMailSender(mailSender);
+                Logger.warn("邮箱账号:{} 不可用！", mailSender.getUsername());
             }
-        });
+            retrySendEmail(task, cause);
+        }else {
+            Logger.error("=============发送邮件发生了错误！===========");
+            Logger.error(cause.getMessage());
+            retrySendEmail(task, cause);
+        }
     }
 
 
+    /**
+     * 收件人被服务器永久拒绝：整封邮件没有被投递，去掉被拒绝的收件人后重发给其余收件人，没有其余收件人时放弃邮件
+     */
+    private void onRecipientReject(MailTask task, MailSender mailSender, Throwable cause) {
+        Set<String> rejected = new HashSet<>();
+        for (String recipient : SmtpReplyCodes.rejectedRecipients(cause)) {
+            rejected.add(recipient.trim().toLowerCase(Locale.ROOT));
+        }
+        List<String> remaining = new ArrayList<>();
+        for (String recipient : task.mail.getToMail()) {
+            if (!rejected.contains(recipient.trim().toLowerCase(Locale.ROOT))){
+                remaining.add(recipient);
+            }
+        }
+        if (remaining.isEmpty() || remaining.size() == task.mail.getToMail().size()){
+            Logger.warn("收件人被服务器永久拒绝，放弃邮件：{}，收件人：{}", task.mail.getSubject(), task.mail.getToMail());
+            publishEvent(new MailEvent(MailEventTypeEnum.DROPPED, task.mail, mailSender, cause, task.attempts));
+            releaseKey(task);
+            task.complete();
+            return;
+        }
+        Logger.warn("收件人 {} 被服务器永久拒绝，邮件重发给其余收件人", rejected);
+        retrySendEmail(new MailTask(task.mail.copy(remaining), task.permit, task.attempts, task.dedupKey), cause);
+    }
+
+    /**
+     * 关闭服务：不再接收新邮件，在 drainTimeout 内等待已接收的邮件发送完成，
+     * 到期后仍未发送的邮件（线程池队列和严格到达队列中的）保存到快照，下次启动时恢复
+     */
     @Override
     public void closeService() {
-        threadPoolExecutor.shutdown();
+        if (!closed.compareAndSet(false, true)){
+            return;
+        }
+        long deadline = System.currentTimeMillis() + drainTimeout;
+        drainDeadline = deadline;
+        // 先停止重发消费者，严格到达队列中的邮件直接进入快照
+        // 停止加载定时邮件，未到期和未投递的定时邮件留在磁盘上
+        if (delayedMailStore != null){
+            delayedMailStore.close();
+        }
+        if (spillJournal != null){
+            spillJournal.close();
+        }
+        // 暂存中的邮件立即合并发送，之后和其他邮件一起排空或保存到快照；名额不足时不会等到关闭等待时间之后
+        if (mailDigester != null){
+            mailDigester.close();
+        }
         consumerMailThread.interrupt();
+        if (poolSizer != null){
+            poolSizer.close();
+        }
+        stopTenantDispatcher(deadline);
+        stopAccountLanes(deadline);
+        threadPoolExecutor.shutdown();
+        try {
+            consumerMailThread.join(Math.max(1, deadline - System.currentTimeMillis()));
+            threadPoolExecutor.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            while (inFlight.get() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        List<MailTask> remaining = new ArrayList<>();
+        for (Runnable runnable : threadPoolExecutor.shutdownNow()) {
+            if (runnable instanceof MailWorker){
+                remaining.add(((MailWorker) runnable).task);
+            }
+        }
+        mailQueue.drainTo(remaining);
+        for (Mail mail; (mail = unsentDigests.poll()) != null; ) {
+            // 没有占用名额，只用于保存快照；和快照中的其他邮件一样先拆分
+            List<Mail> routedMails = route(mail);
+            for (int i = 0; i < routedMails.size(); i++) {
+                remaining.add(new MailTask(routedMails.get(i), null, 0,
+                        routedKey(mail.getIdempotencyKey(), routedMails.size(), i)));
+            }
+        }
+        if (accountLanes != null){
+            accountLanes.drainTo(remaining);
+        }
+        if (tenantScheduler != null){
+            tenantScheduler.drainTo(remaining);
+        }
+        if (inFlight.get() > 0){
+            Logger.warn("邮件服务关闭时仍有 {} 封邮件正在投递", inFlight.get());
+        }
+        persist(remaining);
         rateLimitExecutor.close();
+        if (sendLog != null){
+            sendLog.close();
+        }
+        closeEventBus(Math.max(MIN_EVENT_DRAIN_TIMEOUT, deadline - System.currentTimeMillis()));
+        Logger.info("邮件发送服务已关闭！");
+    }
+
+    /**
+     * 在关闭等待时间内继续派发各租户队列中的邮件，然后停止派发线程
+     */
+    private void stopTenantDispatcher(long deadline) {
+        if (tenantDispatchThread == null){
+            return;
+        }
+        try {
+            while (tenantScheduler.queued() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            tenantDispatchThread.interrupt();
+            tenantDispatchThread.join(Math.max(1, deadline - System.currentTimeMillis()));
+        } catch (InterruptedException e) {
+            tenantDispatchThread.interrupt();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 在关闭等待时间内继续放行各账号队列中的邮件，然后停止派发线程
+     */
+    private void stopAccountLanes(long deadline) {
+        if (accountLanes == null){
+            return;
+        }
+        try {
+            while (accountLanes.queued() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        accountLanes.close();
+    }
+
+    private void persist(List<MailTask> remaining) {
+        if (queueSnapshot == null){
+            if (!remaining.isEmpty()){
+                Logger.warn("邮件服务关闭时丢弃了 {} 封未发送的邮件（未配置邮件快照）", remaining.size());
+                expire(remaining);
+            }
+            return;
+        }
+        try {
+            queueSnapshot.save(remaining);
+            if (!remaining.isEmpty()){
+                Logger.info("已将 {} 封未发送的邮件保存到快照：{}", remaining.size(), queueSnapshot.getFile());
+            }
+        } catch (IOException e) {
+            Logger.error("保存邮件快照失败，丢弃了 {} 封未发送的邮件", remaining.size(), e);
+            expire(remaining);
+        }
+    }
+
+    /**
+     * 关闭等待时间内没有发送出去且没有保存下来的邮件
+     */
+    private void expire(List<MailTask> remaining) {
+        for (MailTask task : remaining) {
+            if (task.mail.getStrictArrive()){
+                Logger.error("邮件服务关闭时丢弃了严格到达的邮件：{}，收件人：{}", task.mail.getSubject(), task.mail.getToMail());
+            }
+            publishEvent(new MailEvent(MailEventTypeEnum.EXPIRED, task.mail, null, null, task.attempts));
+            releaseKey(task);
+        }
+    }
+
+    /**
+     * 设置关闭服务时保存未发送邮件的快照
+     * @param queueSnapshot 邮件快照
+     */
+    public void setQueueSnapshot(MailQueueSnapshot queueSnapshot) {
+        this.queueSnapshot = queueSnapshot;
+    }
+
+    /**
+     * 设置收件人抑制列表
+     * @param suppressionList 抑制列表
+     */
+    public void setSuppressionList(SuppressionList suppressionList) {
+        this.suppressionList = suppressionList;
+    }
+
+    /**
+     * 设置发送日志
+     * @param sendLog 发送日志
+     */
+    public void setSendLog(SendLog sendLog) {
+        this.sendLog = sendLog;
+    }
+
+    /**
+     * 设置定时邮件的磁盘索引
+     * @param delayedMailStore 定时邮件索引
+     */
+    public void setDelayedMailStore(DelayedMailStore delayedMailStore) {
+        this.delayedMailStore = delayedMailStore;
+    }
+
+    /**
+     * 设置通知邮件合并
+     * @param mailDigester 合并器
+     */
+    public void setMailDigester(MailDigester mailDigester) {
+        this.mailDigester = mailDigester;
+    }
+
+    /**
+     * 设置服务过载时的处理策略
+     * @param overloadPolicy 过载策略
+     */
+    public void setOverloadPolicy(MailOverloadPolicy overloadPolicy) {
+        this.overloadPolicy = overloadPolicy;
+    }
+
+    /**
+     * 设置过载时写入邮件的磁盘日志
+     * @param spillJournal 磁盘日志
+     */
+    public void setSpillJournal(DelayedMailStore spillJournal) {
+        this.spillJournal = spillJournal;
+    }
+
+    /**
+     * 设置按账号分道发送
+     * @param accountLanes 账号队列
+     */
+    public void setAccountLanes(AccountLanes accountLanes) {
+        this.accountLanes = accountLanes;
+    }
+
+    /**
+     * 设置发送线程池的自动调整
+     * @param poolSizer 线程池调整器
+     */
+    public void setPoolSizer(MailPoolSizer poolSizer) {
+        this.poolSizer = poolSizer;
+    }
+
+    /**
+     * 设置多租户调度
+     * @param tenantScheduler 多租户调度
+     */
+    public void setTenantScheduler(TenantScheduler tenantScheduler) {
+        this.tenantScheduler = tenantScheduler;
+    }
+
+    /**
+     * 设置幂等键去重缓存
+     * @param dedupCache 去重缓存
+     */
+    public void setDedupCache(MailDedupCache dedupCache) {
+        this.dedupCache = dedupCache;
+    }
+
+    /**
+     * 设置启动时的账号预热
+     * @param warmUpSessions 每个账号预先建立的连接数，小于0时不预热
+     * @param warmUpTimeout 预热的最长时间（毫秒）
+     */
+    public void setWarmUp(int warmUpSessions, long warmUpTimeout) {
+        this.warmUpSessions = warmUpSessions;
+        this.warmUpTimeout = warmUpTimeout;
+    }
+
+    /**
+     * 设置关闭服务时等待邮件发送完成的最长时间
+     * @param drainTimeout 毫秒
+     */
+    public void setDrainTimeout(long drainTimeout) {
+        this.drainTimeout = drainTimeout;
+    }
+
+    /**
+     * 设置按收件人域名路由发件账号的路由器
+     * @param mailRouter 路由器
+     */
+    public void setMailRouter(MailRouter mailRouter) {
+        this.mailRouter = mailRouter;
     }
 
     @Override
@@ -179,6 +1528,85 @@ public class StandAloneMailService extends BaseMailService {
         return mailQueue.size();
     }
 
+    /**
+     * @return 已接收但尚未完成的邮件数（占用的准入名额，拆分后的每一部分单独计算）
+     */
+    public int acceptedNum() {
+        return mailAdmission.acceptedTasks();
+    }
+
+    /**
+     * @return 已交给传输层但尚未得到结果的邮件数
+     */
+    public int inFlightNum() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return 线程池队列中等待执行的邮件数
+     */
+    public int executorQueueSize() {
+        return threadPoolExecutor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) threadPoolExecutor).getQueue().size() : 0;
+    }
+
+    /**
+     * @return 发送线程池当前的线程数
+     */
+    public int poolSize() {
+        return threadPoolExecutor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) threadPoolExecutor).getPoolSize() : 0;
+    }
+
+    /**
+     * 等待工作线程处理的邮件数：线程池队列中的以及各租户、各账号队列中尚未派发的
+     */
+    private int backlog() {
+        return executorQueueSize() + (tenantScheduler == null ? 0 : tenantScheduler.queued())
+                + (accountLanes == null ? 0 : accountLanes.queued());
+    }
+
+    /**
+     * @return 暂存等待合并的邮件数
+     */
+    public int digestPendingNum() {
+        return mailDigester == null ? 0 : mailDigester.pendingMails();
+    }
+
+    /**
+     * @return 各租户等待派发的邮件数，未开启多租户隔离时为空
+     */
+    public Map<String, Integer> tenantQueueSizes() {
+        return tenantScheduler == null ? Collections.emptyMap() : tenantScheduler.queuedByTenant();
+    }
+
+    /**
+     * @return 各账号队列中等待派发的邮件数，未开启按账号分道发送时为空
+     */
+    public Map<String, Integer> laneQueueSizes() {
+        return accountLanes == null ? Collections.emptyMap() : accountLanes.queuedByAccount();
+    }
+
+    public MailServiceMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * 清空严格到达队列：队列中等待重发的邮件全部放弃并归还名额（收件人会记录在日志中）
+     * 用于账号长时间不可用时严格到达邮件堆积占满名额的情况
+     *
+     * @return 放弃的邮件数
+     */
+    public int drainStrictQueue() {
+        List<MailTask> drained = new ArrayList<>();
+        mailQueue.drainTo(drained);
+        for (MailTask task : drained) {
+            Logger.warn("严格到达队列已清空，放弃邮件：{}，收件人：{}", task.mail.getSubject(), task.mail.getToMail());
+            publishEvent(new MailEvent(MailEventTypeEnum.DROPPED, task.mail, null, null, task.attempts));
+            releaseKey(task);
+            task.complete();
+        }
+        return drained.size();
+    }
+
     /**
      * 校验待发送邮件参数
      * 注： 目的邮件判空不在检查范围内，调用方自行判定
@@ -195,24 +1623,40 @@ public class StandAloneMailService extends BaseMailService {
 
 
     /**
-     * 尝试重发邮件
+     * 尝试重发邮件，不需要严格到达的邮件直接放弃并归还名额
      *
-     * @param mail 待发送邮件
+     * @param task 待发送邮件
+     */
+    private void retrySendEmail(MailTask task) {
+        retrySendEmail(task, null);
+    }
+
+    /**
+     * @param task 待发送邮件
+     * @param cause 本次失败的原因，没有可用账号时为null
      */
-    private void retrySendEmail(Mail mail) {
+    private void retrySendEmail(MailTask task, Throwable cause) {
         // 如果邮件必须送达则加入待发送邮件队列中等待消费。
-        if (mail.getStrictArrive()) {
-            producer(mail);
+        task.attempts++;
+        if (task.mail.getStrictArrive()) {
+            if (skipDelivered(task)){
+                return;
+            }
+            publishEvent(new MailEvent(MailEventTypeEnum.RETRIED, task.mail, null, cause, task.attempts));
+            producer(task);
+        }else {
+            publishEvent(new MailEvent(MailEventTypeEnum.DROPPED, task.mail, null, cause, task.attempts));
+            releaseKey(task);
+            task.complete();
         }
     }
 
     /**
      * 生产者，向队列投递消息
-     * 注意：如果严格到达邮件过多可能会导致系统内存不足导致的OOM
      */
-    private void producer(Mail mail) {
+    private void producer(MailTask task) {
         try {
-            mailQueue.put(mail);
+            mailQueue.put(task);
         } catch (InterruptedException e) {
             throw new RuntimeException(e);
         }
@@ -226,21 +1670,26 @@ public class StandAloneMailService extends BaseMailService {
     private void consumer() {
         // 之所以不直接调用线程池的线程的原因是如果有需要重发的邮件那么该线程会一直阻塞
         this.consumerMailThread = new Thread(() -> {
-            while (true) {
-                // 当消费者线程得知所有的邮箱不可用时，会强制休眠一段时间
-                // 这段时间内不会再次响应严格到达邮件队列中的邮件发送任务
-                if (rateLimitExecutor.isAllLimited()) {
-                    consumerLock();
-                }
+            while (!Thread.currentThread().isInterrupted()) {
                 try {
-                    Mail mail = mailQueue.take();
-                    Logger.info("待发送邮件数为: {}", mailQueue.size());
-                    sendMail(mail);
-                    if (consumerMailThread.isInterrupted()) {
+                    // 当消费者线程得知所有的邮箱不可用时，会强制休眠一段时间
+                    // 这段时间内不会再次响应严格到达邮件队列中的邮件发送任务
+                    if (rateLimitExecutor.isAllLimited()) {
+                        consumerLock();
+                    }
+                    MailTask task = mailQueue.take();
+                    if (closed.get()){
+                        // 服务正在关闭，邮件放回队列等待保存快照
+                        mailQueue.offer(task);
                         break;
                     }
+                    Logger.debug("待发送邮件数为: {}", mailQueue.size());
+                    if (skipDelivered(task)){
+                        continue;
+                    }
+                    sendMail(task);
                 } catch (InterruptedException e) {
-                    throw new RuntimeException(e);
+                    break;
                 }
             }
         });
@@ -250,22 +1699,9 @@ public class StandAloneMailService extends BaseMailService {
     /**
      * 当所有的邮箱都不可用时触发
      */
-    private void consumerLock() {
+    private void consumerLock() throws InterruptedException {
         errorTrigger();
-        try {
-            Thread.sleep(threadSleepTime);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
-    /**
-     * 判断是否到达了最大任务数量
-     *
-     * @return 任务数量是否超过阈值
-     */
-    private boolean isMaxTaskNum() {
-        return maxMailTaskNum.get() < 0;
+        Thread.sleep(threadSleepTime);
     }
 
 }
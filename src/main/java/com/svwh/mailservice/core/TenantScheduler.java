@@ -0,0 +1,333 @@
+package com.svwh.mailservice.core;
+
+import com.svwh.mailservice.conf.MailTenantProperties;
+import com.svwh.mailservice.mail.Mail;
+
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @description 多租户调度：每个租户一个等待队列，租户之间按赤字轮询（DRR）派发邮件
+ *  每一轮调度中租户获得 weight * quantum 的额度，派发邮件时按收件人数扣减，额度不足时轮到下一个租户，
+ *  收件人多的群发邮件不会因为单封邮件的调度机会相同而挤占其他租户。
+ *  在账号限流之上再叠加租户自己的额度：同时接收的邮件数在准入时限制，时间窗口内的发送数在派发时限制，
+ *  超出发送额度的租户在窗口重置之前被跳过。
+ *  同时派发给线程池的邮件数有上限，线程池队列中几乎没有积压，邮件的发送顺序由这里决定。
+ * @Author cxk
+ */
+public class TenantScheduler {
+
+    /**
+     * 没有设置租户或者租户没有单独配置的邮件所属的租户
+     */
+    public static final String DEFAULT_TENANT = "default";
+
+    private final ConcurrentHashMap<String, Tenant> tenants = new ConcurrentHashMap<>();
+
+    private final Map<String, MailTenantProperties.Quota> quotas;
+
+    private final MailTenantProperties.Quota defaultQuota;
+
+    private final int quantum;
+
+    private final int dispatchLimit;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition available = lock.newCondition();
+
+    /**
+     * 有邮件等待派发的租户，按轮询顺序排列
+     */
+    private final ArrayDeque<Tenant> active = new ArrayDeque<>();
+
+    /**
+     * 已派发但工作线程尚未处理完的邮件数
+     */
+    private int dispatching;
+
+    private int queued;
+
+    /**
+     * @param mailTenantProperties 多租户配置
+     * @param dispatchLimit 同时派发给线程池的邮件数
+     */
+    public TenantScheduler(MailTenantProperties mailTenantProperties, int dispatchLimit) {
+        this.quotas = new ConcurrentHashMap<>(mailTenantProperties.getTenants());
+        this.defaultQuota = mailTenantProperties.getDefaultQuota();
+        this.quantum = Math.max(1, mailTenantProperties.getQuantum());
+        this.dispatchLimit = Math.max(1, dispatchLimit);
+    }
+
+    /**
+     * @param mail 邮件
+     * @return 邮件所属租户的接收名额，不限制时返回null
+     */
+    Semaphore quota(Mail mail) {
+        return tenant(mail).permits;
+    }
+
+    /**
+     * 邮件进入所属租户的等待队列
+     */
+    void offer(MailTask task) {
+        Tenant tenant = tenant(task.mail);
+        lock.lock();
+        try {
+            tenant.queue.addLast(task);
+            queued++;
+            if (!tenant.active){
+                tenant.active = true;
+                tenant.deficit = 0;
+                active.addLast(tenant);
+            }
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 取出下一封可以派发的邮件，派发数已满、没有邮件或者有邮件的租户都超出了发送额度时等待
+     */
+    MailTask take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (true) {
+                long waitMillis = 0;
+                if (dispatching < dispatchLimit){
+                    long now = System.currentTimeMillis();
+                    long readyAt = next(now);
+                    if (readyAt == 0){
+                        return poll(active.peekFirst());
+                    }
+                    waitMillis = readyAt == Long.MAX_VALUE ? 0 : Math.max(1, readyAt - now);
+                }
+                if (waitMillis > 0){
+                    available.await(waitMillis, TimeUnit.MILLISECONDS);
+                }else {
+                    available.await();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 找到下一个可以派发的租户并把它移到队首
+     * @return 可以派发时返回0，否则返回最早可以派发的时间（没有等待的邮件时返回Long.MAX_VALUE）
+     */
+    private long next(long now) {
+        long readyAt = Long.MAX_VALUE;
+        int blocked = 0;
+        while (!active.isEmpty() && blocked < active.size()) {
+            Tenant tenant = active.peekFirst();
+            long tenantReadyAt = tenant.readyAt(now);
+            if (tenantReadyAt > now){
+                // 超出发送额度的租户保留赤字，窗口重置后继续参与轮询
+                active.addLast(active.pollFirst());
+                readyAt = Math.min(readyAt, tenantReadyAt);
+                blocked++;
+                continue;
+            }
+            if (tenant.deficit < cost(tenant.queue.peekFirst())){
+                // 本轮额度不足，补充额度后轮到下一个租户
+                tenant.deficit += tenant.quantum;
+                active.addLast(active.pollFirst());
+                blocked = 0;
+                continue;
+            }
+            return 0;
+        }
+        return readyAt;
+    }
+
+    private MailTask poll(Tenant tenant) {
+        MailTask task = tenant.queue.pollFirst();
+        tenant.deficit -= cost(task);
+        tenant.windowUsed++;
+        queued--;
+        dispatching++;
+        if (tenant.queue.isEmpty()){
+            // 没有邮件的租户离开轮询，剩余的额度不能积累
+            tenant.active = false;
+            tenant.deficit = 0;
+            active.pollFirst();
+        }
+        return task;
+    }
+
+    /**
+     * 派发的邮件已被工作线程处理完，归还派发名额
+     */
+    void done() {
+        lock.lock();
+        try {
+            dispatching--;
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 取出最早进入队列的一封非严格到达邮件（过载时丢弃）
+     * @return 没有非严格到达的邮件时返回null
+     */
+    MailTask evictOldest() {
+        lock.lock();
+        try {
+            Tenant owner = null;
+            MailTask oldest = null;
+            for (Tenant tenant : active) {
+                for (MailTask task : tenant.queue) {
+                    if (!task.mail.getStrictArrive()){
+                        if (oldest == null || task.id < oldest.id){
+                            owner = tenant;
+                            oldest = task;
+                        }
+                        break;
+                    }
+                }
+            }
+            if (oldest == null){
+                return null;
+            }
+            owner.queue.remove(oldest);
+            queued--;
+            if (owner.queue.isEmpty()){
+                owner.active = false;
+                owner.deficit = 0;
+                active.remove(owner);
+            }
+            return oldest;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 取出所有等待派发的邮件（关闭服务时保存快照）
+     * @return 取出的邮件数
+     */
+    int drainTo(List<MailTask> remaining) {
+        lock.lock();
+        try {
+            int drained = queued;
+            for (Tenant tenant : active) {
+                remaining.addAll(tenant.queue);
+                tenant.queue.clear();
+                tenant.active = false;
+                tenant.deficit = 0;
+            }
+            active.clear();
+            queued = 0;
+            return drained;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return 等待派发的邮件数
+     */
+    public int queued() {
+        lock.lock();
+        try {
+            return queued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return 各租户等待派发的邮件数
+     */
+    public Map<String, Integer> queuedByTenant() {
+        Map<String, Integer> result = new LinkedHashMap<>();
+        lock.lock();
+        try {
+            for (Tenant tenant : tenants.values()) {
+                result.put(tenant.name, tenant.queue.size());
+            }
+        } finally {
+            lock.unlock();
+        }
+        return result;
+    }
+
+    /**
+     * 只有单独配置了额度的租户各自排队，其余邮件都归入默认租户，租户的数量不会随调用方传入的租户名增长
+     */
+    private Tenant tenant(Mail mail) {
+        String name = mail.getTenant() != null && quotas.containsKey(mail.getTenant()) ? mail.getTenant() : DEFAULT_TENANT;
+        Tenant tenant = tenants.get(name);
+        if (tenant == null){
+            tenant = tenants.computeIfAbsent(name, key -> new Tenant(key, quotas.getOrDefault(key, defaultQuota)));
+        }
+        return tenant;
+    }
+
+    /**
+     * 邮件的调度成本为收件人数
+     */
+    private static int cost(MailTask task) {
+        return Math.max(1, task.mail.getToMail().size());
+    }
+
+    /**
+     * 租户的等待队列与额度，除接收名额外都在调度锁内访问
+     */
+    private final class Tenant {
+
+        final String name;
+
+        final int quantum;
+
+        final Semaphore permits;
+
+        final int rate;
+
+        final long window;
+
+        final ArrayDeque<MailTask> queue = new ArrayDeque<>();
+
+        boolean active;
+
+        long deficit;
+
+        long windowStart;
+
+        int windowUsed;
+
+        Tenant(String name, MailTenantProperties.Quota quota) {
+            this.name = name;
+            this.quantum = Math.max(1, quota.getWeight()) * TenantScheduler.this.quantum;
+            this.permits = quota.getMaxAccepted() > 0 ? new Semaphore(quota.getMaxAccepted(), true) : null;
+            this.rate = quota.getRate();
+            this.window = Math.max(1, quota.getWindow());
+        }
+
+        /**
+         * @return 可以发送时返回0，超出发送额度时返回窗口重置的时间
+         */
+        long readyAt(long now) {
+            if (rate <= 0){
+                return 0;
+            }
+            if (now >= windowStart + window){
+                windowStart = now;
+                windowUsed = 0;
+            }
+            return windowUsed < rate ? 0 : windowStart + window;
+        }
+    }
+}
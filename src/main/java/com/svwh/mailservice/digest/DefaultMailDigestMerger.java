@@ -0,0 +1,81 @@
+package com.svwh.mailservice.digest;
+
+import com.svwh.mailservice.mail.Attachment;
+import com.svwh.mailservice.mail.HtmlMail;
+import com.svwh.mailservice.mail.Mail;
+import com.svwh.mailservice.mail.TextMail;
+
+import java.util.List;
+
+/**
+ * @description 默认的合并方式：主题使用第一封邮件的主题并注明条数，正文按顺序拼接，附件全部保留
+ *  都是文本邮件时合并为文本邮件，否则合并为HTML邮件（文本正文转义后放在 pre 中）；任意一封需要严格到达时合并后的邮件也严格到达
+ * @Author cxk
+ */
+public class DefaultMailDigestMerger implements MailDigestMerger {
+
+    private static final String TEXT_SEPARATOR = "\n\n----------------\n\n";
+
+    private static final String HTML_SEPARATOR = "<hr/>";
+
+    @Override
+    public Mail merge(String category, List<Mail> mails) {
+        if (mails.size() == 1){
+            return mails.get(0);
+        }
+        boolean html = false;
+        for (Mail mail : mails) {
+            html |= !(mail instanceof TextMail);
+        }
+        Mail first = mails.get(0);
+        Mail merged = html ? new HtmlMail() : new TextMail();
+        merged.setToMail(first.getToMail());
+        merged.setTenant(first.getTenant());
+        merged.setSubject(first.getSubject() + "（共" + mails.size() + "条）");
+        StringBuilder content = new StringBuilder();
+        boolean strictArrive = false;
+        for (Mail mail : mails) {
+            if (content.length() > 0){
+                content.append(html ? HTML_SEPARATOR : TEXT_SEPARATOR);
+            }
+            if (html && mail instanceof TextMail){
+                content.append("<pre>").append(escape(mail.getContent())).append("</pre>");
+            }else {
+                content.append(mail.getContent());
+            }
+            strictArrive |= Boolean.TRUE.equals(mail.getStrictArrive());
+            if (mail.hasAttachments()){
+                for (Attachment attachment : mail.getAttachments()) {
+                    merged.addAttachment(attachment);
+                }
+            }
+        }
+        merged.setContent(content.toString());
+        merged.setStrictArrive(strictArrive);
+        return merged;
+    }
+
+    private static String escape(String text) {
+        StringBuilder escaped = new StringBuilder(text.length() + 16);
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '<':
+                    escaped.append("&lt;");
+                    break;
+                case '>':
+                    escaped.append("&gt;");
+                    break;
+                case '&':
+                    escaped.append("&amp;");
+                    break;
+                case '"':
+                    escaped.append("&quot;");
+                    break;
+                default:
+                    escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+}
@@ -0,0 +1,20 @@
+package com.svwh.mailservice.digest;
+
+import com.svwh.mailservice.mail.Mail;
+
+import java.util.List;
+
+/**
+ * @description 把同一收件人、同一类别的多封邮件合并为一封
+ * @Author cxk
+ */
+public interface MailDigestMerger {
+
+    /**
+     * 合并邮件
+     * @param category 邮件类别
+     * @param mails 按接收顺序排列的邮件（至少一封），收件人、类别和租户都相同
+     * @return 合并后的邮件，收件人应与原邮件相同
+     */
+    Mail merge(String category, List<Mail> mails);
+}
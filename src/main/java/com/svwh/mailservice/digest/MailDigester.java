@@ -0,0 +1,297 @@
+package com.svwh.mailservice.digest;
+
+import com.svwh.mailservice.mail.Mail;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * @description 通知邮件合并
+ *  设置了合并类别的邮件按 租户 + 类别 + 收件人 分组暂存，组内最后一封邮件之后 window 毫秒内没有新邮件、
+ *  或者第一封邮件已暂存 maxHold 毫秒、或者组内邮件数达到 maxMails 时，整组邮件通过 {@link MailDigestMerger} 合并为一封再发送，
+ *  短时间内发给同一个人的多条通知只占用一次SMTP会话和一次账号额度。
+ *  带幂等键的邮件不合并（合并后的邮件无法按原来的键记录是否已发送），直接发送。
+ *  到期时间只由一个线程通过延迟队列检查，组的到期时间延后时不调整队列，到期检查时发现未到期再重新放入。
+ * @Author cxk
+ */
+public class MailDigester implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MailDigester.class);
+
+    private final long window;
+
+    private final long maxHold;
+
+    private final int maxMails;
+
+    private final int maxPending;
+
+    private final MailDigestMerger merger;
+
+    private final ConcurrentHashMap<String, Group> groups = new ConcurrentHashMap<>();
+
+    private final DelayQueue<Timer> timers = new DelayQueue<>();
+
+    /**
+     * 暂存中的邮件数
+     */
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private Consumer<Mail> sink;
+
+    private Thread flusher;
+
+    private volatile boolean closed;
+
+    /**
+     * @param window 组内最后一封邮件之后等待新邮件的时间（毫秒）
+     * @param maxHold 邮件最长的暂存时间（毫秒）
+     * @param maxMails 每组最多合并的邮件数
+     * @param maxPending 最多暂存的邮件数，超出后的邮件不再合并
+     * @param merger 合并方式
+     */
+    public MailDigester(long window, long maxHold, int maxMails, int maxPending, MailDigestMerger merger) {
+        this.window = Math.max(0, window);
+        this.maxHold = Math.max(this.window, maxHold);
+        this.maxMails = Math.max(1, maxMails);
+        this.maxPending = maxPending;
+        this.merger = merger;
+    }
+
+    /**
+     * 启动到期检查线程（可重复调用）
+     * @param sink 接收合并后的邮件
+     */
+    public synchronized void start(Consumer<Mail> sink) {
+        if (flusher != null || closed){
+            return;
+        }
+        this.sink = sink;
+        this.flusher = new Thread(this::flush, "mail-digest-flusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * 暂存邮件等待合并
+     * @param mail 设置了合并类别的邮件
+     * @return 邮件是否被暂存，邮件带幂等键、暂存数已满或者已关闭时返回false（邮件应直接发送）
+     */
+    public boolean offer(Mail mail) {
+        if (closed || mail.getDigestCategory() == null || mail.getIdempotencyKey() != null || pending.get() >= maxPending){
+            return false;
+        }
+        String key = key(mail);
+        while (true) {
+            long now = System.currentTimeMillis();
+            Group group = groups.computeIfAbsent(key, k -> newGroup(k, mail.getDigestCategory(), now));
+            synchronized (group) {
+                if (group.flushed || group.mails.size() >= maxMails){
+                    // 组已被取走或者已满（等待到期检查取走），重新建组
+                    groups.remove(key, group);
+                    continue;
+                }
+                group.mails.add(mail);
+                pending.incrementAndGet();
+                if (group.mails.size() >= maxMails){
+                    group.deadline = now;
+                    timers.add(new Timer(group, now));
+                }else {
+                    group.deadline = Math.min(now + window, group.first + maxHold);
+                }
+                return true;
+            }
+        }
+    }
+
+    private Group newGroup(String key, String category, long now) {
+        Group group = new Group(key, category, now);
+        timers.add(new Timer(group, now + window));
+        return group;
+    }
+
+    /**
+     * 到期检查：取出到期的组合并发送，到期时间已延后的组重新放入延迟队列
+     */
+    private void flush() {
+        while (!closed) {
+            Timer timer;
+            try {
+                timer = timers.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+            List<Mail> mails = take(timer.group, System.currentTimeMillis());
+            if (mails != null){
+                emit(timer.group.category, mails);
+            }
+        }
+    }
+
+    /**
+     * @return 组已到期时返回组内的邮件，否则返回null
+     */
+    private List<Mail> take(Group group, long now) {
+        synchronized (group) {
+            if (group.flushed){
+                return null;
+            }
+            if (group.deadline > now){
+                timers.add(new Timer(group, group.deadline));
+                return null;
+            }
+            group.flushed = true;
+            groups.remove(group.key, group);
+            pending.addAndGet(-group.mails.size());
+            return group.mails;
+        }
+    }
+
+    private void emit(String category, List<Mail> mails) {
+        Mail merged;
+        try {
+            merged = merger.merge(category, mails);
+        } catch (RuntimeException e) {
+            // 合并失败时逐封发送，不丢失邮件
+            LOGGER.error("合并类别为 {} 的 {} 封邮件失败，改为逐封发送", category, mails.size(), e);
+            for (Mail mail : mails) {
+                deliver(mail);
+            }
+            return;
+        }
+        if (mails.size() > 1){
+            LOGGER.debug("已将类别为 {} 的 {} 封邮件合并发送给 {}", category, mails.size(), merged.getToMail());
+        }
+        deliver(merged);
+    }
+
+    private void deliver(Mail mail) {
+        try {
+            sink.accept(mail);
+        } catch (RuntimeException e) {
+            LOGGER.error("发送合并后的邮件失败：{}", mail.getToMail(), e);
+        }
+    }
+
+    /**
+     * 分组的键：租户、类别和收件人都相同的邮件才会被合并
+     */
+    private static String key(Mail mail) {
+        StringBuilder key = new StringBuilder(64);
+        key.append(mail.getTenant()).append('\u0000').append(mail.getDigestCategory());
+        for (String recipient : mail.getToMail()) {
+            key.append('\u0000').append(recipient.trim().toLowerCase(Locale.ROOT));
+        }
+        return key.toString();
+    }
+
+    /**
+     * @return 暂存中的邮件数
+     */
+    public int pendingMails() {
+        return pending.get();
+    }
+
+    /**
+     * 停止到期检查并立即合并发送所有暂存的邮件
+     */
+    @Override
+    public void close() {
+        Thread thread;
+        synchronized (this) {
+            if (closed){
+                return;
+            }
+            closed = true;
+            thread = flusher;
+        }
+        if (thread != null){
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        // 已满的组只在延迟队列中；关闭前已通过检查的邮件可能还在加入，直到没有暂存的组为止
+        while (true) {
+            Set<Group> remaining = new LinkedHashSet<>(groups.values());
+            for (Timer timer : timers) {
+                remaining.add(timer.group);
+            }
+            timers.clear();
+            if (remaining.isEmpty()){
+                break;
+            }
+            for (Group group : remaining) {
+                List<Mail> mails = take(group, Long.MAX_VALUE);
+                if (mails != null && sink != null){
+                    emit(group.category, mails);
+                }
+            }
+        }
+    }
+
+    /**
+     * 暂存中的一组邮件，在组上同步访问
+     */
+    private static final class Group {
+
+        final String key;
+
+        final String category;
+
+        /**
+         * 第一封邮件的暂存时间
+         */
+        final long first;
+
+        final List<Mail> mails = new ArrayList<>();
+
+        long deadline;
+
+        boolean flushed;
+
+        Group(String key, String category, long first) {
+            this.key = key;
+            this.category = category;
+            this.first = first;
+        }
+    }
+
+    /**
+     * 延迟队列中的到期检查，放入队列后到期时间不再变化
+     */
+    private static final class Timer implements Delayed {
+
+        final Group group;
+
+        final long at;
+
+        Timer(Group group, long at) {
+            this.group = group;
+            this.at = at;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(at - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(at, ((Timer) other).at);
+        }
+    }
+}
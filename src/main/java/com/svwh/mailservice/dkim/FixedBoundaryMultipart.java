@@ -0,0 +1,19 @@
+package com.svwh.mailservice.dkim;
+
+import javax.mail.internet.ContentType;
+import javax.mail.internet.MimeMultipart;
+
+/**
+ * @description 使用指定分隔符的多部分内容。
+ *  默认的分隔符每封邮件都不同，相同模板生成的正文也各不相同；使用固定的分隔符后内容相同的邮件正文逐字节相同，正文摘要才能复用
+ * @Author cxk
+ */
+class FixedBoundaryMultipart extends MimeMultipart {
+
+    FixedBoundaryMultipart(String subtype, String boundary) {
+        super(subtype);
+        ContentType type = new ContentType("multipart", subtype, null);
+        type.setParameter("boundary", boundary);
+        this.contentType = type.toString();
+    }
+}
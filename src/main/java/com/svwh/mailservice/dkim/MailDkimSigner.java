@@ -0,0 +1,338 @@
+package com.svwh.mailservice.dkim;
+
+import com.svwh.mailservice.conf.MailDkimProperties;
+import com.svwh.mailservice.mail.HtmlMail;
+import com.svwh.mailservice.mail.Mail;
+import com.svwh.mailservice.mail.MailSender;
+import com.svwh.mailservice.mail.TextMail;
+
+import javax.activation.DataHandler;
+import javax.mail.Address;
+import javax.mail.BodyPart;
+import javax.mail.MessagingException;
+import javax.mail.Part;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @description DKIM签名（RFC 6376，rsa-sha256，relaxed/relaxed）
+ *  私钥在启动时解析，按发件地址缓存匹配结果；签名对象和摘要对象每个线程一个，只在每次签名时重新初始化。
+ *  没有附件的文本和HTML邮件使用固定的分隔符，内容相同的邮件正文逐字节相同，正文摘要按 邮件类型 + 编码 + 内容 缓存，
+ *  同一个模板群发时正文只规范化和计算一次摘要，每封邮件只剩邮件头的摘要和一次RSA签名。
+ *  签名在邮件构建完成之后、交给传输层之前进行，传输层保存邮件时会重新生成Message-ID，所以不对Message-ID签名
+ * @Author cxk
+ */
+public class MailDkimSigner {
+
+    private static final String HEADER = "DKIM-Signature";
+
+    private static final ThreadLocal<Signature> SIGNATURES = ThreadLocal.withInitial(MailDkimSigner::newSignature);
+
+    private static final ThreadLocal<MessageDigest> DIGESTS = ThreadLocal.withInitial(MailDkimSigner::newDigest);
+
+    /**
+     * 固定分隔符的前缀，"=_"不会出现在quoted-printable和base64编码的内容中，随机部分避免与未编码的内容冲突
+     */
+    private static final String BOUNDARY_PREFIX = "----=_Part_" + Long.toHexString(new SecureRandom().nextLong());
+
+    /**
+     * 发件地址或域名（小写）与签名配置的映射
+     */
+    private final Map<String, Key> keys = new HashMap<>();
+
+    private final Key defaultKey;
+
+    private final String[] headers;
+
+    private final int bodyCacheSize;
+
+    private final int maxCachedBody;
+
+    /**
+     * 发件地址与签名配置的匹配结果，不签名的发件地址为空
+     */
+    private final ConcurrentHashMap<String, Optional<Key>> resolved = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<BodyKey, String> bodyHashes = new ConcurrentHashMap<>();
+
+    public MailDkimSigner(MailDkimProperties properties) throws IOException, GeneralSecurityException {
+        Map<String, PrivateKey> privateKeys = new HashMap<>();
+        PrivateKey privateKey = properties.getPrivateKey() == null ? null
+                : loadKey(privateKeys, properties.getPrivateKey());
+        this.defaultKey = privateKey == null ? null
+                : new Key(properties.getDomain(), properties.getSelector(), privateKey);
+        for (MailDkimProperties.Sender sender : properties.getSenders()) {
+            PrivateKey senderKey = sender.getPrivateKey() == null ? privateKey
+                    : loadKey(privateKeys, sender.getPrivateKey());
+            if (sender.getFromSender() == null || senderKey == null){
+                throw new IllegalArgumentException("the from sender and private key of dkim sender are required");
+            }
+            String domain = sender.getDomain() != null ? sender.getDomain() : properties.getDomain();
+            String selector = sender.getSelector() != null ? sender.getSelector() : properties.getSelector();
+            keys.put(sender.getFromSender().trim().toLowerCase(Locale.ROOT), new Key(domain, selector, senderKey));
+        }
+        Set<String> names = new LinkedHashSet<>();
+        names.add("from");
+        for (String header : properties.getHeaders()) {
+            names.add(header.trim().toLowerCase(Locale.ROOT));
+        }
+        // 传输层保存邮件时会重新生成Message-ID
+        names.remove("message-id");
+        this.headers = names.toArray(new String[0]);
+        this.bodyCacheSize = properties.getBodyCacheSize();
+        this.maxCachedBody = properties.getMaxCachedBody();
+    }
+
+    /**
+     * 解析PKCS#8格式的PEM私钥，同一个文件只解析一次
+     */
+    private static PrivateKey loadKey(Map<String, PrivateKey> privateKeys, String file)
+            throws IOException, GeneralSecurityException {
+        PrivateKey privateKey = privateKeys.get(file);
+        if (privateKey == null){
+            String pem = new String(Files.readAllBytes(Paths.get(file)), StandardCharsets.US_ASCII);
+            if (pem.contains("BEGIN RSA PRIVATE KEY")){
+                throw new GeneralSecurityException("the dkim private key must be PKCS#8: " + file);
+            }
+            String base64 = pem.replaceAll("-----[A-Z ]+-----", "").replaceAll("\\s", "");
+            privateKey = KeyFactory.getInstance("RSA")
+                    .generatePrivate(new PKCS8EncodedKeySpec(Base64.getDecoder().decode(base64)));
+            privateKeys.put(file, privateKey);
+        }
+        return privateKey;
+    }
+
+    /**
+     * 为构建好的邮件添加DKIM-Signature头，邮件会被保存（saveChanges）
+     * @param message 构建好的邮件
+     * @param mail 原始邮件，用于判断正文能否复用摘要
+     * @param mailSender 发件账号
+     * @return 是否已签名，发件地址没有签名配置时返回false
+     */
+    public boolean sign(MimeMessage message, Mail mail, MailSender mailSender)
+            throws MessagingException, IOException, GeneralSecurityException {
+        Address[] from = message.getFrom();
+        if (from == null || from.length == 0 || !(from[0] instanceof InternetAddress)){
+            throw new MessagingException("the from address of mail is empty");
+        }
+        String address = ((InternetAddress) from[0]).getAddress().toLowerCase(Locale.ROOT);
+        Key key = resolved.computeIfAbsent(address, this::resolve).orElse(null);
+        if (key == null){
+            return false;
+        }
+        BodyKey bodyKey = bodyKey(mail, mailSender);
+        if (bodyKey != null){
+            fixBoundaries(message, BOUNDARY_PREFIX);
+        }
+        message.saveChanges();
+        String bodyHash = bodyKey == null ? null : bodyHashes.get(bodyKey);
+        if (bodyHash == null){
+            bodyHash = hashBody(message);
+            if (bodyKey != null){
+                if (bodyHashes.size() >= bodyCacheSize){
+                    bodyHashes.clear();
+                }
+                bodyHashes.put(bodyKey, bodyHash);
+            }
+        }
+        Signature signature = SIGNATURES.get();
+        signature.initSign(key.privateKey);
+        StringBuilder signedHeaders = new StringBuilder(64);
+        StringBuilder canonical = new StringBuilder(512);
+        for (String name : headers) {
+            String[] values = message.getHeader(name);
+            if (values == null || values.length == 0){
+                continue;
+            }
+            if (signedHeaders.length() > 0){
+                signedHeaders.append(':');
+            }
+            signedHeaders.append(name);
+            // 同名的头有多个时，验证方从最后一个开始取
+            canonicalize(canonical, name, values[values.length - 1]).append("\r\n");
+        }
+        String domain = key.domain != null ? key.domain : address.substring(address.lastIndexOf('@') + 1);
+        String value = "v=1; a=rsa-sha256; c=relaxed/relaxed; d=" + domain + "; s=" + key.selector
+                + "; t=" + System.currentTimeMillis() / 1000 + "; h=" + signedHeaders + "; bh=" + bodyHash + "; b=";
+        canonicalize(canonical, "dkim-signature", value);
+        signature.update(canonical.toString().getBytes(StandardCharsets.UTF_8));
+        message.setHeader(HEADER, value + Base64.getEncoder().encodeToString(signature.sign()));
+        return true;
+    }
+
+    /**
+     * 匹配发件地址的签名配置：发件地址、发件域名、默认配置
+     */
+    private Optional<Key> resolve(String address) {
+        Key key = keys.get(address);
+        if (key == null){
+            key = keys.get(address.substring(address.lastIndexOf('@') + 1));
+        }
+        return Optional.ofNullable(key != null ? key : defaultKey);
+    }
+
+    /**
+     * @return 可以复用正文摘要时返回缓存的键，否则返回null
+     */
+    private BodyKey bodyKey(Mail mail, MailSender mailSender) {
+        String content = mail.getContent();
+        if (bodyCacheSize <= 0 || content == null || content.length() > maxCachedBody || mail.hasAttachments()
+                || !(mail instanceof HtmlMail || mail instanceof TextMail) || content.contains(BOUNDARY_PREFIX)){
+            return null;
+        }
+        return new BodyKey(mail.getClass(), mailSender.getDefaultEncoding(), content);
+    }
+
+    /**
+     * 把邮件中的多部分内容替换为固定分隔符（按层级和位置区分）的副本
+     */
+    private static void fixBoundaries(Part part, String boundary) throws MessagingException, IOException {
+        DataHandler dataHandler = part.getDataHandler();
+        String type = dataHandler.getContentType();
+        if (type == null || !type.regionMatches(true, 0, "multipart/", 0, 10)){
+            return;
+        }
+        MimeMultipart original = (MimeMultipart) dataHandler.getContent();
+        FixedBoundaryMultipart fixed = new FixedBoundaryMultipart(new ContentType(type).getSubType(), boundary);
+        List<BodyPart> parts = new ArrayList<>(original.getCount());
+        for (int i = 0; i < original.getCount(); i++) {
+            parts.add(original.getBodyPart(i));
+        }
+        for (int i = 0; i < parts.size(); i++) {
+            fixBoundaries(parts.get(i), boundary + "_" + i);
+            fixed.addBodyPart(parts.get(i));
+        }
+        part.setContent(fixed);
+    }
+
+    private static String hashBody(MimeMessage message) throws MessagingException, IOException {
+        RelaxedBodyOutputStream body = new RelaxedBodyOutputStream(DIGESTS.get());
+        message.writeTo(body);
+        return Base64.getEncoder().encodeToString(body.finish());
+    }
+
+    /**
+     * relaxed 规则的邮件头：名称小写，去掉折行，连续的空白合并为一个空格，去掉值首尾的空白
+     */
+    static StringBuilder canonicalize(StringBuilder out, String name, String value) {
+        out.append(name).append(':');
+        int start = out.length();
+        boolean space = false;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\r' || c == '\n'){
+                continue;
+            }
+            if (c == ' ' || c == '\t'){
+                space = true;
+                continue;
+            }
+            if (space && out.length() > start){
+                out.append(' ');
+            }
+            space = false;
+            out.append(c);
+        }
+        return out;
+    }
+
+    /**
+     * @return 缓存的正文摘要个数
+     */
+    public int cachedBodies() {
+        return bodyHashes.size();
+    }
+
+    private static Signature newSignature() {
+        try {
+            return Signature.getInstance("SHA256withRSA");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 签名配置：域名为空时使用发件地址的域名
+     */
+    private static final class Key {
+
+        final String domain;
+
+        final String selector;
+
+        final PrivateKey privateKey;
+
+        Key(String domain, String selector, PrivateKey privateKey) {
+            this.domain = domain;
+            this.selector = selector;
+            this.privateKey = privateKey;
+        }
+    }
+
+    /**
+     * 正文摘要的缓存键：邮件类型、编码和内容相同（并且没有附件）的邮件正文逐字节相同
+     */
+    private static final class BodyKey {
+
+        final Class<?> type;
+
+        final String charset;
+
+        final String content;
+
+        BodyKey(Class<?> type, String charset, String content) {
+            this.type = type;
+            this.charset = charset;
+            this.content = content;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o){
+                return true;
+            }
+            if (!(o instanceof BodyKey)){
+                return false;
+            }
+            BodyKey other = (BodyKey) o;
+            return type == other.type && Objects.equals(charset, other.charset) && content.equals(other.content);
+        }
+
+        @Override
+        public int hashCode() {
+            return content.hashCode() * 31 + Objects.hashCode(charset);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.svwh.mailservice.dkim;
+
+import java.io.OutputStream;
+import java.security.MessageDigest;
+
+/**
+ * @description 计算正文摘要：跳过整封邮件写出时的邮件头，正文按 relaxed 规则（RFC 6376 3.4.4）边规范化边计算摘要，不缓存正文。
+ *  行内连续的空白合并为一个空格，行尾空白去掉，末尾的空行去掉；单独的CR或LF与SMTP传输时一样视为行结束
+ * @Author cxk
+ */
+class RelaxedBodyOutputStream extends OutputStream {
+
+    private final MessageDigest digest;
+
+    private final byte[] buffer = new byte[8192];
+
+    private int count;
+
+    /**
+     * 邮件头结束标记 CRLFCRLF 已匹配的字节数，进入正文后为-1
+     */
+    private int headerMatched;
+
+    private boolean lastCr;
+
+    /**
+     * 是否有待写出的空白（遇到非空白字符时写出一个空格，遇到行结束时丢弃）
+     */
+    private boolean space;
+
+    /**
+     * 待写出的行结束数（遇到非空白字符时写出，正文结束时只保留一个）
+     */
+    private int lineEnds;
+
+    private boolean content;
+
+    RelaxedBodyOutputStream(MessageDigest digest) {
+        this.digest = digest;
+    }
+
+    @Override
+    public void write(int b) {
+        accept(b & 0xFF);
+    }
+
+    @Override
+    public void write(byte[] bytes, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            accept(bytes[i] & 0xFF);
+        }
+    }
+
+    private void accept(int b) {
+        if (headerMatched >= 0){
+            skipHeader(b);
+            return;
+        }
+        if (b == '\n' && lastCr){
+            lastCr = false;
+            return;
+        }
+        lastCr = b == '\r';
+        if (b == '\r' || b == '\n'){
+            space = false;
+            lineEnds++;
+        }else if (b == ' ' || b == '\t'){
+            space = true;
+        }else {
+            for (; lineEnds > 0; lineEnds--) {
+                put('\r');
+                put('\n');
+            }
+            if (space){
+                put(' ');
+                space = false;
+            }
+            put(b);
+            content = true;
+        }
+    }
+
+    private void skipHeader(int b) {
+        boolean expected = (headerMatched & 1) == 0 ? b == '\r' : b == '\n';
+        if (!expected){
+            headerMatched = b == '\r' ? 1 : 0;
+        }else if (++headerMatched == 4){
+            headerMatched = -1;
+        }
+    }
+
+    private void put(int b) {
+        if (count == buffer.length){
+            digest.update(buffer, 0, count);
+            count = 0;
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    /**
+     * 结束正文：非空的正文以一个CRLF结束
+     * @return 正文摘要
+     */
+    byte[] finish() {
+        if (content){
+            put('\r');
+            put('\n');
+        }
+        digest.update(buffer, 0, count);
+        count = 0;
+        return digest.digest();
+    }
+}
@@ -0,0 +1,19 @@
+package com.svwh.mailservice.enums;
+
+/**
+ * @description 邮箱账号选取策略
+ * @Author cxk
+ */
+public enum AccountSelectStrategyEnum {
+
+    /**
+     * 随机轮询（默认）
+     */
+    RANDOM,
+
+    /**
+     * 按剩余额度加权（抽样d个候选账号，选择剩余额度占比最高的账号）
+     */
+    QUOTA_WEIGHTED,
+    ;
+}
@@ -0,0 +1,24 @@
+package com.svwh.mailservice.enums;
+
+/**
+ * @description 事件缓冲区已满时的处理策略
+ * @Author cxk
+ */
+public enum EventOverflowEnum {
+
+    /**
+     * 丢弃新事件并计数（默认），发送线程不受监听器影响
+     */
+    DROP,
+
+    /**
+     * 发送线程等待缓冲区出现空位，事件不会丢失但慢监听器会拖慢发送
+     */
+    BLOCK,
+
+    /**
+     * 由发送线程直接通知监听器，事件不会丢失，但该事件与缓冲区中的事件顺序不再保证
+     */
+    CALLER_RUNS,
+    ;
+}
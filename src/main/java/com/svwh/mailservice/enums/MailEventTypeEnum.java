@@ -0,0 +1,44 @@
+package com.svwh.mailservice.enums;
+
+/**
+ * @description 邮件服务事件类型
+ * @Author cxk
+ */
+public enum MailEventTypeEnum {
+
+    /**
+     * 邮件发送成功
+     */
+    SENT,
+
+    /**
+     * 邮件本次投递失败（之后可能重发，也可能被放弃）
+     */
+    FAILED,
+
+    /**
+     * 严格到达的邮件投递失败后进入重发队列
+     */
+    RETRIED,
+
+    /**
+     * 邮件被放弃（非严格到达的邮件投递失败、严格到达队列被清空等）
+     */
+    DROPPED,
+
+    /**
+     * 服务过载时非严格到达的邮件被拒绝，或者为新邮件腾出名额而被丢弃（严格到达的邮件不会出现该事件）
+     */
+    SHED,
+
+    /**
+     * 邮件在截止时间前没有发送出去（例如服务关闭时超过等待时间且没有保存快照）
+     */
+    EXPIRED,
+
+    /**
+     * 邮箱服务资源耗尽（所有账号不可用）
+     */
+    RESOURCE_EXHAUSTED,
+    ;
+}
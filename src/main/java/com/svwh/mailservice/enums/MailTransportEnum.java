@@ -0,0 +1,19 @@
+package com.svwh.mailservice.enums;
+
+/**
+ * @description 邮件传输层类型
+ * @Author cxk
+ */
+public enum MailTransportEnum {
+
+    /**
+     * 基于javax.mail的阻塞投递（默认）
+     */
+    JAVA_MAIL,
+
+    /**
+     * 基于NIO的非阻塞投递
+     */
+    NIO,
+    ;
+}
@@ -0,0 +1,30 @@
+package com.svwh.mailservice.enums;
+
+/**
+ * @description 服务过载时的处理策略（只作用于非严格到达的邮件）
+ * @Author cxk
+ */
+public enum OverloadPolicyEnum {
+
+    /**
+     * 拒绝邮件并通知监听器（默认），send 返回false
+     */
+    SHED,
+
+    /**
+     * 写入磁盘日志，名额空出后重新投递
+     */
+    SPILL,
+
+    /**
+     * 丢弃最早排队的一封非严格到达邮件，为新邮件腾出名额
+     */
+    DROP_OLDEST,
+
+    /**
+     * 由应用的调用线程直接发送，调用方因此被减速：接收时不再等待队列名额，线程池拒绝时先等待线程池队列空出位置；
+     * 同时由调用方发送的邮件数不超过发送线程池的最大线程数，内部线程改为写入磁盘日志
+     */
+    CALLER_RUNS,
+    ;
+}
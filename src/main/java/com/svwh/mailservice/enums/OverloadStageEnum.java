@@ -0,0 +1,19 @@
+package com.svwh.mailservice.enums;
+
+/**
+ * @description 发生过载的环节
+ * @Author cxk
+ */
+public enum OverloadStageEnum {
+
+    /**
+     * 接收邮件时准入名额已用完
+     */
+    ADMISSION,
+
+    /**
+     * 已接收的邮件被线程池拒绝执行
+     */
+    EXECUTOR,
+    ;
+}
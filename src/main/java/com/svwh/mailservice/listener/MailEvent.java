@@ -0,0 +1,77 @@
+package com.svwh.mailservice.listener;
+
+import com.svwh.mailservice.enums.MailEventTypeEnum;
+import com.svwh.mailservice.mail.Mail;
+import com.svwh.mailservice.mail.MailSender;
+
+/**
+ * @description 邮件服务事件（不可变）
+ * @Author cxk
+ */
+public final class MailEvent {
+
+    private final MailEventTypeEnum type;
+
+    private final Mail mail;
+
+    /**
+     * 发件账号，与具体账号无关的事件为null
+     */
+    private final MailSender mailSender;
+
+    /**
+     * 失败原因，没有失败原因的事件为null
+     */
+    private final Throwable cause;
+
+    /**
+     * 事件发生前邮件已尝试发送的次数
+     */
+    private final int attempts;
+
+    private final long timestamp;
+
+    public MailEvent(MailEventTypeEnum type, Mail mail, MailSender mailSender, Throwable cause, int attempts) {
+        this.type = type;
+        this.mail = mail;
+        this.mailSender = mailSender;
+        this.cause = cause;
+        this.attempts = attempts;
+        this.timestamp = System.currentTimeMillis();
+    }
+
+    public MailEventTypeEnum getType() {
+        return type;
+    }
+
+    public Mail getMail() {
+        return mail;
+    }
+
+    public MailSender getMailSender() {
+        return mailSender;
+    }
+
+    public Throwable getCause() {
+        return cause;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    @Override
+    public String toString() {
+        return "MailEvent{" +
+                "type=" + type +
+                ", toMail=" + (mail == null ? null : mail.getToMail()) +
+                ", mailSender=" + (mailSender == null ? null : mailSender.getUsername()) +
+                ", cause=" + cause +
+                ", attempts=" + attempts +
+                '}';
+    }
+}
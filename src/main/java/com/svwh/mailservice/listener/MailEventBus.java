@@ -0,0 +1,282 @@
+package com.svwh.mailservice.listener;
+
+import com.svwh.mailservice.enums.EventOverflowEnum;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @description 异步事件总线
+ *  发送线程把事件写入有界的无锁环形缓冲区后立即返回，由单独的分发线程按批取出并通知监听器，
+ *  监听器中的耗时操作（例如写库）不再占用发送线程。
+ *  环形缓冲区为多生产者单消费者：每个槽位带一个序号，生产者CAS占位后写入事件再发布序号，
+ *  分发线程看到序号发布后取走事件并把槽位交还给下一轮的生产者。
+ * @Author cxk
+ */
+public class MailEventBus {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MailEventBus.class);
+
+    /**
+     * 缓冲区为空时分发线程的最长等待时间
+     */
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /**
+     * 缓冲区已满并采用BLOCK策略时生产者的等待时间
+     */
+    private static final long FULL_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    /**
+     * 丢弃事件的告警间隔
+     */
+    private static final long DROP_WARN_INTERVAL = TimeUnit.SECONDS.toMillis(10);
+
+    private final MailServiceListener listener;
+
+    private final EventOverflowEnum overflow;
+
+    private final int batchSize;
+
+    private final int mask;
+
+    private final MailEvent[] slots;
+
+    /**
+     * 槽位序号：等于写入位置时槽位可写，等于写入位置+1时事件已发布可读
+     */
+    private final AtomicLongArray sequences;
+
+    /**
+     * 下一个写入位置（生产者CAS竞争）
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * 下一个读取位置（只有分发线程读写）
+     */
+    private long head;
+
+    /**
+     * 分发线程已经取走的事件数（用于统计）
+     */
+    private volatile long consumed;
+
+    private final Thread dispatcher;
+
+    private volatile boolean running = true;
+
+    /**
+     * 分发线程是否正在等待新事件
+     */
+    private volatile boolean waiting;
+
+    private final LongAdder published = new LongAdder();
+
+    private final LongAdder dropped = new LongAdder();
+
+    private long reportedDropped;
+
+    private long lastDropWarn;
+
+    /**
+     * @param listener 监听器
+     * @param bufferSize 缓冲区大小，向上取整为2的幂
+     * @param batchSize 每批最多通知的事件数
+     * @param overflow 缓冲区已满时的处理策略
+     */
+    public MailEventBus(MailServiceListener listener, int bufferSize, int batchSize, EventOverflowEnum overflow) {
+        if (bufferSize <= 0 || batchSize <= 0){
+            throw new IllegalArgumentException("the bufferSize and batchSize must be positive");
+        }
+        int capacity = bufferSize > (1 << 30) ? 1 << 30 : Integer.highestOneBit(bufferSize - 1) << 1;
+        capacity = Math.max(capacity, 2);
+        this.listener = listener;
+        this.overflow = overflow;
+        this.batchSize = batchSize;
+        this.mask = capacity - 1;
+        this.slots = new MailEvent[capacity];
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+        this.dispatcher = new Thread(this::dispatch, "mail-event-dispatcher");
+        this.dispatcher.setDaemon(true);
+        this.dispatcher.start();
+    }
+
+    /**
+     * 发布事件，缓冲区已满时按溢出策略处理；总线关闭后事件直接在当前线程通知
+     * @param event 事件
+     */
+    public void publish(MailEvent event) {
+        if (!running){
+            deliver(Collections.singletonList(event));
+            return;
+        }
+        if (offer(event)){
+            return;
+        }
+        switch (overflow) {
+            case BLOCK:
+                while (!offer(event)) {
+                    if (!running){
+                        deliver(Collections.singletonList(event));
+                        return;
+                    }
+                    LockSupport.parkNanos(FULL_PARK_NANOS);
+                }
+                break;
+            case CALLER_RUNS:
+                deliver(Collections.singletonList(event));
+                break;
+            default:
+                dropped.increment();
+                break;
+        }
+    }
+
+    private boolean offer(MailEvent event) {
+        long position;
+        int index;
+        while (true) {
+            position = tail.get();
+            index = (int) (position & mask);
+            long sequence = sequences.get(index);
+            if (sequence == position){
+                if (tail.compareAndSet(position, position + 1)){
+                    break;
+                }
+            }else if (sequence < position){
+                // 槽位还没有被分发线程取走，缓冲区已满
+                return false;
+            }
+        }
+        slots[index] = event;
+        sequences.set(index, position + 1);
+        published.increment();
+        if (waiting){
+            LockSupport.unpark(dispatcher);
+        }
+        return true;
+    }
+
+    /**
+     * 分发线程取出一批事件
+     */
+    private int drain(List<MailEvent> batch) {
+        int count = 0;
+        while (count < batchSize) {
+            int index = (int) (head & mask);
+            if (sequences.get(index) != head + 1){
+                break;
+            }
+            batch.add(slots[index]);
+            slots[index] = null;
+            sequences.set(index, head + slots.length);
+            head++;
+            count++;
+        }
+        consumed = head;
+        return count;
+    }
+
+    private boolean isEmpty() {
+        return sequences.get((int) (head & mask)) != head + 1;
+    }
+
+    private void dispatch() {
+        List<MailEvent> batch = new ArrayList<>(batchSize);
+        while (true) {
+            if (drain(batch) > 0){
+                deliver(batch);
+                batch.clear();
+                continue;
+            }
+            if (!running){
+                // 已占位但还没发布的事件也要等它发布后通知
+                if (tail.get() == head){
+                    break;
+                }
+                Thread.yield();
+                continue;
+            }
+            reportDropped();
+            waiting = true;
+            // 设置等待标记后再检查一次，防止错过等待前刚发布的事件
+            if (isEmpty() && running){
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+            }
+            waiting = false;
+        }
+        reportDropped();
+    }
+
+    private void deliver(List<MailEvent> events) {
+        try {
+            listener.onEvents(events);
+        } catch (RuntimeException e) {
+            LOGGER.error("邮件服务监听器处理 {} 个事件时发生了错误", events.size(), e);
+        }
+    }
+
+    private void reportDropped() {
+        long total = dropped.sum();
+        long now = System.currentTimeMillis();
+        if (total > reportedDropped && now - lastDropWarn >= DROP_WARN_INTERVAL){
+            LOGGER.warn("事件缓冲区已满，丢弃了 {} 个事件（累计 {} 个）", total - reportedDropped, total);
+            reportedDropped = total;
+            lastDropWarn = now;
+        }
+    }
+
+    /**
+     * 关闭事件总线：停止接收新事件，等待分发线程通知完缓冲区中剩余的事件
+     * @param timeout 最长等待时间（毫秒）
+     */
+    public void close(long timeout) {
+        running = false;
+        LockSupport.unpark(dispatcher);
+        try {
+            dispatcher.join(Math.max(1, timeout));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (dispatcher.isAlive()){
+            LOGGER.warn("事件总线关闭超时，缓冲区中可能还有未通知的事件");
+        }
+    }
+
+    /**
+     * @return 已进入缓冲区的事件数
+     */
+    public long publishedEvents() {
+        return published.sum();
+    }
+
+    /**
+     * @return 因缓冲区已满而丢弃的事件数
+     */
+    public long droppedEvents() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return 缓冲区中等待通知的事件数（近似值）
+     */
+    public long pendingEvents() {
+        return Math.max(0, tail.get() - consumed);
+    }
+
+    public int capacity() {
+        return slots.length;
+    }
+}
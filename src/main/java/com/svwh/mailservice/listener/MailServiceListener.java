@@ -4,6 +4,8 @@ package com.svwh.mailservice.listener;
 import com.svwh.mailservice.mail.Mail;
 import com.svwh.mailservice.mail.MailSender;
 
+import java.util.List;
+
 /**
  * @description 邮件服务监听器
  * @Author cxk
@@ -21,4 +23,33 @@ public interface MailServiceListener {
      * @param mailSender 邮件发送账号。
      */
     void successListener(Mail mail,MailSender mailSender);
+
+    /**
+     * 单个事件的监听，默认把发送成功和资源耗尽事件转发给 {@link #successListener} 和 {@link #errorListener}
+     * 需要失败、重发、放弃等事件时重写该方法
+     * @param event 事件
+     */
+    default void onEvent(MailEvent event) {
+        switch (event.getType()) {
+            case SENT:
+                successListener(event.getMail(), event.getMailSender());
+                break;
+            case RESOURCE_EXHAUSTED:
+                errorListener();
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * 批量事件的监听，开启异步事件时由事件分发线程按批调用，默认逐个调用 {@link #onEvent}
+     * 需要批量处理（例如批量写库）时重写该方法
+     * @param events 按发生顺序排列的一批事件
+     */
+    default void onEvents(List<MailEvent> events) {
+        for (MailEvent event : events) {
+            onEvent(event);
+        }
+    }
 }
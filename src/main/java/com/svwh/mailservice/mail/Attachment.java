@@ -0,0 +1,106 @@
+package com.svwh.mailservice.mail;
+
+import com.svwh.mailservice.attachment.ByteBufferDataSource;
+import com.svwh.mailservice.attachment.MappedFileDataSource;
+import com.svwh.mailservice.util.ParamAssert;
+
+import javax.activation.DataSource;
+import java.io.File;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * @description 邮件附件
+ *  附件只引用文件或者ByteBuffer，不持有附件内容的堆内拷贝，
+ *  发送时由邮件客户端从数据源中流式读取并进行base64编码后直接写入SMTP连接。
+ * @Author cxk
+ */
+public class Attachment {
+
+    private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+
+    /**
+     * 附件名称
+     */
+    private final String name;
+
+    /**
+     * 附件类型
+     */
+    private final String contentType;
+
+    /**
+     * 附件数据源
+     */
+    private final DataSource dataSource;
+
+    public Attachment(String name, String contentType, DataSource dataSource) {
+        ParamAssert.stringNotEmpty(name, "the name of attachment is empty");
+        ParamAssert.notNull(dataSource, "the dataSource of attachment is null");
+        this.name = name;
+        this.contentType = contentType;
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * 以文件作为附件，附件名为文件名
+     */
+    public static Attachment ofFile(File file) {
+        return ofFile(file.toPath(), file.getName());
+    }
+
+    /**
+     * 以文件作为附件
+     * @param path 文件路径
+     * @param name 附件名称
+     */
+    public static Attachment ofFile(Path path, String name) {
+        ParamAssert.notNull(path, "the path of attachment is null");
+        if (!Files.isRegularFile(path)){
+            throw new IllegalArgumentException("the attachment file is not exist: " + path);
+        }
+        String contentType = guessContentType(name);
+        return new Attachment(name, contentType, new MappedFileDataSource(path, name, contentType));
+    }
+
+    /**
+     * 以ByteBuffer（推荐使用堆外内存）作为附件，读取时不会修改缓冲区的position
+     * @param name 附件名称
+     * @param buffer 附件内容
+     */
+    public static Attachment ofBuffer(String name, ByteBuffer buffer) {
+        return ofBuffer(name, buffer, guessContentType(name));
+    }
+
+    public static Attachment ofBuffer(String name, ByteBuffer buffer, String contentType) {
+        ParamAssert.notNull(buffer, "the buffer of attachment is null");
+        return new Attachment(name, contentType, new ByteBufferDataSource(name, contentType, buffer));
+    }
+
+    private static String guessContentType(String name) {
+        String contentType = URLConnection.guessContentTypeFromName(name);
+        return contentType == null ? DEFAULT_CONTENT_TYPE : contentType;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public DataSource getDataSource() {
+        return dataSource;
+    }
+
+    @Override
+    public String toString() {
+        return "Attachment{" +
+                "name='" + name + '\'' +
+                ", contentType='" + contentType + '\'' +
+                '}';
+    }
+}
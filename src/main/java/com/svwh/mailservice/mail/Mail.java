@@ -1,12 +1,14 @@
 package com.svwh.mailservice.mail;
 
+import javax.mail.internet.InternetAddress;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
  * @description
  * @Author cxk
  */
-public class Mail {
+public class Mail implements Cloneable {
 
     private List<String> toMail;
 
@@ -19,12 +21,49 @@ public class Mail {
      */
     private Boolean strictArrive = false;
 
+    /**
+     * 幂等键（可选），开启去重后同一个键的邮件在有效期内只发送一次
+     */
+    private String idempotencyKey;
+
+    /**
+     * 租户（可选），开启多租户隔离后按租户分配额度和调度，没有设置时属于默认租户
+     */
+    private String tenant;
+
+    /**
+     * 合并类别（可选），开启通知合并后同一收件人、同一类别的邮件在短时间内合并为一封发送
+     */
+    private String digestCategory;
+
+    /**
+     * 附件（只引用文件或缓冲区，不持有附件内容）
+     */
+    private List<Attachment> attachments;
+
+    /**
+     * 接收邮件时解析好的收件人地址（与toMail一一对应），修改收件人后失效
+     */
+    private transient InternetAddress[] recipientAddresses;
+
     public List<String> getToMail() {
         return toMail;
     }
 
     public void setToMail(List<String> toMail) {
         this.toMail = toMail;
+        this.recipientAddresses = null;
+    }
+
+    /**
+     * @return 解析好的收件人地址，还没有解析时返回null
+     */
+    public InternetAddress[] getRecipientAddresses() {
+        return recipientAddresses;
+    }
+
+    public void setRecipientAddresses(InternetAddress[] recipientAddresses) {
+        this.recipientAddresses = recipientAddresses;
     }
 
     public String getSubject() {
@@ -52,12 +91,75 @@ public class Mail {
         this.strictArrive = strictArrive;
     }
 
+    public String getIdempotencyKey() {
+        return idempotencyKey;
+    }
+
+    public void setIdempotencyKey(String idempotencyKey) {
+        this.idempotencyKey = idempotencyKey;
+    }
+
+    public String getTenant() {
+        return tenant;
+    }
+
+    public void setTenant(String tenant) {
+        this.tenant = tenant;
+    }
+
+    public String getDigestCategory() {
+        return digestCategory;
+    }
+
+    public void setDigestCategory(String digestCategory) {
+        this.digestCategory = digestCategory;
+    }
+
+    public List<Attachment> getAttachments() {
+        return attachments;
+    }
+
+    public void setAttachments(List<Attachment> attachments) {
+        this.attachments = attachments;
+    }
+
+    /**
+     * 添加一个附件
+     * @param attachment 附件
+     */
+    public void addAttachment(Attachment attachment) {
+        if (attachments == null){
+            attachments = new ArrayList<>();
+        }
+        attachments.add(attachment);
+    }
+
+    public boolean hasAttachments() {
+        return attachments != null && !attachments.isEmpty();
+    }
+
+    /**
+     * 复制一封收件人不同、其余内容相同的邮件（浅拷贝）
+     * @param toMail 新的收件人
+     * @return 新的邮件
+     */
+    public Mail copy(List<String> toMail) {
+        try {
+            Mail mail = (Mail) super.clone();
+            mail.setToMail(toMail);
+            return mail;
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
     @Override
     public String toString() {
         return "Mail{" +
                 "toMail=" + toMail +
                 ", subject='" + subject + '\'' +
                 ", content='" + content + '\'' +
+                ", attachments=" + attachments +
                 '}';
     }
 }
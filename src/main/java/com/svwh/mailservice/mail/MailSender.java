@@ -67,6 +67,11 @@ public class MailSender {
      */
     private long startLimitTime;
 
+    /**
+     * 账号被运维手动暂停（不必配置此选项），暂停期间不参与发送，直到手动恢复
+     */
+    private volatile boolean paused;
+
     public long getStartLimitTime() {
         return startLimitTime;
     }
@@ -83,6 +88,14 @@ public class MailSender {
         isLimited = limited;
     }
 
+    public boolean isPaused() {
+        return paused;
+    }
+
+    public void setPaused(boolean paused) {
+        this.paused = paused;
+    }
+
     public String getHostName() {
         return hostName;
     }
@@ -178,6 +191,7 @@ public class MailSender {
                 ", senderRank=" + senderRank +
                 ", isLimited=" + isLimited +
                 ", startLimitTime=" + startLimitTime +
+                ", paused=" + paused +
                 '}';
     }
 }
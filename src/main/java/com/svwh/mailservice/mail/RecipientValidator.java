@@ -0,0 +1,155 @@
+package com.svwh.mailservice.mail;
+
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @description 收件人解析与校验
+ *  接收邮件时就把收件人解析为 {@link InternetAddress}，非法的收件人在占用名额、线程和账号额度之前被拒绝。
+ *  每个地址的解析结果（包括非法的原因）和每个域名的校验结果都会被缓存，重复的收件人不再重复解析。
+ * @Author cxk
+ */
+public class RecipientValidator {
+
+    private static final int MAX_DOMAIN_LENGTH = 253;
+
+    private static final int MAX_LABEL_LENGTH = 63;
+
+    /**
+     * 地址解析结果缓存：合法地址对应 {@link InternetAddress}，非法地址对应非法的原因
+     */
+    private final ConcurrentHashMap<String, Object> addressCache = new ConcurrentHashMap<>();
+
+    /**
+     * 域名校验结果缓存
+     */
+    private final ConcurrentHashMap<String, Boolean> domainCache = new ConcurrentHashMap<>();
+
+    private final int addressCacheSize;
+
+    private final int domainCacheSize;
+
+    public RecipientValidator(int addressCacheSize, int domainCacheSize) {
+        this.addressCacheSize = addressCacheSize;
+        this.domainCacheSize = domainCacheSize;
+    }
+
+    /**
+     * 解析收件人
+     * @param address 收件人，支持 "名称 &lt;地址&gt;" 的写法
+     * @return 解析好的地址
+     * @throws AddressException 地址非法
+     */
+    public InternetAddress parse(String address) throws AddressException {
+        if (address == null){
+            throw new AddressException("the recipient is null");
+        }
+        Object cached = addressCache.get(address);
+        if (cached == null){
+            cached = resolve(address);
+            // 缓存过大时直接清空，常用的收件人很快会重新进入缓存
+            if (addressCache.size() >= addressCacheSize){
+                addressCache.clear();
+            }
+            addressCache.put(address, cached);
+        }
+        if (cached instanceof InternetAddress){
+            return (InternetAddress) cached;
+        }
+        throw new AddressException((String) cached, address);
+    }
+
+    /**
+     * 解析邮件的所有收件人，合法的收件人保存到邮件中，发送时不再重复解析
+     * @param mail 邮件
+     * @return 非法的收件人，全部合法时返回空集合
+     */
+    public List<String> validate(Mail mail) {
+        List<String> toMail = mail.getToMail();
+        InternetAddress[] addresses = new InternetAddress[toMail.size()];
+        List<String> invalid = null;
+        int valid = 0;
+        for (String address : toMail) {
+            try {
+                addresses[valid] = parse(address);
+                valid++;
+            } catch (AddressException e) {
+                if (invalid == null){
+                    invalid = new ArrayList<>();
+                }
+                invalid.add(address);
+            }
+        }
+        if (invalid == null){
+            mail.setRecipientAddresses(addresses);
+            return Collections.emptyList();
+        }
+        return invalid;
+    }
+
+    private Object resolve(String address) {
+        InternetAddress internetAddress;
+        try {
+            internetAddress = new InternetAddress(address);
+            internetAddress.validate();
+        } catch (AddressException e) {
+            return e.getMessage();
+        }
+        String email = internetAddress.getAddress();
+        int at = email.lastIndexOf('@');
+        if (at <= 0 || at == email.length() - 1){
+            return "Missing domain";
+        }
+        if (!validDomain(email.substring(at + 1))){
+            return "Invalid domain";
+        }
+        return internetAddress;
+    }
+
+    private boolean validDomain(String domain) {
+        String key = domain.toLowerCase();
+        Boolean valid = domainCache.get(key);
+        if (valid == null){
+            valid = checkDomain(key);
+            if (domainCache.size() >= domainCacheSize){
+                domainCache.clear();
+            }
+            domainCache.put(key, valid);
+        }
+        return valid;
+    }
+
+    /**
+     * 域名语法校验：地址字面量（[...]）直接通过，其余按标签检查长度和字符
+     */
+    private static boolean checkDomain(String domain) {
+        if (domain.startsWith("[") && domain.endsWith("]")){
+            return true;
+        }
+        if (domain.length() > MAX_DOMAIN_LENGTH){
+            return false;
+        }
+        int labelStart = 0;
+        for (int i = 0; i <= domain.length(); i++) {
+            if (i == domain.length() || domain.charAt(i) == '.'){
+                int length = i - labelStart;
+                if (length == 0 || length > MAX_LABEL_LENGTH
+                        || domain.charAt(labelStart) == '-' || domain.charAt(i - 1) == '-'){
+                    return false;
+                }
+                labelStart = i + 1;
+                continue;
+            }
+            char c = domain.charAt(i);
+            // 国际化域名的非ASCII字符交给服务器判断
+            if (c < 128 && !(Character.isLetterOrDigit(c) || c == '-' || c == '_')){
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,120 @@
+package com.svwh.mailservice.monitor;
+
+import com.svwh.mailservice.transport.SmtpReplyCodes;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @description 单个发件账号的运行统计：正在投递的邮件数、成功失败次数以及最近的错误
+ * @Author cxk
+ */
+public class MailAccountStats {
+
+    /**
+     * 保留的最近错误数
+     */
+    private static final int RECENT_ERROR_SIZE = 10;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final LongAdder sent = new LongAdder();
+
+    private final LongAdder failed = new LongAdder();
+
+    /**
+     * 最近的错误（环形缓冲区）
+     */
+    private final RecentError[] recentErrors = new RecentError[RECENT_ERROR_SIZE];
+
+    private int nextError;
+
+    public void onSend() {
+        inFlight.incrementAndGet();
+    }
+
+    /**
+     * 投递完成
+     * @param error 失败原因，成功时为null
+     */
+    public void onComplete(Throwable error) {
+        inFlight.decrementAndGet();
+        if (error == null){
+            sent.increment();
+            return;
+        }
+        failed.increment();
+        RecentError recentError = new RecentError(System.currentTimeMillis(), errorCode(error), String.valueOf(error.getMessage()));
+        synchronized (recentErrors) {
+            recentErrors[nextError] = recentError;
+            nextError = (nextError + 1) % RECENT_ERROR_SIZE;
+        }
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public long getSent() {
+        return sent.sum();
+    }
+
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    /**
+     * @return 最近的错误，按时间从新到旧排列
+     */
+    public List<Map<String, Object>> getRecentErrors() {
+        List<Map<String, Object>> errors = new ArrayList<>(RECENT_ERROR_SIZE);
+        synchronized (recentErrors) {
+            for (int i = 1; i <= RECENT_ERROR_SIZE; i++) {
+                RecentError error = recentErrors[(nextError - i + RECENT_ERROR_SIZE) % RECENT_ERROR_SIZE];
+                if (error == null){
+                    break;
+                }
+                Map<String, Object> item = new LinkedHashMap<>();
+                item.put("time", error.time);
+                item.put("code", error.code);
+                item.put("message", error.message);
+                errors.add(item);
+            }
+        }
+        return errors;
+    }
+
+    /**
+     * 错误码：SMTP应答码，没有应答码时为最底层的异常类型
+     */
+    static String errorCode(Throwable error) {
+        int replyCode = SmtpReplyCodes.replyCode(error);
+        if (replyCode > 0){
+            return String.valueOf(replyCode);
+        }
+        Throwable root = error;
+        while (root.getCause() != null && root.getCause() != root) {
+            root = root.getCause();
+        }
+        return root.getClass().getSimpleName();
+    }
+
+    private static final class RecentError {
+
+        final long time;
+
+        final String code;
+
+        final String message;
+
+        RecentError(long time, String code, String message) {
+            this.time = time;
+            this.code = code;
+            this.message = message;
+        }
+    }
+}
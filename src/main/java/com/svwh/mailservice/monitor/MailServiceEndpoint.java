@@ -0,0 +1,172 @@
+package com.svwh.mailservice.monitor;
+
+import com.svwh.mailservice.algrothim.AccountSnapshot;
+import com.svwh.mailservice.algrothim.RateLimit;
+import com.svwh.mailservice.algrothim.RateLimitExecutor;
+import com.svwh.mailservice.core.MailService;
+import com.svwh.mailservice.core.StandAloneMailService;
+import com.svwh.mailservice.mail.MailSender;
+import org.springframework.boot.actuate.endpoint.InvalidEndpointRequestException;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Selector;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.lang.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @description 邮件服务的Actuator端点（/actuator/mailservice）
+ *  读操作：查看每个发件账号的等级、限制与暂停状态、剩余封禁时间、时间窗口用量、正在投递的邮件数和最近的错误码，以及各队列的深度。
+ *  写操作：不刷新配置直接暂停/恢复账号、强制设置账号等级、清空严格到达队列。
+ * @Author cxk
+ */
+@Endpoint(id = "mailservice")
+public class MailServiceEndpoint {
+
+    private final MailService mailService;
+
+    private final RateLimitExecutor rateLimitExecutor;
+
+    public MailServiceEndpoint(MailService mailService, RateLimitExecutor rateLimitExecutor) {
+        this.mailService = mailService;
+        this.rateLimitExecutor = rateLimitExecutor;
+    }
+
+    /**
+     * 邮件服务整体的运行状态
+     */
+    @ReadOperation
+    public Map<String, Object> state() {
+        Map<String, Object> state = new LinkedHashMap<>();
+        state.put("queues", queues());
+        AccountSnapshot snapshot = rateLimitExecutor.snapshot();
+        List<Map<String, Object>> accounts = new ArrayList<>(snapshot.size());
+        for (MailSender mailSender : snapshot.getMailSenders()) {
+            accounts.add(accountState(snapshot, mailSender));
+        }
+        state.put("accounts", accounts);
+        return state;
+    }
+
+    /**
+     * 单个账号的运行状态，账号不存在时返回404
+     */
+    @ReadOperation
+    public Map<String, Object> account(@Selector String username) {
+        AccountSnapshot snapshot = rateLimitExecutor.snapshot();
+        MailSender mailSender = find(snapshot, username);
+        return mailSender == null ? null : accountState(snapshot, mailSender);
+    }
+
+    /**
+     * 控制单个账号
+     * @param username 账号用户名
+     * @param action pause（暂停）、resume（恢复）、rank（强制设置等级）
+     * @param rank action为rank时的目标等级
+     */
+    @WriteOperation
+    public Map<String, Object> controlAccount(@Selector String username, String action, @Nullable Integer rank) {
+        AccountSnapshot snapshot = rateLimitExecutor.snapshot();
+        MailSender mailSender = find(snapshot, username);
+        if (mailSender == null){
+            throw new InvalidEndpointRequestException("no such account: " + username, "no such account");
+        }
+        switch (action) {
+            case "pause":
+                rateLimitExecutor.pause(mailSender);
+                break;
+            case "resume":
+                rateLimitExecutor.resume(mailSender);
+                break;
+            case "rank":
+                if (rank == null || !rateLimitExecutor.forceRank(mailSender, rank)){
+                    throw new InvalidEndpointRequestException("invalid rank: " + rank, "invalid rank");
+                }
+                break;
+            default:
+                throw new InvalidEndpointRequestException("unknown action: " + action, "unknown action");
+        }
+        return accountState(rateLimitExecutor.snapshot(), mailSender);
+    }
+
+    /**
+     * 控制整个邮件服务
+     * @param action drain-strict-queue（清空严格到达队列）
+     */
+    @WriteOperation
+    public Map<String, Object> controlService(String action) {
+        if (!"drain-strict-queue".equals(action)){
+            throw new InvalidEndpointRequestException("unknown action: " + action, "unknown action");
+        }
+        if (!(mailService instanceof StandAloneMailService)){
+            throw new InvalidEndpointRequestException("the mail service does not support " + action, "unsupported action");
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("drained", ((StandAloneMailService) mailService).drainStrictQueue());
+        result.put("queues", queues());
+        return result;
+    }
+
+    private Map<String, Object> queues() {
+        Map<String, Object> queues = new LinkedHashMap<>();
+        queues.put("strictQueue", mailService.awaitSendNum());
+        if (mailService instanceof StandAloneMailService){
+            StandAloneMailService standAloneMailService = (StandAloneMailService) mailService;
+            queues.put("accepted", standAloneMailService.acceptedNum());
+            queues.put("executorQueue", standAloneMailService.executorQueueSize());
+            queues.put("inFlight", standAloneMailService.inFlightNum());
+            queues.put("poolSize", standAloneMailService.poolSize());
+            queues.put("digestPending", standAloneMailService.digestPendingNum());
+            Map<String, Integer> tenantQueues = standAloneMailService.tenantQueueSizes();
+            if (!tenantQueues.isEmpty()){
+                queues.put("tenantQueues", tenantQueues);
+            }
+            Map<String, Integer> laneQueues = standAloneMailService.laneQueueSizes();
+            if (!laneQueues.isEmpty()){
+                queues.put("laneQueues", laneQueues);
+            }
+        }
+        return queues;
+    }
+
+    private Map<String, Object> accountState(AccountSnapshot snapshot, MailSender mailSender) {
+        Map<String, Object> state = new LinkedHashMap<>();
+        state.put("username", mailSender.getUsername());
+        state.put("hostName", mailSender.getHostName());
+        state.put("configuredRank", mailSender.getSenderRank());
+        state.put("rank", snapshot.rank(mailSender));
+        state.put("paused", mailSender.isPaused());
+        state.put("limited", mailSender.isLimited());
+        state.put("limitRemainingMillis", rateLimitExecutor.limitRemainingMillis(mailSender));
+        RateLimit rateLimit = snapshot.rateLimit(mailSender);
+        if (rateLimit != null){
+            Map<String, Object> window = new LinkedHashMap<>();
+            window.put("used", rateLimit.windowUsed());
+            window.put("limit", rateLimit.windowLimit());
+            window.put("remainingMillis", rateLimit.windowRemainingMillis());
+            window.put("remainingQuota", rateLimit.remainingQuota());
+            state.put("window", window);
+        }
+        MailAccountStats stats = mailService instanceof StandAloneMailService
+                ? ((StandAloneMailService) mailService).getMetrics().find(mailSender.getUsername()) : null;
+        state.put("inFlight", stats == null ? 0 : stats.getInFlight());
+        state.put("sent", stats == null ? 0 : stats.getSent());
+        state.put("failed", stats == null ? 0 : stats.getFailed());
+        state.put("recentErrors", stats == null ? Collections.emptyList() : stats.getRecentErrors());
+        return state;
+    }
+
+    private static MailSender find(AccountSnapshot snapshot, String username) {
+        for (MailSender mailSender : snapshot.getMailSenders()) {
+            if (mailSender.getUsername().equals(username)){
+                return mailSender;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,53 @@
+package com.svwh.mailservice.monitor;
+
+import com.svwh.mailservice.algrothim.RateLimitExecutor;
+import com.svwh.mailservice.core.MailService;
+import com.svwh.mailservice.mail.MailSender;
+import org.springframework.boot.actuate.health.AbstractHealthIndicator;
+import org.springframework.boot.actuate.health.Health;
+
+import java.util.List;
+
+/**
+ * @description 邮件服务健康检查：至少有一个账号可用（未被限制且未被暂停）时为UP，否则为DOWN
+ * @Author cxk
+ */
+public class MailServiceHealthIndicator extends AbstractHealthIndicator {
+
+    private final MailService mailService;
+
+    private final RateLimitExecutor rateLimitExecutor;
+
+    public MailServiceHealthIndicator(MailService mailService, RateLimitExecutor rateLimitExecutor) {
+        super("邮件服务健康检查失败");
+        this.mailService = mailService;
+        this.rateLimitExecutor = rateLimitExecutor;
+    }
+
+    @Override
+    protected void doHealthCheck(Health.Builder builder) {
+        List<MailSender> mailSenders = rateLimitExecutor.snapshot().getMailSenders();
+        int available = 0;
+        int limited = 0;
+        int paused = 0;
+        for (MailSender mailSender : mailSenders) {
+            if (mailSender.isPaused()){
+                paused++;
+            }else if (mailSender.isLimited() && rateLimitExecutor.limitRemainingMillis(mailSender) > 0){
+                limited++;
+            }else {
+                available++;
+            }
+        }
+        if (available > 0){
+            builder.up();
+        }else {
+            builder.down();
+        }
+        builder.withDetail("accounts", mailSenders.size())
+                .withDetail("available", available)
+                .withDetail("limited", limited)
+                .withDetail("paused", paused)
+                .withDetail("strictQueue", mailService.awaitSendNum());
+    }
+}
@@ -0,0 +1,25 @@
+package com.svwh.mailservice.monitor;
+
+import com.svwh.mailservice.mail.MailSender;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @description 邮件服务的运行统计，按发件账号（用户名）汇总
+ * @Author cxk
+ */
+public class MailServiceMetrics {
+
+    private final ConcurrentHashMap<String, MailAccountStats> accountStats = new ConcurrentHashMap<>();
+
+    public MailAccountStats account(MailSender mailSender) {
+        return accountStats.computeIfAbsent(mailSender.getUsername(), key -> new MailAccountStats());
+    }
+
+    /**
+     * @return 账号的统计，账号还没有发送过邮件时返回null
+     */
+    public MailAccountStats find(String username) {
+        return accountStats.get(username);
+    }
+}
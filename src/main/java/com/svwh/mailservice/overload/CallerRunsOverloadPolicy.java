@@ -0,0 +1,24 @@
+package com.svwh.mailservice.overload;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @description 由应用的调用线程直接发送，调用方因此被减速；内部线程不会被阻塞，改为写入磁盘日志
+ * @Author cxk
+ */
+public class CallerRunsOverloadPolicy implements MailOverloadPolicy {
+
+    private final long timeout;
+
+    /**
+     * @param timeout 调用方最长的等待时间（毫秒），接收时等待调用方发送名额和发送结果（同步传输层下发送本身不受限制），线程池拒绝时等待线程池队列空出位置
+     */
+    public CallerRunsOverloadPolicy(long timeout) {
+        this.timeout = timeout;
+    }
+
+    @Override
+    public boolean onOverload(MailOverload overload) throws InterruptedException {
+        return overload.runInCaller(timeout, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,13 @@
+package com.svwh.mailservice.overload;
+
+/**
+ * @description 丢弃最早排队的非严格到达邮件为新邮件腾出名额，没有可以丢弃的邮件时拒绝新邮件
+ * @Author cxk
+ */
+public class DropOldestOverloadPolicy implements MailOverloadPolicy {
+
+    @Override
+    public boolean onOverload(MailOverload overload) {
+        return overload.evictOldest();
+    }
+}
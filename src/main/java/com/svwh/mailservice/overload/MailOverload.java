@@ -0,0 +1,48 @@
+package com.svwh.mailservice.overload;
+
+import com.svwh.mailservice.enums.OverloadStageEnum;
+import com.svwh.mailservice.mail.Mail;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @description 一封遇到过载的邮件以及可以对它采取的处理方式，由邮件服务提供给 {@link MailOverloadPolicy}
+ *  只有非严格到达的邮件才会交给过载策略，严格到达的邮件固定由调用方等待，不会被拒绝或丢弃。
+ * @Author cxk
+ */
+public interface MailOverload {
+
+    /**
+     * @return 遇到过载的邮件（非严格到达）
+     */
+    Mail getMail();
+
+    /**
+     * @return 发生过载的环节
+     */
+    OverloadStageEnum getStage();
+
+    /**
+     * 把邮件写入磁盘日志，名额空出后重新投递
+     * @return 是否写入成功，没有配置磁盘日志或者写入失败时返回false
+     */
+    boolean spill();
+
+    /**
+     * 丢弃最早排队的一封非严格到达邮件（被丢弃的邮件会发布 SHED 事件），再重新尝试接收这封邮件
+     * @return 这封邮件是否被接收，没有可以丢弃的邮件时返回false
+     */
+    boolean evictOldest();
+
+    /**
+     * 由调用方线程处理：接收时不再等待队列名额（调用方已等待过），占用租户名额和调用方发送名额后直接在调用方线程中发送，
+     * 并在超时时间内等待发送结果（超时只对非阻塞的传输层有效，同步的传输层会让调用方等到SMTP会话结束）；
+     * 线程池拒绝时在超时时间内等待线程池空出位置，仍然没有位置时直接在调用方线程中发送。
+     * 只有应用调用发送方法的线程会这样处理，内部线程（派发、定时加载、合并线程）不等待也不发送，改为写入磁盘日志
+     * @param timeout 最长等待时间
+     * @param unit 时间单位
+     * @return 这封邮件是否被接收，没有可用账号、拿不到调用方发送名额、写入磁盘日志失败时返回false
+     * @throws InterruptedException 等待时被中断
+     */
+    boolean runInCaller(long timeout, TimeUnit unit) throws InterruptedException;
+}
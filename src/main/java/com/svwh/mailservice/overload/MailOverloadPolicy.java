@@ -0,0 +1,17 @@
+package com.svwh.mailservice.overload;
+
+/**
+ * @description 服务过载时的处理策略：准入名额用完（接收环节）或者线程池拒绝执行（执行环节）时调用
+ *  策略通过 {@link MailOverload} 选择处理方式，返回false时邮件被拒绝：接收环节 send 返回false，执行环节邮件被放弃，
+ *  两种情况都会发布 SHED 事件通知监听器。可以注册自己的实现替换默认策略。
+ * @Author cxk
+ */
+public interface MailOverloadPolicy {
+
+    /**
+     * @param overload 遇到过载的邮件
+     * @return 邮件是否被接收
+     * @throws InterruptedException 等待时被中断（邮件按被拒绝处理）
+     */
+    boolean onOverload(MailOverload overload) throws InterruptedException;
+}
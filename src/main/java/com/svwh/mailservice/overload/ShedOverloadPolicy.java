@@ -0,0 +1,13 @@
+package com.svwh.mailservice.overload;
+
+/**
+ * @description 拒绝邮件（默认），调用方从 send 的返回值得知，监听器收到 SHED 事件
+ * @Author cxk
+ */
+public class ShedOverloadPolicy implements MailOverloadPolicy {
+
+    @Override
+    public boolean onOverload(MailOverload overload) {
+        return false;
+    }
+}
@@ -0,0 +1,13 @@
+package com.svwh.mailservice.overload;
+
+/**
+ * @description 把邮件写入磁盘日志，名额空出后按写入顺序重新投递；写入失败时拒绝邮件
+ * @Author cxk
+ */
+public class SpillOverloadPolicy implements MailOverloadPolicy {
+
+    @Override
+    public boolean onOverload(MailOverload overload) {
+        return overload.spill();
+    }
+}
@@ -0,0 +1,211 @@
+package com.svwh.mailservice.route;
+
+import com.svwh.mailservice.conf.MailProperties;
+import com.svwh.mailservice.conf.MailRouteProperties;
+import com.svwh.mailservice.mail.Mail;
+import com.svwh.mailservice.mail.MailSender;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * @description 按收件人域名路由发件账号
+ *  同一邮件服务商之间投递更快，也更不容易被限流，因此优先使用与收件人同服务商（或显式映射）的发件账号，
+ *  没有匹配的账号时再由限流执行器从所有账号中选取。
+ *  域名到服务商的解析结果会被缓存，重复的收件人域名不再重复解析。
+ * @Author cxk
+ */
+public class MailRouter {
+
+    /**
+     * 内置的域名与邮件服务商映射
+     */
+    private static final Map<String, String> DEFAULT_PROVIDERS = new HashMap<>();
+
+    static {
+        DEFAULT_PROVIDERS.put("qq.com", "qq");
+        DEFAULT_PROVIDERS.put("vip.qq.com", "qq");
+        DEFAULT_PROVIDERS.put("foxmail.com", "qq");
+        DEFAULT_PROVIDERS.put("163.com", "netease");
+        DEFAULT_PROVIDERS.put("126.com", "netease");
+        DEFAULT_PROVIDERS.put("yeah.net", "netease");
+        DEFAULT_PROVIDERS.put("188.com", "netease");
+        DEFAULT_PROVIDERS.put("sina.com", "sina");
+        DEFAULT_PROVIDERS.put("sina.cn", "sina");
+        DEFAULT_PROVIDERS.put("gmail.com", "google");
+        DEFAULT_PROVIDERS.put("googlemail.com", "google");
+        DEFAULT_PROVIDERS.put("outlook.com", "microsoft");
+        DEFAULT_PROVIDERS.put("hotmail.com", "microsoft");
+        DEFAULT_PROVIDERS.put("live.com", "microsoft");
+    }
+
+    /**
+     * 发件账号配置（支持动态刷新，每次都读取最新的账号集）
+     */
+    private final MailProperties mailProperties;
+
+    /**
+     * 域名与服务商映射（内置映射 + 用户配置）
+     */
+    private final Map<String, String> providers;
+
+    /**
+     * 域名解析结果缓存
+     */
+    private final ConcurrentHashMap<String, String> providerCache = new ConcurrentHashMap<>();
+
+    private final int cacheSize;
+
+    private final boolean splitRecipients;
+
+    public MailRouter(MailProperties mailProperties, MailRouteProperties mailRouteProperties) {
+        this.mailProperties = mailProperties;
+        this.providers = new HashMap<>(DEFAULT_PROVIDERS);
+        for (Map.Entry<String, String> entry : mailRouteProperties.getProviders().entrySet()) {
+            this.providers.put(entry.getKey().toLowerCase(), entry.getValue());
+        }
+        this.cacheSize = mailRouteProperties.getCacheSize();
+        this.splitRecipients = mailRouteProperties.isSplitRecipients();
+    }
+
+    /**
+     * 按服务商拆分多收件人邮件
+     * 没有对应发件账号的收件人归到同一封邮件中，只有拆分后的分组多于一个时才拆分。
+     *
+     * @param mail 待发送邮件
+     * @return 拆分后的邮件（不需要拆分时只包含原邮件）
+     */
+    public List<Mail> split(Mail mail) {
+        List<String> toMail = mail.getToMail();
+        if (!splitRecipients || toMail.size() < 2){
+            return Collections.singletonList(mail);
+        }
+        Set<String> senderProviders = senderProviders();
+        Map<String, List<String>> groups = new LinkedHashMap<>();
+        for (String address : toMail) {
+            String provider = addressProvider(address);
+            if (provider == null || !senderProviders.contains(provider)){
+                provider = "";
+            }
+            groups.computeIfAbsent(provider, key -> new ArrayList<>()).add(address);
+        }
+        // 所有收件人都能（或都不能）使用同一类发件账号，拆分没有收益
+        if (groups.size() < 2){
+            return Collections.singletonList(mail);
+        }
+        List<Mail> mails = new ArrayList<>(groups.size());
+        for (List<String> group : groups.values()) {
+            mails.add(mail.copy(group));
+        }
+        return mails;
+    }
+
+    /**
+     * 获取邮件优先使用的发件账号条件
+     *
+     * @param mail 待发送邮件
+     * @return 发件账号是否与收件人属于同一个服务商，没有可识别的收件人域名时返回null
+     */
+    public Predicate<MailSender> preferred(Mail mail) {
+        Set<String> recipientProviders = new HashSet<>();
+        for (String address : mail.getToMail()) {
+            String provider = addressProvider(address);
+            if (provider != null){
+                recipientProviders.add(provider);
+            }
+        }
+        if (recipientProviders.isEmpty()){
+            return null;
+        }
+        return mailSender -> recipientProviders.contains(senderProvider(mailSender));
+    }
+
+    private Set<String> senderProviders() {
+        Set<String> senderProviders = new HashSet<>();
+        List<MailSender> mailInfos = mailProperties.getMailInfos();
+        if (mailInfos != null){
+            for (MailSender mailInfo : mailInfos) {
+                senderProviders.add(senderProvider(mailInfo));
+            }
+        }
+        return senderProviders;
+    }
+
+    /**
+     * 发件账号所属的服务商：优先取发件人地址的域名，其次是用户名，最后是SMTP服务器地址
+     */
+    private String senderProvider(MailSender mailSender) {
+        String provider = addressProvider(mailSender.getFromSender());
+        if (provider == null){
+            provider = addressProvider(mailSender.getUsername());
+        }
+        if (provider == null && mailSender.getHostName() != null){
+            String hostName = mailSender.getHostName();
+            if (hostName.startsWith("smtp.") || hostName.startsWith("mail.")){
+                hostName = hostName.substring(5);
+            }
+            provider = domainProvider(hostName);
+        }
+        return provider;
+    }
+
+    private String addressProvider(String address) {
+        if (address == null){
+            return null;
+        }
+        int at = address.lastIndexOf('@');
+        if (at < 0 || at == address.length() - 1){
+            return null;
+        }
+        String domain = address.substring(at + 1).trim();
+        // 兼容 "name <user@qq.com>" 的写法
+        if (domain.endsWith(">")){
+            domain = domain.substring(0, domain.length() - 1);
+        }
+        return domainProvider(domain);
+    }
+
+    /**
+     * 解析域名所属的服务商：先匹配映射表（包括上级域名），匹配不上时以完整的域名作为服务商
+     */
+    private String domainProvider(String domain) {
+        String key = domain.toLowerCase();
+        String provider = providerCache.get(key);
+        if (provider != null){
+            return provider;
+        }
+        provider = resolve(key);
+        // 缓存过大时直接清空，域名的种类一般不会太多
+        if (providerCache.size() >= cacheSize){
+            providerCache.clear();
+        }
+        providerCache.put(key, provider);
+        return provider;
+    }
+
+    /**
+     * 依次用域名本身和各级上级域名查找映射表，都查不到时以完整的域名作为服务商
+     */
+    private String resolve(String domain) {
+        String current = domain;
+        while (true) {
+            String provider = providers.get(current);
+            if (provider != null){
+                return provider;
+            }
+            int dot = current.indexOf('.');
+            if (dot < 0){
+                return domain;
+            }
+            current = current.substring(dot + 1);
+        }
+    }
+}
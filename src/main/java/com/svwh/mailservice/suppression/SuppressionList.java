@@ -0,0 +1,362 @@
+package com.svwh.mailservice.suppression;
+
+import com.svwh.mailservice.transport.SmtpReplyCodes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * @description 收件人抑制列表：退信、退订的地址在发送前被过滤，不再浪费账号额度
+ *  地址只以64位哈希值保存：前面是一层布隆过滤器，绝大多数不在列表中的地址只需检查几个位；
+ *  布隆过滤器命中后再查询堆外的开放寻址哈希表确认。即使有数百万个地址，堆上也只有布隆过滤器的位数组，
+ *  没有按地址创建的对象。
+ *  查询无锁；添加地址时加锁，哈希表负载超过一半时整体扩容并替换（读取方始终看到完整的表）。
+ *  地址比较时忽略大小写和首尾空白，"名称 &lt;地址&gt;" 形式只取尖括号中的地址。
+ * @Author cxk
+ */
+public class SuppressionList {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SuppressionList.class);
+
+    /**
+     * 布隆过滤器的哈希函数个数
+     */
+    private static final int BLOOM_HASHES = 7;
+
+    /**
+     * 布隆过滤器每个地址占用的位数（约1%的误判率）
+     */
+    private static final int BLOOM_BITS_PER_ENTRY = 10;
+
+    /**
+     * 哈希表中表示空槽位的值，哈希值为0的地址改用1保存
+     */
+    private static final long EMPTY = 0L;
+
+    /**
+     * 批量导入时估算地址数使用的平均行长度
+     */
+    private static final int AVERAGE_LINE_BYTES = 24;
+
+    private volatile Table table;
+
+    /**
+     * 退信时加入的地址追加写入的文件（可选）
+     */
+    private final Path file;
+
+    /**
+     * 视为收件人永久不可达的SMTP应答码
+     */
+    private final Set<Integer> bounceCodes;
+
+    /**
+     * @param file 抑制列表文件，每行一个地址，可以为null
+     * @param expectedSize 预计的地址数
+     * @param bounceCodes 视为收件人永久不可达的SMTP应答码
+     */
+    public SuppressionList(Path file, int expectedSize, Set<Integer> bounceCodes) {
+        this.file = file;
+        this.bounceCodes = new HashSet<>(bounceCodes);
+        this.table = new Table(Math.max(expectedSize, 16));
+    }
+
+    /**
+     * 从抑制列表文件加载地址（文件不存在时忽略）
+     * @return 加载的行数
+     */
+    public long load() throws IOException {
+        if (file == null || !Files.exists(file)){
+            return 0;
+        }
+        return addAll(file);
+    }
+
+    /**
+     * 批量导入地址，每行一个地址，空行和以 # 开头的行被忽略；导入的地址不会追加到抑制列表文件
+     * @param source 地址文件
+     * @return 导入的行数
+     */
+    public long addAll(Path source) throws IOException {
+        long start = System.currentTimeMillis();
+        long lines = 0;
+        synchronized (this) {
+            // 按文件大小预先扩容，避免导入过程中多次扩容
+            ensureCapacity(size() + Files.size(source) / AVERAGE_LINE_BYTES);
+            try (BufferedReader reader = Files.newBufferedReader(source, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    long hash = hash(line);
+                    if (hash != EMPTY){
+                        insert(hash);
+                        lines++;
+                    }
+                }
+            }
+        }
+        LOGGER.info("已导入 {} 个抑制地址：{}，耗时 {}ms，当前共 {} 个", lines, source,
+                System.currentTimeMillis() - start, size());
+        return lines;
+    }
+
+    /**
+     * 添加一个地址并追加到抑制列表文件
+     * @param address 地址
+     * @return 地址原来是否不在列表中
+     */
+    public boolean add(String address) {
+        long hash = hash(address);
+        if (hash == EMPTY){
+            return false;
+        }
+        synchronized (this) {
+            if (!insert(hash)){
+                return false;
+            }
+            append(address.trim());
+        }
+        return true;
+    }
+
+    /**
+     * @param address 地址
+     * @return 地址是否在抑制列表中
+     */
+    public boolean contains(String address) {
+        long hash = hash(address);
+        return hash != EMPTY && table.contains(hash);
+    }
+
+    /**
+     * 过滤掉被抑制的收件人
+     * @param recipients 收件人
+     * @return 未被抑制的收件人，没有收件人被抑制时返回null（避免为大多数邮件创建新的集合）
+     */
+    public List<String> retain(List<String> recipients) {
+        List<String> retained = null;
+        for (int i = 0; i < recipients.size(); i++) {
+            String recipient = recipients.get(i);
+            if (contains(recipient)){
+                if (retained == null){
+                    retained = new ArrayList<>(recipients.subList(0, i));
+                }
+            }else if (retained != null){
+                retained.add(recipient);
+            }
+        }
+        return retained;
+    }
+
+    /**
+     * 投递失败时处理退信：应答码属于永久不可达的应答码时，把被拒绝的收件人加入抑制列表
+     * @param cause 投递失败的原因
+     * @return 加入的地址数
+     */
+    public int onBounce(Throwable cause) {
+        if (!bounceCodes.contains(SmtpReplyCodes.replyCode(cause))){
+            return 0;
+        }
+        int added = 0;
+        for (String recipient : SmtpReplyCodes.rejectedRecipients(cause)) {
+            if (add(recipient)){
+                LOGGER.info("收件人 {} 被服务器永久拒绝，已加入抑制列表", recipient);
+                added++;
+            }
+        }
+        return added;
+    }
+
+    public int size() {
+        return table.size;
+    }
+
+    private boolean insert(long hash) {
+        ensureCapacity(table.size + 1L);
+        return table.insert(hash);
+    }
+
+    /**
+     * 负载超过一半时扩容，新表建好后整体替换
+     */
+    private void ensureCapacity(long size) {
+        Table current = table;
+        if (size <= current.maxSize){
+            return;
+        }
+        Table resized = new Table(size * 2);
+        current.copyTo(resized);
+        table = resized;
+    }
+
+    private void append(String address) {
+        if (file == null){
+            return;
+        }
+        try {
+            if (file.getParent() != null){
+                Files.createDirectories(file.getParent());
+            }
+            try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                writer.write(address);
+                writer.newLine();
+            }
+        } catch (IOException e) {
+            LOGGER.warn("写入抑制列表文件失败，地址 {} 只在本次运行中生效", address, e);
+        }
+    }
+
+    /**
+     * 地址的64位哈希：忽略大小写和首尾空白，只取尖括号中的地址，不创建新的字符串
+     * @return 哈希值，空地址返回0
+     */
+    static long hash(String address) {
+        if (address == null){
+            return EMPTY;
+        }
+        int begin = 0;
+        int end = address.length();
+        int open = address.lastIndexOf('<');
+        if (open >= 0){
+            int close = address.indexOf('>', open);
+            begin = open + 1;
+            end = close > open ? close : end;
+        }
+        while (begin < end && address.charAt(begin) <= ' ') {
+            begin++;
+        }
+        while (end > begin && address.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        if (begin == end || address.charAt(begin) == '#'){
+            return EMPTY;
+        }
+        long hash = 0xcbf29ce484222325L;
+        for (int i = begin; i < end; i++) {
+            char c = address.charAt(i);
+            hash ^= c < 128 ? (c >= 'A' && c <= 'Z' ? c + 32 : c) : Character.toLowerCase(c);
+            hash *= 0x100000001b3L;
+        }
+        hash = mix(hash);
+        return hash == EMPTY ? 1 : hash;
+    }
+
+    /**
+     * MurmurHash3 的最终混合，让FNV哈希的高低位都足够分散
+     */
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * 布隆过滤器和堆外哈希表，扩容时两者一起重建
+     */
+    private static final class Table {
+
+        final long[] bloom;
+
+        final long bloomMask;
+
+        /**
+         * 堆外的开放寻址哈希表（线性探测），每个槽位保存一个地址哈希
+         */
+        final ByteBuffer slots;
+
+        final int slotMask;
+
+        final long maxSize;
+
+        volatile int size;
+
+        Table(long expectedSize) {
+            long bloomBits = Long.highestOneBit(Math.max(64, expectedSize * BLOOM_BITS_PER_ENTRY - 1)) << 1;
+            long slotCount = Long.highestOneBit(Math.max(16, expectedSize * 2 - 1)) << 1;
+            if (slotCount > Integer.MAX_VALUE / Long.BYTES + 1 || bloomBits / Long.SIZE > Integer.MAX_VALUE){
+                throw new IllegalArgumentException("the suppression list is too large: " + expectedSize);
+            }
+            this.bloom = new long[(int) (bloomBits / Long.SIZE)];
+            this.bloomMask = bloomBits - 1;
+            this.slots = ByteBuffer.allocateDirect((int) slotCount * Long.BYTES).order(ByteOrder.nativeOrder());
+            this.slotMask = (int) slotCount - 1;
+            this.maxSize = slotCount / 2;
+        }
+
+        boolean contains(long hash) {
+            if (!mightContain(hash)){
+                return false;
+            }
+            int index = (int) hash & slotMask;
+            while (true) {
+                long value = slots.getLong(index * Long.BYTES);
+                if (value == hash){
+                    return true;
+                }
+                if (value == EMPTY){
+                    return false;
+                }
+                index = (index + 1) & slotMask;
+            }
+        }
+
+        boolean insert(long hash) {
+            int index = (int) hash & slotMask;
+            while (true) {
+                long value = slots.getLong(index * Long.BYTES);
+                if (value == hash){
+                    return false;
+                }
+                if (value == EMPTY){
+                    break;
+                }
+                index = (index + 1) & slotMask;
+            }
+            slots.putLong(index * Long.BYTES, hash);
+            // 先写入哈希表再设置布隆过滤器，读取方通过布隆过滤器后一定能在表中找到
+            long h2 = (hash >>> 32) | 1;
+            for (int i = 0; i < BLOOM_HASHES; i++) {
+                long bit = (hash + i * h2) & bloomMask;
+                bloom[(int) (bit >>> 6)] |= 1L << bit;
+            }
+            size++;
+            return true;
+        }
+
+        private boolean mightContain(long hash) {
+            long h2 = (hash >>> 32) | 1;
+            for (int i = 0; i < BLOOM_HASHES; i++) {
+                long bit = (hash + i * h2) & bloomMask;
+                if ((bloom[(int) (bit >>> 6)] & (1L << bit)) == 0){
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void copyTo(Table target) {
+            for (int i = 0; i <= slotMask; i++) {
+                long value = slots.getLong(i * Long.BYTES);
+                if (value != EMPTY){
+                    target.insert(value);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package com.svwh.mailservice.threadpool;
+
+import com.svwh.mailservice.algrothim.AccountSnapshot;
+import com.svwh.mailservice.algrothim.RateLimit;
+import com.svwh.mailservice.algrothim.RateLimitExecutor;
+import com.svwh.mailservice.mail.MailSender;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+
+/**
+ * @description 发送线程池的自动调整
+ *  线程池的队列容量为 maxWorkCount（默认不限），队列没有排满时线程数停留在核心线程数，这里定期按 积压的邮件数、发送耗时 和 所有账号剩余的限流额度 重新设置核心线程数：
+ *  期望的发送速率取 积压邮件在一个调整周期内发完的速率 与 账号额度允许的速率 中较小的一个，
+ *  所需的线程数按利特尔法则等于 速率 * 每封邮件占用工作线程的时间，结果限制在 [minPoolSize, maxPoolSize] 之间。
+ *  额度用完（或者所有账号都被限制）时多出的线程只会空转，线程数随之降到下限。
+ *  增加线程立即生效，减少线程每次只减少差值的一半，避免耗时抖动时线程数来回振荡。
+ * @Author cxk
+ */
+public class MailPoolSizer implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MailPoolSizer.class);
+
+    /**
+     * 发送耗时平滑系数（新样本的权重）
+     */
+    private static final double ALPHA = 0.2;
+
+    private final ThreadPoolExecutor executor;
+
+    private final RateLimitExecutor rateLimitExecutor;
+
+    private final int minPoolSize;
+
+    private final int maxPoolSize;
+
+    private final long interval;
+
+    /**
+     * 平滑后的每封邮件占用工作线程的时间（纳秒，double的位表示），没有样本时为0；多个工作线程同时记录，通过CAS更新
+     */
+    private final AtomicLong serviceNanos = new AtomicLong();
+
+    private IntSupplier backlog;
+
+    private Thread sizer;
+
+    private volatile boolean closed;
+
+    /**
+     * @param executor 发送线程池
+     * @param rateLimitExecutor 限流执行器，用于计算剩余的发送额度
+     * @param minPoolSize 最少的线程数
+     * @param maxPoolSize 最多的线程数
+     * @param interval 调整周期（毫秒）
+     */
+    public MailPoolSizer(ThreadPoolExecutor executor, RateLimitExecutor rateLimitExecutor,
+                         int minPoolSize, int maxPoolSize, long interval) {
+        this.executor = executor;
+        this.rateLimitExecutor = rateLimitExecutor;
+        this.minPoolSize = Math.max(1, minPoolSize);
+        this.maxPoolSize = Math.max(this.minPoolSize, maxPoolSize);
+        this.interval = Math.max(10, interval);
+    }
+
+    /**
+     * 启动调整线程（可重复调用）
+     * @param backlog 等待发送的邮件数（线程池队列以及尚未派发给线程池的邮件）
+     */
+    public synchronized void start(IntSupplier backlog) {
+        if (sizer != null || closed){
+            return;
+        }
+        this.backlog = backlog;
+        if (executor.getMaximumPoolSize() < maxPoolSize){
+            executor.setMaximumPoolSize(maxPoolSize);
+        }
+        this.sizer = new Thread(this::run, "mail-pool-sizer");
+        this.sizer.setDaemon(true);
+        this.sizer.start();
+    }
+
+    /**
+     * 记录一封邮件占用工作线程的时间；阻塞传输层下就是SMTP投递的耗时，非阻塞传输层下只是交给事件循环的耗时
+     * @param nanos 纳秒
+     */
+    public void record(long nanos) {
+        while (true) {
+            long bits = serviceNanos.get();
+            double current = Double.longBitsToDouble(bits);
+            double next = current == 0 ? nanos : current + ALPHA * (nanos - current);
+            if (serviceNanos.compareAndSet(bits, Double.doubleToLongBits(next))){
+                return;
+            }
+        }
+    }
+
+    private void run() {
+        while (!closed) {
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                break;
+            }
+            try {
+                resize();
+            } catch (RuntimeException e) {
+                LOGGER.warn("调整发送线程池失败", e);
+            }
+        }
+    }
+
+    /**
+     * 计算并设置核心线程数
+     */
+    void resize() {
+        int current = executor.getCorePoolSize();
+        int target = targetSize(current);
+        if (target == current){
+            return;
+        }
+        if (target < current){
+            // 逐步减少，至少减少一个
+            target = Math.min(current - 1, current - (current - target + 1) / 2);
+        }
+        executor.setCorePoolSize(target);
+        LOGGER.debug("发送线程池核心线程数调整为 {}（原为 {}）", target, current);
+    }
+
+    /**
+     * @return 当前需要的线程数
+     */
+    int targetSize(int current) {
+        double nanos = Double.longBitsToDouble(serviceNanos.get());
+        int waiting = backlog.getAsInt() + executor.getActiveCount();
+        if (waiting == 0){
+            return minPoolSize;
+        }
+        if (nanos == 0){
+            // 还没有耗时样本，保持不变
+            return current;
+        }
+        double demandRate = waiting * 1000.0 / interval;
+        double rate = Math.min(demandRate, budgetRate());
+        long threads = (long) Math.ceil(rate * nanos / TimeUnit.SECONDS.toNanos(1));
+        return (int) Math.max(minPoolSize, Math.min(maxPoolSize, threads));
+    }
+
+    /**
+     * 所有可用账号在各自当前时间窗口的剩余时间内还能发送的速率之和（封/秒），
+     * 被限制或者暂停的账号不计入，有账号的限流器不支持窗口统计时认为额度不限
+     */
+    double budgetRate() {
+        if (rateLimitExecutor.isAllLimited()){
+            return 0;
+        }
+        AccountSnapshot snapshot = rateLimitExecutor.snapshot();
+        if (snapshot.size() == 0){
+            return Double.POSITIVE_INFINITY;
+        }
+        double rate = 0;
+        for (MailSender mailSender : snapshot.getMailSenders()) {
+            if (mailSender.isLimited() || mailSender.isPaused()){
+                continue;
+            }
+            RateLimit rateLimit = snapshot.rateLimit(mailSender);
+            if (rateLimit == null || rateLimit.windowLimit() < 0 || rateLimit.windowUsed() < 0){
+                return Double.POSITIVE_INFINITY;
+            }
+            int remaining = Math.max(0, rateLimit.windowLimit() - rateLimit.windowUsed());
+            // 窗口即将重置时剩余额度按一个调整周期摊开，避免速率被高估
+            long remainingMillis = Math.max(rateLimit.windowRemainingMillis(),
+                    Math.min(interval, Math.max(1, rateLimit.windowMillis())));
+            rate += remaining * 1000.0 / remainingMillis;
+        }
+        return rate;
+    }
+
+    /**
+     * @return 平滑后的每封邮件占用工作线程的时间（毫秒）
+     */
+    public double serviceMillis() {
+        return Double.longBitsToDouble(serviceNanos.get()) / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * 停止调整，线程数保持当前值
+     */
+    @Override
+    public void close() {
+        Thread thread;
+        synchronized (this) {
+            if (closed){
+                return;
+            }
+            closed = true;
+            thread = sizer;
+        }
+        if (thread != null){
+            thread.interrupt();
+        }
+    }
+}
@@ -3,13 +3,14 @@ package com.svwh.mailservice.threadpool;
 import com.svwh.mailservice.core.StandAloneMailService;
 import org.slf4j.LoggerFactory;
 
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ThreadPoolExecutor;
 
 /**
  * @description 定义默认的拒绝策略
  *  * 可打印出当前线程池中的邮件任务数量
- *  * 同时丢弃未处理的任务。
+ *  * 抛出异常交还给提交方，由邮件服务按过载策略处理被拒绝的邮件（严格到达的邮件不会被丢弃）
  * @Author cxk
  */
 public class MailTooManyRejectStrategy implements RejectedExecutionHandler {
@@ -18,10 +19,10 @@ public class MailTooManyRejectStrategy implements RejectedExecutionHandler {
 
     @Override
     public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
-        Logger.error("=================邮件系统发生了故障================");
-        Logger.error("=================邮件个数超过设定限制==============");
-        Logger.error("邮件系统中待发送的邮件个数为:   {}", executor.getQueue().size());
-        Logger.error("=================邮箱故障抓取结束==================");
+        if (!executor.isShutdown()){
+            Logger.warn("邮件个数超过线程池队列的限制，待发送的邮件个数为: {}", executor.getQueue().size());
+        }
+        throw new RejectedExecutionException("the mail executor rejected the task");
     }
 
 }
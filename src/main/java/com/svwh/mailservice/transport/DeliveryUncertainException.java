@@ -0,0 +1,30 @@
+package com.svwh.mailservice.transport;
+
+import java.io.IOException;
+
+/**
+ * @description 邮件内容已经全部写出，但在收到服务器的最终应答之前连接断开或超时，
+ *  邮件可能已经被服务器接收，重发可能导致收件人收到重复的邮件
+ * @Author cxk
+ */
+public class DeliveryUncertainException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public DeliveryUncertainException(Throwable cause) {
+        super("邮件内容已写出但没有收到服务器的应答：" + cause.getMessage(), cause);
+    }
+
+    /**
+     * @param error 发送失败的异常
+     * @return 异常链中是否有投递结果不确定的异常
+     */
+    public static boolean isUncertain(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause() == cause ? null : cause.getCause()) {
+            if (cause instanceof DeliveryUncertainException){
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,62 @@
+package com.svwh.mailservice.transport;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * @description SMTP DATA内容编码：行首的"."需要重复一次（RFC 5321 4.5.2），结束时补全CRLF和结束标记
+ * @Author cxk
+ */
+class DotStuffingOutputStream extends FilterOutputStream {
+
+    /**
+     * 上一个写出的字节，初始视为行首
+     */
+    private int last = '\n';
+
+    DotStuffingOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (b == '.' && last == '\n'){
+            out.write('.');
+        }
+        out.write(b);
+        last = b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        int start = off;
+        int end = off + len;
+        for (int i = off; i < end; i++) {
+            if (b[i] == '.' && (i == off ? last : b[i - 1]) == '\n'){
+                out.write(b, start, i - start);
+                out.write('.');
+                start = i;
+            }
+        }
+        out.write(b, start, end - start);
+        if (len > 0){
+            last = b[end - 1];
+        }
+    }
+
+    /**
+     * 写出DATA结束标记
+     */
+    void finish() throws IOException {
+        if (last != '\n'){
+            out.write('\r');
+            out.write('\n');
+        }
+        out.write('.');
+        out.write('\r');
+        out.write('\n');
+        last = '\n';
+        out.flush();
+    }
+}
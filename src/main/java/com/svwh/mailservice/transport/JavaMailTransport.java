@@ -0,0 +1,60 @@
+package com.svwh.mailservice.transport;
+
+import com.svwh.mailservice.mail.MailSender;
+
+import org.apache.commons.mail.DefaultAuthenticator;
+import org.apache.commons.mail.EmailException;
+import org.apache.commons.mail.SimpleEmail;
+
+import javax.mail.MessagingException;
+import javax.mail.Transport;
+import javax.mail.internet.MimeMessage;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * @description 基于javax.mail的阻塞传输层（默认），在调用线程中完成投递
+ * @Author cxk
+ */
+public class JavaMailTransport implements MailTransport {
+
+    @Override
+    public CompletableFuture<Void> send(MailSender mailSender, MimeMessage message) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        try {
+            Transport.send(message);
+            future.complete(null);
+        } catch (MessagingException | RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * 每次发送都会新建连接，这里只检查能否连接并认证成功
+     */
+    @Override
+    public CompletableFuture<Void> warmUp(MailSender mailSender, int sessions) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        try {
+            // 与发送邮件时使用相同的方式创建会话，保证检查的就是实际发送使用的配置
+            SimpleEmail email = new SimpleEmail();
+            email.setHostName(mailSender.getHostName());
+            email.setAuthenticator(new DefaultAuthenticator(mailSender.getUsername(), mailSender.getPassword()));
+            email.setSSLOnConnect(mailSender.getSslEnable());
+            if (mailSender.getTimeout() != null){
+                email.setSocketConnectionTimeout(mailSender.getTimeout());
+                email.setSocketTimeout(mailSender.getTimeout());
+            }
+            Transport transport = email.getMailSession().getTransport();
+            try {
+                transport.connect();
+            } finally {
+                transport.close();
+            }
+            future.complete(null);
+        } catch (EmailException | MessagingException | RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+}
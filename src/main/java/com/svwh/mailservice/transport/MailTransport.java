@@ -0,0 +1,39 @@
+package com.svwh.mailservice.transport;
+
+import com.svwh.mailservice.mail.MailSender;
+
+import javax.mail.internet.MimeMessage;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * @description 邮件传输层（SPI）
+ *  邮件服务负责构建邮件，传输层只负责把构建好的邮件通过SMTP投递出去，
+ *  默认使用javax.mail阻塞投递，也可以替换为非阻塞的实现。
+ * @Author cxk
+ */
+public interface MailTransport {
+
+    /**
+     * 投递邮件
+     * @param mailSender 发件账号
+     * @param message 已构建好的邮件
+     * @return 投递结果，失败时以 {@link javax.mail.MessagingException} 或 {@link java.io.IOException} 结束
+     */
+    CompletableFuture<Void> send(MailSender mailSender, MimeMessage message);
+
+    /**
+     * 预热账号：建立连接并完成认证，检查账号是否可用，支持连接复用的实现同时预先建立空闲连接
+     * @param mailSender 发件账号
+     * @param sessions 预先建立的连接数
+     * @return 预热结果，账号不可用时以异常结束
+     */
+    default CompletableFuture<Void> warmUp(MailSender mailSender, int sessions) {
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * 关闭传输层，释放连接和线程
+     */
+    default void close() {
+    }
+}
@@ -0,0 +1,348 @@
+package com.svwh.mailservice.transport;
+
+import com.svwh.mailservice.conf.MailTransportProperties;
+import com.svwh.mailservice.mail.MailSender;
+import com.svwh.mailservice.threadpool.MailThreadPoolFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @description 基于NIO的非阻塞SMTP传输层
+ *  少量的事件循环线程驱动所有SMTP会话，发送线程提交邮件后立即返回，不再等待SMTP交互完成。
+ *  每个发件账号维护一个连接池：空闲连接优先复用，连接数达到上限时任务进入账号的等待队列，
+ *  由完成任务的连接继续处理。投递结果在回调线程池中通知，避免阻塞事件循环。
+ * @Author cxk
+ */
+public class NioSmtpTransport implements MailTransport {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(NioSmtpTransport.class);
+
+    /**
+     * 解析后的服务器地址的有效期（毫秒）
+     */
+    private static final long ADDRESS_TTL = 60000;
+
+    /**
+     * 关闭时等待事件循环退出的最长时间（毫秒）
+     */
+    private static final long CLOSE_TIMEOUT = 5000;
+
+    private final SmtpEventLoop[] eventLoops;
+
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    /**
+     * 投递结果回调线程池
+     */
+    private final ExecutorService callbackExecutor;
+
+    private final ConcurrentHashMap<String, AccountSessions> accountSessions = new ConcurrentHashMap<>();
+
+    /**
+     * 服务器地址的解析结果，避免每次发送都查询DNS
+     */
+    private final ConcurrentHashMap<String, ResolvedAddress> addresses = new ConcurrentHashMap<>();
+
+    private final int maxSessionsPerAccount;
+
+    private final int maxIdleSessionsPerAccount;
+
+    private final long idleTimeout;
+
+    private final SSLContext sslContext;
+
+    private final String localHostName;
+
+    private volatile boolean closed;
+
+    public NioSmtpTransport(MailTransportProperties properties) {
+        this.maxSessionsPerAccount = properties.getMaxSessionsPerAccount();
+        this.maxIdleSessionsPerAccount = properties.getMaxIdleSessionsPerAccount();
+        this.idleTimeout = properties.getIdleTimeout();
+        try {
+            this.sslContext = SSLContext.getDefault();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        this.localHostName = resolveLocalHostName();
+        this.callbackExecutor = Executors.newFixedThreadPool(properties.getCallbackThreads(), new MailThreadPoolFactory());
+        this.eventLoops = new SmtpEventLoop[properties.getEventLoopThreads()];
+        for (int i = 0; i < eventLoops.length; i++) {
+            try {
+                eventLoops[i] = new SmtpEventLoop("mail-smtp-loop-" + (i + 1));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            eventLoops[i].start();
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> send(MailSender mailSender, MimeMessage message) {
+        SmtpJob job;
+        try {
+            if (closed){
+                throw new IOException("SMTP传输层已关闭");
+            }
+            job = SmtpJob.of(message, resolve(mailSender));
+        } catch (MessagingException | IOException | RuntimeException e) {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        CompletableFuture<Void> result = job.future.whenCompleteAsync((v, e) -> {
+        }, callbackExecutor);
+        dispatch(mailSender, job);
+        return result;
+    }
+
+    /**
+     * 预先建立已认证的空闲连接，所有连接都认证成功后结束，任意一条失败则以失败结束
+     * 建立的连接数不超过账号的最大空闲连接数
+     */
+    @Override
+    public CompletableFuture<Void> warmUp(MailSender mailSender, int sessions) {
+        AccountSessions accountSessions = sessions(mailSender);
+        int count = Math.max(1, Math.min(sessions, maxIdleSessionsPerAccount));
+        List<CompletableFuture<Void>> futures = new ArrayList<>(count);
+        for (int i = 0; i < count && accountSessions.tryOpen(); i++) {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            futures.add(future);
+            SmtpEventLoop loop = eventLoops[Math.abs(nextLoop.getAndIncrement() % eventLoops.length)];
+            loop.execute(() -> new SmtpSession(this, loop, mailSender, accountSessions.key).warmUp(future));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+                .whenCompleteAsync((v, e) -> {
+                }, callbackExecutor);
+    }
+
+    /**
+     * 分配任务：优先复用空闲连接，其次新建连接，连接数达到上限时进入等待队列
+     */
+    private void dispatch(MailSender mailSender, SmtpJob job) {
+        AccountSessions sessions = sessions(mailSender);
+        SmtpSession session = sessions.pollIdle();
+        if (session != null){
+            session.loop().execute(() -> session.submit(job));
+            return;
+        }
+        if (sessions.tryOpen()){
+            openSession(mailSender, sessions.key, job);
+            return;
+        }
+        sessions.pending.add(job);
+        // 入队期间可能有连接刚刚进入空闲池，再检查一次防止任务无人处理
+        SmtpSession idleSession = sessions.pollIdle();
+        if (idleSession != null){
+            SmtpJob pending = sessions.pending.poll();
+            if (pending != null){
+                idleSession.loop().execute(() -> idleSession.submit(pending));
+            }else if (!offerIdle(idleSession)){
+                idleSession.loop().execute(idleSession::quit);
+            }
+        }
+    }
+
+    /**
+     * 在新连接上执行任务（不占用连接数时直接新建）
+     */
+    void dispatchNew(MailSender mailSender, SmtpJob job) {
+        AccountSessions sessions = sessions(mailSender);
+        if (sessions.tryOpen()){
+            openSession(mailSender, sessions.key, job);
+        }else {
+            sessions.pending.add(job);
+        }
+    }
+
+    private void openSession(MailSender mailSender, String key, SmtpJob job) {
+        SmtpEventLoop loop = eventLoops[Math.abs(nextLoop.getAndIncrement() % eventLoops.length)];
+        loop.execute(() -> new SmtpSession(this, loop, mailSender, key).connect(job));
+    }
+
+    SmtpJob pollPending(SmtpSession session) {
+        AccountSessions sessions = accountSessions.get(session.poolKey());
+        return sessions == null ? null : sessions.pending.poll();
+    }
+
+    boolean offerIdle(SmtpSession session) {
+        AccountSessions sessions = accountSessions.get(session.poolKey());
+        if (sessions == null || sessions.idle.size() >= maxIdleSessionsPerAccount){
+            return false;
+        }
+        session.idle.set(true);
+        sessions.idle.offerFirst(session);
+        return true;
+    }
+
+    void removeIdle(SmtpSession session) {
+        AccountSessions sessions = accountSessions.get(session.poolKey());
+        if (sessions != null){
+            sessions.idle.remove(session);
+        }
+    }
+
+    void onSessionClosed(SmtpSession session) {
+        AccountSessions sessions = accountSessions.get(session.poolKey());
+        if (sessions == null){
+            return;
+        }
+        sessions.open.decrementAndGet();
+        // 连接关闭后仍有等待的任务，补充一条新连接
+        if (!sessions.pending.isEmpty() && sessions.tryOpen()){
+            SmtpJob job = sessions.pending.poll();
+            if (job == null){
+                sessions.open.decrementAndGet();
+                return;
+            }
+            openSession(session.mailSender(), sessions.key, job);
+        }
+    }
+
+    private AccountSessions sessions(MailSender mailSender) {
+        String key = mailSender.getHostName() + ":" + mailSender.getPort() + ":" + mailSender.getUsername();
+        return accountSessions.computeIfAbsent(key, AccountSessions::new);
+    }
+
+    /**
+     * 解析服务器地址，解析结果缓存 ADDRESS_TTL 毫秒，解析失败不缓存
+     */
+    InetSocketAddress resolve(MailSender mailSender) {
+        String key = mailSender.getHostName() + ":" + mailSender.getPort();
+        long now = System.currentTimeMillis();
+        ResolvedAddress resolved = addresses.get(key);
+        if (resolved != null && resolved.expiresAt > now){
+            return resolved.address;
+        }
+        InetSocketAddress address = new InetSocketAddress(mailSender.getHostName(), mailSender.getPort());
+        if (address.isUnresolved()){
+            throw new UncheckedIOException(new UnknownHostException(mailSender.getHostName()));
+        }
+        addresses.put(key, new ResolvedAddress(address, now + ADDRESS_TTL));
+        return address;
+    }
+
+    SSLEngine createEngine(MailSender mailSender) {
+        SSLEngine engine = sslContext.createSSLEngine(mailSender.getHostName(), mailSender.getPort());
+        engine.setUseClientMode(true);
+        return engine;
+    }
+
+    String localHostName() {
+        return localHostName;
+    }
+
+    private static String resolveLocalHostName() {
+        try {
+            String hostName = InetAddress.getLocalHost().getCanonicalHostName();
+            return hostName.contains(".") ? hostName : "[" + InetAddress.getLocalHost().getHostAddress() + "]";
+        } catch (UnknownHostException e) {
+            return "localhost";
+        }
+    }
+
+    long idleTimeout() {
+        return idleTimeout;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        for (SmtpEventLoop eventLoop : eventLoops) {
+            eventLoop.shutdown();
+        }
+        // 事件循环退出时会让未完成的会话失败，等它们退出后再关闭回调线程池，否则这些结果无法通知
+        long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT;
+        for (SmtpEventLoop eventLoop : eventLoops) {
+            try {
+                eventLoop.join(Math.max(1, deadline - System.currentTimeMillis()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        for (AccountSessions sessions : accountSessions.values()) {
+            SmtpJob job;
+            while ((job = sessions.pending.poll()) != null) {
+                job.future.completeExceptionally(new IOException("SMTP传输层已关闭"));
+            }
+        }
+        callbackExecutor.shutdown();
+        LOGGER.info("SMTP传输层已关闭！");
+    }
+
+    /**
+     * 服务器地址的解析结果
+     */
+    private static final class ResolvedAddress {
+
+        final InetSocketAddress address;
+
+        final long expiresAt;
+
+        ResolvedAddress(InetSocketAddress address, long expiresAt) {
+            this.address = address;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * 单个账号的连接池
+     */
+    private final class AccountSessions {
+
+        final String key;
+
+        final ConcurrentLinkedDeque<SmtpSession> idle = new ConcurrentLinkedDeque<>();
+
+        final ConcurrentLinkedQueue<SmtpJob> pending = new ConcurrentLinkedQueue<>();
+
+        final AtomicInteger open = new AtomicInteger();
+
+        AccountSessions(String key) {
+            this.key = key;
+        }
+
+        SmtpSession pollIdle() {
+            SmtpSession session;
+            while ((session = idle.pollFirst()) != null) {
+                if (session.idle.compareAndSet(true, false)){
+                    return session;
+                }
+            }
+            return null;
+        }
+
+        boolean tryOpen() {
+            while (true) {
+                int current = open.get();
+                if (current >= maxSessionsPerAccount){
+                    return false;
+                }
+                if (open.compareAndSet(current, current + 1)){
+                    return true;
+                }
+            }
+        }
+    }
+}
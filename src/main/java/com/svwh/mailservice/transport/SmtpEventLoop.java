@@ -0,0 +1,117 @@
+package com.svwh.mailservice.transport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * @description SMTP事件循环线程
+ *  一个线程驱动一个Selector上的所有SMTP会话，会话的状态只在所属的事件循环线程中读写，
+ *  其他线程通过 {@link #execute(Runnable)} 提交操作。
+ * @Author cxk
+ */
+final class SmtpEventLoop extends Thread {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SmtpEventLoop.class);
+
+    /**
+     * 超时检查间隔（毫秒）
+     */
+    private static final long CHECK_INTERVAL = 500;
+
+    private final Selector selector;
+
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    /**
+     * 当前事件循环上的所有会话（只在事件循环线程中访问）
+     */
+    private final Set<SmtpSession> sessions = new HashSet<>();
+
+    private volatile boolean running = true;
+
+    SmtpEventLoop(String name) throws IOException {
+        super(name);
+        setDaemon(true);
+        this.selector = Selector.open();
+    }
+
+    Selector selector() {
+        return selector;
+    }
+
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    void register(SmtpSession session) {
+        sessions.add(session);
+    }
+
+    void unregister(SmtpSession session) {
+        sessions.remove(session);
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        long lastCheck = System.currentTimeMillis();
+        while (running) {
+            try {
+                selector.select(CHECK_INTERVAL);
+                runTasks();
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    SmtpSession session = (SmtpSession) key.attachment();
+                    session.onSelected(key);
+                }
+                long now = System.currentTimeMillis();
+                if (now - lastCheck >= CHECK_INTERVAL){
+                    lastCheck = now;
+                    for (SmtpSession session : new ArrayList<>(sessions)) {
+                        session.checkTimeout(now);
+                    }
+                }
+            } catch (Exception e) {
+                // 单个会话的异常已经在会话内部处理，这里只兜底防止事件循环退出
+                LOGGER.error("SMTP事件循环发生了错误！", e);
+            }
+        }
+        runTasks();
+        for (SmtpSession session : new ArrayList<>(sessions)) {
+            session.fail(new IOException("SMTP传输层已关闭"));
+        }
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+            // 关闭时忽略
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                LOGGER.error("SMTP事件循环任务执行失败！", e);
+            }
+        }
+    }
+}
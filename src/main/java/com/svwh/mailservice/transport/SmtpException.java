@@ -0,0 +1,52 @@
+package com.svwh.mailservice.transport;
+
+import javax.mail.MessagingException;
+
+/**
+ * @description SMTP服务器返回了错误的应答
+ * @Author cxk
+ */
+public class SmtpException extends MessagingException {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final String RCPT_COMMAND = "RCPT TO ";
+
+    /**
+     * SMTP应答码
+     */
+    private final int replyCode;
+
+    /**
+     * 出错的命令
+     */
+    private final String command;
+
+    public SmtpException(int replyCode, String command, String reply) {
+        super(command + " 失败：" + replyCode + " " + reply);
+        this.replyCode = replyCode;
+        this.command = command;
+    }
+
+    public int getReplyCode() {
+        return replyCode;
+    }
+
+    public String getCommand() {
+        return command;
+    }
+
+    /**
+     * @return 被拒绝的收件人，出错的命令不是 RCPT TO 时返回null
+     */
+    public String getRecipient() {
+        return command != null && command.startsWith(RCPT_COMMAND) ? command.substring(RCPT_COMMAND.length()) : null;
+    }
+
+    /**
+     * @return 是否为临时性错误（4xx）
+     */
+    public boolean isTransient() {
+        return replyCode >= 400 && replyCode < 500;
+    }
+}
@@ -0,0 +1,72 @@
+package com.svwh.mailservice.transport;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * @description 一次SMTP投递任务：信封（发件人、收件人）和已经完成点填充的DATA内容
+ * @Author cxk
+ */
+final class SmtpJob {
+
+    /**
+     * 投递时不输出的邮件头
+     */
+    private static final String[] IGNORE_HEADERS = {"Bcc", "Content-Length"};
+
+    final String from;
+
+    final List<String> recipients;
+
+    /**
+     * DATA内容（包括结束标记）
+     */
+    final ByteBuffer data;
+
+    final InetSocketAddress address;
+
+    final CompletableFuture<Void> future = new CompletableFuture<>();
+
+    /**
+     * 复用的空闲连接失效时，会在新连接上重试一次
+     */
+    boolean retried;
+
+    private SmtpJob(String from, List<String> recipients, ByteBuffer data, InetSocketAddress address) {
+        this.from = from;
+        this.recipients = recipients;
+        this.data = data;
+        this.address = address;
+    }
+
+    static SmtpJob of(MimeMessage message, InetSocketAddress address) throws MessagingException, IOException {
+        message.saveChanges();
+        Address[] fromAddresses = message.getFrom();
+        if (fromAddresses == null || fromAddresses.length == 0){
+            throw new MessagingException("the from address of mail is empty");
+        }
+        Address[] allRecipients = message.getAllRecipients();
+        if (allRecipients == null || allRecipients.length == 0){
+            throw new MessagingException("the recipients of mail is empty");
+        }
+        List<String> recipients = new ArrayList<>(allRecipients.length);
+        for (Address recipient : allRecipients) {
+            recipients.add(((InternetAddress) recipient).getAddress());
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(4096);
+        DotStuffingOutputStream out = new DotStuffingOutputStream(bos);
+        message.writeTo(out, IGNORE_HEADERS);
+        out.finish();
+        return new SmtpJob(((InternetAddress) fromAddresses[0]).getAddress(), recipients,
+                ByteBuffer.wrap(bos.toByteArray()), address);
+    }
+}
@@ -0,0 +1,71 @@
+package com.svwh.mailservice.transport;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import com.sun.mail.smtp.SMTPSenderFailedException;
+
+import javax.mail.Address;
+import javax.mail.SendFailedException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @description 从发送失败的异常中提取SMTP应答码（兼容NIO传输层和javax.mail传输层）
+ * @Author cxk
+ */
+public final class SmtpReplyCodes {
+
+    private SmtpReplyCodes() {
+    }
+
+    /**
+     * @param error 发送失败的异常
+     * @return 是否是服务器对收件人的永久拒绝（550/551/553 并且带有被拒绝的收件人），与发件账号无关
+     */
+    public static boolean isRecipientReject(Throwable error) {
+        int code = replyCode(error);
+        return (code == 550 || code == 551 || code == 553) && !rejectedRecipients(error).isEmpty();
+    }
+
+    /**
+     * @param error 发送失败的异常
+     * @return SMTP应答码，异常链中没有应答码时返回-1
+     */
+    public static int replyCode(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause() == cause ? null : cause.getCause()) {
+            if (cause instanceof SmtpException){
+                return ((SmtpException) cause).getReplyCode();
+            }
+            if (cause instanceof SMTPSendFailedException){
+                return ((SMTPSendFailedException) cause).getReturnCode();
+            }
+            if (cause instanceof SMTPAddressFailedException){
+                return ((SMTPAddressFailedException) cause).getReturnCode();
+            }
+            if (cause instanceof SMTPSenderFailedException){
+                return ((SMTPSenderFailedException) cause).getReturnCode();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param error 发送失败的异常
+     * @return 被服务器拒绝的收件人，异常链中没有收件人信息时返回空集合
+     */
+    public static List<String> rejectedRecipients(Throwable error) {
+        List<String> recipients = new ArrayList<>();
+        for (Throwable cause = error; cause != null; cause = cause.getCause() == cause ? null : cause.getCause()) {
+            if (cause instanceof SmtpException && ((SmtpException) cause).getRecipient() != null){
+                recipients.add(((SmtpException) cause).getRecipient());
+            }else if (cause instanceof SMTPAddressFailedException){
+                recipients.add(((SMTPAddressFailedException) cause).getAddress().getAddress());
+            }else if (cause instanceof SendFailedException && ((SendFailedException) cause).getInvalidAddresses() != null){
+                for (Address address : ((SendFailedException) cause).getInvalidAddresses()) {
+                    recipients.add(address.toString());
+                }
+            }
+        }
+        return recipients;
+    }
+}
@@ -0,0 +1,844 @@
+package com.svwh.mailservice.transport;
+
+import com.svwh.mailservice.mail.MailSender;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * @description 非阻塞的SMTP会话（一条连接）
+ *  会话由显式的状态机驱动：连接 -> (隐式TLS握手) -> 问候 -> EHLO -> (STARTTLS -> TLS握手 -> EHLO) -> AUTH -> 就绪，
+ *  就绪后循环执行 MAIL -> RCPT -> DATA -> 内容，服务器支持PIPELINING（RFC 2920）时信封命令一次性写出。
+ *  所有方法都只在所属的事件循环线程中调用。
+ * @Author cxk
+ */
+final class SmtpSession {
+
+    enum State {
+        CONNECTING, GREETING, EHLO, HELO, STARTTLS, AUTH_PLAIN, AUTH_LOGIN_USER, AUTH_LOGIN_PASS, AUTH_LOGIN_DONE,
+        READY, ENVELOPE, DATA, BODY, RSET, QUIT, CLOSED
+    }
+
+    private static final int PLAIN_BUFFER_SIZE = 8 * 1024;
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final NioSmtpTransport transport;
+
+    private final SmtpEventLoop loop;
+
+    private final MailSender mailSender;
+
+    private final String poolKey;
+
+    private final long timeout;
+
+    private SocketChannel channel;
+
+    private SelectionKey key;
+
+    private SSLEngine engine;
+
+    private boolean handshaking;
+
+    /**
+     * TLS握手完成后需要执行的动作
+     */
+    private Runnable afterHandshake;
+
+    /**
+     * 从网络读取的数据（写模式）
+     */
+    private ByteBuffer netIn = ByteBuffer.allocate(PLAIN_BUFFER_SIZE);
+
+    /**
+     * 解密后的应答数据（写模式）
+     */
+    private ByteBuffer appIn = ByteBuffer.allocate(PLAIN_BUFFER_SIZE);
+
+    /**
+     * 已加密待写出的数据（读模式）
+     */
+    private ByteBuffer netOut = (ByteBuffer) ByteBuffer.allocate(PLAIN_BUFFER_SIZE).flip();
+
+    /**
+     * 待写出的明文数据
+     */
+    private final Deque<ByteBuffer> outbound = new ArrayDeque<>();
+
+    private final List<String> replyLines = new ArrayList<>();
+
+    private State state = State.CONNECTING;
+
+    private boolean pipelining;
+
+    private boolean startTlsSupported;
+
+    private boolean authPlain;
+
+    private boolean authLogin;
+
+    private SmtpJob job;
+
+    /**
+     * 信封命令（MAIL FROM、RCPT TO）
+     */
+    private List<String> envelope;
+
+    private int envelopeSent;
+
+    private int envelopeReplied;
+
+    private SmtpException envelopeError;
+
+    /**
+     * 会话是否被复用过（复用的连接可能已被服务器关闭）
+     */
+    private boolean reused;
+
+    private long deadline;
+
+    private long idleSince;
+
+    /**
+     * 预热结果，会话第一次就绪时完成
+     */
+    private CompletableFuture<Void> warmUpFuture;
+
+    /**
+     * 会话是否在空闲池中，取出会话时通过CAS保证只有一方能拿到
+     */
+    final AtomicBoolean idle = new AtomicBoolean(false);
+
+    SmtpSession(NioSmtpTransport transport, SmtpEventLoop loop, MailSender mailSender, String poolKey) {
+        this.transport = transport;
+        this.loop = loop;
+        this.mailSender = mailSender;
+        this.poolKey = poolKey;
+        this.timeout = mailSender.getTimeout() == null ? 30000 : mailSender.getTimeout();
+    }
+
+    SmtpEventLoop loop() {
+        return loop;
+    }
+
+    String poolKey() {
+        return poolKey;
+    }
+
+    MailSender mailSender() {
+        return mailSender;
+    }
+
+    boolean isReady() {
+        return state == State.READY;
+    }
+
+    /**
+     * 建立连接，job为空时只建立连接并完成认证（预热）
+     */
+    void connect(SmtpJob job) {
+        this.job = job;
+        loop.register(this);
+        touch();
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            key = channel.register(loop.selector(), SelectionKey.OP_CONNECT, this);
+            if (channel.connect(job == null ? transport.resolve(mailSender) : job.address)){
+                onConnected();
+            }
+        } catch (IOException | RuntimeException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * 预热：建立连接并完成认证后进入空闲池
+     */
+    void warmUp(CompletableFuture<Void> future) {
+        this.warmUpFuture = future;
+        connect(null);
+    }
+
+    /**
+     * 在就绪的会话上执行投递任务
+     */
+    void submit(SmtpJob job) {
+        if (state != State.READY){
+            transport.dispatchNew(mailSender, job);
+            return;
+        }
+        reused = true;
+        this.job = job;
+        try {
+            startEnvelope();
+        } catch (IOException | RuntimeException e) {
+            fail(e);
+        }
+    }
+
+    void onSelected(SelectionKey selectionKey) {
+        try {
+            if (!selectionKey.isValid()){
+                return;
+            }
+            if (selectionKey.isConnectable()){
+                if (channel.finishConnect()){
+                    onConnected();
+                }
+                return;
+            }
+            if (selectionKey.isReadable()){
+                onReadable();
+            }
+            if (selectionKey.isValid() && selectionKey.isWritable()){
+                onWritable();
+            }
+        } catch (IOException | RuntimeException e) {
+            fail(e);
+        }
+    }
+
+    private void onConnected() throws IOException {
+        key.interestOps(SelectionKey.OP_READ);
+        touch();
+        if (Boolean.TRUE.equals(mailSender.getSslEnable())){
+            // 隐式TLS：握手完成后再等待服务器问候
+            startTls(() -> state = State.GREETING);
+        }else {
+            state = State.GREETING;
+        }
+    }
+
+    private void onReadable() throws IOException {
+        if (!netIn.hasRemaining()){
+            netIn = enlarge(netIn, netIn.capacity() * 2);
+        }
+        int n = channel.read(netIn);
+        if (n < 0){
+            throw new IOException("SMTP连接已被服务器关闭");
+        }
+        touch();
+        if (handshaking){
+            doHandshake();
+            if (handshaking){
+                return;
+            }
+        }
+        processInbound();
+    }
+
+    private void onWritable() throws IOException {
+        if (handshaking){
+            if (!writeNetOut()){
+                return;
+            }
+            doHandshake();
+            if (handshaking){
+                return;
+            }
+        }
+        flush();
+    }
+
+    // ---------------------------------------------------------------- TLS
+
+    private void startTls(Runnable afterHandshake) throws IOException {
+        engine = transport.createEngine(mailSender);
+        int packetSize = engine.getSession().getPacketBufferSize();
+        int appSize = engine.getSession().getApplicationBufferSize();
+        netIn = enlarge(netIn, Math.max(packetSize, netIn.capacity()));
+        appIn = enlarge(appIn, Math.max(appSize, appIn.capacity()));
+        netOut = ByteBuffer.allocate(packetSize);
+        netOut.flip();
+        this.afterHandshake = afterHandshake;
+        handshaking = true;
+        engine.beginHandshake();
+        doHandshake();
+    }
+
+    private void doHandshake() throws IOException {
+        while (handshaking) {
+            SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+            switch (status) {
+                case NEED_TASK:
+                    runDelegatedTasks();
+                    break;
+                case NEED_WRAP: {
+                    netOut.compact();
+                    SSLEngineResult result = engine.wrap(EMPTY, netOut);
+                    netOut.flip();
+                    if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW){
+                        netOut = enlargeReadable(netOut, engine.getSession().getPacketBufferSize());
+                        break;
+                    }
+                    if (result.getStatus() == SSLEngineResult.Status.CLOSED){
+                        throw new SSLException("TLS连接已关闭");
+                    }
+                    if (!writeNetOut()){
+                        updateInterest();
+                        return;
+                    }
+                    break;
+                }
+                case NEED_UNWRAP: {
+                    netIn.flip();
+                    SSLEngineResult result = engine.unwrap(netIn, appIn);
+                    netIn.compact();
+                    if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW){
+                        if (!netIn.hasRemaining()){
+                            netIn = enlarge(netIn, netIn.capacity() + engine.getSession().getPacketBufferSize());
+                        }
+                        updateInterest();
+                        return;
+                    }
+                    if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW){
+                        appIn = enlarge(appIn, appIn.capacity() + engine.getSession().getApplicationBufferSize());
+                        break;
+                    }
+                    if (result.getStatus() == SSLEngineResult.Status.CLOSED){
+                        throw new SSLException("TLS连接已关闭");
+                    }
+                    break;
+                }
+                default:
+                    finishHandshake();
+            }
+        }
+    }
+
+    private void finishHandshake() {
+        handshaking = false;
+        Runnable action = afterHandshake;
+        afterHandshake = null;
+        if (action != null){
+            action.run();
+        }
+    }
+
+    private void runDelegatedTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    // ---------------------------------------------------------------- IO
+
+    /**
+     * 处理收到的数据：解密后按行解析SMTP应答
+     */
+    private void processInbound() throws IOException {
+        if (engine == null){
+            netIn.flip();
+            if (appIn.remaining() < netIn.remaining()){
+                appIn = enlarge(appIn, appIn.position() + netIn.remaining());
+            }
+            appIn.put(netIn);
+            netIn.compact();
+        }else {
+            netIn.flip();
+            while (netIn.hasRemaining()) {
+                SSLEngineResult result = engine.unwrap(netIn, appIn);
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW){
+                    break;
+                }
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW){
+                    appIn = enlarge(appIn, appIn.capacity() + engine.getSession().getApplicationBufferSize());
+                    continue;
+                }
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED){
+                    netIn.compact();
+                    throw new SSLException("TLS连接已被服务器关闭");
+                }
+                if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK){
+                    runDelegatedTasks();
+                }
+                if (result.bytesConsumed() == 0 && result.bytesProduced() == 0){
+                    break;
+                }
+            }
+            netIn.compact();
+            // TLS 1.3 的握手后消息（如密钥更新）可能需要回应
+            SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+            if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP || status == SSLEngineResult.HandshakeStatus.NEED_TASK){
+                handshaking = true;
+                doHandshake();
+            }
+        }
+        parseReplies();
+    }
+
+    private void parseReplies() throws IOException {
+        appIn.flip();
+        int lineStart = appIn.position();
+        for (int i = appIn.position(); i < appIn.limit(); i++) {
+            if (appIn.get(i) != '\n'){
+                continue;
+            }
+            int end = i;
+            if (end > lineStart && appIn.get(end - 1) == '\r'){
+                end--;
+            }
+            byte[] line = new byte[end - lineStart];
+            for (int j = 0; j < line.length; j++) {
+                line[j] = appIn.get(lineStart + j);
+            }
+            lineStart = i + 1;
+            appIn.position(lineStart);
+            onLine(new String(line, StandardCharsets.UTF_8));
+            if (state == State.CLOSED || handshaking){
+                // STARTTLS后剩余的数据属于TLS握手，不能再按明文解析
+                break;
+            }
+        }
+        appIn.compact();
+    }
+
+    private void onLine(String line) throws IOException {
+        if (line.length() < 3){
+            throw new IOException("无法解析的SMTP应答：" + line);
+        }
+        int code;
+        try {
+            code = Integer.parseInt(line.substring(0, 3));
+        } catch (NumberFormatException e) {
+            throw new IOException("无法解析的SMTP应答：" + line);
+        }
+        replyLines.add(line.length() > 4 ? line.substring(4) : "");
+        if (line.length() == 3 || line.charAt(3) != '-'){
+            List<String> lines = new ArrayList<>(replyLines);
+            replyLines.clear();
+            onReply(code, lines);
+        }
+    }
+
+    private void write(String command) throws IOException {
+        outbound.add(ByteBuffer.wrap((command + "\r\n").getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private void send(String command) throws IOException {
+        write(command);
+        flush();
+    }
+
+    private void flush() throws IOException {
+        if (engine == null){
+            while (!outbound.isEmpty()) {
+                ByteBuffer buffer = outbound.peek();
+                channel.write(buffer);
+                if (buffer.hasRemaining()){
+                    break;
+                }
+                outbound.poll();
+            }
+        }else if (writeNetOut()) {
+            while (!handshaking && !outbound.isEmpty()) {
+                ByteBuffer buffer = outbound.peek();
+                netOut.compact();
+                SSLEngineResult result = engine.wrap(buffer, netOut);
+                netOut.flip();
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW){
+                    netOut = enlargeReadable(netOut, engine.getSession().getPacketBufferSize());
+                    continue;
+                }
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED){
+                    throw new SSLException("TLS连接已关闭");
+                }
+                if (!buffer.hasRemaining()){
+                    outbound.poll();
+                }
+                if (!writeNetOut()){
+                    break;
+                }
+            }
+        }
+        updateInterest();
+    }
+
+    private boolean writeNetOut() throws IOException {
+        while (netOut.hasRemaining()) {
+            if (channel.write(netOut) == 0){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void updateInterest() {
+        if (key == null || !key.isValid()){
+            return;
+        }
+        boolean pending = !outbound.isEmpty() || netOut.hasRemaining();
+        key.interestOps(pending ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }
+
+    /**
+     * 扩容写模式的缓冲区
+     */
+    private static ByteBuffer enlarge(ByteBuffer buffer, int capacity) {
+        if (capacity <= buffer.capacity()){
+            return buffer;
+        }
+        ByteBuffer bigger = ByteBuffer.allocate(capacity);
+        buffer.flip();
+        bigger.put(buffer);
+        return bigger;
+    }
+
+    /**
+     * 扩容读模式的缓冲区
+     */
+    private static ByteBuffer enlargeReadable(ByteBuffer buffer, int extra) {
+        ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity() + extra);
+        bigger.put(buffer);
+        bigger.flip();
+        return bigger;
+    }
+
+    // ---------------------------------------------------------------- SMTP状态机
+
+    private void onReply(int code, List<String> lines) throws IOException {
+        String reply = String.join(" ", lines);
+        switch (state) {
+            case GREETING:
+                expect(code, 220, "CONNECT", reply);
+                sendEhlo();
+                break;
+            case EHLO:
+                if (code == 250){
+                    parseCapabilities(lines);
+                    afterEhlo();
+                }else {
+                    state = State.HELO;
+                    send("HELO " + transport.localHostName());
+                }
+                break;
+            case HELO:
+                expect(code, 250, "HELO", reply);
+                afterEhlo();
+                break;
+            case STARTTLS:
+                expect(code, 220, "STARTTLS", reply);
+                startTls(() -> {
+                    try {
+                        sendEhlo();
+                    } catch (IOException e) {
+                        fail(e);
+                    }
+                });
+                break;
+            case AUTH_PLAIN:
+            case AUTH_LOGIN_DONE:
+                expect(code, 235, "AUTH", reply);
+                ready();
+                break;
+            case AUTH_LOGIN_USER:
+                expect(code, 334, "AUTH LOGIN", reply);
+                state = State.AUTH_LOGIN_PASS;
+                send(base64(mailSender.getUsername()));
+                break;
+            case AUTH_LOGIN_PASS:
+                expect(code, 334, "AUTH LOGIN", reply);
+                state = State.AUTH_LOGIN_DONE;
+                send(base64(mailSender.getPassword()));
+                break;
+            case ENVELOPE:
+                onEnvelopeReply(code, reply);
+                break;
+            case DATA:
+                if (code != 354){
+                    failJob(new SmtpException(code, "DATA", reply));
+                    reset();
+                    break;
+                }
+                state = State.BODY;
+                outbound.add(job.data.duplicate());
+                flush();
+                break;
+            case BODY:
+                if (code == 250){
+                    SmtpJob done = job;
+                    job = null;
+                    done.future.complete(null);
+                    ready();
+                }else {
+                    failJob(new SmtpException(code, "DATA", reply));
+                    reset();
+                }
+                break;
+            case RSET:
+                if (code == 250){
+                    ready();
+                }else {
+                    quit();
+                }
+                break;
+            case QUIT:
+                close();
+                break;
+            default:
+                // 空闲时服务器主动断开（如421超时），直接关闭连接
+                quit();
+        }
+    }
+
+    /**
+     * 应答码不符合预期时整个会话失败（连接建立和认证阶段）
+     */
+    private void expect(int code, int expected, String command, String reply) throws IOException {
+        if (code != expected){
+            throw new SmtpCommandException(new SmtpException(code, command, reply));
+        }
+    }
+
+    private void sendEhlo() throws IOException {
+        state = State.EHLO;
+        pipelining = false;
+        startTlsSupported = false;
+        authPlain = false;
+        authLogin = false;
+        send("EHLO " + transport.localHostName());
+    }
+
+    private void parseCapabilities(List<String> lines) {
+        // 第一行是服务器问候，之后每行一个扩展
+        for (int i = 1; i < lines.size(); i++) {
+            String capability = lines.get(i).toUpperCase(Locale.ROOT);
+            if (capability.equals("PIPELINING")){
+                pipelining = true;
+            }else if (capability.equals("STARTTLS")){
+                startTlsSupported = true;
+            }else if (capability.startsWith("AUTH ") || capability.startsWith("AUTH=")){
+                for (String mechanism : capability.substring(5).split(" ")) {
+                    if (mechanism.equals("PLAIN")){
+                        authPlain = true;
+                    }else if (mechanism.equals("LOGIN")){
+                        authLogin = true;
+                    }
+                }
+            }
+        }
+    }
+
+    private void afterEhlo() throws IOException {
+        if (engine == null && startTlsSupported && Boolean.TRUE.equals(mailSender.getStarttlsEnable())){
+            state = State.STARTTLS;
+            send("STARTTLS");
+            return;
+        }
+        if (mailSender.getUsername() == null || mailSender.getPassword() == null){
+            ready();
+            return;
+        }
+        if (authPlain || !authLogin){
+            state = State.AUTH_PLAIN;
+            send("AUTH PLAIN " + base64("\0" + mailSender.getUsername() + "\0" + mailSender.getPassword()));
+        }else {
+            state = State.AUTH_LOGIN_USER;
+            send("AUTH LOGIN");
+        }
+    }
+
+    /**
+     * 会话就绪：有任务则执行任务，否则进入空闲池
+     */
+    private void ready() throws IOException {
+        state = State.READY;
+        touch();
+        if (warmUpFuture != null){
+            warmUpFuture.complete(null);
+            warmUpFuture = null;
+        }
+        if (job == null){
+            job = transport.pollPending(this);
+        }
+        if (job != null){
+            startEnvelope();
+            return;
+        }
+        idleSince = System.currentTimeMillis();
+        if (!transport.offerIdle(this)){
+            quit();
+        }
+    }
+
+    private void startEnvelope() throws IOException {
+        state = State.ENVELOPE;
+        touch();
+        envelope = new ArrayList<>(job.recipients.size() + 1);
+        envelope.add("MAIL FROM:<" + job.from + ">");
+        for (String recipient : job.recipients) {
+            envelope.add("RCPT TO:<" + recipient + ">");
+        }
+        envelopeSent = 0;
+        envelopeReplied = 0;
+        envelopeError = null;
+        if (pipelining){
+            // RFC 2920：信封命令一次性写出，DATA等待所有应答之后再发送，收件人有误时可以直接RSET
+            for (String command : envelope) {
+                write(command);
+            }
+            envelopeSent = envelope.size();
+            flush();
+        }else {
+            envelopeSent = 1;
+            send(envelope.get(0));
+        }
+    }
+
+    private void onEnvelopeReply(int code, String reply) throws IOException {
+        envelopeReplied++;
+        if ((code != 250 && code != 251) && envelopeError == null){
+            String command = envelopeReplied == 1 ? "MAIL FROM" : "RCPT TO " + job.recipients.get(envelopeReplied - 2);
+            envelopeError = new SmtpException(code, command, reply);
+        }
+        if (envelopeReplied < envelopeSent){
+            return;
+        }
+        if (envelopeError != null){
+            failJob(envelopeError);
+            reset();
+            return;
+        }
+        if (envelopeSent < envelope.size()){
+            send(envelope.get(envelopeSent++));
+            return;
+        }
+        state = State.DATA;
+        send("DATA");
+    }
+
+    private void reset() throws IOException {
+        state = State.RSET;
+        send("RSET");
+    }
+
+    void quit() {
+        if (state == State.CLOSED || state == State.QUIT){
+            return;
+        }
+        try {
+            state = State.QUIT;
+            touch();
+            send("QUIT");
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    private void failJob(Exception e) {
+        if (job != null){
+            SmtpJob failed = job;
+            job = null;
+            failed.future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * 会话失败：关闭连接，复用连接上尚未开始发送内容的任务在新连接上重试一次
+     */
+    void fail(Throwable e) {
+        State failedState = state;
+        // 内容已全部写出、正在等待最终应答时失败，服务器可能已经接收了邮件
+        boolean bodyWritten = failedState == State.BODY && outbound.isEmpty();
+        if (warmUpFuture != null){
+            warmUpFuture.completeExceptionally(e instanceof SmtpCommandException ? e.getCause() : e);
+            warmUpFuture = null;
+        }
+        close();
+        if (job == null){
+            return;
+        }
+        SmtpJob failed = job;
+        job = null;
+        Throwable cause = e instanceof SmtpCommandException ? e.getCause() : e;
+        boolean retryable = reused && !failed.retried && !(cause instanceof SmtpException)
+                && failedState != State.BODY;
+        if (retryable){
+            failed.retried = true;
+            transport.dispatchNew(mailSender, failed);
+        }else if (bodyWritten && !(cause instanceof SmtpException)){
+            failed.future.completeExceptionally(new DeliveryUncertainException(cause));
+        }else {
+            failed.future.completeExceptionally(cause);
+        }
+    }
+
+    private void close() {
+        if (state == State.CLOSED){
+            return;
+        }
+        state = State.CLOSED;
+        if (warmUpFuture != null){
+            warmUpFuture.completeExceptionally(new IOException("SMTP连接在认证完成前被关闭"));
+            warmUpFuture = null;
+        }
+        if (idle.compareAndSet(true, false)){
+            transport.removeIdle(this);
+        }
+        loop.unregister(this);
+        if (key != null){
+            key.cancel();
+        }
+        if (channel != null){
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // 关闭时忽略
+            }
+        }
+        transport.onSessionClosed(this);
+    }
+
+    void checkTimeout(long now) {
+        if (state == State.READY){
+            if (now - idleSince >= transport.idleTimeout() && idle.compareAndSet(true, false)){
+                transport.removeIdle(this);
+                quit();
+            }
+            return;
+        }
+        if (state != State.CLOSED && now > deadline){
+            fail(new SocketTimeoutException("SMTP会话超时，当前状态：" + state));
+        }
+    }
+
+    private void touch() {
+        deadline = System.currentTimeMillis() + timeout;
+    }
+
+    private static String base64(String value) {
+        return Base64.getEncoder().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 连接建立和认证阶段的错误应答，会导致整个会话失败
+     */
+    private static final class SmtpCommandException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        SmtpCommandException(SmtpException cause) {
+            super(cause.getMessage(), cause);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.svwh.mailservice.dkim;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Base64;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * @description DKIM relaxed 规范化：RFC 6376 3.4.5 的示例、附录A的正文摘要以及空正文
+ * @Author cxk
+ */
+class RelaxedCanonicalizationTest {
+
+    /**
+     * RFC 6376 3.4.5 示例邮件
+     */
+    private static final String EXAMPLE = "A: X\r\n"
+            + "B : Y\t\r\n"
+            + "\tZ  \r\n"
+            + "\r\n"
+            + " C \r\n"
+            + "D \t E\r\n"
+            + "\r\n"
+            + "\r\n";
+
+    @Test
+    void canonicalizesBodyOfRfcExample() {
+        assertEquals(" C\r\nD E\r\n", canonicalBody(EXAMPLE));
+    }
+
+    @Test
+    void canonicalizesHeadersOfRfcExample() {
+        StringBuilder canonical = new StringBuilder();
+        MailDkimSigner.canonicalize(canonical, "a", " X").append("\r\n");
+        MailDkimSigner.canonicalize(canonical, "b", " Y\t\r\n\tZ  ").append("\r\n");
+        assertEquals("a:X\r\nb:Y Z\r\n", canonical.toString());
+    }
+
+    @Test
+    void hashesBodyOfRfcAppendixExample() throws Exception {
+        String message = "From: Joe SixPack <joe@football.example.com>\r\n"
+                + "Subject: Is dinner ready?\r\n"
+                + "\r\n"
+                + "Hi.\r\n"
+                + "\r\n"
+                + "We lost the game.  Are you hungry yet?\r\n"
+                + "\r\n"
+                + "Joe.\r\n";
+        // RFC 8463 附录A中同一封邮件 relaxed 正文的 sha256 摘要
+        assertEquals("2jUSOH9NhtVGCQWNr9BrIAPreKQjO6Sn7XIkfJVOzv8=", bodyHash(message));
+    }
+
+    @Test
+    void hashesEmptyBodyAsNothing() throws Exception {
+        // RFC 6376 3.4.4：relaxed 规则下空正文规范化后为空，摘要即为空数据的摘要
+        assertEquals("47DEQpj8HBSa+/TImW+5JCeuQeRkm5NMpJWZG3hSuFU=", bodyHash("Subject: empty\r\n\r\n"));
+        assertEquals("47DEQpj8HBSa+/TImW+5JCeuQeRkm5NMpJWZG3hSuFU=", bodyHash("Subject: empty\r\n\r\n \r\n\t\r\n"));
+    }
+
+    @Test
+    void treatsBareLineEndsAsCrlf() {
+        assertEquals("a\r\nb\r\n\r\nc\r\n", canonicalBody("H: v\r\n\r\na\nb\r\r\nc"));
+    }
+
+    @Test
+    void findsBodyWhenHeaderEndIsSplitAcrossWrites() {
+        RecordingDigest digest = new RecordingDigest();
+        RelaxedBodyOutputStream out = new RelaxedBodyOutputStream(digest);
+        byte[] bytes = "H: v\r\n\r\nbody\r\n".getBytes(StandardCharsets.US_ASCII);
+        out.write(bytes, 0, 6);
+        out.write(bytes, 6, 1);
+        out.write(bytes, 7, bytes.length - 7);
+        out.finish();
+        assertEquals("body\r\n", digest.recorded());
+    }
+
+    private static String bodyHash(String message) throws Exception {
+        RelaxedBodyOutputStream out = new RelaxedBodyOutputStream(MessageDigest.getInstance("SHA-256"));
+        byte[] bytes = message.getBytes(StandardCharsets.US_ASCII);
+        out.write(bytes, 0, bytes.length);
+        return Base64.getEncoder().encodeToString(out.finish());
+    }
+
+    private static String canonicalBody(String message) {
+        RecordingDigest digest = new RecordingDigest();
+        RelaxedBodyOutputStream out = new RelaxedBodyOutputStream(digest);
+        byte[] bytes = message.getBytes(StandardCharsets.US_ASCII);
+        out.write(bytes, 0, bytes.length);
+        out.finish();
+        return digest.recorded();
+    }
+
+    /**
+     * 记录参与摘要的数据，用于检查规范化后的正文
+     */
+    private static final class RecordingDigest extends MessageDigest {
+
+        private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+        private String recorded;
+
+        RecordingDigest() {
+            super("recording");
+        }
+
+        String recorded() {
+            return recorded;
+        }
+
+        @Override
+        protected void engineUpdate(byte input) {
+            data.write(input);
+        }
+
+        @Override
+        protected void engineUpdate(byte[] input, int offset, int len) {
+            data.write(input, offset, len);
+        }
+
+        @Override
+        protected byte[] engineDigest() {
+            byte[] bytes = data.toByteArray();
+            recorded = new String(bytes, StandardCharsets.US_ASCII);
+            data.reset();
+            return bytes;
+        }
+
+        @Override
+        protected void engineReset() {
+            data.reset();
+        }
+    }
+}
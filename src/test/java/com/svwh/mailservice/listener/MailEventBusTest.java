@@ -0,0 +1,170 @@
+package com.svwh.mailservice.listener;
+
+import com.svwh.mailservice.enums.EventOverflowEnum;
+import com.svwh.mailservice.enums.MailEventTypeEnum;
+import com.svwh.mailservice.mail.Mail;
+import com.svwh.mailservice.mail.MailSender;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @description 事件总线环形缓冲区：写入位置多次绕回后事件不丢失、不重复、保持发布顺序
+ * @Author cxk
+ */
+class MailEventBusTest {
+
+    @Test
+    void deliversInOrderAfterManyWrapArounds() {
+        RecordingListener listener = new RecordingListener(null);
+        MailEventBus bus = new MailEventBus(listener, 4, 3, EventOverflowEnum.BLOCK);
+        for (int i = 0; i < 1000; i++) {
+            bus.publish(event(i));
+        }
+        bus.close(5000);
+
+        assertEquals(4, bus.capacity());
+        assertEquals(1000, bus.publishedEvents());
+        assertEquals(0, bus.droppedEvents());
+        assertEquals(range(0, 1000), listener.received());
+    }
+
+    @Test
+    void concurrentProducersLoseAndDuplicateNothing() throws InterruptedException {
+        int producers = 4;
+        int perProducer = 5000;
+        RecordingListener listener = new RecordingListener(null);
+        MailEventBus bus = new MailEventBus(listener, 8, 5, EventOverflowEnum.BLOCK);
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            int base = p * perProducer;
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    bus.publish(event(base + i));
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        bus.close(5000);
+
+        List<Integer> received = listener.received();
+        assertEquals(producers * perProducer, received.size());
+        // 同一个生产者的事件保持发布顺序
+        int[] last = new int[producers];
+        Arrays.fill(last, -1);
+        for (int value : received) {
+            int producer = value / perProducer;
+            assertTrue(value > last[producer], "event " + value + " after " + last[producer]);
+            last[producer] = value;
+        }
+        for (int p = 0; p < producers; p++) {
+            assertEquals((p + 1) * perProducer - 1, last[p]);
+        }
+    }
+
+    @Test
+    void dropsWhenFullAndReusesSlotsAfterwards() throws InterruptedException {
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingListener listener = new RecordingListener(() -> {
+            blocked.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        MailEventBus bus = new MailEventBus(listener, 4, 1, EventOverflowEnum.DROP);
+        // 第一个事件被分发线程取走后，分发线程停在监听器中
+        bus.publish(event(0));
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+        for (int i = 1; i <= 6; i++) {
+            bus.publish(event(i));
+        }
+        assertEquals(2, bus.droppedEvents());
+        release.countDown();
+        waitUntilDrained(bus);
+        for (int i = 7; i < 20; i++) {
+            bus.publish(event(i));
+            waitUntilDrained(bus);
+        }
+        bus.close(5000);
+
+        List<Integer> expected = new ArrayList<>(range(0, 5));
+        expected.addAll(range(7, 20));
+        assertEquals(expected, listener.received());
+        assertEquals(2, bus.droppedEvents());
+    }
+
+    private static void waitUntilDrained(MailEventBus bus) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (bus.pendingEvents() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+    }
+
+    private static MailEvent event(int sequence) {
+        return new MailEvent(MailEventTypeEnum.SENT, null, null, null, sequence);
+    }
+
+    private static List<Integer> range(int from, int to) {
+        List<Integer> values = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            values.add(i);
+        }
+        return values;
+    }
+
+    /**
+     * 按通知顺序记录事件的序号（借用 attempts 字段）
+     */
+    private static final class RecordingListener implements MailServiceListener {
+
+        private final List<Integer> received = Collections.synchronizedList(new ArrayList<>());
+
+        private final Runnable onFirstBatch;
+
+        private boolean first = true;
+
+        RecordingListener(Runnable onFirstBatch) {
+            this.onFirstBatch = onFirstBatch;
+        }
+
+        List<Integer> received() {
+            synchronized (received) {
+                return new ArrayList<>(received);
+            }
+        }
+
+        @Override
+        public void onEvents(List<MailEvent> events) {
+            for (MailEvent event : events) {
+                received.add(event.getAttempts());
+            }
+            if (first && onFirstBatch != null){
+                first = false;
+                onFirstBatch.run();
+            }
+        }
+
+        @Override
+        public void errorListener() {
+        }
+
+        @Override
+        public void successListener(Mail mail, MailSender mailSender) {
+        }
+    }
+}
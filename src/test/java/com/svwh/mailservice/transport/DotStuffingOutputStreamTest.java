@@ -0,0 +1,77 @@
+package com.svwh.mailservice.transport;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * @description SMTP DATA内容的点填充和结束标记
+ * @Author cxk
+ */
+class DotStuffingOutputStreamTest {
+
+    @Test
+    void doublesDotAtStartOfData() throws IOException {
+        assertEquals("..hidden\r\n.\r\n", stuff(".hidden\r\n"));
+    }
+
+    @Test
+    void doublesDotAtStartOfEveryLine() throws IOException {
+        assertEquals("a\r\n..b\r\n..\r\nc\r\n.\r\n", stuff("a\r\n.b\r\n.\r\nc\r\n"));
+    }
+
+    @Test
+    void keepsDotsInsideLines() throws IOException {
+        assertEquals("a.b. c.\r\n.\r\n", stuff("a.b. c.\r\n"));
+    }
+
+    @Test
+    void doublesDotAfterLineEndInPreviousWrite() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DotStuffingOutputStream out = new DotStuffingOutputStream(bytes);
+        write(out, "first\r\n");
+        write(out, ".second\r\n");
+        out.write('.');
+        write(out, "third\r\n");
+        out.finish();
+        assertEquals("first\r\n..second\r\n..third\r\n.\r\n", new String(bytes.toByteArray(), StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    void doublesDotWrittenByteByByte() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DotStuffingOutputStream out = new DotStuffingOutputStream(bytes);
+        for (byte b : "x\r\n.y".getBytes(StandardCharsets.US_ASCII)) {
+            out.write(b);
+        }
+        out.finish();
+        assertEquals("x\r\n..y\r\n.\r\n", new String(bytes.toByteArray(), StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    void completesLastLineBeforeEndMarker() throws IOException {
+        assertEquals("no line end\r\n.\r\n", stuff("no line end"));
+    }
+
+    @Test
+    void writesOnlyEndMarkerForEmptyData() throws IOException {
+        assertEquals(".\r\n", stuff(""));
+    }
+
+    private static String stuff(String data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DotStuffingOutputStream out = new DotStuffingOutputStream(bytes);
+        write(out, data);
+        out.finish();
+        return new String(bytes.toByteArray(), StandardCharsets.US_ASCII);
+    }
+
+    private static void write(DotStuffingOutputStream out, String data) throws IOException {
+        byte[] bytes = data.getBytes(StandardCharsets.US_ASCII);
+        out.write(bytes, 0, bytes.length);
+    }
+}
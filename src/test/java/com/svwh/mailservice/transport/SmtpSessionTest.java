@@ -0,0 +1,251 @@
+package com.svwh.mailservice.transport;
+
+import com.svwh.mailservice.conf.MailTransportProperties;
+import com.svwh.mailservice.mail.MailSender;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @description 非阻塞SMTP会话的应答解析：多行应答、被拆成多段到达的应答、流水线（PIPELINING）下一次到达的多个应答
+ * @Author cxk
+ */
+class SmtpSessionTest {
+
+    private FakeSmtpServer server;
+
+    private NioSmtpTransport transport;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = new FakeSmtpServer();
+        transport = new NioSmtpTransport(new MailTransportProperties());
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        transport.close();
+        server.close();
+    }
+
+    @Test
+    void parsesMultiLineRepliesSplitAcrossReads() throws Exception {
+        transport.send(sender(), message("to@example.com")).get(10, TimeUnit.SECONDS);
+
+        // PIPELINING 在多行EHLO应答的中间一行，并且这一行被拆成了两段，解析正确时信封命令一次写出
+        assertEquals(Collections.singletonList(2), server.envelopeBatches);
+        assertEquals("<from@example.com>", server.mailFrom);
+        assertEquals(Collections.singletonList("<to@example.com>"), server.recipients);
+        assertTrue(server.data.contains("\r\n..hidden\r\n"), server.data);
+    }
+
+    @Test
+    void matchesPipelinedRepliesToTheirCommands() throws Exception {
+        ExecutionException error = assertThrows(ExecutionException.class, () -> transport.send(sender(),
+                message("to@example.com", "nobody@example.com", "other@example.com")).get(10, TimeUnit.SECONDS));
+
+        assertTrue(error.getCause() instanceof SmtpException, String.valueOf(error.getCause()));
+        SmtpException cause = (SmtpException) error.getCause();
+        assertEquals(550, cause.getReplyCode());
+        assertEquals("nobody@example.com", cause.getRecipient());
+        // 所有信封命令的应答在一次读取中到达，被拒绝后不再发送DATA，而是RSET
+        assertEquals(Collections.singletonList(4), server.envelopeBatches);
+        assertTrue(server.awaitCommand("RSET"));
+        assertFalse(server.commands.contains("DATA"));
+    }
+
+    private MailSender sender() {
+        MailSender mailSender = new MailSender();
+        mailSender.setHostName(InetAddress.getLoopbackAddress().getHostAddress());
+        mailSender.setPort(server.port());
+        mailSender.setSslEnable(false);
+        mailSender.setStarttlsEnable(false);
+        mailSender.setTimeout(5000);
+        return mailSender;
+    }
+
+    private static MimeMessage message(String... recipients) throws Exception {
+        MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+        message.setFrom(new InternetAddress("from@example.com"));
+        for (String recipient : recipients) {
+            message.addRecipient(Message.RecipientType.TO, new InternetAddress(recipient));
+        }
+        message.setSubject("test");
+        message.setText("first line\r\n.hidden\r\nlast line\r\n");
+        return message;
+    }
+
+    /**
+     * 只处理一个连接的SMTP服务器：同一批到达的命令的应答合并为一次写出
+     */
+    private static final class FakeSmtpServer implements AutoCloseable {
+
+        private final ServerSocket serverSocket;
+
+        private final Thread thread;
+
+        final List<String> commands = Collections.synchronizedList(new ArrayList<>());
+
+        final List<Integer> envelopeBatches = Collections.synchronizedList(new ArrayList<>());
+
+        final List<String> recipients = Collections.synchronizedList(new ArrayList<>());
+
+        volatile String mailFrom;
+
+        volatile String data = "";
+
+        FakeSmtpServer() throws IOException {
+            serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+            thread = new Thread(this::serve, "fake-smtp-server");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        int port() {
+            return serverSocket.getLocalPort();
+        }
+
+        private void serve() {
+            try (Socket socket = serverSocket.accept()) {
+                socket.setSoTimeout(10000);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+                OutputStream out = socket.getOutputStream();
+                reply(out, "22");
+                pause();
+                reply(out, "0 fake ESMTP\r\n");
+                StringBuilder replies = new StringBuilder();
+                int envelope = 0;
+                String line;
+                while ((line = in.readLine()) != null) {
+                    commands.add(line);
+                    String command = line.toUpperCase();
+                    if (command.startsWith("EHLO")){
+                        reply(out, "250-fake greets you\r\n250-PIPE");
+                        pause();
+                        reply(out, "LINING\r\n250-8BITMIME\r\n250 SIZE 1000000\r\n");
+                        continue;
+                    }
+                    if (command.startsWith("MAIL FROM:")){
+                        mailFrom = line.substring(10);
+                        envelope++;
+                        replies.append("250 ok\r\n");
+                    }else if (command.startsWith("RCPT TO:")){
+                        String recipient = line.substring(8);
+                        recipients.add(recipient);
+                        envelope++;
+                        replies.append(recipient.startsWith("<nobody") ? "550 5.1.1 no such user\r\n" : "250 ok\r\n");
+                    }else if (command.equals("DATA")){
+                        replies.append("354 go ahead\r\n");
+                    }else if (command.equals("RSET")){
+                        replies.append("250 reset\r\n");
+                    }else if (command.equals("QUIT")){
+                        reply(out, "221 bye\r\n");
+                        return;
+                    }else {
+                        replies.append("502 unknown command\r\n");
+                    }
+                    if (moreCommands(in)){
+                        continue;
+                    }
+                    if (envelope > 0){
+                        envelopeBatches.add(envelope);
+                        envelope = 0;
+                    }
+                    reply(out, replies.toString());
+                    replies.setLength(0);
+                    if (command.equals("DATA")){
+                        readData(in);
+                        reply(out, "250 queued\r\n");
+                    }
+                }
+            } catch (IOException e) {
+                // 测试结束时服务器被关闭
+            }
+        }
+
+        private void readData(BufferedReader in) throws IOException {
+            StringBuilder content = new StringBuilder();
+            String line;
+            while ((line = in.readLine()) != null && !line.equals(".")) {
+                content.append(line).append("\r\n");
+            }
+            data = content.toString();
+        }
+
+        /**
+         * 流水线的命令可能分成多段到达，稍等片刻再判断这一批命令是否已经结束
+         */
+        private static boolean moreCommands(BufferedReader in) throws IOException {
+            if (in.ready()){
+                return true;
+            }
+            pause();
+            return in.ready();
+        }
+
+        /**
+         * 等待客户端发送指定的命令
+         * @return 超时前是否收到了该命令
+         */
+        boolean awaitCommand(String command) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!commands.contains(command)) {
+                if (System.currentTimeMillis() > deadline){
+                    return false;
+                }
+                Thread.sleep(10);
+            }
+            return true;
+        }
+
+        private static void reply(OutputStream out, String reply) throws IOException {
+            out.write(reply.getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+        }
+
+        /**
+         * 分两次写出的应答之间停顿，使它们分成多段到达
+         */
+        private static void pause() {
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            serverSocket.close();
+            try {
+                thread.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}